@@ -0,0 +1,155 @@
+package hr.fer.zemris.java.nescume.messages.benchmarks;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Mjeri propusnost slanja iz jedne dretve metodom send() i metodom sendAsync(). Kod
+ * poruka većih od paketa send() čeka da se zapišu svi dijelovi poruke, a sendAsync() se
+ * vraća odmah, pa se dijelovi više poruka šalju zajedno. Uz propusnost ispisuje i
+ * najdulje vrijeme koje je pošiljatelj proveo u jednom pozivu.
+ *
+ * Pokretanje: ant benchmark -Dbenchmark.class=hr.fer.zemris.java.nescume.messages.benchmarks.AsyncSendBenchmark
+ * -Dbenchmark.args="broj_poruka duljina_poruke", npr. "2000 20000".
+ */
+public class AsyncSendBenchmark {
+
+	/**
+	 * Port na kojem sluša server tijekom mjerenja.
+	 */
+	private static final int PORT = 4202;
+
+	/**
+	 * Pokreće mjerenje.
+	 * @param args broj poruka i duljina sadržaja poruke
+	 */
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		// Zagrijavanje obje varijante prije mjerenja
+		measure(messages / 10, length, false);
+		measure(messages / 10, length, true);
+
+		measure(messages, length, false);
+		measure(messages, length, true);
+
+		System.exit(0);
+	}
+
+	/**
+	 * Mjeri jednu varijantu na novom serveru i ispisuje rezultat.
+	 * @param messages broj poruka
+	 * @param length duljina sadržaja poruke
+	 * @param async true za sendAsync(), false za send()
+	 */
+	private static void measure(int messages, int length, boolean async) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("listen.address", "127.0.0.1");
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("buffer.timeout", "5");
+		properties.setProperty("buffer.size", "1000");
+		properties.setProperty("packet.size", "8192");
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("watermark.high", Integer.toString(64 << 20));
+		properties.setProperty("watermark.low", Integer.toString(16 << 20));
+
+		final SocketMessageServer server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+
+		Thread.sleep(500);
+
+		ClientMsgService sender = new ClientMsgService(client(1));
+		ClientMsgService receiver = new ClientMsgService(client(2));
+		final CountDownLatch received = new CountDownLatch(messages);
+
+		sender.start();
+		receiver.start();
+
+		Address address = receiver.register();
+
+		receiver.setMessageListener(new Consumer<Message>() {
+			public void accept(Message message) {
+				received.countDown();
+			}
+		});
+
+		Thread.sleep(200);
+
+		byte[] data = new byte[length];
+		long longestCall = 0;
+		CompletableFuture<Void> last = null;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < messages; i++) {
+			long call = System.nanoTime();
+
+			if (async) {
+				last = sender.sendAsync(new Message(address, MessageType.LETTER, data)).toCompletableFuture();
+			} else {
+				sender.send(new Message(address, MessageType.LETTER, data));
+			}
+
+			longestCall = Math.max(longestCall, System.nanoTime() - call);
+		}
+
+		long sent = System.nanoTime() - start;
+
+		if (last != null) {
+			last.get(60, TimeUnit.SECONDS);
+		}
+
+		received.await(60, TimeUnit.SECONDS);
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long delivered = messages - received.getCount();
+
+		System.out.printf("%-10s poruka: %6d/%-6d %8.0f poruka/s %8.1f MB/s  slanje: %6d ms  najdulji poziv: %6.2f ms%n",
+				async ? "sendAsync" : "send", delivered, messages, delivered / seconds,
+				delivered * (double) length / seconds / (1 << 20), TimeUnit.NANOSECONDS.toMillis(sent),
+				longestCall / 1e6);
+
+		sender.stop();
+		receiver.stop();
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Parametri klijenta.
+	 * @param id client.ID
+	 * @return parametri
+	 */
+	private static Properties client(int id) {
+		Properties client = new Properties();
+		client.setProperty("server.address", "127.0.0.1");
+		client.setProperty("server.port", Integer.toString(PORT));
+		client.setProperty("buffer.size", "1000");
+		client.setProperty("buffer.timeout", "5");
+		client.setProperty("socket.timeout", "1000");
+		client.setProperty("packet.size", "8192");
+		client.setProperty("client.ID", Integer.toString(id));
+
+		return client;
+	}
+}
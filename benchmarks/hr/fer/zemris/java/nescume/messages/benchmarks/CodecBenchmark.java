@@ -0,0 +1,210 @@
+package hr.fer.zemris.java.nescume.messages.benchmarks;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Uspoređuje kodiranje i dekodiranje paketa poruka: stari način (DataOutputStream nad
+ * ByteArrayOutputStream za svaki paket i DataInputStream za čitanje) i Message.toBuffer
+ * / Message.fromBuffer nad jednim bufferom koji se ponovno koristi, za heap i direktni
+ * buffer. Paket sadrži 32 poruke, a mjeri se za sadržaje od 16, 256 i 4096 bajtova.
+ *
+ * Pokretanje: ant benchmark -Dbenchmark.class=hr.fer.zemris.java.nescume.messages.benchmarks.CodecBenchmark
+ * -Dbenchmark.args="duljina_sadržaja... ", npr. "16 256 4096".
+ */
+public class CodecBenchmark {
+
+	/**
+	 * Broj poruka u jednom paketu.
+	 */
+	private static final int BATCH = 32;
+
+	/**
+	 * Trajanje zagrijavanja i mjerenja svake varijante u milisekundama.
+	 */
+	private static final long DURATION = 2000;
+
+	/**
+	 * Rezultat koji se ispisuje da JIT ne bi izbacio mjereni kod.
+	 */
+	private static long sink;
+
+	/**
+	 * Pokreće mjerenje.
+	 * @param args duljine sadržaja poruka
+	 */
+	public static void main(String[] args) {
+		int[] lengths = args.length == 0 ? new int[] { 16, 256, 4096 } : new int[args.length];
+
+		for (int i = 0; i < args.length; i++) {
+			lengths[i] = Integer.parseInt(args[i]);
+		}
+
+		Random random = new Random(42);
+
+		for (int length : lengths) {
+			final Message[] batch = new Message[BATCH];
+
+			for (int i = 0; i < BATCH; i++) {
+				byte[] data = new byte[length];
+				random.nextBytes(data);
+
+				batch[i] = new Message(new Address(i, 1), MessageType.LETTER, data);
+				batch[i].setSource(new Address(1000 + i, 2));
+			}
+
+			final int packetLength = BATCH * (Message.headerLength + length);
+
+			double streams = measure(batch, new Codec() {
+				public int roundTrip(Message[] messages) throws IOException {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
+					DataOutputStream output = new DataOutputStream(baos);
+
+					for (Message message : messages) {
+						writeAddress(output, message.getDestinationKey());
+						writeAddress(output, message.getSourceKey());
+						output.writeByte(message.getType().toByte() | (message.isUrgent() ? (byte) 128 : 0));
+						output.writeShort(message.getData().length);
+						output.write(message.getData());
+					}
+
+					DataInputStream input = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+					int decoded = 0;
+
+					for (int i = 0; i < messages.length; i++) {
+						int dest = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+						int src = input.readUnsignedShort() << 8 | input.readUnsignedByte();
+						byte type = input.readByte();
+						byte[] data = new byte[input.readUnsignedShort()];
+						input.readFully(data);
+
+						Message message = new Message(null, MessageType.fromByte((byte) (type & 127)), data);
+						message.setUrgent((type & 128) != 0);
+
+						decoded += dest ^ src ^ message.getData().length;
+					}
+
+					return decoded;
+				}
+			});
+
+			double heap = measure(batch, new BufferCodec(ByteBuffer.allocate(packetLength)));
+			double direct = measure(batch, new BufferCodec(ByteBuffer.allocateDirect(packetLength)));
+
+			System.out.printf("sadržaj: %5d B  stream: %10.1f paketa/s  heap buffer: %10.1f paketa/s (x%.1f)  direct buffer: %10.1f paketa/s (x%.1f)%n",
+					length, streams, heap, heap / streams, direct, direct / streams);
+		}
+
+		System.out.println(sink == 42 ? "" : "gotovo");
+	}
+
+	/**
+	 * Kodiranje i dekodiranje paketa koje se mjeri.
+	 */
+	private interface Codec {
+
+		/**
+		 * Kodira poruke u paket i dekodira ih natrag.
+		 * @param messages poruke
+		 * @return vrijednost izračunata iz dekodiranih poruka
+		 * @throws IOException u slučaju greške pri kodiranju
+		 */
+		int roundTrip(Message[] messages) throws IOException;
+	}
+
+	/**
+	 * Kodiranje u buffer koji se ponovno koristi za svaki paket.
+	 */
+	private static class BufferCodec implements Codec {
+
+		/**
+		 * Buffer paketa.
+		 */
+		private ByteBuffer buffer;
+
+		/**
+		 * Konstruktor.
+		 * @param buffer buffer paketa
+		 */
+		public BufferCodec(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int roundTrip(Message[] messages) {
+			buffer.clear();
+
+			for (Message message : messages) {
+				message.toBuffer(buffer);
+			}
+
+			buffer.flip();
+
+			int decoded = 0;
+			Message message;
+
+			while ((message = Message.fromBuffer(buffer)) != null) {
+				decoded += message.getDestinationKey() ^ message.getSourceKey() ^ message.getData().length;
+			}
+
+			return decoded;
+		}
+	}
+
+	/**
+	 * Ispisuje adresu zadanu ključem kao stari Message.toStream.
+	 * @param output izlaz
+	 * @param key ključ adrese
+	 * @throws IOException u slučaju greške pri pisanju
+	 */
+	private static void writeAddress(DataOutputStream output, int key) throws IOException {
+		output.writeShort(key >>> 8);
+		output.writeByte(key);
+	}
+
+	/**
+	 * Zagrijava i zatim mjeri koliko paketa u sekundi codec obradi.
+	 * @param batch poruke paketa
+	 * @param codec codec
+	 * @return paketa u sekundi
+	 */
+	private static double measure(Message[] batch, Codec codec) {
+		run(batch, codec, DURATION);
+
+		long start = System.nanoTime();
+		long count = run(batch, codec, DURATION);
+
+		return count / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Vrti codec nad paketom zadano vrijeme.
+	 * @param batch poruke paketa
+	 * @param codec codec
+	 * @param duration trajanje u milisekundama
+	 * @return broj obrađenih paketa
+	 */
+	private static long run(Message[] batch, Codec codec, long duration) {
+		long end = System.nanoTime() + duration * 1000000;
+		long count = 0;
+
+		try {
+			do {
+				sink += codec.roundTrip(batch);
+				count++;
+			} while (System.nanoTime() < end);
+		} catch (IOException notPossible) {
+			throw new IllegalStateException(notPossible);
+		}
+
+		return count;
+	}
+}
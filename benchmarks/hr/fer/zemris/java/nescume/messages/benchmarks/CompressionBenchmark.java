@@ -0,0 +1,159 @@
+package hr.fer.zemris.java.nescume.messages.benchmarks;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Compression;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.PacketCodec;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mjeri cijenu komprimiranja paketa u procesoru prema uštedi bajtova na žici: za svaki
+ * algoritam (deflate i lz) i veličinu paketa ispisuje omjer komprimiranog i izvornog
+ * paketa te brzinu komprimiranja i raspakiravanja u MB/s izvornih bajtova. Paketi su
+ * okviri poruka kakve pravi TimeoutBuffer, sa sadržajem nalik ispisu izvornog koda i
+ * testova, a za usporedbu i sa slučajnim sadržajem koji se ne da komprimirati.
+ *
+ * Pokretanje: ant benchmark -Dbenchmark.class=hr.fer.zemris.java.nescume.messages.benchmarks.CompressionBenchmark
+ * -Dbenchmark.args="veličina_paketa... ", npr. "512 4096 16384 65535".
+ */
+public class CompressionBenchmark {
+
+	/**
+	 * Duljina sadržaja jedne poruke u paketu.
+	 */
+	private static final int MESSAGE_LENGTH = 200;
+
+	/**
+	 * Trajanje zagrijavanja i mjerenja svake varijante u milisekundama.
+	 */
+	private static final long DURATION = 1000;
+
+	/**
+	 * Rezultat koji se ispisuje da JIT ne bi izbacio mjereni kod.
+	 */
+	private static long sink;
+
+	/**
+	 * Pokreće mjerenje.
+	 * @param args veličine paketa u bajtovima
+	 */
+	public static void main(String[] args) throws IOException {
+		int[] sizes = args.length == 0 ? new int[] { 512, 4096, 16384, 65535 } : new int[args.length];
+
+		for (int i = 0; i < args.length; i++) {
+			sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		for (boolean compressible : new boolean[] { true, false }) {
+			for (int size : sizes) {
+				byte[] packet = packet(size, compressible);
+
+				for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ }) {
+					PacketCodec codec = compression.newCodec();
+					byte[] compressed = new byte[Message.maxDataLength];
+					byte[] restored = new byte[packet.length];
+					int length = codec.compress(packet, 0, packet.length, compressed, 0, compressed.length);
+
+					double compressSpeed = measure(codec, packet, compressed, restored, -1);
+					double decompressSpeed = length < 0 ? 0 : measure(codec, packet, compressed, restored, length);
+
+					System.out.printf("%-10s paket: %6d B  %-7s na žici: %6d B (%5.1f%%)  komprimiranje: %8.1f MB/s  raspakiravanje: %8.1f MB/s%n",
+							compressible ? "tekst" : "slučajno", packet.length, compression,
+							length < 0 ? packet.length : length, 100.0 * (length < 0 ? packet.length : length) / packet.length,
+							compressSpeed, decompressSpeed);
+				}
+			}
+		}
+
+		System.out.println(sink == 42 ? "" : "gotovo");
+	}
+
+	/**
+	 * Slaže okvire poruka u paket zadane veličine, zadnja poruka se skraćuje da paket
+	 * bude točno te veličine.
+	 * @param size veličina paketa
+	 * @param compressible true za sadržaj nalik tekstu, false za slučajni sadržaj
+	 * @return paket
+	 */
+	private static byte[] packet(int size, boolean compressible) {
+		ByteBuffer packet = ByteBuffer.allocate(size);
+		Random random = new Random(42);
+
+		for (int i = 0; packet.remaining() > Message.headerLength; i++) {
+			byte[] data = new byte[Math.min(MESSAGE_LENGTH, packet.remaining() - Message.headerLength)];
+
+			if (compressible) {
+				byte[] line = ("    assertEquals(" + i + ", result.get(" + random.nextInt(100) + ")); // "
+						+ (random.nextBoolean() ? "OK" : "FAILED") + " in " + random.nextInt(1000) + " ms\n")
+						.getBytes(StandardCharsets.UTF_8);
+
+				for (int j = 0; j < data.length; j++) {
+					data[j] = line[j % line.length];
+				}
+			} else {
+				random.nextBytes(data);
+			}
+
+			Message message = new Message(new Address(i % 7, 1), MessageType.LETTER, data);
+			message.setSource(new Address(100, 1 + i % 3));
+			message.toBuffer(packet);
+		}
+
+		return packet.position() == size ? packet.array() : Arrays.copyOf(packet.array(), packet.position());
+	}
+
+	/**
+	 * Zagrijava i zatim mjeri brzinu komprimiranja ili raspakiravanja.
+	 * @param codec kodek
+	 * @param packet izvorni paket
+	 * @param compressed polje za komprimirani oblik
+	 * @param restored polje za raspakirani paket
+	 * @param length duljina komprimiranog oblika za mjerenje raspakiravanja, -1 za mjerenje
+	 * komprimiranja
+	 * @return MB/s izvornih bajtova
+	 */
+	private static double measure(PacketCodec codec, byte[] packet, byte[] compressed, byte[] restored, int length)
+			throws IOException {
+		run(codec, packet, compressed, restored, length, DURATION);
+
+		long start = System.nanoTime();
+		long count = run(codec, packet, compressed, restored, length, DURATION);
+
+		return count * packet.length / ((System.nanoTime() - start) / 1e3);
+	}
+
+	/**
+	 * Vrti komprimiranje ili raspakiravanje zadano vrijeme.
+	 * @param codec kodek
+	 * @param packet izvorni paket
+	 * @param compressed polje za komprimirani oblik
+	 * @param restored polje za raspakirani paket
+	 * @param length duljina komprimiranog oblika, -1 za komprimiranje
+	 * @param duration trajanje u milisekundama
+	 * @return broj obrađenih paketa
+	 */
+	private static long run(PacketCodec codec, byte[] packet, byte[] compressed, byte[] restored, int length,
+			long duration) throws IOException {
+		long end = System.nanoTime() + duration * 1000000;
+		long count = 0;
+
+		do {
+			if (length < 0) {
+				sink += codec.compress(packet, 0, packet.length, compressed, 0, compressed.length);
+			} else {
+				codec.decompress(compressed, 0, length, restored, 0, packet.length);
+				sink += restored[count % 2 == 0 ? 0 : restored.length - 1];
+			}
+
+			count++;
+		} while (System.nanoTime() < end);
+
+		return count;
+	}
+}
@@ -0,0 +1,130 @@
+package hr.fer.zemris.java.nescume.messages.benchmarks;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.ThreadingMode;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.IMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.MessageServerFactory;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Mjeri koliko dretvi i memorije server troši na zadani broj spojenih klijenata i kolika
+ * je latencija hitnih poruka među njima. Klijenti su goli socketi da bi se mjerio samo
+ * server.
+ *
+ * Pokretanje: ant benchmark -Dbenchmark.args="server.mode threading.mode veze poruke",
+ * npr. "socket virtual 10000 2000". Za 10k veza treba podići ulimit -n.
+ */
+public class ConnectionBenchmark {
+
+	/**
+	 * Port na kojem sluša server tijekom mjerenja.
+	 */
+	private static final int PORT = 4200;
+
+	/**
+	 * Pokreće mjerenje.
+	 * @param args server.mode, threading.mode, broj veza i broj poruka
+	 */
+	public static void main(String[] args) throws Exception {
+		String serverMode = args.length > 0 ? args[0] : "socket";
+		String threadingMode = args.length > 1 ? args[1] : "platform";
+		int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int messages = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+		Properties properties = new Properties();
+		properties.setProperty("listen.address", "127.0.0.1");
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("server.mode", serverMode);
+		properties.setProperty("threading.mode", threadingMode);
+		properties.setProperty("buffer.timeout", "1000");
+		properties.setProperty("socket.timeout", "500");
+
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		final IMessageServer server = MessageServerFactory.createServer(properties);
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+
+		Thread.sleep(500);
+
+		Socket[] sockets = new Socket[connections];
+		Address[] addresses = new Address[connections];
+
+		long connectStart = System.nanoTime();
+
+		for (int i = 0; i < connections; i++) {
+			sockets[i] = new Socket("127.0.0.1", PORT);
+			sockets[i].setTcpNoDelay(true);
+			addresses[i] = new Address(1 + i / 256, i % 256);
+
+			new RegisterMessage(addresses[i]).toStream(sockets[i].getOutputStream());
+		}
+
+		long connectTime = System.nanoTime() - connectStart;
+
+		Thread.sleep(1000);
+		System.gc();
+
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		long[] latencies = new long[messages];
+		byte[] payload = "benchmark".getBytes();
+
+		for (int i = 0; i < messages; i++) {
+			int from = i % connections;
+			int to = (i * 31 + 7) % connections;
+
+			Message message = new Message(addresses[to], MessageType.LETTER, payload);
+			message.setSource(addresses[from]);
+			message.setUrgent(true);
+
+			OutputStream output = sockets[from].getOutputStream();
+			InputStream input = new BufferedInputStream(sockets[to].getInputStream(), 64);
+
+			long start = System.nanoTime();
+			message.toStream(output);
+			Message.fromStream(input);
+			latencies[i] = System.nanoTime() - start;
+		}
+
+		Arrays.sort(latencies);
+
+		System.out.println("server.mode=" + serverMode + " threading.mode=" + threadingMode
+				+ " (virtualne dretve podržane: " + ThreadingMode.isVirtualSupported() + ")");
+		System.out.println("veze: " + connections + ", spajanje: " + connectTime / 1000000 + " ms");
+		System.out.println("dretve servera: " + threads + ", heap: " + heap / (1024 * 1024) + " MB");
+		System.out.println("latencija hitne poruke p50: " + latencies[messages / 2] / 1000 + " us, p99: "
+				+ latencies[messages * 99 / 100] / 1000 + " us");
+
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException ignorable) {
+			}
+		}
+
+		server.stop();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,170 @@
+package hr.fer.zemris.java.nescume.messages.benchmarks;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RawMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.MessageJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mjeri propusnost žurnala poruka koje čekaju (MessageJournal) uz trajno spremanje na
+ * disk. Uspoređuje dodavanje bez čekanja na disk, dodavanje u kojem jedna dretva čeka
+ * spremanje svake poruke (jedan force() po poruci) i skupno spremanje u kojem više dretvi
+ * istovremeno čeka svoje poruke pa jedan force() sprema poruke svih njih. Svaka poruka se
+ * nakon spremanja potvrđuje, da se segmenti brišu kao u radu servera.
+ *
+ * Dodavanje bez čekanja odgovara serveru s journal.durable = false, a čekanje spremanja
+ * serveru s journal.durable = true, u kojem svaka dretva koja parkira poruku čeka njen
+ * zapis. Broj dretvi odgovara broju istovremenih pošiljatelja čije poruke idu u sandučiće.
+ *
+ * Pokretanje: ant benchmark -Dbenchmark.class=hr.fer.zemris.java.nescume.messages.benchmarks.JournalBenchmark
+ * -Dbenchmark.args="direktorij duljina_poruke broj_dretvi...", npr. "/tmp/journal 200 1 4 16 64".
+ */
+public class JournalBenchmark {
+
+	/**
+	 * Trajanje zagrijavanja i mjerenja svake varijante u milisekundama.
+	 */
+	private static final long DURATION = 2000;
+
+	/**
+	 * Veličina segmenta žurnala.
+	 */
+	private static final int SEGMENT_SIZE = 64 << 20;
+
+	/**
+	 * Pokreće mjerenje.
+	 * @param args direktorij žurnala, duljina sadržaja poruke i brojevi dretvi koje čekaju
+	 * spremanje
+	 */
+	public static void main(String[] args) throws Exception {
+		File directory = new File(args.length > 0 ? args[0] : "journal-benchmark");
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int[] threads = args.length > 2 ? new int[args.length - 2] : new int[] { 1, 4, 16, 64 };
+
+		for (int i = 2; i < args.length; i++) {
+			threads[i - 2] = Integer.parseInt(args[i]);
+		}
+
+		Message message = new Message(new Address(1, 2), MessageType.LETTER, new byte[length]);
+		message.setSource(new Address(1, 1));
+
+		// Server u žurnal zapisuje okvire primljene s mreže
+		Message frame = new RawMessage(message.toByteArray());
+
+		report("bez čekanja diska", 1, measure(directory, frame, 1, false), frame);
+
+		for (int count : threads) {
+			report("čeka spremanje", count, measure(directory, frame, count, true), frame);
+		}
+	}
+
+	/**
+	 * Ispisuje rezultat jedne varijante.
+	 * @param name ime varijante
+	 * @param threads broj dretvi
+	 * @param perSecond broj poruka u sekundi
+	 * @param frame poruka
+	 */
+	private static void report(String name, int threads, double perSecond, Message frame) {
+		System.out.printf("%-18s dretvi: %3d  %10.0f poruka/s  %8.1f MB/s%n", name, threads, perSecond,
+				perSecond * frame.frameLength() / 1e6);
+	}
+
+	/**
+	 * Zagrijava i zatim mjeri jednu varijantu na novom žurnalu.
+	 * @param directory direktorij žurnala
+	 * @param frame poruka
+	 * @param threads broj dretvi koje dodaju poruke
+	 * @param durable true ako svaka dretva čeka spremanje svake svoje poruke
+	 * @return broj poruka u sekundi
+	 */
+	private static double measure(File directory, Message frame, int threads, boolean durable) throws Exception {
+		delete(directory);
+
+		MessageJournal journal = new MessageJournal(directory, SEGMENT_SIZE, 10, "journal-benchmark");
+
+		try {
+			run(journal, frame, threads, durable);
+
+			long start = System.nanoTime();
+			long count = run(journal, frame, threads, durable);
+
+			return count / ((System.nanoTime() - start) / 1e9);
+		} finally {
+			journal.close();
+			delete(directory);
+		}
+	}
+
+	/**
+	 * Dodaje poruke iz zadanog broja dretvi zadano vrijeme.
+	 * @param journal žurnal
+	 * @param frame poruka
+	 * @param threads broj dretvi
+	 * @param durable true ako svaka dretva čeka spremanje svake svoje poruke
+	 * @return ukupan broj dodanih poruka
+	 */
+	private static long run(final MessageJournal journal, final Message frame, int threads, final boolean durable)
+			throws InterruptedException {
+		final long end = System.nanoTime() + DURATION * 1000000;
+		final AtomicLong total = new AtomicLong();
+		Thread[] writers = new Thread[threads];
+
+		for (int i = 0; i < threads; i++) {
+			writers[i] = new Thread(new Runnable() {
+
+				public void run() {
+					long count = 0;
+
+					try {
+						do {
+							long id = journal.append(frame, Long.MAX_VALUE);
+
+							if (durable) {
+								journal.awaitSynced(id);
+							}
+
+							journal.confirm(id);
+							count++;
+						} while (System.nanoTime() < end);
+					} catch (IOException e) {
+						e.printStackTrace();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+
+					total.addAndGet(count);
+				}
+
+			});
+			writers[i].start();
+		}
+
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		return total.get();
+	}
+
+	/**
+	 * Briše direktorij žurnala i segmente u njemu.
+	 * @param directory direktorij
+	 */
+	private static void delete(File directory) {
+		File[] files = directory.listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+
+		directory.delete();
+	}
+}
@@ -0,0 +1,161 @@
+package hr.fer.zemris.java.nescume.messages.benchmarks;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mjeri propusnost isporuke poruka klijentu s pouzdanom isporukom (redni brojevi i
+ * potvrde) i bez nje. Pošiljatelj je goli socket koji šalje što brže može, a primatelj
+ * ClientMsgService koji poruke preuzima s receive(). Uz propusnost ispisuje i broj
+ * potvrda koje je server primio, jedna potvrda pokriva sve poruke primljene do
+ * pražnjenja izlaznog buffera klijenta.
+ *
+ * Pokretanje: ant benchmark -Dbenchmark.class=hr.fer.zemris.java.nescume.messages.benchmarks.ReliableBenchmark
+ * -Dbenchmark.args="broj_poruka duljina_poruke ack.window", npr. "200000 100 4096".
+ */
+public class ReliableBenchmark {
+
+	/**
+	 * Port na kojem sluša server tijekom mjerenja.
+	 */
+	private static final int PORT = 4201;
+
+	/**
+	 * Adresa pošiljatelja.
+	 */
+	private static final Address SENDER = new Address(1, 1);
+
+	/**
+	 * Pokreće mjerenje.
+	 * @param args broj poruka, duljina sadržaja poruke i ack.window
+	 */
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		String window = args.length > 2 ? args[2] : "4096";
+
+		// Zagrijavanje obje varijante prije mjerenja
+		measure(messages / 10, length, window, false);
+		measure(messages / 10, length, window, true);
+
+		measure(messages, length, window, false);
+		measure(messages, length, window, true);
+
+		System.exit(0);
+	}
+
+	/**
+	 * Mjeri jednu varijantu na novom serveru i ispisuje rezultat.
+	 * @param messages broj poruka
+	 * @param length duljina sadržaja poruke
+	 * @param window ack.window
+	 * @param reliable true ako primatelj traži pouzdanu isporuku
+	 */
+	private static void measure(int messages, int length, String window, boolean reliable) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("listen.address", "127.0.0.1");
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("buffer.timeout", "5");
+		properties.setProperty("buffer.size", "1000");
+		properties.setProperty("packet.size", "8192");
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("slow.consumer.policy", "spill");
+		properties.setProperty("spill.capacity", Integer.toString(messages));
+		properties.setProperty("ack.window", window);
+
+		final SocketMessageServer server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+
+		Thread.sleep(500);
+
+		Properties client = new Properties();
+		client.setProperty("server.address", "127.0.0.1");
+		client.setProperty("server.port", Integer.toString(PORT));
+		client.setProperty("buffer.size", "1000");
+		client.setProperty("buffer.timeout", "5");
+		client.setProperty("socket.timeout", "1000");
+		client.setProperty("client.ID", "2");
+		client.setProperty("reliable", Boolean.toString(reliable));
+
+		ClientMsgService receiver = new ClientMsgService(client);
+		receiver.start();
+
+		Address address = receiver.register();
+		Socket sender = new Socket("127.0.0.1", PORT);
+
+		new RegisterMessage(SENDER).toStream(sender.getOutputStream());
+
+		Thread.sleep(200);
+
+		long start = System.nanoTime();
+
+		send(sender, address, messages, length);
+
+		int received = 0;
+
+		while (received < messages && receiver.receive(5, TimeUnit.SECONDS) != null) {
+			received++;
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%-15s poruka: %7d/%-7d %10.0f poruka/s  potvrda: %d%n",
+				reliable ? "pouzdano" : "bez potvrda", received, messages, received / seconds,
+				server.getMetrics().getAcknowledgements());
+
+		receiver.stop();
+		sender.close();
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Šalje poruke primatelju iz zasebne dretve.
+	 * @param sender socket pošiljatelja
+	 * @param address adresa primatelja
+	 * @param messages broj poruka
+	 * @param length duljina sadržaja poruke
+	 */
+	private static void send(final Socket sender, Address address, final int messages, int length) {
+		final Message message = new Message(address, MessageType.LETTER, new byte[length]);
+		message.setSource(SENDER);
+
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					OutputStream output = new BufferedOutputStream(sender.getOutputStream(), 65536);
+
+					for (int i = 0; i < messages; i++) {
+						message.toStream(output);
+					}
+
+					output.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+	}
+}
@@ -0,0 +1,175 @@
+package hr.fer.zemris.java.nescume.messages.benchmarks;
+
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.SubscriptionIndex;
+import hr.fer.zemris.java.nescume.messages.server.SubscriptionRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Uspoređuje pronalaženje pretplatnika kojima poruka odgovara: stari način (za svakog
+ * pretplatnika sadržaj u List<Byte> i Collections.indexOfSubList) i SubscriptionIndex
+ * (jedan prolaz Aho-Corasick automata), za 10, 1000 i 10000 pretplatnika.
+ *
+ * Pokretanje: ant benchmark -Dbenchmark.class=hr.fer.zemris.java.nescume.messages.benchmarks.SubscriptionBenchmark
+ * -Dbenchmark.args="broj_pretplatnika... ", npr. "10 1000 10000".
+ */
+public class SubscriptionBenchmark {
+
+	/**
+	 * Duljina sadržaja poruke u bajtovima.
+	 */
+	private static final int PAYLOAD_LENGTH = 256;
+
+	/**
+	 * Broj različitih poruka nad kojima se mjeri.
+	 */
+	private static final int PAYLOADS = 64;
+
+	/**
+	 * Trajanje zagrijavanja i mjerenja svake varijante u milisekundama.
+	 */
+	private static final long DURATION = 2000;
+
+	/**
+	 * Rezultat koji se ispisuje da JIT ne bi izbacio mjereni kod.
+	 */
+	private static long sink;
+
+	/**
+	 * Pokreće mjerenje.
+	 * @param args brojevi pretplatnika
+	 */
+	public static void main(String[] args) {
+		int[] sizes = args.length == 0 ? new int[] { 10, 1000, 10000 } : new int[args.length];
+
+		for (int i = 0; i < args.length; i++) {
+			sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		Random random = new Random(42);
+
+		byte[][] payloads = new byte[PAYLOADS][];
+		for (int i = 0; i < PAYLOADS; i++) {
+			payloads[i] = new byte[PAYLOAD_LENGTH];
+			random.nextBytes(payloads[i]);
+		}
+
+		for (int size : sizes) {
+			final Byte[][] patterns = new Byte[size][];
+			final SubscriptionRegistry<Integer> index = new SubscriptionRegistry<Integer>();
+
+			for (int i = 0; i < size; i++) {
+				byte[] pattern = new byte[3 + random.nextInt(6)];
+				random.nextBytes(pattern);
+
+				// Svaki deseti uzorak se stvarno nalazi u nekoj poruci
+				if (i % 10 == 0) {
+					byte[] payload = payloads[random.nextInt(PAYLOADS)];
+					int offset = random.nextInt(PAYLOAD_LENGTH - pattern.length);
+					pattern = Arrays.copyOfRange(payload, offset, offset + pattern.length);
+				}
+
+				patterns[i] = new Byte[pattern.length];
+				for (int j = 0; j < pattern.length; j++) {
+					patterns[i][j] = pattern[j];
+				}
+
+				index.subscribe(MessageType.LETTER, i, pattern);
+			}
+
+			double naive = measure(payloads, new Matcher() {
+				public int match(byte[] data) {
+					int matched = 0;
+
+					for (Byte[] pattern : patterns) {
+						List<Byte> toCheck = new ArrayList<Byte>();
+
+						for (byte bajt : data) {
+							toCheck.add(bajt);
+						}
+
+						if (Collections.indexOfSubList(toCheck, Arrays.asList(pattern)) != -1) {
+							matched++;
+						}
+					}
+
+					return matched;
+				}
+			});
+
+			double indexed = measure(payloads, new Matcher() {
+
+				private int matched;
+
+				private SubscriptionIndex.Visitor<Integer> counter = new SubscriptionIndex.Visitor<Integer>() {
+					public void matched(Integer subscriber) {
+						matched++;
+					}
+				};
+
+				public int match(byte[] data) {
+					matched = 0;
+					index.match(MessageType.LETTER, data, 0, data.length, counter);
+
+					return matched;
+				}
+			});
+
+			System.out.printf("pretplatnika: %6d  indexOfSubList: %12.1f poruka/s  SubscriptionIndex: %12.1f poruka/s  (x%.1f)%n",
+					size, naive, indexed, indexed / naive);
+		}
+
+		System.out.println(sink == 42 ? "" : "gotovo");
+	}
+
+	/**
+	 * Pronalaženje pretplatnika koje se mjeri.
+	 */
+	private interface Matcher {
+
+		/**
+		 * @param data sadržaj poruke
+		 * @return broj pretplatnika kojima poruka odgovara
+		 */
+		int match(byte[] data);
+	}
+
+	/**
+	 * Zagrijava i zatim mjeri koliko poruka u sekundi matcher obradi.
+	 * @param payloads poruke
+	 * @param matcher matcher
+	 * @return poruka u sekundi
+	 */
+	private static double measure(byte[][] payloads, Matcher matcher) {
+		run(payloads, matcher, DURATION);
+
+		long start = System.nanoTime();
+		long count = run(payloads, matcher, DURATION);
+
+		return count / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Vrti matcher nad porukama zadano vrijeme.
+	 * @param payloads poruke
+	 * @param matcher matcher
+	 * @param duration trajanje u milisekundama
+	 * @return broj obrađenih poruka
+	 */
+	private static long run(byte[][] payloads, Matcher matcher, long duration) {
+		long end = System.nanoTime() + duration * 1000000;
+		long count = 0;
+
+		do {
+			sink += matcher.match(payloads[(int) (count % PAYLOADS)]);
+			count++;
+		} while (System.nanoTime() < end);
+
+		return count;
+	}
+}
@@ -1,20 +1,54 @@
 package hr.fer.zemris.java.nescume.messages.client;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
+import hr.fer.zemris.java.nescume.messages.AckMessage;
 import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Compression;
+import hr.fer.zemris.java.nescume.messages.CorrelatedMessage;
+import hr.fer.zemris.java.nescume.messages.FragmentMessage;
+import hr.fer.zemris.java.nescume.messages.FrameReader;
 import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.NotificationMessage;
 import hr.fer.zemris.java.nescume.messages.QueryMessage;
+import hr.fer.zemris.java.nescume.messages.Reassembler;
 import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.SequencedMessage;
+import hr.fer.zemris.java.nescume.messages.SubscriptionMessage;
+import hr.fer.zemris.java.nescume.messages.ThreadingMode;
 import hr.fer.zemris.java.nescume.messages.TimeoutBuffer;
+import hr.fer.zemris.java.nescume.messages.TimerWheel;
 import hr.fer.zemris.java.nescume.messages.Message.MessageType;
 import hr.fer.zemris.java.nescume.messages.client.exceptions.ClientCannotStart;
+import hr.fer.zemris.java.nescume.messages.client.exceptions.ClientCrashed;
 import hr.fer.zemris.java.nescume.messages.client.exceptions.MessageNotSent;
 import hr.fer.zemris.java.nescume.messages.client.exceptions.UnableToRegister;
 
@@ -36,14 +70,365 @@ public class ClientMsgService implements IClientMsgService {
 	/** Unikatna adresa klijenta. */
 	private Address adresa;
 
-	/** Input stream klijenta za primanje poruka */
-	private InputStream input;
+	/** Veličina buffera u koji se čitaju poruke sa servera */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/** Najmanja veličina paketa, u paket mora stati barem jedan bajt dijela poruke */
+	private static final int MIN_PACKET_SIZE = Message.headerLength + FragmentMessage.fragmentHeaderLength + 1;
+
+	/** Najveća veličina paketa, jednaka najvećem okviru poruke */
+	private static final int MAX_PACKET_SIZE = Message.headerLength + Message.maxDataLength;
+
+	/** Najmanji paket u bajtovima koji se komprimira, ako compression.threshold nije zadan */
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+
+	/** Najveći broj poruka koje jedan pošiljatelj istovremeno šalje podijeljene */
+	private static final int MAX_TRANSFERS = 16;
+
+	/** Čitač poruka s ulaza klijenta, dekodira poruke iz svog buffera */
+	private FrameReader input;
 
 	/** Izlazni buffer koji ima implementiran timeout */
 	private TimeoutBuffer buffer;
 
+	/** Identifikator sljedećeg prijenosa podijeljene poruke */
+	private final AtomicInteger nextTransferID = new AtomicInteger();
+
 	/** Flag za provjeru je li se klijent registrirao na serveru */
-	private boolean isRegistered;
+	private volatile boolean isRegistered;
+
+	/**
+	 * Je li server prihvatio pouzdanu isporuku, dovršava ga čitač odgovorom na
+	 * registraciju ili false kad se veza prekine.
+	 */
+	private final CompletableFuture<Boolean> granted = new CompletableFuture<Boolean>();
+
+	/** Flag koji označava da je klijent zaustavljen metodom stop() */
+	private volatile boolean isStopped;
+
+	/** Primljene poruke koje još nisu preuzete metodom receive() */
+	private BlockingQueue<Message> inbox = new LinkedBlockingQueue<Message>();
+
+	/** Slušač kojem se predaju primljene poruke, null ako se poruke preuzimaju s receive() */
+	private Consumer<Message> listener;
+
+	/** Lokot koji štiti izmjenu slušača i predaju poruka */
+	private final Object listenerLock = new Object();
+
+	/** Pozivi receiveAsync() koji čekaju poruku, redom poziva */
+	private final Queue<CompletableFuture<Message>> receivers = new ArrayDeque<CompletableFuture<Message>>();
+
+	/** Zadnja potvrda predana izlaznom bufferu, štiti je ackLock */
+	private AckMessage ack;
+
+	/** Lokot potvrda kod pouzdane isporuke */
+	private final Object ackLock = new Object();
+
+	/** Zadnji redni broj koji je čitač pročitao, štiti ga ackLock */
+	private int readSequence;
+
+	/** Zadnji redni broj predan potvrdi, štiti ga ackLock */
+	private int ackedSequence;
+
+	/**
+	 * Redni brojevi poruka koje korisnik još nije preuzeo i podijeljenih poruka koje se
+	 * još sastavljaju, redom primanja. Potvrda ne prelazi najmanji od njih. Štiti ga
+	 * ackLock.
+	 */
+	private final Set<Integer> held = new LinkedHashSet<Integer>();
+
+	/** Redni brojevi predanih poruka koje korisnik još nije preuzeo, štiti ih ackLock */
+	private final Map<Message, Integer> heldMessages = new IdentityHashMap<Message, Integer>();
+
+	/** Identifikator korelacije sljedećeg zahtjeva */
+	private final AtomicInteger nextCorrelationID = new AtomicInteger();
+
+	/** Zahtjevi koji čekaju odgovor, po identifikatoru korelacije */
+	private final ConcurrentHashMap<Integer, PendingRequest> requests = new ConcurrentHashMap<Integer, PendingRequest>();
+
+	/** Identifikator sljedeće pretplate s kreditom */
+	private final AtomicInteger nextSubscriptionID = new AtomicInteger();
+
+	/** Otvorene pretplate s kreditom, po identifikatoru */
+	private final ConcurrentHashMap<Integer, FlowSubscription> subscriptions = new ConcurrentHashMap<Integer, FlowSubscription>();
+
+	/**
+	 * Zahtjev koji čeka odgovor.
+	 */
+	private static class PendingRequest {
+
+		/** Budući odgovor */
+		private final CompletableFuture<Message> future = new CompletableFuture<Message>();
+
+		/** Rok čekanja na odgovor, null dok se ne zakaže */
+		private volatile TimerWheel.Timeout timeout;
+	}
+
+	/**
+	 * Kotač rokova zahtjeva, jedan za sve klijente. Stvara se kod prvog zahtjeva.
+	 */
+	private static class RequestTimeouts {
+
+		/** Duljina otkucaja kotača u milisekundama */
+		private static final int TICK = 10;
+
+		/** Broj pretinaca kotača */
+		private static final int WHEEL_SIZE = 512;
+
+		/** Kotač rokova */
+		private static final TimerWheel WHEEL = new TimerWheel(TICK, TimeUnit.MILLISECONDS, WHEEL_SIZE,
+				"request-timeouts");
+	}
+
+	/**
+	 * Oznaka u inboxu da je veza prema serveru prekinuta, a u redu pretplate da je
+	 * pretplata završila. Nikad se ne vraća korisniku.
+	 */
+	private static final Message CLOSED = new Message();
+
+	/**
+	 * Pretplata s kreditom otvorena preko subscribe(). Zahtjevi pretplatnika (request)
+	 * šalju se serveru kao kredit, a server pretplati šalje samo onoliko poruka koliko je
+	 * zatraženo. Poruke pretplate čitač stavlja u red pretplate, a pretplatniku ih predaje
+	 * zasebna dretva dostavljača, pa spori pretplatnik ne zadržava čitač ni ostale
+	 * pretplate na istoj vezi.
+	 */
+	private class FlowSubscription implements Flow.Subscription, Runnable {
+
+		/** Identifikator pretplate na vezi */
+		private final int id;
+
+		/** Pretplatnik */
+		private final Flow.Subscriber<? super Message> subscriber;
+
+		/** Poruke koje čekaju predaju pretplatniku, na kraju CLOSED kad pretplata završi */
+		private final BlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+
+		/** Razlog završetka pretplate, null ako je završila normalno */
+		private volatile Throwable failure;
+
+		/** True kad je pretplatnik otkazao pretplatu */
+		private volatile boolean cancelled;
+
+		/**
+		 * Konstruktor.
+		 * 
+		 * @param id identifikator pretplate na vezi
+		 * @param subscriber pretplatnik
+		 */
+		public FlowSubscription(int id, Flow.Subscriber<? super Message> subscriber) {
+			this.id = id;
+			this.subscriber = subscriber;
+		}
+
+		public void request(long n) {
+			if (this.cancelled) {
+				return;
+			}
+
+			if (n <= 0) {
+				if (finish(new IllegalArgumentException("Broj zatraženih poruka mora biti veći od 0!"))) {
+					sendAsync(SubscriptionMessage.cancel(this.id));
+				}
+
+				return;
+			}
+
+			sendAsync(SubscriptionMessage.request(this.id, n)).whenComplete(new BiConsumer<Void, Throwable>() {
+
+				public void accept(Void result, Throwable failure) {
+					if (failure != null) {
+						finish(isStopped ? null : failure);
+					}
+				}
+
+			});
+		}
+
+		public void cancel() {
+			if (this.cancelled) {
+				return;
+			}
+
+			this.cancelled = true;
+
+			if (subscriptions.remove(this.id, this)) {
+				sendAsync(SubscriptionMessage.cancel(this.id));
+			}
+
+			this.queue.add(CLOSED);
+		}
+
+		/**
+		 * Prima poruku pretplate. Poziva ga samo čitač.
+		 * 
+		 * @param message poruka
+		 */
+		public void accept(Message message) {
+			this.queue.add(message);
+		}
+
+		/**
+		 * Završava pretplatu: pretplatnik nakon poruka koje već čekaju dobiva onComplete,
+		 * ili onError ako je zadan razlog. Pretplata završava samo jednom, a slanje koje
+		 * ne uspije jer je klijent zaustavljen završava je normalno.
+		 * 
+		 * @param failure razlog završetka, null ako pretplata završava normalno
+		 * @return true ako je ovaj poziv završio pretplatu, false ako je već završila
+		 */
+		public boolean finish(Throwable failure) {
+			if (!subscriptions.remove(this.id, this)) {
+				return false;
+			}
+
+			this.failure = failure;
+			this.queue.add(CLOSED);
+
+			return true;
+		}
+
+		/**
+		 * Dostavljač: predaje pretplatniku poruke iz reda pretplate, redom, dok pretplata
+		 * ne završi ili je pretplatnik ne otkaže.
+		 */
+		public void run() {
+			try {
+				this.subscriber.onSubscribe(this);
+
+				while (true) {
+					Message message = this.queue.take();
+
+					if (this.cancelled) {
+						return;
+					}
+
+					if (message == CLOSED) {
+						if (this.failure == null) {
+							this.subscriber.onComplete();
+						} else {
+							this.subscriber.onError(this.failure);
+						}
+
+						return;
+					}
+
+					this.subscriber.onNext(message);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				// Pretplatnik koji baci iznimku više ne dobiva poruke
+				cancel();
+			}
+		}
+	}
+
+	/**
+	 * Čitač poruka sa servera. Jedina dretva koja čita iz socketa; blokira dok poruka
+	 * ne stigne i svaku primljenu poruku predaje slušaču ili sprema u inbox. Dijelove
+	 * podijeljenih poruka sastavlja i predaje tek cijelu poruku. Odgovor servera na
+	 * registraciju ne predaje korisniku nego njime uključuje komprimiranje, a odgovorom na
+	 * zahtjev dovršava zahtjev koji ga čeka. Poruke pretplata s kreditom stavlja u red
+	 * njihove pretplate. Kod pouzdane isporuke potvrda ne prelazi redni broj poruke koju
+	 * korisnik još nije preuzeo (receive ili slušač), a kod podijeljene poruke redni broj
+	 * njenog prvog dijela, dok se poruka ne sastavi ili ne odbaci (fragment.timeout).
+	 */
+	private class Reader implements Runnable {
+
+		/** Sastavljač podijeljenih poruka */
+		private Reassembler reassembler = new Reassembler(parametri.getMaxMessageSize(), MAX_TRANSFERS,
+				parametri.getFragmentTimeout());
+
+		/** Redni brojevi prvih dijelova poruka koje se sastavljaju, po ključu prijenosa */
+		private Map<Long, Integer> transfers = new HashMap<Long, Integer>();
+
+		public void run() {
+			try {
+				while (true) {
+					Message message = input.read();
+					int sequence = 0;
+
+					// Prijenos kojem pošiljatelj nije poslao ostale dijelove više ne zadržava potvrdu
+					for (Long transfer : reassembler.expire()) {
+						Integer first = transfers.remove(transfer);
+
+						if (first != null) {
+							release(first);
+						}
+					}
+
+					if (message instanceof SequencedMessage) {
+						// Poruka s tim rednim brojem je sljedeći okvir
+						sequence = ((SequencedMessage) message).getSequence();
+						message = input.read();
+					}
+
+					int owner = sequence;
+
+					if (message instanceof NotificationMessage) {
+						// Poruka pretplate je sljedeći okvir i predaje se samo pretplati
+						FlowSubscription subscription = subscriptions.get(
+								((NotificationMessage) message).getSubscriptionId());
+
+						message = input.read();
+
+						if (subscription != null) {
+							subscription.accept(message);
+						}
+
+						message = null;
+					} else if (message instanceof FragmentMessage) {
+						FragmentMessage fragment = (FragmentMessage) message;
+						long transfer = Reassembler.transferKey(fragment);
+
+						if (sequence != 0 && !transfers.containsKey(transfer)) {
+							transfers.put(transfer, sequence);
+							hold(sequence);
+						}
+
+						message = reassembler.accept(fragment);
+						owner = 0;
+
+						if (message != null || !reassembler.isPending(fragment)) {
+							Integer first = transfers.remove(transfer);
+
+							// Odbačeni prijenos više ne zadržava potvrdu
+							if (first != null && message == null) {
+								release(first);
+							} else if (first != null) {
+								owner = first;
+							}
+						}
+					} else if (message instanceof RegisterMessage && message.getSourceKey() == 0) {
+						acceptRegistration((RegisterMessage) message);
+						continue;
+					}
+
+					if (message != null && message.getType() == MessageType.CORRELATED) {
+						message = acceptCorrelated(CorrelatedMessage.unwrap(message));
+					}
+
+					if (message != null) {
+						if (owner != 0) {
+							hold(message, owner);
+						}
+
+						deliver(message);
+					}
+
+					if (sequence != 0) {
+						received(sequence);
+					}
+				}
+			} catch (IOException e) {
+				// Veza je zatvorena, s klijentske ili serverske strane
+			} finally {
+				close();
+				failRequests();
+				finishSubscriptions();
+			}
+		}
+	}
 
 	/**
 	 * Konstruktor klijenta. Unutar konstruktora ostvaruje se veza prema
@@ -77,11 +462,15 @@ public class ClientMsgService implements IClientMsgService {
 			this.socket = new Socket(this.parametri.getServerIP(),
 					this.parametri.getServerPort());
 			this.socket.setSoTimeout(this.parametri.getSocketTimeout());
-			this.input = new BufferedInputStream(this.socket.getInputStream());
+			this.input = new FrameReader(this.socket.getInputStream(), READ_BUFFER_SIZE);
+			// Čitač blokira dok poruka ne stigne, timeout bi prekinuo čitanje usred poruke
+			this.socket.setSoTimeout(0);
 			this.buffer = new TimeoutBuffer(parametri.getBufferTimeout(),
-					parametri.getBufferSize(), this.socket.getOutputStream());
+					parametri.getBufferSize(), parametri.getPacketSize(),
+					this.socket.getOutputStream());
 
-			new Thread(this.buffer).start();
+			this.parametri.getThreadingMode().start(this.buffer, "buffer-" + this.adresa);
+			this.parametri.getThreadingMode().start(new Reader(), "reader-" + this.adresa);
 
 			register();
 		} catch (UnknownHostException e) {
@@ -94,12 +483,213 @@ public class ClientMsgService implements IClientMsgService {
 			throw new ClientCannotStart(this.adresa,
 					"Ne mogu se spojiti na server.");
 		} catch (UnableToRegister e) {
+			// Veza bez registracije nikome ne treba
+			stop();
 			throw new ClientCannotStart(this.adresa,
 					"Ne mogu se registrirati na serveru.");
 		}
 	}
 
+	/**
+	 * Uključuje komprimiranje paketa prema serveru algoritmom koji je server odabrao, ako
+	 * ga je klijent ponudio, i bilježi je li server prihvatio pouzdanu isporuku. Poziva
+	 * ga samo čitač.
+	 * 
+	 * @param reply odgovor servera na registraciju
+	 */
+	private void acceptRegistration(RegisterMessage reply) {
+		Compression[] agreed = reply.getCompressions();
+
+		if (agreed.length > 0 && Arrays.asList(this.parametri.getCompression().offer()).contains(agreed[0])) {
+			this.buffer.setCompression(agreed[0], this.parametri.getCompressionThreshold());
+		}
+
+		this.granted.complete(reply.isReliable());
+	}
+
+	/**
+	 * Dovršava zahtjev kojem je stigao odgovor. Odgovor na zahtjev kojem je istekao rok
+	 * odbacuje se. Poziva ga samo čitač.
+	 * 
+	 * @param correlated primljeni zahtjev ili odgovor
+	 * @return zahtjev koji treba predati korisniku, null ako je poruka odgovor
+	 */
+	private Message acceptCorrelated(CorrelatedMessage correlated) {
+		if (!correlated.isReply()) {
+			return correlated;
+		}
+
+		PendingRequest pending = this.requests.remove(correlated.getCorrelationId());
+
+		if (pending != null) {
+			TimerWheel.Timeout timeout = pending.timeout;
+
+			if (timeout != null) {
+				timeout.cancel();
+			}
+
+			pending.future.complete(correlated.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Označava u inboxu da je veza prekinuta i dovršava s null pozive receiveAsync() koji
+	 * čekaju poruku. Poziva ga samo čitač.
+	 */
+	private void close() {
+		this.granted.complete(false);
+
+		List<CompletableFuture<Message>> waiting;
+
+		synchronized (this.listenerLock) {
+			this.inbox.add(CLOSED);
+
+			waiting = new ArrayList<CompletableFuture<Message>>(this.receivers);
+			this.receivers.clear();
+		}
+
+		for (CompletableFuture<Message> receiver : waiting) {
+			receiver.complete(null);
+		}
+	}
+
+	/**
+	 * Završava iznimkom sve zahtjeve koji čekaju odgovor, kad je veza prema serveru
+	 * prekinuta.
+	 */
+	private void failRequests() {
+		for (Integer id : this.requests.keySet()) {
+			PendingRequest pending = this.requests.remove(id);
+
+			if (pending != null) {
+				pending.future.completeExceptionally(new MessageNotSent(this.adresa,
+						"Veza prema serveru je prekinuta prije odgovora!"));
+			}
+		}
+	}
+
+	/**
+	 * Završava sve otvorene pretplate s kreditom, kad je veza prema serveru prekinuta.
+	 * Pretplatnici dobivaju onComplete ako je klijent zaustavljen metodom stop(), a
+	 * inače onError s iznimkom ClientCrashed.
+	 */
+	private void finishSubscriptions() {
+		for (FlowSubscription subscription : this.subscriptions.values()) {
+			subscription.finish(this.isStopped ? null : new ClientCrashed(this.adresa,
+					"Veza prema serveru je prekinuta!"));
+		}
+	}
+
+	/**
+	 * Zadržava potvrdu ispod zadanog rednog broja dok ga release ne pusti. Poziva ga samo
+	 * čitač.
+	 * 
+	 * @param sequence redni broj
+	 */
+	private void hold(int sequence) {
+		synchronized (this.ackLock) {
+			this.held.add(sequence);
+		}
+	}
+
+	/**
+	 * Zadržava potvrdu ispod zadanog rednog broja dok korisnik ne preuzme poruku. Poziva
+	 * ga samo čitač, prije predaje poruke.
+	 * 
+	 * @param message poruka koja se predaje korisniku
+	 * @param sequence redni broj poruke, kod podijeljene poruke njenog prvog dijela
+	 */
+	private void hold(Message message, int sequence) {
+		synchronized (this.ackLock) {
+			this.held.add(sequence);
+			this.heldMessages.put(message, sequence);
+		}
+	}
+
+	/**
+	 * Pušta potvrdu zadržanu na zadanom rednom broju.
+	 * 
+	 * @param sequence redni broj
+	 * @throws IOException ako slanje potvrde nije uspjelo
+	 */
+	private void release(int sequence) throws IOException {
+		synchronized (this.ackLock) {
+			this.held.remove(sequence);
+			acknowledge();
+		}
+	}
+
+	/**
+	 * Bilježi da je čitač pročitao okvir sa zadanim rednim brojem. Poziva ga samo čitač,
+	 * nakon predaje poruke.
+	 * 
+	 * @param sequence redni broj okvira
+	 * @throws IOException ako slanje potvrde nije uspjelo
+	 */
+	private void received(int sequence) throws IOException {
+		synchronized (this.ackLock) {
+			this.readSequence = sequence;
+			acknowledge();
+		}
+	}
+
+	/**
+	 * Bilježi da je korisnik preuzeo poruku, pa potvrda smije prijeći njen redni broj.
+	 * 
+	 * @param message preuzeta poruka
+	 */
+	private void taken(Message message) {
+		if (!this.parametri.isReliable()) {
+			return;
+		}
+
+		synchronized (this.ackLock) {
+			Integer sequence = this.heldMessages.remove(message);
+
+			if (sequence == null) {
+				return;
+			}
+
+			try {
+				release(sequence);
+			} catch (IOException e) {
+				// Veza je prekinuta, nepotvrđene poruke server isporučuje ponovno
+			}
+		}
+	}
+
+	/**
+	 * Potvrđuje serveru sve pročitane poruke ispod najmanjeg zadržanog rednog broja.
+	 * Potvrda ne ide odmah nego čeka u izlaznom bufferu s ostalim porukama, a dok se ne
+	 * zapiše samo se pomiče na veći redni broj, pa se šalje jedna potvrda po pražnjenju
+	 * buffera. Poziva se pod ackLock.
+	 * 
+	 * @throws IOException ako slanje nije uspjelo
+	 */
+	private void acknowledge() throws IOException {
+		int sequence = this.held.isEmpty() ? this.readSequence : this.held.iterator().next() - 1;
+
+		if (sequence == this.ackedSequence) {
+			return;
+		}
+
+		this.ackedSequence = sequence;
+
+		if (this.ack == null || !this.ack.advance(sequence)) {
+			this.ack = new AckMessage(this.adresa, sequence);
+			this.buffer.addMessage(this.ack);
+		}
+	}
+
 	public void stop() {
+		this.isStopped = true;
+
+		if (this.buffer != null) {
+			this.buffer.stop();
+		}
+
 		if (this.socket != null) {
 			try {
 				this.socket.close();
@@ -108,19 +698,108 @@ public class ClientMsgService implements IClientMsgService {
 		}
 	}
 
-	public synchronized Message receive() {
+	public Message receive() {
 		try {
-			this.socket.setSoTimeout(0);
+			return unlessClosed(this.inbox.take());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	public Message receive(long timeout, TimeUnit unit) {
+		try {
+			return unlessClosed(this.inbox.poll(timeout, unit));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
 
-			while (this.input.available() < 2 * Address.addressLength + 1) {
-				Thread.yield();
+	public CompletionStage<Message> receiveAsync() {
+		synchronized (this.listenerLock) {
+			Message waiting = this.inbox.poll();
+
+			if (waiting != null) {
+				return CompletableFuture.completedFuture(unlessClosed(waiting));
 			}
 
-			return Message.fromStream(this.input);
-		} catch (IOException e) {
-			e.printStackTrace();
+			CompletableFuture<Message> receiver = new CompletableFuture<Message>();
+
+			this.receivers.add(receiver);
+
+			return receiver;
+		}
+	}
+
+	/**
+	 * Vraća poruku iz inboxa, ili null ako je to oznaka zatvorene veze. Oznaka se vraća
+	 * u inbox da bi je vidjeli i ostali pozivatelji receive().
+	 * 
+	 * @param message poruka iz inboxa, može biti null
+	 * @return poruka ili null
+	 */
+	private Message unlessClosed(Message message) {
+		if (message == CLOSED) {
+			this.inbox.add(CLOSED);
 			return null;
 		}
+
+		if (message != null) {
+			taken(message);
+		}
+
+		return message;
+	}
+
+	public void setMessageListener(Consumer<Message> listener) {
+		synchronized (this.listenerLock) {
+			this.listener = listener;
+
+			if (listener != null) {
+				Message waiting;
+
+				while ((waiting = this.inbox.peek()) != null && waiting != CLOSED) {
+					listener.accept(this.inbox.poll());
+					taken(waiting);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Predaje primljenu poruku slušaču ako je postavljen, inače najstarijem pozivu
+	 * receiveAsync() koji čeka, a ako ga nema sprema je u inbox. Poziv receiveAsync()
+	 * dovršava se izvan lokota. Poruka predana slušaču ili pozivu receiveAsync() je
+	 * preuzeta, a poruka u inboxu čeka receive(). Poziva je samo čitač.
+	 * 
+	 * @param message primljena poruka
+	 */
+	private void deliver(Message message) {
+		while (true) {
+			CompletableFuture<Message> receiver;
+
+			synchronized (this.listenerLock) {
+				if (this.listener != null) {
+					this.listener.accept(message);
+					taken(message);
+					return;
+				}
+
+				receiver = this.receivers.poll();
+
+				if (receiver == null) {
+					this.inbox.add(message);
+					return;
+				}
+			}
+
+			// Otkazani poziv ne preuzima poruku
+			if (receiver.complete(message)) {
+				taken(message);
+				return;
+			}
+		}
 	}
 
 	/**
@@ -165,32 +844,272 @@ public class ClientMsgService implements IClientMsgService {
 		}
 	}
 
+	public CompletionStage<Void> queryAsync(MessageType type, byte[] data) {
+		return sendAsync(data == null ? new QueryMessage(type) : new QueryMessage(type, data));
+	}
+
+	public Flow.Publisher<Message> subscribe(final MessageType type, final byte[] pattern) {
+		return new Flow.Publisher<Message>() {
+
+			public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+				if (subscriber == null) {
+					throw new NullPointerException("Pretplatnik ne smije biti null!");
+				}
+
+				final FlowSubscription subscription = new FlowSubscription(
+						nextSubscriptionID.getAndIncrement(), subscriber);
+
+				// Pretplata se upisuje prije slanja, poruke mogu stići prije nego što slanje završi
+				subscriptions.put(subscription.id, subscription);
+
+				sendAsync(SubscriptionMessage.subscribe(subscription.id, type, pattern)).whenComplete(
+						new BiConsumer<Void, Throwable>() {
+
+					public void accept(Void result, Throwable failure) {
+						if (failure != null) {
+							subscription.finish(isStopped ? null : failure);
+						}
+					}
+
+				});
+
+				parametri.getThreadingMode().start(subscription, "subscription-" + adresa + "-" + subscription.id);
+			}
+
+		};
+	}
+
+	public CompletionStage<Address> registerAsync() {
+		if (this.isRegistered) {
+			return CompletableFuture.completedFuture(this.adresa);
+		}
+
+		final CompletableFuture<Address> registered = new CompletableFuture<Address>();
+
+		sendAsync(registration()).whenComplete(new BiConsumer<Void, Throwable>() {
+
+			public void accept(Void result, Throwable failure) {
+				if (failure != null) {
+					registered.completeExceptionally(new UnableToRegister(adresa));
+				} else if (!parametri.isReliable()) {
+					isRegistered = true;
+					registered.complete(adresa);
+				} else {
+					awaitGranted().whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+						public void accept(Boolean reliable, Throwable failure) {
+							if (failure != null || !reliable) {
+								registered.completeExceptionally(notGranted());
+							} else {
+								isRegistered = true;
+								registered.complete(adresa);
+							}
+						}
+
+					});
+				}
+			}
+
+		});
+
+		return registered;
+	}
+
 	public Address register() throws UnableToRegister {
 		if (!this.isRegistered) {
-			Message poruka = new RegisterMessage(this.adresa);
-
 			try {
-				send(poruka);
+				send(registration());
 			} catch (MessageNotSent e) {
 				throw new UnableToRegister(this.adresa);
 			}
 
+			if (this.parametri.isReliable() && !isGranted()) {
+				throw notGranted();
+			}
+
 			this.isRegistered = true;
 		}
 
 		return this.adresa;
 	}
 
+	/**
+	 * Stvara poruku registracije. Kad klijent traži pouzdanu isporuku, poruka je hitna
+	 * jer registracija čeka odgovor servera.
+	 * 
+	 * @return poruka registracije
+	 */
+	private RegisterMessage registration() {
+		RegisterMessage poruka = new RegisterMessage(this.adresa, this.parametri.isReliable(),
+				this.parametri.getCompression().offer());
+
+		poruka.setUrgent(this.parametri.isReliable());
+
+		return poruka;
+	}
+
+	/**
+	 * Vraća odgovor servera na traženu pouzdanu isporuku. Odgovor se čeka najviše
+	 * socket.timeout milisekundi, a 0 znači bez roka.
+	 * 
+	 * @return true ako je server prihvatio pouzdanu isporuku, iznimka ako odgovor ne
+	 *         stigne na vrijeme
+	 */
+	private CompletableFuture<Boolean> awaitGranted() {
+		int timeout = this.parametri.getSocketTimeout();
+
+		if (timeout == 0) {
+			return this.granted;
+		}
+
+		return this.granted.copy().orTimeout(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Čeka odgovor servera na traženu pouzdanu isporuku.
+	 * 
+	 * @return true ako je server prihvatio pouzdanu isporuku, false ako ju je odbio,
+	 *         odgovor nije stigao na vrijeme ili je čekanje prekinuto
+	 */
+	private boolean isGranted() {
+		try {
+			return awaitGranted().get();
+		} catch (ExecutionException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Iznimka registracije kad server nije prihvatio pouzdanu isporuku.
+	 * 
+	 * @return iznimka
+	 */
+	private UnableToRegister notGranted() {
+		return new UnableToRegister(this.adresa, "Server nije prihvatio pouzdanu isporuku (reliable)!");
+	}
+
+	public CompletableFuture<Message> request(Message message, Duration timeout) {
+		final int id = this.nextCorrelationID.getAndIncrement();
+		final PendingRequest pending = new PendingRequest();
+
+		// Zahtjev se upisuje prije slanja, odgovor može stići prije nego što send() završi
+		this.requests.put(id, pending);
+
+		pending.timeout = RequestTimeouts.WHEEL.schedule(new Runnable() {
+
+			public void run() {
+				if (requests.remove(id, pending)) {
+					pending.future.completeExceptionally(new TimeoutException("Odgovor na zahtjev "
+							+ id + " nije stigao na vrijeme!"));
+				}
+			}
+
+		}, timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+		sendAsync(new CorrelatedMessage(id, false, message)).whenComplete(new BiConsumer<Void, Throwable>() {
+
+			public void accept(Void result, Throwable failure) {
+				if (failure != null && requests.remove(id, pending)) {
+					pending.timeout.cancel();
+					pending.future.completeExceptionally(failure);
+				}
+			}
+
+		});
+
+		return pending.future;
+	}
+
+	public void reply(Message request, Message response) throws MessageNotSent {
+		if (!(request instanceof CorrelatedMessage) || ((CorrelatedMessage) request).isReply()) {
+			throw new IllegalArgumentException("Poruka nije primljeni zahtjev!");
+		}
+
+		response.setDestination(request.getSource());
+
+		send(new CorrelatedMessage(((CorrelatedMessage) request).getCorrelationId(), true, response));
+	}
+
 	public void send(Message message) throws MessageNotSent {
 		message.setSource(adresa);
 
 		try {
-			buffer.addMessage(message);
+			if (message.frameLength() > parametri.getPacketSize()) {
+				buffer.addTransfer(FragmentMessage.split(message,
+						nextTransferID.getAndIncrement(), parametri.getChunkSize()));
+			} else {
+				buffer.addMessage(message);
+			}
 		} catch (IOException e) {
 			throw new MessageNotSent(this.adresa, "Poruka nije poslana!", e);
 		}
 	}
 
+	public CompletionStage<Void> sendAsync(Message message) {
+		message.setSource(adresa);
+
+		CompletableFuture<Void> written;
+
+		if (message.frameLength() > parametri.getPacketSize()) {
+			written = buffer.submitTransfer(FragmentMessage.split(message,
+					nextTransferID.getAndIncrement(), parametri.getChunkSize()));
+		} else {
+			written = buffer.submit(message);
+		}
+
+		final CompletableFuture<Void> sent = new CompletableFuture<Void>();
+
+		written.whenComplete(new BiConsumer<Void, Throwable>() {
+
+			public void accept(Void result, Throwable failure) {
+				if (failure != null) {
+					sent.completeExceptionally(new MessageNotSent(adresa, "Poruka nije poslana!", failure));
+				} else {
+					sent.complete(null);
+				}
+			}
+
+		});
+
+		return sent;
+	}
+
+	public void sendAll(Collection<? extends Message> messages) throws MessageNotSent {
+		sendAll(messages, false);
+	}
+
+	public void sendAll(Collection<? extends Message> messages, boolean flush) throws MessageNotSent {
+		List<Message> run = new ArrayList<Message>(messages.size());
+
+		try {
+			for (Message message : messages) {
+				message.setSource(adresa);
+
+				if (message.frameLength() > parametri.getPacketSize()) {
+					// Poruke ispred velike poruke moraju otići prije njenih dijelova
+					buffer.addMessages(run, true);
+					run.clear();
+
+					buffer.addTransfer(FragmentMessage.split(message,
+							nextTransferID.getAndIncrement(), parametri.getChunkSize()));
+				} else {
+					run.add(message);
+				}
+			}
+
+			buffer.addMessages(run, flush);
+		} catch (IOException e) {
+			throw new MessageNotSent(this.adresa, "Poruke nisu poslane!", e);
+		}
+	}
+
+	public MessageBatch batch() {
+		return new MessageBatch(this);
+	}
+
 	/**
 	 * Klasa-container parametara klijenta.
 	 */
@@ -225,6 +1144,44 @@ public class ClientMsgService implements IClientMsgService {
 		/** ID klijenta */
 		private int clientID;
 
+		/** Način stvaranja dretvi klijenta */
+		private ThreadingMode threadingMode;
+
+		/**
+		 * Parametar, neobavezan. Najveća veličina paketa koji se šalje serveru. Veće
+		 * poruke šalju se podijeljene na dijelove, a ako parametar nije zadan dijele se
+		 * samo poruke koje ne stanu u jedan okvir.
+		 */
+		private int packetSize;
+
+		/**
+		 * Parametar, neobavezan. Algoritam komprimiranja koji klijent nudi serveru,
+		 * ako nije zadan klijent ne komprimira.
+		 */
+		private Compression compression;
+
+		/**
+		 * Parametar, neobavezan. Najmanji paket u bajtovima koji se komprimira.
+		 */
+		private int compressionThreshold;
+
+		/**
+		 * Parametar, neobavezan. True ako klijent od servera traži pouzdanu isporuku.
+		 */
+		private boolean reliable;
+
+		/**
+		 * Parametar, neobavezan. Najveća duljina sadržaja podijeljene poruke koju klijent
+		 * prima, dulje poruke se odbacuju.
+		 */
+		private int maxMessageSize;
+
+		/**
+		 * Parametar, neobavezan. Vrijeme (u milisekundama) nakon kojeg se odbacuje
+		 * podijeljena poruka kojoj ne stiže novi dio.
+		 */
+		private int fragmentTimeout;
+
 		/**
 		 * Konstruktor.
 		 * 
@@ -243,6 +1200,21 @@ public class ClientMsgService implements IClientMsgService {
 				this.sendBufferTime = getNumericProperty(config, "buffer.timeout", 0);
 				this.socketTimeout = getNumericProperty(config, "socket.timeout", 0);
 				this.clientID = getNumericProperty(config, "client.ID", 0);
+				this.threadingMode = ThreadingMode.fromProperties(config);
+				this.packetSize = config.containsKey("packet.size")
+						? getNumericProperty(config, "packet.size", MIN_PACKET_SIZE, MAX_PACKET_SIZE)
+						: MAX_PACKET_SIZE;
+				this.compression = Compression.fromProperties(config);
+				this.compressionThreshold = config.containsKey("compression.threshold")
+						? getNumericProperty(config, "compression.threshold", 1)
+						: DEFAULT_COMPRESSION_THRESHOLD;
+				this.reliable = getBooleanProperty(config, "reliable");
+				this.maxMessageSize = config.containsKey("max.message.size")
+						? getNumericProperty(config, "max.message.size", 1)
+						: Reassembler.DEFAULT_MAX_LENGTH;
+				this.fragmentTimeout = config.containsKey("fragment.timeout")
+						? getNumericProperty(config, "fragment.timeout", 1)
+						: (int) Reassembler.DEFAULT_TIMEOUT;
 
 				this.serverIP = config.getProperty("server.address");
 				if (!isValidIP(this.serverIP)) {
@@ -320,6 +1292,29 @@ public class ClientMsgService implements IClientMsgService {
 			}
 		}
 
+		/**
+		 * Čitanje i provjera logičkog parametra iz Properties objekta. Parametar
+		 * koji nije zadan je false.
+		 * 
+		 * @param properties
+		 *            Objekt sa parametrima.
+		 * @param name
+		 *            Naziv parametra.
+		 * @return Vrijednost parametra.
+		 * @throws IllegalArgumentException
+		 *             Ukoliko parametar nije true ili false.
+		 */
+		private boolean getBooleanProperty(Properties properties, String name) {
+			String value = properties.getProperty(name, "false").trim();
+
+			if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+				throw new IllegalArgumentException("Neispravan parametar: "
+						+ name + ". Zadali ste: " + value);
+			}
+
+			return Boolean.parseBoolean(value);
+		}
+
 		/**
 		 * Getter server porta.
 		 * 
@@ -386,6 +1381,80 @@ public class ClientMsgService implements IClientMsgService {
 			return this.clientID;
 		}
 
+		/**
+		 * Getter načina stvaranja dretvi.
+		 * 
+		 * @return Način stvaranja dretvi (threading.mode).
+		 */
+		public ThreadingMode getThreadingMode() {
+			return this.threadingMode;
+		}
+
+		/**
+		 * Getter za veličinu paketa.
+		 * 
+		 * @return Najveća veličina paketa u bajtovima.
+		 */
+		public int getPacketSize() {
+			return this.packetSize;
+		}
+
+		/**
+		 * Getter algoritma komprimiranja.
+		 * 
+		 * @return Algoritam koji klijent nudi serveru (compression).
+		 */
+		public Compression getCompression() {
+			return this.compression;
+		}
+
+		/**
+		 * Getter praga komprimiranja.
+		 * 
+		 * @return Najmanji paket u bajtovima koji se komprimira.
+		 */
+		public int getCompressionThreshold() {
+			return this.compressionThreshold;
+		}
+
+		/**
+		 * Getter pouzdane isporuke.
+		 * 
+		 * @return True ako klijent traži pouzdanu isporuku (reliable).
+		 */
+		public boolean isReliable() {
+			return this.reliable;
+		}
+
+		/**
+		 * Getter najveće duljine primljene poruke.
+		 * 
+		 * @return Najveća duljina sadržaja podijeljene poruke (max.message.size).
+		 */
+		public int getMaxMessageSize() {
+			return this.maxMessageSize;
+		}
+
+		/**
+		 * Getter roka podijeljene poruke.
+		 * 
+		 * @return Vrijeme u milisekundama nakon kojeg se odbacuje nedovršena podijeljena
+		 *         poruka (fragment.timeout).
+		 */
+		public int getFragmentTimeout() {
+			return this.fragmentTimeout;
+		}
+
+		/**
+		 * Vraća veličinu dijela sadržaja podijeljene poruke, tako da dio s
+		 * zaglavljima stane u paket.
+		 * 
+		 * @return Najveća duljina dijela sadržaja u bajtovima.
+		 */
+		public int getChunkSize() {
+			return this.packetSize - Message.headerLength - FragmentMessage.fragmentHeaderLength;
+		}
+
 		/**
 		 * Metoda za provjeru valjanosti IP-a.
 		 * 
@@ -1,7 +1,16 @@
 package hr.fer.zemris.java.nescume.messages.client;
 
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 import hr.fer.zemris.java.nescume.messages.Address;
 import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
 import hr.fer.zemris.java.nescume.messages.client.exceptions.ClientCannotStart;
 import hr.fer.zemris.java.nescume.messages.client.exceptions.ClientCrashed;
 import hr.fer.zemris.java.nescume.messages.client.exceptions.UnableToRegister;
@@ -26,20 +35,140 @@ public interface IClientMsgService {
     public void stop();
     
     /**
-     * Metoda šalje poruku na server.
+     * Metoda šalje poruku na server. Poruka veća od paketa (packet.size) šalje se
+     * podijeljena na dijelove, a primatelj je dobiva cijelu.
      * @param message opći oblik poruke
      * @throws MessageNotSent ako poruka nije poslana ili ju server nije primio
      * @throws ClientCrashed u slučaju da klijent završi neočekivano
      */
     public void send(Message message) throws MessageNotSent, ClientCrashed;
 
+    /**
+     * Metoda šalje skupinu poruka. Poruke se u buffer dodaju odjednom i, kad se buffer
+     * prazni, odlaze jednim pisanjem na izlaz. Pražnjenje se događa po istim pravilima
+     * kao kod send().
+     * @param messages poruke redom kojim se šalju
+     * @throws MessageNotSent ako poruke nisu poslane
+     * @throws ClientCrashed u slučaju da klijent završi neočekivano
+     */
+    public void sendAll(Collection<? extends Message> messages) throws MessageNotSent, ClientCrashed;
+
+    /**
+     * Kao sendAll(messages), uz mogućnost da se buffer isprazni odmah.
+     * @param messages poruke redom kojim se šalju
+     * @param flush true ako poruke treba poslati odmah, bez čekanja buffer.timeout
+     * @throws MessageNotSent ako poruke nisu poslane
+     * @throws ClientCrashed u slučaju da klijent završi neočekivano
+     */
+    public void sendAll(Collection<? extends Message> messages, boolean flush) throws MessageNotSent, ClientCrashed;
+
+    /**
+     * Stvara praznu skupinu poruka koje će se poslati zajedno preko sendAll().
+     * @return skupina poruka
+     */
+    public MessageBatch batch();
+
     /**
      * Metoda prima poruku sa servera. Ako poruka ne postoji, metoda čeka.
-     * @return poruku namijenjenu ovom klijentu
+     * @return poruku namijenjenu ovom klijentu, null ako je veza prema serveru prekinuta
      * @throws ClientCrashed u slučaju da klijent završi neočekivano
      */
     public Message receive() throws ClientCrashed;
+
+    /**
+     * Metoda prima poruku sa servera. Ako poruka ne postoji, metoda čeka najviše zadano
+     * vrijeme, bez trošenja procesora.
+     * @param timeout najdulje vrijeme čekanja
+     * @param unit jedinica vremena čekanja
+     * @return poruku namijenjenu ovom klijentu, null ako poruka nije stigla na vrijeme
+     * ili je veza prema serveru prekinuta
+     * @throws ClientCrashed u slučaju da klijent završi neočekivano
+     */
+    public Message receive(long timeout, TimeUnit unit) throws ClientCrashed;
+
+    /**
+     * Postavlja slušača kojem dretva čitača predaje svaku primljenu poruku, umjesto da
+     * se poruke preuzimaju metodom receive(). Poruke koje su već primljene odmah se
+     * predaju slušaču. Slušač ne smije dugo blokirati jer za to vrijeme klijent ne
+     * čita nove poruke.
+     * @param listener slušač, null vraća klijenta na preuzimanje poruka s receive()
+     */
+    public void setMessageListener(Consumer<Message> listener);
+
+    /**
+     * Šalje zahtjev i vraća budući odgovor, bez čekanja. Zahtjev putuje s identifikatorom
+     * korelacije, primatelj ga dobiva kao CorrelatedMessage i odgovara metodom reply(), a
+     * odgovor se ne predaje receive() ni slušaču nego dovršava vraćeni future. Future se
+     * dovršava u dretvi čitača, pa nastavci ne smiju dugo blokirati.
+     * @param message zahtjev
+     * @param timeout najdulje vrijeme čekanja na odgovor
+     * @return odgovor; future završava iznimkom TimeoutException ako odgovor ne stigne na
+     * vrijeme, a iznimkom MessageNotSent ako zahtjev nije poslan ili se veza prekine prije
+     * odgovora
+     */
+    public CompletableFuture<Message> request(Message message, Duration timeout);
+
+    /**
+     * Odgovara na zahtjev drugog klijenta. Odgovor ide pošiljatelju zahtjeva, s
+     * identifikatorom korelacije zahtjeva.
+     * @param request primljeni zahtjev (CorrelatedMessage)
+     * @param response odgovor
+     * @throws MessageNotSent ako odgovor nije poslan
+     * @throws ClientCrashed u slučaju da klijent završi neočekivano
+     * @throws IllegalArgumentException ako poruka nije primljeni zahtjev
+     */
+    public void reply(Message request, Message response) throws MessageNotSent, ClientCrashed;
     
+    /**
+     * Šalje poruku bez čekanja i bez bacanja iznimke. Poruka se samo dodaje u izlazni
+     * buffer, a na izlaz je piše dretva buffera, pa pozivatelj nikad ne sudjeluje u
+     * pisanju u socket, ni kod poruka većih od paketa.
+     * @param message opći oblik poruke
+     * @return stage koji se dovršava u dretvi buffera kad je poruka zapisana na izlaz, a
+     * iznimkom MessageNotSent ako slanje nije uspjelo
+     */
+    public CompletionStage<Void> sendAsync(Message message);
+
+    /**
+     * Prima sljedeću poruku bez čekanja. Dok je postavljen slušač, poruke se predaju
+     * njemu, a ne ovako zatraženim porukama.
+     * @return stage koji se dovršava sljedećom primljenom porukom, u dretvi čitača ako
+     * poruka još nije stigla, ili s null ako je veza prema serveru prekinuta
+     */
+    public CompletionStage<Message> receiveAsync();
+
+    /**
+     * Registrira klijenta bez čekanja.
+     * @return stage koji se dovršava adresom klijenta kad je registracija poslana, a
+     * iznimkom UnableToRegister ako slanje nije uspjelo
+     */
+    public CompletionStage<Address> registerAsync();
+
+    /**
+     * Pretplaćuje klijenta na sljedeću poruku zadanog tipa i sadržaja, bez čekanja.
+     * @param type tip poruke
+     * @param data sadržaj poruke, null za sve poruke zadanog tipa
+     * @return stage koji se dovršava kad je pretplata poslana, a iznimkom MessageNotSent
+     * ako slanje nije uspjelo
+     */
+    public CompletionStage<Void> queryAsync(MessageType type, byte[] data);
+
+    /**
+     * Vraća izdavača poruka zadanog tipa i sadržaja. Svaki pretplatnik izdavača otvara
+     * na serveru svoju pretplatu, odvojenu od queryja i od ostalih pretplata, a poruke
+     * dobiva samo ta pretplata, ne receive() ni slušač. Zahtjevi pretplatnika
+     * (Flow.Subscription.request) serveru idu kao kredit: server pretplati šalje samo
+     * onoliko poruka koliko je zatraženo, a ostale čekaju na serveru, najviše
+     * subscription.backlog njih. Spori pretplatnik tako usporava samo svoju pretplatu.
+     * Pretplatniku poruke predaje njegova dretva, stvorena prema threading.mode. Kad se
+     * veza prekine, pretplatnik dobiva onComplete ako je klijent zaustavljen metodom
+     * stop(), a inače onError s iznimkom ClientCrashed.
+     * @param type tip poruka
+     * @param pattern uzorak sadržaja, null za sve poruke zadanog tipa
+     * @return izdavač poruka
+     */
+    public Flow.Publisher<Message> subscribe(MessageType type, byte[] pattern);
+
     /**
      * Registrira klijenta i vraća njegovu adresu.
      * @throws UnableToRegister ako klijent nije prihvaćen
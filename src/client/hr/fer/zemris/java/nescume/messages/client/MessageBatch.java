@@ -0,0 +1,108 @@
+package hr.fer.zemris.java.nescume.messages.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.client.exceptions.ClientCrashed;
+import hr.fer.zemris.java.nescume.messages.client.exceptions.MessageNotSent;
+
+/**
+ * Skupina poruka koje se šalju zajedno (IClientMsgService.batch()). Poruke se skupljaju
+ * bez zaključavanja i šalju metodom send() ili zatvaranjem skupine, pa se skupina može
+ * koristiti u try-with-resources bloku:
+ *
+ * <pre>
+ * try (MessageBatch batch = client.batch().flushImmediately()) {
+ *     for (Message message : messages) {
+ *         batch.add(message);
+ *     }
+ * }
+ * </pre>
+ *
+ * Skupinu koristi jedna dretva.
+ */
+public class MessageBatch implements AutoCloseable {
+
+	/**
+	 * Klijent preko kojeg se skupina šalje.
+	 */
+	private IClientMsgService client;
+
+	/**
+	 * Poruke skupine.
+	 */
+	private List<Message> messages = new ArrayList<Message>();
+
+	/**
+	 * True ako poruke treba poslati odmah, bez čekanja buffer.timeout.
+	 */
+	private boolean flush;
+
+	/**
+	 * True nakon slanja skupine.
+	 */
+	private boolean sent;
+
+	/**
+	 * Konstruktor.
+	 * @param client klijent preko kojeg se skupina šalje
+	 */
+	public MessageBatch(IClientMsgService client) {
+		this.client = client;
+	}
+
+	/**
+	 * Dodaje poruku u skupinu.
+	 * @param message poruka
+	 * @return ova skupina
+	 * @throws IllegalStateException ako je skupina već poslana
+	 */
+	public MessageBatch add(Message message) {
+		if(sent) {
+			throw new IllegalStateException("Skupina je već poslana!");
+		}
+
+		messages.add(message);
+
+		return this;
+	}
+
+	/**
+	 * Traži da se skupina pošalje odmah, a ne tek nakon isteka buffer.timeout.
+	 * @return ova skupina
+	 */
+	public MessageBatch flushImmediately() {
+		this.flush = true;
+
+		return this;
+	}
+
+	/**
+	 * @return broj poruka u skupini
+	 */
+	public int size() {
+		return messages.size();
+	}
+
+	/**
+	 * Šalje skupinu. Ponovno slanje nema učinka.
+	 * @throws MessageNotSent ako poruke nisu poslane
+	 * @throws ClientCrashed u slučaju da klijent završi neočekivano
+	 */
+	public void send() throws MessageNotSent, ClientCrashed {
+		if(sent) {
+			return;
+		}
+
+		sent = true;
+		client.sendAll(messages, flush);
+	}
+
+	/**
+	 * Šalje skupinu ako još nije poslana.
+	 */
+	public void close() throws MessageNotSent, ClientCrashed {
+		send();
+	}
+}
@@ -0,0 +1,112 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Potvrda primitka kod pouzdane isporuke. Klijent njome potvrđuje serveru sve poruke do
+ * zadanog rednog broja (SequencedMessage) na vezi. Potvrda je kumulativna, pa je dovoljna
+ * jedna za mnogo poruka.
+ *
+ * Potvrda koja čeka u izlaznom bufferu može se pomaknuti na veći redni broj (advance) dok
+ * se ne zapiše, pa se s porukama koje stižu ne stvaraju nove potvrde nego se šalje jedna
+ * po pražnjenju buffera.
+ */
+public class AckMessage extends Message {
+
+	/**
+	 * Duljina tijela potvrde: redni broj.
+	 */
+	public static final int ackLength = 4;
+
+	/**
+	 * Najveći potvrđeni redni broj.
+	 */
+	private int sequence;
+
+	/**
+	 * True kad je potvrda zapisana, tada se više ne pomiče.
+	 */
+	private boolean written;
+
+	/**
+	 * Defaultni konstruktor, ne koristiti ga za stvaranje poruka prilikom slanja.
+	 */
+	public AckMessage() {
+		this.type = MessageType.ACK;
+	}
+
+	/**
+	 * Konstruktor potvrde za server.
+	 * @param source adresa klijenta koji potvrđuje
+	 * @param sequence najveći potvrđeni redni broj
+	 */
+	public AckMessage(Address source, int sequence) {
+		this.type = MessageType.ACK;
+		this.dest = new Address(0, 0);
+		this.src = source;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return najveći potvrđeni redni broj
+	 */
+	public synchronized int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Pomiče potvrdu na veći redni broj, ako još nije zapisana.
+	 * @param sequence najveći potvrđeni redni broj
+	 * @return true ako je potvrda pomaknuta, false ako je već zapisana
+	 */
+	public synchronized boolean advance(int sequence) {
+		if(written) {
+			return false;
+		}
+
+		this.sequence = sequence;
+
+		return true;
+	}
+
+	@Override
+	protected int dataLength() {
+		return ackLength;
+	}
+
+	@Override
+	protected synchronized void dataToBuffer(ByteBuffer buffer) {
+		buffer.putInt(sequence);
+		written = true;
+	}
+
+	@Override
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		if(dataLength < ackLength) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		this.sequence = buffer.getInt();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof AckMessage)) {
+			return false;
+		}
+
+		AckMessage other = (AckMessage) obj;
+
+		return this.getSequence() == other.getSequence() && this.getSourceKey() == other.getSourceKey();
+	}
+
+	@Override
+	public int hashCode() {
+		return getSequence() ^ getSourceKey();
+	}
+
+	@Override
+	public String toString() {
+		return "Potvrda poruka do rednog broja " + getSequence() + " od " + getSource() + ".";
+	}
+}
@@ -1,11 +1,5 @@
 package hr.fer.zemris.java.nescume.messages;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-
 /**
  * Implementacija adrese koja je oblika clientID:nodeID, služi za interno
  * adresiranje prijavljenih klijenata na serveru, i međusobno adresiranje
@@ -18,13 +12,13 @@ public class Address {
     /**
      * Fizička adresa JVM-a na kojem se nalazi service klijenta.
      */
-    private short clientID;
+    private final short clientID;
 
     /**
      * Adresa čvora na JVM-u.
      */
     // Neće biti više od 255 dretvi jer je to onda jaako neefikasno.
-    private byte nodeID;
+    private final byte nodeID;
 
     /**
      * Stvara novi primjerak adrese iz zadane kombinacije clientID:nodeID.
@@ -64,25 +58,28 @@ public class Address {
      * @return GID (globalni identifikator)
      */
     public byte[] getGID() {
-        /*
-         * Koriste se streamovi u slučaju da se odluči promijeniti širina
-         * clientID-a ili nodeID-a.
-         */
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(addressLength);
-        DataOutputStream dos = new DataOutputStream(bos);
+        return new byte[] { (byte) (clientID >> 8), (byte) clientID, nodeID };
+    }
 
-        try {
-            dos.writeShort(clientID);
-            dos.writeByte(nodeID);
-        } catch (IOException notPossible) {
-        } finally {
-            try {
-                dos.close();
-            } catch (Exception ignorable) {
-            }
-        }
+    /**
+     * Vraća adresu zapisanu u jednom intu, clientID u bitovima 8-23 i nodeID u donjih 8
+     * bitova. Ključ je uvijek nenegativan, a dvije adrese su jednake ako i samo ako su im
+     * ključevi jednaki, pa server po ključu usmjerava poruke bez stvaranja adresa.
+     * 
+     * @return ključ adrese
+     */
+    public int toKey() {
+        return (clientID & 0xFFFF) << 8 | (nodeID & 0xFF);
+    }
 
-        return bos.toByteArray();
+    /**
+     * Stvara adresu iz ključa dobivenog metodom toKey().
+     * 
+     * @param key ključ adrese
+     * @return adresa koja odgovara ključu
+     */
+    public static Address fromKey(int key) {
+        return new Address(key >>> 8, key);
     }
 
     /**
@@ -93,22 +90,11 @@ public class Address {
      * @return adresa koja odgovara zadanom GID-u
      */
     public static Address parseGID(byte[] GID) {
-        /*
-         * Koriste se streamovi u slučaju da se odluči promijeniti širina
-         * clientID-a ili nodeID-a.
-         */
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(GID));
-
-        try {
-            return new Address(dis.readShort(), dis.readByte());
-        } catch (IOException e) {
+        if (GID.length < addressLength) {
             throw new IllegalArgumentException("Predan neispravan GID!");
-        } finally {
-            try {
-                dis.close();
-            } catch (Exception ignorable) {
-            }
         }
+
+        return new Address((GID[0] & 0xFF) << 8 | (GID[1] & 0xFF), GID[2]);
     }
 
     /**
@@ -0,0 +1,102 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bazen buffera jednake veličine u koje se pakiraju poruke (Message.toBuffer). Bufferi
+ * mogu biti direktni, pa ih kanal piše bez kopiranja, a vraćaju se u bazen nakon slanja
+ * da se ne bi alocirali za svaki paket. Bazen čuva ograničen broj slobodnih buffera.
+ */
+public class BufferPool {
+
+	/**
+	 * Slobodni bufferi.
+	 */
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	/**
+	 * Broj slobodnih buffera.
+	 */
+	private final AtomicInteger freeCount = new AtomicInteger();
+
+	/**
+	 * Veličina buffera u bajtovima.
+	 */
+	private final int capacity;
+
+	/**
+	 * Najveći broj slobodnih buffera koje bazen čuva.
+	 */
+	private final int retained;
+
+	/**
+	 * True ako bazen stvara direktne buffere.
+	 */
+	private final boolean direct;
+
+	/**
+	 * Konstruktor.
+	 * @param capacity veličina buffera u bajtovima
+	 * @param retained najveći broj slobodnih buffera koje bazen čuva
+	 * @param direct true ako bufferi trebaju biti direktni
+	 */
+	public BufferPool(int capacity, int retained, boolean direct) {
+		if(capacity < 1 || retained < 0) {
+			throw new IllegalArgumentException("Neispravni parametri bazena buffera!");
+		}
+
+		this.capacity = capacity;
+		this.retained = retained;
+		this.direct = direct;
+	}
+
+	/**
+	 * Uzima prazan buffer iz bazena. Ako je potreban veći buffer od onih u bazenu, stvara
+	 * se novi koji se nakon vraćanja ne čuva.
+	 * @param minimum najmanja potrebna veličina buffera
+	 * @return prazan buffer, pozicija 0 i limit jednak kapacitetu
+	 */
+	public ByteBuffer acquire(int minimum) {
+		if(minimum > capacity) {
+			return ByteBuffer.allocate(minimum);
+		}
+
+		ByteBuffer buffer = free.poll();
+
+		if(buffer == null) {
+			return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+		}
+
+		freeCount.decrementAndGet();
+		buffer.clear();
+
+		return buffer;
+	}
+
+	/**
+	 * Vraća buffer u bazen. Nakon vraćanja buffer se više ne smije koristiti.
+	 * @param buffer buffer uzet metodom acquire
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer.capacity() != capacity || buffer.isDirect() != direct) {
+			return;
+		}
+
+		if(freeCount.incrementAndGet() > retained) {
+			freeCount.decrementAndGet();
+			return;
+		}
+
+		free.add(buffer);
+	}
+
+	/**
+	 * @return veličina buffera u bazenu
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,139 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Komprimirani paket poruka. Putuje samo između klijenta i servera koji su se dogovorili
+ * o komprimiranju (Compression), bez odredišta i izvorišta, a nakon raspakiravanja daje
+ * cijele okvire poruka, pa ga primatelj (FrameReader) zamjenjuje porukama iz njega. Tijelo
+ * počinje oznakom algoritma i duljinom raspakiranih okvira, a iza njih je komprimirani
+ * oblik.
+ */
+public class CompressedMessage extends Message {
+
+	/**
+	 * Veličina zaglavlja komprimiranog paketa unutar tijela poruke: algoritam i duljina
+	 * raspakiranih okvira.
+	 */
+	public static final int compressedHeaderLength = 1 + 2;
+
+	/**
+	 * Najveća duljina raspakiranih okvira jednog paketa.
+	 */
+	public static final int maxRawLength = 0xFFFF;
+
+	/**
+	 * Algoritam kojim je paket komprimiran.
+	 */
+	private Compression compression;
+
+	/**
+	 * Duljina raspakiranih okvira.
+	 */
+	private int rawLength;
+
+	/**
+	 * Polje s komprimiranim oblikom.
+	 */
+	private byte[] payload;
+
+	/**
+	 * Duljina komprimiranog oblika u polju payload.
+	 */
+	private int payloadLength;
+
+	/**
+	 * Defaultni konstruktor, ne koristiti ga za stvaranje poruka prilikom slanja.
+	 */
+	public CompressedMessage() {
+		this.type = MessageType.COMPRESSED;
+	}
+
+	/**
+	 * Konstruktor komprimiranog paketa. Komprimirani oblik se ne kopira.
+	 * @param compression algoritam
+	 * @param rawLength duljina raspakiranih okvira
+	 * @param payload polje s komprimiranim oblikom od početka
+	 * @param payloadLength duljina komprimiranog oblika
+	 */
+	public CompressedMessage(Compression compression, int rawLength, byte[] payload, int payloadLength) {
+		this.type = MessageType.COMPRESSED;
+		this.dest = new Address(0, 0);
+		this.src = new Address(0, 0);
+		this.compression = compression;
+		this.rawLength = rawLength;
+		this.payload = payload;
+		this.payloadLength = payloadLength;
+	}
+
+	/**
+	 * @return algoritam kojim je paket komprimiran
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return duljina raspakiranih okvira
+	 */
+	public int getRawLength() {
+		return rawLength;
+	}
+
+	/**
+	 * Raspakirava paket zadanim kodekom.
+	 * @param codec kodek algoritma ovog paketa
+	 * @param target polje u koje se raspakiravaju okviri, od početka
+	 * @throws IOException ako paket nije ispravan
+	 */
+	public void decompress(PacketCodec codec, byte[] target) throws IOException {
+		codec.decompress(payload, 0, payloadLength, target, 0, rawLength);
+	}
+
+	@Override
+	public byte[] getData() {
+		byte[] data = new byte[payloadLength];
+
+		System.arraycopy(payload, 0, data, 0, payloadLength);
+
+		return data;
+	}
+
+	@Override
+	protected int dataLength() {
+		return compressedHeaderLength + payloadLength;
+	}
+
+	@Override
+	protected void dataToBuffer(ByteBuffer buffer) {
+		buffer.put(compression.toByte());
+		buffer.putShort((short) rawLength);
+		buffer.put(payload, 0, payloadLength);
+	}
+
+	@Override
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		if(dataLength < compressedHeaderLength) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		this.compression = Compression.fromByte(buffer.get());
+
+		if(this.compression == null || this.compression == Compression.NONE) {
+			throw new IllegalArgumentException("Nepoznat algoritam komprimiranog paketa!");
+		}
+
+		this.rawLength = buffer.getShort() & 0xFFFF;
+		this.payloadLength = dataLength - compressedHeaderLength;
+		this.payload = new byte[payloadLength];
+
+		buffer.get(this.payload);
+	}
+
+	@Override
+	public String toString() {
+		return "Komprimirani paket (" + compression + ") od " + payloadLength + " bajtova, raspakiran " +
+				rawLength + " bajtova.";
+	}
+}
@@ -0,0 +1,146 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Algoritam kojim se komprimiraju paketi poruka na jednoj vezi, zadaje se propertyjem
+ * compression. Klijent u registracijskoj poruci nudi algoritme koje želi koristiti, a
+ * server odgovara algoritmom koji je odabrao. Do odgovora, i ako server ne odgovori,
+ * paketi se šalju nekomprimirani.
+ *
+ * Primatelj razumije komprimirane pakete svih algoritama, jer svaki komprimirani paket
+ * nosi oznaku svog algoritma, pa dogovor određuje samo što pošiljatelji smiju slati.
+ */
+public enum Compression {
+
+	/**
+	 * Bez komprimiranja (none).
+	 */
+	NONE(0),
+
+	/**
+	 * Deflate (java.util.zip) na najbržoj razini, bolji omjer uz više procesora (deflate).
+	 */
+	DEFLATE(1),
+
+	/**
+	 * Brzi LZ algoritam u obliku LZ4 bloka, slabiji omjer uz malo procesora (lz).
+	 */
+	LZ(2);
+
+	/**
+	 * Oznaka algoritma na žici.
+	 */
+	private final byte value;
+
+	/**
+	 * Konstruktor.
+	 * @param value oznaka algoritma na žici
+	 */
+	private Compression(int value) {
+		this.value = (byte) value;
+	}
+
+	/**
+	 * Vraća oznaku algoritma na žici.
+	 * @return oznaka
+	 */
+	public byte toByte() {
+		return value;
+	}
+
+	/**
+	 * Vraća algoritam zadan oznakom na žici.
+	 * @param value oznaka
+	 * @return algoritam, null ako oznaka nije poznata
+	 */
+	public static Compression fromByte(byte value) {
+		for(Compression compression : values()) {
+			if(compression.value == value) {
+				return compression;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Vraća algoritam zadan propertyjem compression, ako on nije zadan vraća NONE.
+	 * @param properties parametri
+	 * @return algoritam
+	 * @throws IllegalArgumentException ako compression nije none, deflate ili lz
+	 */
+	public static Compression fromProperties(Properties properties) {
+		String compression = properties.getProperty("compression", "none").trim();
+
+		for(Compression value : values()) {
+			if(value.name().equalsIgnoreCase(compression)) {
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("compression mora biti none, deflate ili lz!");
+	}
+
+	/**
+	 * Vraća algoritme koje klijent nudi serveru: ovaj algoritam, a iza njega ostale. Ako je
+	 * ovo NONE, ne nudi se ništa.
+	 * @return ponuđeni algoritmi, od najpoželjnijeg
+	 */
+	public Compression[] offer() {
+		List<Compression> offer = new ArrayList<Compression>();
+
+		if(this != NONE) {
+			offer.add(this);
+
+			for(Compression other : values()) {
+				if(other != NONE && other != this) {
+					offer.add(other);
+				}
+			}
+		}
+
+		return offer.toArray(new Compression[offer.size()]);
+	}
+
+	/**
+	 * Odabire algoritam između ponuđenih. Server s ovim algoritmom bira njega ako je
+	 * ponuđen, a inače prvi ponuđeni. Ako je ovo NONE, ništa se ne bira.
+	 * @param offer algoritmi koje nudi klijent, od najpoželjnijeg
+	 * @return odabrani algoritam, NONE ako komprimiranja neće biti
+	 */
+	public Compression negotiate(Compression[] offer) {
+		if(this == NONE || offer.length == 0) {
+			return NONE;
+		}
+
+		for(Compression offered : offer) {
+			if(offered == this) {
+				return this;
+			}
+		}
+
+		return offer[0];
+	}
+
+	/**
+	 * Stvara novi kodek ovog algoritma. Kodek nije siguran za više dretvi, a stvara se
+	 * jedan po vezi i smjeru i ponovno koristi za svaki paket.
+	 * @return kodek
+	 * @throws IllegalStateException ako je ovo NONE
+	 */
+	public PacketCodec newCodec() {
+		switch(this) {
+		case DEFLATE:
+			return new DeflateCodec();
+
+		case LZ:
+			return new LzCodec();
+
+		default:
+			throw new IllegalStateException("Algoritam " + this + " nema kodek!");
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Zahtjev ili odgovor s identifikatorom korelacije. Klijent koji šalje zahtjev omata
+ * poruku s novim identifikatorom, a primatelj odgovor omata s istim identifikatorom, pa
+ * pošiljatelj odgovor pridružuje zahtjevu bez pregledavanja sadržaja. Server poruku
+ * prosljeđuje kao i svaku drugu.
+ *
+ * Tijelo počinje s identifikatorom, oznakom zahtjeva ili odgovora i tipom s hitnošću
+ * omotane poruke, a iza njih je sadržaj omotane poruke. Omotač ima odredište, izvorište i
+ * hitnost omotane poruke. Ako omotač ne stane u paket, šalje se podijeljen na dijelove kao
+ * i svaka druga poruka, a sastavljena poruka raspakira se metodom unwrap().
+ */
+public class CorrelatedMessage extends Message {
+
+	/**
+	 * Veličina zaglavlja korelacije unutar tijela poruke: identifikator, oznaka odgovora i
+	 * tip s hitnošću omotane poruke.
+	 */
+	public static final int correlationHeaderLength = 4 + 1 + 1;
+
+	/**
+	 * Oznaka zahtjeva u tijelu poruke.
+	 */
+	private static final byte REQUEST = 0;
+
+	/**
+	 * Oznaka odgovora u tijelu poruke.
+	 */
+	private static final byte REPLY = 1;
+
+	/**
+	 * Identifikator korelacije, jedinstven među zahtjevima istog pošiljatelja.
+	 */
+	private int correlationId;
+
+	/**
+	 * True ako je poruka odgovor, false ako je zahtjev.
+	 */
+	private boolean reply;
+
+	/**
+	 * Omotana poruka.
+	 */
+	private Message message;
+
+	/**
+	 * Defaultni konstruktor, ne koristiti ga za stvaranje poruka prilikom slanja.
+	 */
+	public CorrelatedMessage() {
+		this.type = MessageType.CORRELATED;
+	}
+
+	/**
+	 * Konstruktor koji omata poruku koja se šalje.
+	 * @param correlationId identifikator korelacije
+	 * @param reply true za odgovor, false za zahtjev
+	 * @param message omotana poruka
+	 */
+	public CorrelatedMessage(int correlationId, boolean reply, Message message) {
+		this.type = MessageType.CORRELATED;
+		this.dest = message.getDestination();
+		this.src = message.getSource();
+		this.urgent = message.isUrgent();
+		this.correlationId = correlationId;
+		this.reply = reply;
+		this.message = message;
+	}
+
+	/**
+	 * Raspakira zahtjev ili odgovor sastavljen iz dijelova, čiji je sadržaj cijelo tijelo
+	 * omotača. Poruka koja je već omotač vraća se nepromijenjena.
+	 * @param message poruka tipa CORRELATED
+	 * @return omotač
+	 * @throws IllegalArgumentException ako tijelo poruke nije ispravno
+	 */
+	public static CorrelatedMessage unwrap(Message message) {
+		if(message instanceof CorrelatedMessage) {
+			return (CorrelatedMessage) message;
+		}
+
+		CorrelatedMessage correlated = new CorrelatedMessage();
+		byte[] data = message.getData();
+
+		correlated.destKey = message.getDestinationKey();
+		correlated.srcKey = message.getSourceKey();
+		correlated.urgent = message.isUrgent();
+		correlated.dataFromBuffer(ByteBuffer.wrap(data), data.length);
+
+		return correlated;
+	}
+
+	/**
+	 * @return identifikator korelacije
+	 */
+	public int getCorrelationId() {
+		return correlationId;
+	}
+
+	/**
+	 * @return true ako je poruka odgovor, false ako je zahtjev
+	 */
+	public boolean isReply() {
+		return reply;
+	}
+
+	/**
+	 * @return omotana poruka
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * Vraća cijelo tijelo omotača, zaglavlje korelacije i sadržaj omotane poruke. Služi
+	 * za dijeljenje omotača koji ne stane u paket.
+	 */
+	@Override
+	public byte[] getData() {
+		byte[] data = new byte[dataLength()];
+
+		dataToBuffer(ByteBuffer.wrap(data));
+
+		return data;
+	}
+
+	@Override
+	protected int dataLength() {
+		return correlationHeaderLength + message.dataLength();
+	}
+
+	@Override
+	protected void dataToBuffer(ByteBuffer buffer) {
+		buffer.putInt(correlationId);
+		buffer.put(reply ? REPLY : REQUEST);
+		buffer.put((byte) (message.getType().toByte() | (message.isUrgent() ? 128 : 0)));
+		message.dataToBuffer(buffer);
+	}
+
+	@Override
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		if(dataLength < correlationHeaderLength) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		this.correlationId = buffer.getInt();
+		this.reply = buffer.get() == REPLY;
+
+		byte originalType = buffer.get();
+
+		this.message = new Message();
+		this.message.destKey = destKey;
+		this.message.srcKey = srcKey;
+		this.message.type = MessageType.fromByte((byte) (originalType & 127));
+		this.message.urgent = (originalType & 128) != 0;
+		this.message.dataFromBuffer(buffer, dataLength - correlationHeaderLength);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof CorrelatedMessage)) {
+			return false;
+		}
+
+		CorrelatedMessage other = (CorrelatedMessage) obj;
+
+		return this.correlationId == other.correlationId && this.reply == other.reply &&
+				this.getSourceKey() == other.getSourceKey() && this.getDestinationKey() == other.getDestinationKey() &&
+				(this.message == null ? other.message == null : other.message != null &&
+				this.message.getType() == other.message.getType() &&
+				Arrays.equals(this.message.getData(), other.message.getData()));
+	}
+
+	@Override
+	public int hashCode() {
+		return correlationId ^ getSourceKey() ^ getDestinationKey() ^ (message == null ? 0 : Arrays.hashCode(message.getData()));
+	}
+
+	@Override
+	public String toString() {
+		return (reply ? "Odgovor " : "Zahtjev ") + correlationId + " za " + getDestination() + " od " + getSource() +
+				": " + message;
+	}
+}
@@ -0,0 +1,75 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Kodek koji koristi deflate iz java.util.zip bez zlib zaglavlja. Deflater i Inflater
+ * stvaraju se jednom po kodeku i prije svakog paketa samo se resetiraju, pa se
+ * njihove tablice ne alociraju ponovno.
+ */
+public class DeflateCodec extends PacketCodec {
+
+	/**
+	 * Kompresor, stvara se kod prvog komprimiranja.
+	 */
+	private Deflater deflater;
+
+	/**
+	 * Dekompresor, stvara se kod prvog raspakiravanja.
+	 */
+	private Inflater inflater;
+
+	@Override
+	public int compress(byte[] source, int offset, int length, byte[] target, int targetOffset, int targetLength) {
+		if(deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED, true);
+		}
+
+		deflater.reset();
+		deflater.setInput(source, offset, length);
+		deflater.finish();
+
+		int limit = Math.min(targetLength, length - 1);
+		int written = 0;
+
+		while(!deflater.finished() && written < limit) {
+			written += deflater.deflate(target, targetOffset + written, limit - written);
+		}
+
+		return deflater.finished() ? written : -1;
+	}
+
+	@Override
+	public void decompress(byte[] source, int offset, int length, byte[] target, int targetOffset, int rawLength)
+			throws IOException {
+		if(inflater == null) {
+			inflater = new Inflater(true);
+		}
+
+		inflater.reset();
+		inflater.setInput(source, offset, length);
+
+		try {
+			int read = 0;
+
+			while(read < rawLength) {
+				int inflated = inflater.inflate(target, targetOffset + read, rawLength - read);
+
+				if(inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+
+				read += inflated;
+			}
+
+			if(read != rawLength) {
+				throw new IOException("Komprimirani paket je kraći od najavljenog!");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Neispravan komprimirani paket!", e);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Dio poruke čiji sadržaj ne stane u jedan paket. Pošiljatelj sadržaj dijeli na dijelove
+ * (metoda split) koji putuju kao zasebne poruke s odredištem i izvorištem izvorne poruke,
+ * pa ih server prosljeđuje kao i svaku drugu poruku, a primatelj ih ponovno sastavlja
+ * (Reassembler). Tijelo dijela počinje s identifikatorom prijenosa, pomakom dijela,
+ * ukupnom duljinom sadržaja i tipom izvorne poruke, a iza njih je sam dio sadržaja.
+ */
+public class FragmentMessage extends Message {
+
+	/**
+	 * Veličina zaglavlja dijela unutar tijela poruke: identifikator, pomak, ukupna duljina
+	 * i tip s hitnošću izvorne poruke.
+	 */
+	public static final int fragmentHeaderLength = 4 + 4 + 4 + 1;
+
+	/**
+	 * Identifikator prijenosa, jedinstven među prijenosima istog pošiljatelja.
+	 */
+	private int id;
+
+	/**
+	 * Pomak dijela u sadržaju izvorne poruke.
+	 */
+	private int offset;
+
+	/**
+	 * Ukupna duljina sadržaja izvorne poruke.
+	 */
+	private int total;
+
+	/**
+	 * Tip izvorne poruke, hitnost je na najvišem bitu.
+	 */
+	private byte originalType;
+
+	/**
+	 * Polje u kojem se nalazi dio. Kod slanja je to sadržaj izvorne poruke, pa se dio
+	 * ne kopira.
+	 */
+	private byte[] chunk;
+
+	/**
+	 * Početak dijela u polju chunk.
+	 */
+	private int chunkOffset;
+
+	/**
+	 * Duljina dijela.
+	 */
+	private int chunkLength;
+
+	/**
+	 * Defaultni konstruktor, ne koristiti ga za stvaranje poruka prilikom slanja.
+	 */
+	public FragmentMessage() {
+		this.type = MessageType.FRAGMENT;
+	}
+
+	/**
+	 * Konstruktor dijela izvorne poruke.
+	 * @param message izvorna poruka
+	 * @param data sadržaj izvorne poruke
+	 * @param id identifikator prijenosa
+	 * @param offset pomak dijela u sadržaju
+	 * @param length duljina dijela
+	 */
+	private FragmentMessage(Message message, byte[] data, int id, int offset, int length) {
+		this.type = MessageType.FRAGMENT;
+		this.dest = message.getDestination();
+		this.src = message.getSource();
+		this.id = id;
+		this.offset = offset;
+		this.chunk = data;
+		this.total = chunk.length;
+		this.chunkOffset = offset;
+		this.chunkLength = length;
+		this.originalType = (byte) (message.getType().toByte() | (message.isUrgent() ? 128 : 0));
+	}
+
+	/**
+	 * Dijeli poruku na dijelove. Dijelovi se stvaraju tek kad se zatraže i ne kopiraju
+	 * sadržaj poruke, pa se sadržaj ne smije mijenjati dok se svi dijelovi ne pošalju.
+	 * Sadržaj se od poruke traži samo jednom.
+	 * @param message poruka, mora imati sadržaj
+	 * @param id identifikator prijenosa
+	 * @param chunkSize najveća duljina dijela sadržaja
+	 * @return dijelovi poruke redom
+	 */
+	public static Iterator<FragmentMessage> split(final Message message, final int id, final int chunkSize) {
+		if(chunkSize < 1 || chunkSize > maxDataLength - fragmentHeaderLength) {
+			throw new IllegalArgumentException("Neispravna veličina dijela: " + chunkSize);
+		}
+
+		final byte[] data = message.getData();
+		final int total = data.length;
+
+		return new Iterator<FragmentMessage>() {
+
+			private int offset = 0;
+
+			private boolean first = true;
+
+			public boolean hasNext() {
+				return first || offset < total;
+			}
+
+			public FragmentMessage next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				int length = Math.min(chunkSize, total - offset);
+				FragmentMessage fragment = new FragmentMessage(message, data, id, offset, length);
+
+				first = false;
+				offset += length;
+
+				return fragment;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return identifikator prijenosa
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return pomak dijela u sadržaju izvorne poruke
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return ukupna duljina sadržaja izvorne poruke
+	 */
+	public int getTotalLength() {
+		return total;
+	}
+
+	/**
+	 * @return duljina dijela
+	 */
+	public int getChunkLength() {
+		return chunkLength;
+	}
+
+	/**
+	 * @return tip izvorne poruke, hitnost je na najvišem bitu
+	 */
+	public byte getOriginalType() {
+		return originalType;
+	}
+
+	/**
+	 * Kopira dio na njegovo mjesto u sadržaju izvorne poruke.
+	 * @param target sadržaj izvorne poruke, duljine getTotalLength()
+	 */
+	public void copyChunk(byte[] target) {
+		System.arraycopy(chunk, chunkOffset, target, offset, chunkLength);
+	}
+
+	@Override
+	public byte[] getData() {
+		if(chunk == null) {
+			return new byte[0];
+		}
+
+		return chunkOffset == 0 && chunkLength == chunk.length ? chunk :
+				Arrays.copyOfRange(chunk, chunkOffset, chunkOffset + chunkLength);
+	}
+
+	@Override
+	protected int dataLength() {
+		return fragmentHeaderLength + chunkLength;
+	}
+
+	@Override
+	protected void dataToBuffer(ByteBuffer buffer) {
+		buffer.putInt(id);
+		buffer.putInt(offset);
+		buffer.putInt(total);
+		buffer.put(originalType);
+		buffer.put(chunk, chunkOffset, chunkLength);
+	}
+
+	@Override
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		if(dataLength < fragmentHeaderLength) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		this.id = buffer.getInt();
+		this.offset = buffer.getInt();
+		this.total = buffer.getInt();
+		this.originalType = buffer.get();
+		this.chunkOffset = 0;
+		this.chunkLength = dataLength - fragmentHeaderLength;
+		this.chunk = new byte[chunkLength];
+
+		buffer.get(this.chunk);
+	}
+
+	@Override
+	public String toString() {
+		return "Dio " + offset + "-" + (offset + chunkLength) + "/" + total + " prijenosa " + id + " za " +
+				getDestination() + " od " + getSource() + ".";
+	}
+}
@@ -0,0 +1,158 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Čita poruke s blokirajućeg ulaza preko buffera. Jedno čitanje s ulaza može donijeti
+ * više poruka i dio sljedeće, pa se poruke dekodiraju iz buffera dok god u njemu ima
+ * cijelih okvira, a ostatak nepotpunog okvira čeka sljedeće čitanje. Buffer raste ako
+ * poruka u njega ne stane.
+ *
+ * Komprimirani paket (CompressedMessage) se ne vraća pozivatelju: čitač ga raspakirava
+ * i vraća poruke iz njega redom, prije poruka koje su na ulazu stigle iza paketa. Kodeci
+ * se stvaraju kod prvog paketa svakog algoritma i ponovno koriste.
+ */
+public class FrameReader {
+
+	/**
+	 * Ulaz s kojeg se čita.
+	 */
+	private InputStream input;
+
+	/**
+	 * Buffer s pročitanim, a još nedekodiranim bajtovima, između position i limit.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Okviri raspakirani iz zadnjeg komprimiranog paketa koji još nisu vraćeni.
+	 */
+	private ByteBuffer inflated = ByteBuffer.allocate(CompressedMessage.maxRawLength);
+
+	/**
+	 * Kodeci za raspakiravanje, po oznaci algoritma.
+	 */
+	private PacketCodec[] codecs = new PacketCodec[Compression.values().length];
+
+	/**
+	 * Konstruktor.
+	 * @param input ulaz s kojeg se čita
+	 * @param capacity početna veličina buffera u bajtovima
+	 */
+	public FrameReader(InputStream input, int capacity) {
+		this.input = input;
+		this.buffer = ByteBuffer.allocate(Math.max(capacity, Message.headerLength));
+		this.buffer.flip();
+		this.inflated.flip();
+	}
+
+	/**
+	 * Čita i potpuno dekodira sljedeću poruku. Blokira dok poruka ne stigne.
+	 * @return poruka
+	 * @throws IOException u slučaju greške pri čitanju
+	 * @throws EOFException ako je ulaz zatvoren
+	 */
+	public Message read() throws IOException {
+		return next(false);
+	}
+
+	/**
+	 * Čita sljedeću poruku kao Message.relayFromBuffer: poruke koje se samo prosljeđuju
+	 * ostaju neraspakirane. Blokira dok poruka ne stigne.
+	 * @return poruka
+	 * @throws IOException u slučaju greške pri čitanju
+	 * @throws EOFException ako je ulaz zatvoren
+	 */
+	public Message readRelay() throws IOException {
+		return next(true);
+	}
+
+	/**
+	 * Vraća sljedeću poruku, najprije iz raspakiranog paketa, a zatim s ulaza.
+	 * Komprimirane pakete s ulaza raspakirava i nastavlja s porukama iz njih.
+	 * @param relay true ako se poruke čitaju kao Message.relayFromBuffer
+	 * @return poruka
+	 * @throws IOException u slučaju greške pri čitanju ili neispravnog paketa
+	 */
+	private Message next(boolean relay) throws IOException {
+		while(true) {
+			Message message;
+
+			if(inflated.hasRemaining()) {
+				message = decode(inflated, relay);
+
+				if(message == null || message.getType() == Message.MessageType.COMPRESSED) {
+					throw new IOException("Neispravan sadržaj komprimiranog paketa!");
+				}
+
+				return message;
+			}
+
+			while((message = decode(buffer, relay)) == null) {
+				fill();
+			}
+
+			if(message.getType() != Message.MessageType.COMPRESSED) {
+				return message;
+			}
+
+			inflate((CompressedMessage) message);
+		}
+	}
+
+	/**
+	 * Dekodira poruku iz buffera.
+	 * @param source buffer
+	 * @param relay true ako se poruka čita kao Message.relayFromBuffer
+	 * @return poruka, null ako okvir nije potpun
+	 */
+	private static Message decode(ByteBuffer source, boolean relay) {
+		return relay ? Message.relayFromBuffer(source) : Message.fromBuffer(source);
+	}
+
+	/**
+	 * Raspakirava komprimirani paket u buffer raspakiranih okvira.
+	 * @param message komprimirani paket
+	 * @throws IOException ako paket nije ispravan
+	 */
+	private void inflate(CompressedMessage message) throws IOException {
+		int index = message.getCompression().ordinal();
+
+		if(codecs[index] == null) {
+			codecs[index] = message.getCompression().newCodec();
+		}
+
+		// Buffer ostaje prazan ako raspakiravanje ne uspije
+		inflated.position(0).limit(0);
+		message.decompress(codecs[index], inflated.array());
+		inflated.limit(message.getRawLength());
+	}
+
+	/**
+	 * Dočitava s ulaza iza nepotpunog okvira, povećavajući buffer ako je pun.
+	 * @throws IOException u slučaju greške pri čitanju ili zatvorenog ulaza
+	 */
+	private void fill() throws IOException {
+		buffer.compact();
+
+		if(!buffer.hasRemaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(2 * buffer.capacity());
+			buffer.flip();
+			bigger.put(buffer);
+			buffer = bigger;
+		}
+
+		int read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+		if(read < 0) {
+			buffer.flip();
+			throw new EOFException();
+		}
+
+		buffer.position(buffer.position() + read);
+		buffer.flip();
+	}
+}
@@ -0,0 +1,262 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.io.IOException;
+
+/**
+ * Brzi kodek iz LZ porodice, u čistoj Javi, koji piše format LZ4 bloka. Komprimirani
+ * oblik je niz sekvenci: token (gornja četiri bita duljina literala, donja četiri duljina
+ * ponavljanja umanjena za 4), produžeci duljina bajtovima 255, literali i pomak
+ * ponavljanja u dva bajta (little endian). Zadnja sekvenca ima samo literale.
+ *
+ * Ponavljanja se traže preko hash tablice zadnjih pozicija četiri bajta, koja se ne
+ * briše između paketa: stari zapisi izvan paketa odbacuju se provjerom granica, a
+ * netočni provjerom samih bajtova. Dok se ponavljanja ne nalaze, korak traženja raste,
+ * pa se nekomprimirljivi podaci brzo preskaču.
+ */
+public class LzCodec extends PacketCodec {
+
+	/**
+	 * Najkraće ponavljanje.
+	 */
+	private static final int MIN_MATCH = 4;
+
+	/**
+	 * Broj bajtova na kraju bloka koji su uvijek literali.
+	 */
+	private static final int LAST_LITERALS = 5;
+
+	/**
+	 * Ponavljanje ne smije početi u zadnjih toliko bajtova bloka.
+	 */
+	private static final int MATCH_FIND_LIMIT = 12;
+
+	/**
+	 * Najveći pomak ponavljanja.
+	 */
+	private static final int MAX_OFFSET = 0xFFFF;
+
+	/**
+	 * Broj bitova hasha, tablica ima 2^HASH_LOG zapisa.
+	 */
+	private static final int HASH_LOG = 12;
+
+	/**
+	 * Zadnja pozicija na kojoj se pojavio svaki hash četiri bajta.
+	 */
+	private final int[] table = new int[1 << HASH_LOG];
+
+	@Override
+	public int compress(byte[] source, int offset, int length, byte[] target, int targetOffset, int targetLength) {
+		int end = offset + length;
+		int matchLimit = end - LAST_LITERALS;
+		int findLimit = end - MATCH_FIND_LIMIT;
+		int anchor = offset;
+		int position = offset;
+		int output = targetOffset;
+		int outputEnd = targetOffset + Math.min(targetLength, length - 1);
+
+		while(position < findLimit) {
+			int sequence = readInt(source, position);
+			int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+			int candidate = table[hash];
+
+			table[hash] = position;
+
+			if(candidate < offset || candidate >= position || position - candidate > MAX_OFFSET ||
+					readInt(source, candidate) != sequence) {
+				position += 1 + ((position - anchor) >>> 6);
+				continue;
+			}
+
+			while(position > anchor && candidate > offset && source[position - 1] == source[candidate - 1]) {
+				position--;
+				candidate--;
+			}
+
+			int matchLength = MIN_MATCH;
+
+			while(position + matchLength < matchLimit && source[candidate + matchLength] == source[position + matchLength]) {
+				matchLength++;
+			}
+
+			output = writeSequence(source, anchor, position - anchor, position - candidate, matchLength,
+					target, output, outputEnd);
+
+			if(output < 0) {
+				return -1;
+			}
+
+			position += matchLength;
+			anchor = position;
+		}
+
+		output = writeSequence(source, anchor, end - anchor, 0, 0, target, output, outputEnd);
+
+		return output < 0 ? -1 : output - targetOffset;
+	}
+
+	/**
+	 * Zapisuje jednu sekvencu: literale i ponavljanje iza njih.
+	 * @param source izvorni bajtovi
+	 * @param literals početak literala
+	 * @param literalLength broj literala
+	 * @param matchOffset pomak ponavljanja, 0 za zadnju sekvencu bez ponavljanja
+	 * @param matchLength duljina ponavljanja
+	 * @param target odredišno polje
+	 * @param output pozicija u odredištu
+	 * @param outputEnd kraj dopuštenog dijela odredišta
+	 * @return pozicija iza sekvence, -1 ako sekvenca ne stane
+	 */
+	private static int writeSequence(byte[] source, int literals, int literalLength, int matchOffset, int matchLength,
+			byte[] target, int output, int outputEnd) {
+		if(outputEnd - output < 1 + literalLength + literalLength / 255 + 1 + 2 + matchLength / 255 + 1) {
+			return -1;
+		}
+
+		int token = output++;
+
+		if(literalLength >= 15) {
+			target[token] = (byte) 0xF0;
+			output = writeLength(literalLength - 15, target, output);
+		} else {
+			target[token] = (byte) (literalLength << 4);
+		}
+
+		System.arraycopy(source, literals, target, output, literalLength);
+		output += literalLength;
+
+		if(matchOffset == 0) {
+			return output;
+		}
+
+		target[output++] = (byte) matchOffset;
+		target[output++] = (byte) (matchOffset >>> 8);
+
+		int extra = matchLength - MIN_MATCH;
+
+		if(extra >= 15) {
+			target[token] |= 0x0F;
+			output = writeLength(extra - 15, target, output);
+		} else {
+			target[token] |= extra;
+		}
+
+		return output;
+	}
+
+	/**
+	 * Zapisuje produžetak duljine: bajtove 255 i ostatak.
+	 * @param length produžetak
+	 * @param target odredišno polje
+	 * @param output pozicija u odredištu
+	 * @return pozicija iza produžetka
+	 */
+	private static int writeLength(int length, byte[] target, int output) {
+		while(length >= 255) {
+			target[output++] = (byte) 255;
+			length -= 255;
+		}
+
+		target[output++] = (byte) length;
+
+		return output;
+	}
+
+	/**
+	 * Čita četiri bajta kao cijeli broj.
+	 * @param source polje
+	 * @param position pozicija prvog bajta
+	 * @return cijeli broj
+	 */
+	private static int readInt(byte[] source, int position) {
+		return (source[position] & 0xFF) << 24 | (source[position + 1] & 0xFF) << 16 |
+				(source[position + 2] & 0xFF) << 8 | (source[position + 3] & 0xFF);
+	}
+
+	@Override
+	public void decompress(byte[] source, int offset, int length, byte[] target, int targetOffset, int rawLength)
+			throws IOException {
+		int input = offset;
+		int inputEnd = offset + length;
+		int output = targetOffset;
+		int outputEnd = targetOffset + rawLength;
+
+		while(true) {
+			if(input >= inputEnd) {
+				throw new IOException("Neispravan komprimirani paket!");
+			}
+
+			int token = source[input++] & 0xFF;
+			int literalLength = token >>> 4;
+
+			if(literalLength == 15) {
+				int extra;
+
+				do {
+					if(input >= inputEnd) {
+						throw new IOException("Neispravan komprimirani paket!");
+					}
+
+					extra = source[input++] & 0xFF;
+					literalLength += extra;
+				} while(extra == 255);
+			}
+
+			if(literalLength > inputEnd - input || literalLength > outputEnd - output) {
+				throw new IOException("Neispravan komprimirani paket!");
+			}
+
+			System.arraycopy(source, input, target, output, literalLength);
+			input += literalLength;
+			output += literalLength;
+
+			if(input == inputEnd) {
+				break;
+			}
+
+			if(inputEnd - input < 2) {
+				throw new IOException("Neispravan komprimirani paket!");
+			}
+
+			int matchOffset = (source[input] & 0xFF) | (source[input + 1] & 0xFF) << 8;
+			int matchLength = token & 0x0F;
+
+			input += 2;
+
+			if(matchLength == 15) {
+				int extra;
+
+				do {
+					if(input >= inputEnd) {
+						throw new IOException("Neispravan komprimirani paket!");
+					}
+
+					extra = source[input++] & 0xFF;
+					matchLength += extra;
+				} while(extra == 255);
+			}
+
+			matchLength += MIN_MATCH;
+
+			if(matchOffset == 0 || matchOffset > output - targetOffset || matchLength > outputEnd - output) {
+				throw new IOException("Neispravan komprimirani paket!");
+			}
+
+			int match = output - matchOffset;
+
+			if(matchOffset >= matchLength) {
+				System.arraycopy(target, match, target, output, matchLength);
+				output += matchLength;
+			} else {
+				// Ponavljanje se preklapa s onim što upravo nastaje, kopira se bajt po bajt
+				for(int i = 0; i < matchLength; i++) {
+					target[output++] = target[match++];
+				}
+			}
+		}
+
+		if(output != outputEnd) {
+			throw new IOException("Komprimirani paket je kraći od najavljenog!");
+		}
+	}
+}
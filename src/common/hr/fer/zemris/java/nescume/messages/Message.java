@@ -1,12 +1,10 @@
 package hr.fer.zemris.java.nescume.messages;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -18,6 +16,18 @@ import java.util.Map;
  */
 public class Message {
 	
+	/**
+	 * Veličina zaglavlja poruke na žici u bajtovima: odredište, izvorište, tip s hitnošću
+	 * i duljina tijela.
+	 */
+	public static final int headerLength = 2 * Address.addressLength + 1 + 2;
+	
+	/**
+	 * Najveća duljina tijela poruke, duljina se na žici zapisuje u dva bajta. Veći sadržaj
+	 * šalje se podijeljen na dijelove (FragmentMessage).
+	 */
+	public static final int maxDataLength = 0xFFFF;
+	
 	/**
 	 * Mapiranje byte-vrsta poruke, služi za deserijalizaciju poruka.
 	 */
@@ -41,7 +51,42 @@ public class Message {
     	/**
     	 * Poruka klijenta klijentu.
     	 */
-    	LETTER(3);
+    	LETTER(3),
+    	
+    	/**
+    	 * Dio poruke prevelike za jedan paket.
+    	 */
+    	FRAGMENT(4),
+    	
+    	/**
+    	 * Komprimirani paket poruka između klijenta i servera.
+    	 */
+    	COMPRESSED(5),
+    	
+    	/**
+    	 * Zaglavlje s rednim brojem poruke koja slijedi, kod pouzdane isporuke.
+    	 */
+    	SEQUENCE(6),
+    	
+    	/**
+    	 * Potvrda primitka poruka kod pouzdane isporuke.
+    	 */
+    	ACK(7),
+    	
+    	/**
+    	 * Zahtjev ili odgovor s identifikatorom korelacije.
+    	 */
+    	CORRELATED(8),
+    	
+    	/**
+    	 * Otvaranje, kredit ili zatvaranje pretplate s kreditom.
+    	 */
+    	SUBSCRIPTION(9),
+    	
+    	/**
+    	 * Zaglavlje s identifikatorom pretplate poruke koja slijedi.
+    	 */
+    	NOTIFICATION(10);
         
     	/**
     	 * Vrijednosti poruka.
@@ -80,15 +125,29 @@ public class Message {
     }
 
     /**
-     * Izvorišna adresa (tko šalje).
+     * Izvorišna adresa (tko šalje). Kod pročitane poruke stvara se tek kad je netko
+     * zatraži, do tada adresu čuva srcKey.
      */
     protected Address src;
 
     /**
-     * Odredišna adresa (tko prima).
+     * Odredišna adresa (tko prima). Kod pročitane poruke stvara se tek kad je netko
+     * zatraži, do tada adresu čuva destKey.
      */
     protected Address dest;
 
+    /**
+     * Ključ izvorišne adrese (Address.toKey) pročitan sa streama, -1 ako ga nema. Vrijedi
+     * samo dok je src null.
+     */
+    protected int srcKey = -1;
+
+    /**
+     * Ključ odredišne adrese (Address.toKey) pročitan sa streama, -1 ako ga nema. Vrijedi
+     * samo dok je dest null.
+     */
+    protected int destKey = -1;
+
     /**
      * Tip poruke.
      */
@@ -153,9 +212,22 @@ public class Message {
      * @return odredišna adresa
      */
     public Address getDestination() {
+        if (dest == null && destKey >= 0) {
+            dest = Address.fromKey(destKey);
+        }
+        
         return dest;
     }
 
+    /**
+     * Vraća ključ odredišne adrese, bez stvaranja adrese.
+     * 
+     * @return ključ odredišne adrese (Address.toKey), -1 ako odredište nije postavljeno
+     */
+    public int getDestinationKey() {
+        return dest != null ? dest.toKey() : destKey;
+    }
+
     /**
      * Setter za odredišnu adresu.
      * 
@@ -163,6 +235,7 @@ public class Message {
      */
     public void setDestination(Address destination) {
         this.dest = destination;
+        this.destKey = -1;
     }
 
     /**
@@ -171,9 +244,22 @@ public class Message {
      * @return izvorišna adresa
      */
     public Address getSource() {
+        if (src == null && srcKey >= 0) {
+            src = Address.fromKey(srcKey);
+        }
+        
         return src;
     }
 
+    /**
+     * Vraća ključ izvorišne adrese, bez stvaranja adrese.
+     * 
+     * @return ključ izvorišne adrese (Address.toKey), -1 ako izvorište nije postavljeno
+     */
+    public int getSourceKey() {
+        return src != null ? src.toKey() : srcKey;
+    }
+
     /**
      * Setter za izvorišnu adresu.
      * 
@@ -181,6 +267,7 @@ public class Message {
      */
     public void setSource(Address source) {
         this.src = source;
+        this.srcKey = -1;
     }
 
     /**
@@ -207,15 +294,20 @@ public class Message {
      * @return Poruku u obliku polja bajtova
      */
     public byte[] toByteArray() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(2 * Address.addressLength + 1 + 2 + data.length);
- 
-        try {
-			toStream(baos);
-		} catch (IOException ignorable) {
-
-		}
-		
-        return baos.toByteArray();
+        byte[] frame = new byte[frameLength()];
+        
+        toBuffer(ByteBuffer.wrap(frame));
+        
+        return frame;
+    }
+    
+    /**
+     * Vraća veličinu serijalizirane poruke (zaglavlje i tijelo) u bajtovima.
+     * 
+     * @return veličina okvira poruke
+     */
+    public int frameLength() {
+        return headerLength + dataLength();
     }
     
     /**
@@ -239,43 +331,82 @@ public class Message {
      * @param outputStream izlazni stream
      */
     public void toStream(OutputStream outputStream) throws IOException {
-    	DataOutputStream dos = new DataOutputStream(outputStream);
-        
-		dos.write(dest.getGID());
-		dos.write(src.getGID());
-		
-		// Spremi tip + hitnost (hitnost ide na najviši bit)
-		dos.writeByte(type.toByte() | (urgent ? (byte) 128 : 0));
-
-		dataToStream(dos);
+    	outputStream.write(toByteArray());
     }
     
     /**
-     * Ispisuje tijelo poruke, sadržaj poruke na izlazni stream. Sve poruke svoje podatke
-     * pišu u ovom, a za headere se oslanjaju na metodu toStream(). Ovu metodu razredi
-     * derivirani iz ovog razreda <b>moraju</b> pregaziti.
+     * Zapisuje okvir poruke u buffer od njegove trenutne pozicije. Buffer može biti i
+     * direktan, a u isti buffer može se zapisati više poruka zaredom. Ako poruka ne
+     * stane, buffer ostaje nepromijenjen.
      * 
-     * U svakom slučaju, sve implementacije ove metode <b>moraju</b> prvo ispisati jedan
-     * short koji označava koliko je veliko tijelo poruke.
-     * @param outputStream izlazni stream
-     * @throws IOException u slučaju greške pri pisanju
+     * @param buffer buffer u koji se piše
+     * @return true ako je poruka zapisana, false ako u bufferu nema mjesta
+     * @throws IllegalArgumentException ako je tijelo poruke dulje od maxDataLength
      */
-    protected void dataToStream(DataOutputStream outputStream) throws IOException {
-    	outputStream.writeShort(data.length);
-    	outputStream.write(data);
+    public boolean toBuffer(ByteBuffer buffer) {
+    	int dataLength = dataLength();
+    	
+    	if(dataLength > maxDataLength) {
+    		throw new IllegalArgumentException("Poruka je prevelika za jedan okvir: " + dataLength + " bajtova!");
+    	}
+    	
+    	if(buffer.remaining() < headerLength + dataLength) {
+    		return false;
+    	}
+    	
+    	putAddress(buffer, getDestinationKey());
+    	putAddress(buffer, getSourceKey());
+    	
+    	// Spremi tip + hitnost (hitnost ide na najviši bit)
+    	buffer.put((byte) (type.toByte() | (urgent ? 128 : 0)));
+    	buffer.putShort((short) dataLength);
+    	
+    	dataToBuffer(buffer);
+    	
+    	return true;
+    }
+    
+    /**
+     * Zapisuje adresu zadanu ključem u GID obliku (clientID pa nodeID).
+     * @param buffer buffer u koji se piše
+     * @param key ključ adrese
+     */
+    private static void putAddress(ByteBuffer buffer, int key) {
+    	buffer.putShort((short) (key >>> 8));
+    	buffer.put((byte) key);
+    }
+    
+    /**
+     * Vraća veličinu tijela poruke u bajtovima. Razredi derivirani iz ovog razreda koji
+     * pregaze dataToBuffer <b>moraju</b> pregaziti i ovu metodu.
+     * @return veličina tijela poruke
+     */
+    protected int dataLength() {
+    	return data == null ? 0 : data.length;
+    }
+    
+    /**
+     * Zapisuje tijelo poruke u buffer, duljinu tijela je već zapisala metoda toBuffer().
+     * Sve poruke svoje podatke pišu u ovoj metodi, a za zaglavlja se oslanjaju na
+     * toBuffer(). Razredi derivirani iz ovog razreda <b>moraju</b> pregaziti ovu metodu.
+     * @param buffer buffer u koji se piše, ima mjesta za dataLength() bajtova
+     */
+    protected void dataToBuffer(ByteBuffer buffer) {
+    	if(data != null) {
+    		buffer.put(data);
+    	}
     }
     
     /**
-     * Čita tijelo poruke, sadržaj poruke sa ulaznog streama. Sve poruke svoj podatke čitaju
-     * preko ove metode, a za headere se oslanjaju na metodu fromStream(). Ovu metodu razredi
-     * derivirani iz ovog razreda <b>moraju</b> pregaziti.
-     * @param inputStream ulazni stream
+     * Čita tijelo poruke iz buffera. Sve poruke svoje podatke čitaju preko ove metode, a
+     * za zaglavlja se oslanjaju na metodu fromBuffer(). Razredi derivirani iz ovog razreda
+     * <b>moraju</b> pregaziti ovu metodu i pročitati točno dataLength bajtova.
+     * @param buffer buffer iz kojeg se čita
      * @param dataLength veličina tijela poruke
-     * @throws IOException u slučaju greške pri čitanju
      */
-    protected void dataFromStream(DataInputStream inputStream, int dataLength) throws IOException {
+    protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
     	this.data = new byte[dataLength];
-		inputStream.readFully(this.data, 0, dataLength);
+    	buffer.get(this.data);
     }
     
     @Override
@@ -286,18 +417,18 @@ public class Message {
     	
     	Message other = (Message) obj;
     	
-    	return this.src.equals(other.src) && this.dest.equals(other.dest) &&
-    			this.type.equals(other.type) && Arrays.equals(this.data, other.data);
+    	return this.getSourceKey() == other.getSourceKey() && this.getDestinationKey() == other.getDestinationKey() &&
+    			this.type.equals(other.type) && Arrays.equals(this.getData(), other.getData());
     }
     
     @Override
     public int hashCode() {
-    	return src.hashCode() ^ dest.hashCode() ^ type.hashCode() ^ Arrays.hashCode(data);
+    	return getSourceKey() ^ getDestinationKey() ^ type.hashCode() ^ Arrays.hashCode(getData());
     }
 
     @Override
     public String toString() {
-    	return "Opća poruka za " + dest + " od " + src + " tipa " + type + " sadržaja " + Arrays.toString(data) + ".";
+    	return "Opća poruka za " + getDestination() + " od " + getSource() + " tipa " + type + " sadržaja " + Arrays.toString(getData()) + ".";
     }
     
     /**
@@ -306,15 +437,10 @@ public class Message {
      * @param messageByteArray
      *            Polje bajtova koje sadrži serijaliziranu poruku
      * 
-     * @return Nova poruka
-     * @throws IOException
+     * @return Nova poruka, null ako polje ne sadrži cijelu poruku
      */
     public static Message fromByteArray(byte[] messageByteArray) {
-    	try {
-    		return fromStream(new ByteArrayInputStream(messageByteArray));
-    	} catch (IOException ignorable) {
-    		return null;
-    	}
+    	return fromBuffer(ByteBuffer.wrap(messageByteArray));
     }
     
     /**
@@ -326,49 +452,220 @@ public class Message {
      * @throws IOException
      */
     public static Message fromStream(InputStream inputStream) throws IOException {
-		DataInputStream dataInput = new DataInputStream(inputStream);
-
-		byte[] addressBuffer = new byte[Address.addressLength];
-		
-		dataInput.readFully(addressBuffer);
-		Address dest = Address.parseGID(addressBuffer);
-		
-		dataInput.readFully(addressBuffer);
-		Address src = Address.parseGID(addressBuffer);
-		
-		byte type = dataInput.readByte();
-
-		// Na najvećem bitu leži hitnost
-		boolean urgent = ((type & 128) != 0 ? true : false);
-		
-		// Makni hitnost
-		type = (byte) (type & 127);
-		
-		MessageType messageType = MessageType.fromByte(type);
-
-		short bodyLength = dataInput.readShort();
-		
-		Message message;
-		
-		switch(messageType) {
-		case QUERY:
-			message = new QueryMessage();
-			break;
-
-		case REGISTER:
-			message = new RegisterMessage();
-			break;
-			
-		default:
-			message = new Message();
-		}
-		
-		message.dest = dest;
-		message.src = src;
-		message.type = messageType;
-		message.urgent = urgent;
-		message.dataFromStream(dataInput, bodyLength);
-		
-		return message;
+    	return fromBuffer(ByteBuffer.wrap(readFrame(inputStream)));
+    }
+    
+    /**
+     * Deserijalizira jednu poruku iz buffera od njegove trenutne pozicije. Ako u bufferu
+     * još nema cijele poruke (okvir je stigao samo djelomično), vraća null i ne mijenja
+     * poziciju, pa pozivatelj može dočitati ostatak i pokušati ponovno. Inače se pozicija
+     * pomiče iza pročitane poruke, pa se iz istog buffera može čitati više poruka zaredom.
+     * 
+     * @param buffer buffer sa serijaliziranim porukama
+     * @return Nova poruka, null ako okvir nije potpun
+     * @throws IllegalArgumentException ako je tip poruke neispravan
+     */
+    public static Message fromBuffer(ByteBuffer buffer) {
+    	int frameLength = completeFrame(buffer);
+    	
+    	if(frameLength < 0) {
+    		return null;
+    	}
+    	
+    	int start = buffer.position();
+    	
+    	// Adrese se čitaju kao ključevi, a objekti adresa stvaraju se tek na zahtjev
+    	int dest = getAddress(buffer);
+    	int src = getAddress(buffer);
+    	
+    	byte type = buffer.get();
+    	
+    	// Na najvećem bitu leži hitnost
+    	boolean urgent = (type & 128) != 0;
+    	
+    	// Makni hitnost
+    	MessageType messageType = MessageType.fromByte((byte) (type & 127));
+    	
+    	int bodyLength = buffer.getShort() & 0xFFFF;
+    	
+    	Message message;
+    	
+    	switch(messageType) {
+    	case QUERY:
+    		message = new QueryMessage();
+    		break;
+    		
+    	case REGISTER:
+    		message = new RegisterMessage();
+    		break;
+    		
+    	case FRAGMENT:
+    		message = new FragmentMessage();
+    		break;
+    		
+    	case COMPRESSED:
+    		message = new CompressedMessage();
+    		break;
+    		
+    	case SEQUENCE:
+    		message = new SequencedMessage();
+    		break;
+    		
+    	case ACK:
+    		message = new AckMessage();
+    		break;
+    		
+    	case CORRELATED:
+    		message = new CorrelatedMessage();
+    		break;
+    		
+    	case SUBSCRIPTION:
+    		message = new SubscriptionMessage();
+    		break;
+    		
+    	case NOTIFICATION:
+    		message = new NotificationMessage();
+    		break;
+    		
+    	default:
+    		message = new Message();
+    	}
+    	
+    	message.destKey = dest;
+    	message.srcKey = src;
+    	message.type = messageType;
+    	message.urgent = urgent;
+    	message.dataFromBuffer(buffer, bodyLength);
+    	
+    	// Pozicija je uvijek iza okvira, i ako poruka nije pročitala cijelo tijelo
+    	buffer.position(start + frameLength);
+    	
+    	return message;
+    }
+    
+    /**
+     * Čita poruku koju server samo prosljeđuje. Čita se samo zaglavlje, a cijeli okvir
+     * ostaje neraspakiran u RawMessage i na izlaz se piše nepromijenjen. Potpuno se
+     * dekodiraju samo poruke koje server sam obrađuje (REGISTER, QUERY, COMPRESSED,
+     * ACK i SUBSCRIPTION).
+     * 
+     * @param inputStream ulaz koji sadržava serijaliziranu poruku
+     * 
+     * @return Nova poruka
+     * @throws IOException u slučaju greške pri čitanju
+     */
+    public static Message relayFromStream(InputStream inputStream) throws IOException {
+    	return relayFromBuffer(ByteBuffer.wrap(readFrame(inputStream)));
+    }
+    
+    /**
+     * Kao relayFromStream, ali poruku čita iz dijela polja koji sadrži točno jedan okvir.
+     * Okvir se kopira, pa polje smije biti ponovno iskorišteno.
+     * 
+     * @param buffer polje s okvirom
+     * @param offset početak okvira u polju
+     * @param length duljina okvira
+     * @return Nova poruka
+     */
+    public static Message relayFromArray(byte[] buffer, int offset, int length) {
+    	return relayFromBuffer(ByteBuffer.wrap(buffer, offset, length));
+    }
+    
+    /**
+     * Kao fromBuffer, ali poruke koje server samo prosljeđuje ne dekodira nego njihov
+     * okvir kopira u RawMessage. Potpuno se dekodiraju samo REGISTER, QUERY, COMPRESSED,
+     * ACK i SUBSCRIPTION poruke.
+     * 
+     * @param buffer buffer sa serijaliziranim porukama
+     * @return Nova poruka, null ako okvir nije potpun
+     * @throws IllegalArgumentException ako je tip poruke neispravan
+     */
+    public static Message relayFromBuffer(ByteBuffer buffer) {
+    	int frameLength = completeFrame(buffer);
+    	
+    	if(frameLength < 0) {
+    		return null;
+    	}
+    	
+    	MessageType messageType = MessageType.fromByte((byte) (buffer.get(buffer.position() + 2 * Address.addressLength) & 127));
+    	
+    	if(messageType == MessageType.REGISTER || messageType == MessageType.QUERY ||
+    			messageType == MessageType.COMPRESSED || messageType == MessageType.ACK ||
+    			messageType == MessageType.SUBSCRIPTION) {
+    		return fromBuffer(buffer);
+    	}
+    	
+    	byte[] frame = new byte[frameLength];
+    	buffer.get(frame);
+    	
+    	return new RawMessage(frame);
+    }
+    
+    /**
+     * Ispituje da li buffer od trenutne pozicije sadrži cijeli okvir poruke.
+     * 
+     * @param buffer buffer sa serijaliziranim porukama
+     * @return duljina okvira, -1 ako okvir nije potpun
+     */
+    private static int completeFrame(ByteBuffer buffer) {
+    	if(buffer.remaining() < headerLength) {
+    		return -1;
+    	}
+    	
+    	int frameLength = headerLength + (buffer.getShort(buffer.position() + headerLength - 2) & 0xFFFF);
+    	
+    	return buffer.remaining() < frameLength ? -1 : frameLength;
+    }
+    
+    /**
+     * Čita ključ adrese zapisane u GID obliku.
+     * @param buffer buffer iz kojeg se čita
+     * @return ključ adrese
+     */
+    private static int getAddress(ByteBuffer buffer) {
+    	return (buffer.getShort() & 0xFFFF) << 8 | (buffer.get() & 0xFF);
+    }
+    
+    /**
+     * Čita jedan cijeli okvir poruke s ulaza.
+     * 
+     * @param inputStream ulaz
+     * @return okvir poruke
+     * @throws IOException u slučaju greške pri čitanju ili kraja ulaza
+     */
+    private static byte[] readFrame(InputStream inputStream) throws IOException {
+    	byte[] header = new byte[headerLength];
+    	
+    	readFully(inputStream, header, 0, headerLength);
+    	
+    	int bodyLength = (header[headerLength - 2] & 0xFF) << 8 | (header[headerLength - 1] & 0xFF);
+    	byte[] frame = new byte[headerLength + bodyLength];
+    	
+    	System.arraycopy(header, 0, frame, 0, headerLength);
+    	readFully(inputStream, frame, headerLength, bodyLength);
+    	
+    	return frame;
+    }
+    
+    /**
+     * Čita točno zadani broj bajtova s ulaza.
+     * 
+     * @param inputStream ulaz
+     * @param buffer polje u koje se čita
+     * @param offset početak u polju
+     * @param length broj bajtova
+     * @throws IOException u slučaju greške pri čitanju ili kraja ulaza
+     */
+    private static void readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+    	while(length > 0) {
+    		int read = inputStream.read(buffer, offset, length);
+    		
+    		if(read < 0) {
+    			throw new EOFException();
+    		}
+    		
+    		offset += read;
+    		length -= read;
+    	}
     }
 }
@@ -0,0 +1,134 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Zaglavlje poruke koju server šalje pretplati s kreditom (SubscriptionMessage). Nosi
+ * identifikator pretplate, pa klijent poruku predaje pretplati kojoj pripada, i kad mu
+ * ista poruka odgovara za više pretplata. Okvir poruke ide odmah iza zaglavlja,
+ * neraspakiran, kao kod SequencedMessage.
+ *
+ * Pročitano zaglavlje sadrži samo identifikator pretplate, a poruka je sljedeći okvir na
+ * ulazu.
+ */
+public class NotificationMessage extends Message {
+
+	/**
+	 * Duljina tijela zaglavlja: identifikator pretplate.
+	 */
+	public static final int notificationLength = 4;
+
+	/**
+	 * Identifikator pretplate kojoj poruka pripada.
+	 */
+	private int subscriptionId;
+
+	/**
+	 * Poruka koja se šalje iza zaglavlja, null kod pročitanog zaglavlja.
+	 */
+	private Message message;
+
+	/**
+	 * Defaultni konstruktor, ne koristiti ga za stvaranje poruka prilikom slanja.
+	 */
+	public NotificationMessage() {
+		this.type = MessageType.NOTIFICATION;
+	}
+
+	/**
+	 * Konstruktor zaglavlja za poruku koja se šalje pretplati. Zaglavlje ima odredište
+	 * poruke i izvorište 0:0, a hitnost poruke ostaje samo u njenom okviru, pa poruke
+	 * pretplate ne pretječu jedna drugu.
+	 * @param subscriptionId identifikator pretplate
+	 * @param message poruka
+	 */
+	public NotificationMessage(int subscriptionId, Message message) {
+		this.type = MessageType.NOTIFICATION;
+		this.destKey = message.getDestinationKey();
+		this.srcKey = 0;
+		this.subscriptionId = subscriptionId;
+		this.message = message;
+	}
+
+	/**
+	 * @return identifikator pretplate kojoj poruka pripada
+	 */
+	public int getSubscriptionId() {
+		return subscriptionId;
+	}
+
+	/**
+	 * @return poruka iza zaglavlja, null kod pročitanog zaglavlja
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * Vraća duljinu zaglavlja zajedno s okvirom poruke iza njega.
+	 */
+	@Override
+	public int frameLength() {
+		return super.frameLength() + (message == null ? 0 : message.frameLength());
+	}
+
+	/**
+	 * Zapisuje zaglavlje i odmah iza njega okvir poruke. Ako oba ne stanu, buffer ostaje
+	 * nepromijenjen.
+	 */
+	@Override
+	public boolean toBuffer(ByteBuffer buffer) {
+		if(buffer.remaining() < frameLength()) {
+			return false;
+		}
+
+		super.toBuffer(buffer);
+
+		if(message != null) {
+			message.toBuffer(buffer);
+		}
+
+		return true;
+	}
+
+	@Override
+	protected int dataLength() {
+		return notificationLength;
+	}
+
+	@Override
+	protected void dataToBuffer(ByteBuffer buffer) {
+		buffer.putInt(subscriptionId);
+	}
+
+	@Override
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		if(dataLength < notificationLength) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		this.subscriptionId = buffer.getInt();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof NotificationMessage)) {
+			return false;
+		}
+
+		NotificationMessage other = (NotificationMessage) obj;
+
+		return this.subscriptionId == other.subscriptionId && this.getDestinationKey() == other.getDestinationKey() &&
+				(this.message == null ? other.message == null : this.message.equals(other.message));
+	}
+
+	@Override
+	public int hashCode() {
+		return subscriptionId ^ getDestinationKey() ^ (message == null ? 0 : message.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "Zaglavlje poruke pretplate " + subscriptionId + ".";
+	}
+}
@@ -0,0 +1,36 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.io.IOException;
+
+/**
+ * Kodek koji komprimira i raspakirava paket poruka. Kodek drži svoje pomoćne strukture
+ * i ponovno ih koristi za svaki paket, pa nije siguran za više dretvi.
+ */
+public abstract class PacketCodec {
+
+	/**
+	 * Komprimira dio polja. Ako komprimirani oblik ne bi bio kraći od izvornog ili ne bi
+	 * stao u odredište, vraća -1 i paket se šalje nekomprimiran.
+	 * @param source izvorni bajtovi
+	 * @param offset početak u izvornom polju
+	 * @param length broj izvornih bajtova
+	 * @param target odredišno polje
+	 * @param targetOffset početak u odredišnom polju
+	 * @param targetLength najveći broj bajtova koji se smije zapisati
+	 * @return duljina komprimiranog oblika, -1 ako se paket ne komprimira
+	 */
+	public abstract int compress(byte[] source, int offset, int length, byte[] target, int targetOffset, int targetLength);
+
+	/**
+	 * Raspakirava komprimirani oblik u odredište koje ima mjesta za točno rawLength bajtova.
+	 * @param source komprimirani bajtovi
+	 * @param offset početak u komprimiranom polju
+	 * @param length broj komprimiranih bajtova
+	 * @param target odredišno polje
+	 * @param targetOffset početak u odredišnom polju
+	 * @param rawLength duljina izvornog oblika
+	 * @throws IOException ako komprimirani oblik nije ispravan ili ne daje rawLength bajtova
+	 */
+	public abstract void decompress(byte[] source, int offset, int length, byte[] target, int targetOffset, int rawLength)
+			throws IOException;
+}
@@ -0,0 +1,112 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Piše pakete poruka na izlaz komprimirane dogovorenim algoritmom. Paket se dijeli na
+ * dijelove od cijelih okvira do CompressedMessage.maxRawLength bajtova i svaki dio se
+ * komprimira u jednu CompressedMessage. Dijelovi kraći od praga, okviri koji sami ne
+ * stanu u dio i dijelovi koji se komprimiranjem ne bi skratili pišu se nekomprimirani,
+ * pa primatelj na istoj vezi dobiva i jedne i druge.
+ *
+ * Kodek i buffer komprimiranog paketa ponovno se koriste, pa kompresor koristi samo
+ * jedna dretva (flusher).
+ */
+class PacketCompressor {
+
+	/**
+	 * Algoritam komprimiranja.
+	 */
+	private final Compression compression;
+
+	/**
+	 * Kodek algoritma.
+	 */
+	private final PacketCodec codec;
+
+	/**
+	 * Najmanji dio paketa u bajtovima koji se komprimira.
+	 */
+	private final int threshold;
+
+	/**
+	 * Komprimirani oblik dijela.
+	 */
+	private final byte[] compressed = new byte[Message.maxDataLength - CompressedMessage.compressedHeaderLength];
+
+	/**
+	 * Okvir komprimiranog paketa koji se piše na izlaz.
+	 */
+	private final ByteBuffer frame = ByteBuffer.allocate(Message.headerLength + Message.maxDataLength);
+
+	/**
+	 * Konstruktor.
+	 * @param compression algoritam, ne smije biti NONE
+	 * @param threshold najmanji dio paketa u bajtovima koji se komprimira
+	 */
+	public PacketCompressor(Compression compression, int threshold) {
+		this.compression = compression;
+		this.codec = compression.newCodec();
+		this.threshold = Math.max(threshold, 1);
+	}
+
+	/**
+	 * Piše paket na izlaz, komprimirane dijelove kao CompressedMessage, a ostale
+	 * nepromijenjene.
+	 * @param packet polje s cijelim okvirima poruka
+	 * @param offset početak prvog okvira
+	 * @param length duljina okvira u bajtovima
+	 * @param output izlaz
+	 * @throws IOException u slučaju greške pri pisanju
+	 */
+	public void write(byte[] packet, int offset, int length, OutputStream output) throws IOException {
+		int end = offset + length;
+		int start = offset;
+
+		while(start < end) {
+			int chunkEnd = start;
+
+			// Dio se širi okvir po okvir dok ne bi prešao najveću duljinu
+			while(chunkEnd < end) {
+				int frameLength = Message.headerLength +
+						((packet[chunkEnd + Message.headerLength - 2] & 0xFF) << 8 | (packet[chunkEnd + Message.headerLength - 1] & 0xFF));
+
+				if(chunkEnd - start + frameLength > CompressedMessage.maxRawLength && chunkEnd > start) {
+					break;
+				}
+
+				chunkEnd += frameLength;
+			}
+
+			writeChunk(packet, start, chunkEnd - start, output);
+			start = chunkEnd;
+		}
+	}
+
+	/**
+	 * Piše jedan dio paketa, komprimiran ako se to isplati.
+	 * @param packet polje s okvirima
+	 * @param offset početak dijela
+	 * @param length duljina dijela
+	 * @param output izlaz
+	 * @throws IOException u slučaju greške pri pisanju
+	 */
+	private void writeChunk(byte[] packet, int offset, int length, OutputStream output) throws IOException {
+		int compressedLength = -1;
+
+		if(length >= threshold && length <= CompressedMessage.maxRawLength) {
+			compressedLength = codec.compress(packet, offset, length, compressed, 0, compressed.length);
+		}
+
+		if(compressedLength < 0) {
+			output.write(packet, offset, length);
+			return;
+		}
+
+		frame.clear();
+		new CompressedMessage(compression, length, compressed, compressedLength).toBuffer(frame);
+		output.write(frame.array(), 0, frame.position());
+	}
+}
@@ -1,9 +1,6 @@
 package hr.fer.zemris.java.nescume.messages;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -69,45 +66,32 @@ public class QueryMessage extends Message {
 	}
 	
 	/**
-	 * Vraća pattern kakav traži klijent koji je poslao ovu poruku, pogodan za spremanje u kolekciju.
+	 * Vraća pattern kakav traži klijent koji je poslao ovu poruku. Vraća se polje same
+	 * poruke, bez kopiranja, pa ga ne treba mijenjati.
 	 * @return pattern
 	 */
-	public Byte[] getPattern() {
-		Byte[] toReturn = new Byte[pattern.length];
-		
-		for (int i = 0; i < pattern.length; i++) {
-			toReturn[i] = pattern[i];
-		}
-		
-		return toReturn;
+	public byte[] getPattern() {
+		return pattern;
 	}
 	
 	@Override
-	protected void dataFromStream(DataInputStream inputStream, int dataLength) throws IOException {
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
 		this.pattern = new byte[dataLength - 1];
 		
-		this.queryType = MessageType.fromByte(inputStream.readByte());
-		inputStream.readFully(this.pattern);
+		this.queryType = MessageType.fromByte(buffer.get());
+		buffer.get(this.pattern);
 	}
 	
 	@Override
-	protected void dataToStream(DataOutputStream outputStream) throws IOException {
-		outputStream.writeShort(1 + pattern.length);
-		outputStream.writeByte(queryType.toByte());
-		outputStream.write(pattern);
+	protected int dataLength() {
+		return 1 + pattern.length;
 	}
 	
 	@Override
-	public byte[] toByteArray() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(2 * Address.addressLength + 1 + 2 + 1 + pattern.length);
-        
-        try {
-			toStream(baos);
-		} catch (IOException ignorable) {
-
-		}
-		
-        return baos.toByteArray();	}
+	protected void dataToBuffer(ByteBuffer buffer) {
+		buffer.put(queryType.toByte());
+		buffer.put(pattern);
+	}
 	
 	@Override
 	public boolean equals(Object obj) {
@@ -0,0 +1,163 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Poruka koju server prosljeđuje u obliku u kojem je stigla. Drži cijeli okvir poruke
+ * (zaglavlje i tijelo) i iz zaglavlja čita samo adrese, tip i hitnost, a na izlaz piše
+ * okvir nepromijenjen, bez ponovnog kodiranja. Sadržaj se kopira iz okvira tek kad ga
+ * netko zatraži.
+ */
+public class RawMessage extends Message {
+
+	/**
+	 * Okvir poruke, točno onakav kakav je stigao.
+	 */
+	private byte[] frame;
+
+	/**
+	 * Sadržaj poruke, kopiran iz okvira na zahtjev.
+	 */
+	private byte[] data;
+
+	/**
+	 * Konstruktor koji omata okvir poruke, okvir se ne kopira.
+	 * @param frame okvir poruke
+	 */
+	public RawMessage(byte[] frame) {
+		if(frame.length < headerLength ||
+				frame.length != headerLength + ((frame[headerLength - 2] & 0xFF) << 8 | (frame[headerLength - 1] & 0xFF))) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		this.frame = frame;
+		this.destKey = readKey(0);
+		this.srcKey = readKey(Address.addressLength);
+		this.type = MessageType.fromByte((byte) (frame[2 * Address.addressLength] & 127));
+		this.urgent = (frame[2 * Address.addressLength] & 128) != 0;
+	}
+
+	/**
+	 * Vraća okvir poruke. Vraća se polje same poruke, bez kopiranja, pa ga ne treba
+	 * mijenjati.
+	 * @return okvir poruke
+	 */
+	public byte[] getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return duljina sadržaja poruke u bajtovima
+	 */
+	public int getDataLength() {
+		return dataLength();
+	}
+
+	@Override
+	protected int dataLength() {
+		return frame.length - headerLength;
+	}
+
+	@Override
+	public byte[] getData() {
+		if(data == null) {
+			data = Arrays.copyOfRange(frame, headerLength, frame.length);
+		}
+
+		return data;
+	}
+
+	@Override
+	public void setData(byte[] data) {
+		byte[] changed = new byte[headerLength + data.length];
+
+		System.arraycopy(frame, 0, changed, 0, headerLength);
+		System.arraycopy(data, 0, changed, headerLength, data.length);
+		changed[headerLength - 2] = (byte) (data.length >>> 8);
+		changed[headerLength - 1] = (byte) data.length;
+
+		this.frame = changed;
+		this.data = null;
+	}
+
+	@Override
+	public void setDestination(Address destination) {
+		super.setDestination(destination);
+
+		if(destination != null) {
+			writeKey(0, destination.toKey());
+		}
+	}
+
+	@Override
+	public void setSource(Address source) {
+		super.setSource(source);
+
+		if(source != null) {
+			writeKey(Address.addressLength, source.toKey());
+		}
+	}
+
+	@Override
+	public void setType(MessageType type) {
+		super.setType(type);
+		writeTypeByte();
+	}
+
+	@Override
+	public void setUrgent(boolean urgent) {
+		super.setUrgent(urgent);
+		writeTypeByte();
+	}
+
+	@Override
+	public void toStream(OutputStream outputStream) throws IOException {
+		outputStream.write(frame);
+	}
+
+	@Override
+	public byte[] toByteArray() {
+		return frame.clone();
+	}
+
+	@Override
+	public boolean toBuffer(ByteBuffer buffer) {
+		if(buffer.remaining() < frame.length) {
+			return false;
+		}
+
+		buffer.put(frame);
+
+		return true;
+	}
+
+	/**
+	 * Čita ključ adrese iz okvira.
+	 * @param offset početak adrese u okviru
+	 * @return ključ adrese
+	 */
+	private int readKey(int offset) {
+		return (frame[offset] & 0xFF) << 16 | (frame[offset + 1] & 0xFF) << 8 | (frame[offset + 2] & 0xFF);
+	}
+
+	/**
+	 * Upisuje ključ adrese u okvir.
+	 * @param offset početak adrese u okviru
+	 * @param key ključ adrese
+	 */
+	private void writeKey(int offset, int key) {
+		frame[offset] = (byte) (key >>> 16);
+		frame[offset + 1] = (byte) (key >>> 8);
+		frame[offset + 2] = (byte) key;
+	}
+
+	/**
+	 * Upisuje tip i hitnost u okvir.
+	 */
+	private void writeTypeByte() {
+		frame[2 * Address.addressLength] = (byte) (type.toByte() | (urgent ? 128 : 0));
+	}
+}
@@ -0,0 +1,286 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+/**
+ * Sastavlja poruke podijeljene na dijelove (FragmentMessage). Polje za sadržaj poruke
+ * stvara se kod prvog primljenog dijela, a svaki dio se odmah kopira na svoje mjesto u
+ * njemu, pa se dijelovi ne gomilaju i ne spajaju na kraju. Dijelovi različitih prijenosa
+ * mogu stizati izmiješani, a dijelovi istog prijenosa bilo kojim redom.
+ *
+ * Duljinu sadržaja zadaje pošiljatelj, pa se prijenos dulji od zadane granice odbacuje,
+ * jedan pošiljatelj smije istovremeno imati ograničen broj prijenosa, a prijenos kojem
+ * zadani rok ne stigne novi dio odbacuje se (expire).
+ *
+ * Nije sigurno za višedretveni rad, koristi ga samo dretva koja čita poruke.
+ */
+public class Reassembler {
+
+	/**
+	 * Najveća duljina sastavljene poruke ako nije zadana.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * Najveći broj istovremenih prijenosa jednog pošiljatelja ako nije zadan.
+	 */
+	public static final int DEFAULT_MAX_TRANSFERS = 16;
+
+	/**
+	 * Vrijeme (u milisekundama) nakon kojeg se odbacuje prijenos bez novih dijelova, ako
+	 * nije zadano.
+	 */
+	public static final long DEFAULT_TIMEOUT = 30000;
+
+	/**
+	 * Poruka koja se sastavlja.
+	 */
+	private static class Partial {
+
+		/**
+		 * Sadržaj poruke.
+		 */
+		private final byte[] data;
+
+		/**
+		 * Tip poruke, hitnost je na najvišem bitu.
+		 */
+		private final byte type;
+
+		/**
+		 * Broj do sada primljenih bajtova sadržaja.
+		 */
+		private int received;
+
+		/**
+		 * Primljeni dijelovi sadržaja kao disjunktni intervali, početak na kraj. Susjedni
+		 * intervali se spajaju, pa dijelovi koji stižu redom zauzimaju jedan unos.
+		 */
+		private final TreeMap<Integer, Integer> covered = new TreeMap<Integer, Integer>();
+
+		/**
+		 * Trenutak (u milisekundama) nakon kojeg se prijenos odbacuje.
+		 */
+		private long deadline;
+
+		/**
+		 * Konstruktor.
+		 * @param total duljina sadržaja
+		 * @param type tip poruke s hitnošću
+		 */
+		public Partial(int total, byte type) {
+			this.data = new byte[total];
+			this.type = type;
+		}
+
+		/**
+		 * Bilježi primljeni dio sadržaja ako se ne preklapa s već primljenima.
+		 * @param offset pomak dijela
+		 * @param length duljina dijela
+		 * @return true ako je dio zabilježen, false ako se preklapa s primljenim dijelom
+		 */
+		public boolean cover(int offset, int length) {
+			int end = offset + length;
+			Map.Entry<Integer, Integer> before = covered.floorEntry(offset);
+			Map.Entry<Integer, Integer> after = covered.ceilingEntry(offset);
+
+			if((before != null && before.getValue() > offset) || (after != null && after.getKey() < end)) {
+				return false;
+			}
+
+			int start = offset;
+
+			if(before != null && before.getValue() == offset) {
+				start = before.getKey();
+			}
+
+			if(after != null && after.getKey() == end) {
+				end = covered.remove(after.getKey());
+			}
+
+			covered.put(start, end);
+			received += length;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Najveća duljina sastavljene poruke.
+	 */
+	private final int maxLength;
+
+	/**
+	 * Najveći broj istovremenih prijenosa jednog pošiljatelja.
+	 */
+	private final int maxTransfers;
+
+	/**
+	 * Vrijeme (u milisekundama) nakon kojeg se odbacuje prijenos bez novih dijelova.
+	 */
+	private final long timeout;
+
+	/**
+	 * Poruke koje se sastavljaju, po izvorištu i identifikatoru prijenosa.
+	 */
+	private Map<Long, Partial> partials = new HashMap<Long, Partial>();
+
+	/**
+	 * Broj prijenosa koji se sastavljaju, po izvorištu.
+	 */
+	private Map<Integer, Integer> transfers = new HashMap<Integer, Integer>();
+
+	/**
+	 * Konstruktor s defaultnim ograničenjima.
+	 */
+	public Reassembler() {
+		this(DEFAULT_MAX_LENGTH, DEFAULT_MAX_TRANSFERS, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Konstruktor.
+	 * @param maxLength najveća duljina sastavljene poruke
+	 * @param maxTransfers najveći broj istovremenih prijenosa jednog pošiljatelja
+	 * @param timeout vrijeme (u milisekundama) nakon kojeg se odbacuje prijenos bez novih
+	 *        dijelova
+	 */
+	public Reassembler(int maxLength, int maxTransfers, long timeout) {
+		this.maxLength = maxLength;
+		this.maxTransfers = maxTransfers;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Prima dio poruke. Dio koji ne odgovara ostalim dijelovima svog prijenosa ili se
+	 * preklapa s već primljenim dijelom odbacuje se zajedno s cijelim prijenosom. Prvi dio
+	 * prijenosa dužeg od najveće duljine ili pošiljatelja koji već ima najviše prijenosa
+	 * odbacuje se.
+	 * @param fragment dio poruke
+	 * @return sastavljena poruka ako je ovo bio njen zadnji dio, null inače
+	 */
+	public Message accept(FragmentMessage fragment) {
+		Long key = transferKey(fragment);
+		Partial partial = partials.get(key);
+
+		if(partial == null) {
+			Integer open = transfers.get(fragment.getSourceKey());
+
+			if(fragment.getTotalLength() < 0 || fragment.getTotalLength() > maxLength ||
+					(open != null && open >= maxTransfers)) {
+				return null;
+			}
+
+			partial = new Partial(fragment.getTotalLength(), fragment.getOriginalType());
+			partials.put(key, partial);
+			transfers.put(fragment.getSourceKey(), open == null ? 1 : open + 1);
+		}
+
+		if(partial.data.length != fragment.getTotalLength() || partial.type != fragment.getOriginalType() ||
+				fragment.getChunkLength() <= 0 || fragment.getOffset() < 0 ||
+				fragment.getOffset() > partial.data.length - fragment.getChunkLength() ||
+				!partial.cover(fragment.getOffset(), fragment.getChunkLength())) {
+			remove(key);
+			return null;
+		}
+
+		fragment.copyChunk(partial.data);
+		partial.deadline = System.currentTimeMillis() + timeout;
+
+		if(partial.received < partial.data.length) {
+			return null;
+		}
+
+		remove(key);
+
+		Message message = new Message();
+
+		message.destKey = fragment.getDestinationKey();
+		message.srcKey = fragment.getSourceKey();
+		message.type = MessageType.fromByte((byte) (partial.type & 127));
+		message.urgent = (partial.type & 128) != 0;
+		message.setData(partial.data);
+
+		return message;
+	}
+
+	/**
+	 * Odbacuje prijenose kojima je istekao rok za novi dio.
+	 * @return ključevi odbačenih prijenosa (transferKey)
+	 */
+	public List<Long> expire() {
+		List<Long> expired = new ArrayList<Long>();
+
+		if(partials.isEmpty()) {
+			return expired;
+		}
+
+		long now = System.currentTimeMillis();
+
+		for(Iterator<Map.Entry<Long, Partial>> i = partials.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<Long, Partial> entry = i.next();
+
+			if(entry.getValue().deadline - now <= 0) {
+				expired.add(entry.getKey());
+			}
+		}
+
+		for(Long key : expired) {
+			remove(key);
+		}
+
+		return expired;
+	}
+
+	/**
+	 * Uklanja prijenos i smanjuje broj prijenosa njegovog pošiljatelja.
+	 * @param key ključ prijenosa
+	 */
+	private void remove(Long key) {
+		if(partials.remove(key) == null) {
+			return;
+		}
+
+		int source = (int) (key >>> 32);
+		int open = transfers.get(source);
+
+		if(open == 1) {
+			transfers.remove(source);
+		} else {
+			transfers.put(source, open - 1);
+		}
+	}
+
+	/**
+	 * Provjerava sastavlja li se još poruka kojoj dio pripada. Prijenos čiji dio ne
+	 * odgovara ostalima odbačen je, pa se više ne sastavlja.
+	 * @param fragment dio poruke
+	 * @return true ako se poruka još sastavlja
+	 */
+	public boolean isPending(FragmentMessage fragment) {
+		return partials.containsKey(transferKey(fragment));
+	}
+
+	/**
+	 * Vraća ključ prijenosa kojem dio pripada, jedinstven po izvorištu i identifikatoru
+	 * prijenosa.
+	 * @param fragment dio poruke
+	 * @return ključ prijenosa
+	 */
+	public static long transferKey(FragmentMessage fragment) {
+		return (long) fragment.getSourceKey() << 32 | (fragment.getId() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return broj poruka koje se trenutno sastavljaju
+	 */
+	public int getPending() {
+		return partials.size();
+	}
+}
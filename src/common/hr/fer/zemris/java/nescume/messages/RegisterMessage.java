@@ -1,14 +1,37 @@
 package hr.fer.zemris.java.nescume.messages;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Klasa predstavlja poruku koja služi za registraciju klijenta na server.
+ * Klasa predstavlja poruku koja služi za registraciju klijenta na server. Klijent u njoj
+ * nudi algoritme komprimiranja, a server koji komprimiranje prihvaća odgovara
+ * registracijskom porukom s izvorištem 0:0 i odabranim algoritmom. Tijelo poruke su
+ * oznake algoritama, po jedan bajt.
+ *
+ * Na isti način klijent traži pouzdanu isporuku (SequencedMessage i AckMessage), oznakom
+ * RELIABLE među oznakama algoritama, a server je u odgovoru potvrđuje istom oznakom.
+ * Strana koja oznaku ne poznaje preskače je kao i nepoznat algoritam.
  */
 public class RegisterMessage extends Message {
 	
+	/**
+	 * Oznaka pouzdane isporuke u tijelu poruke, nije oznaka nijednog algoritma.
+	 */
+	public static final byte RELIABLE = (byte) 0x80;
+	
+	/**
+	 * Ponuđeni algoritmi komprimiranja od najpoželjnijeg, odnosno odabrani algoritam u
+	 * odgovoru servera.
+	 */
+	private Compression[] compressions = new Compression[0];
+	
+	/**
+	 * True ako klijent traži pouzdanu isporuku, odnosno ako ju je server prihvatio.
+	 */
+	private boolean reliable;
+	
 	/**
 	 * Konstruktor registracijske poruke kada su statički clientID i nodeID.
 	 * @param address adresa klijenta koji šalje ovu poruku
@@ -20,6 +43,27 @@ public class RegisterMessage extends Message {
 		this.type = MessageType.REGISTER;
 	}
 	
+	/**
+	 * Konstruktor registracijske poruke s algoritmima komprimiranja.
+	 * @param address adresa klijenta koji šalje ovu poruku
+	 * @param compressions ponuđeni algoritmi od najpoželjnijeg, odnosno odabrani algoritam
+	 */
+	public RegisterMessage(Address address, Compression... compressions) {
+		this(address);
+		this.compressions = compressions;
+	}
+	
+	/**
+	 * Konstruktor registracijske poruke s pouzdanom isporukom i algoritmima komprimiranja.
+	 * @param address adresa klijenta koji šalje ovu poruku
+	 * @param reliable true ako se traži, odnosno prihvaća, pouzdana isporuka
+	 * @param compressions ponuđeni algoritmi od najpoželjnijeg, odnosno odabrani algoritam
+	 */
+	public RegisterMessage(Address address, boolean reliable, Compression... compressions) {
+		this(address, compressions);
+		this.reliable = reliable;
+	}
+	
 	/**
 	 * Defaultni konstruktor, ne koristiti ga prilikom slanja poruka.
 	 */
@@ -29,17 +73,56 @@ public class RegisterMessage extends Message {
 	
 	@Override
 	public String toString() {
-		return "Registracijska poruka za klijenta " + this.src + ".";
+		return "Registracijska poruka za klijenta " + getSource() + ".";
+	}
+	
+	/**
+	 * @return ponuđeni algoritmi komprimiranja od najpoželjnijeg, odnosno odabrani algoritam
+	 */
+	public Compression[] getCompressions() {
+		return compressions;
+	}
+	
+	/**
+	 * @return true ako klijent traži pouzdanu isporuku, odnosno ako ju je server prihvatio
+	 */
+	public boolean isReliable() {
+		return reliable;
 	}
 	
 	@Override
-	protected void dataFromStream(DataInputStream inputStream, int dataLength) throws IOException {
-		return;
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		List<Compression> known = new ArrayList<Compression>(dataLength);
+		
+		// Nepoznati algoritmi se preskaču, druga strana ih možda zna
+		for(int i = 0; i < dataLength; i++) {
+			byte value = buffer.get();
+			Compression compression = Compression.fromByte(value);
+			
+			if(value == RELIABLE) {
+				this.reliable = true;
+			} else if(compression != null && compression != Compression.NONE) {
+				known.add(compression);
+			}
+		}
+		
+		this.compressions = known.toArray(new Compression[known.size()]);
 	}
 	
 	@Override
-	protected void dataToStream(DataOutputStream outputStream) throws IOException {
-		outputStream.writeShort(0);
+	protected int dataLength() {
+		return compressions.length + (reliable ? 1 : 0);
+	}
+	
+	@Override
+	protected void dataToBuffer(ByteBuffer buffer) {
+		for(Compression compression : compressions) {
+			buffer.put(compression.toByte());
+		}
+		
+		if(reliable) {
+			buffer.put(RELIABLE);
+		}
 	}
 	
 	@Override
@@ -50,12 +133,12 @@ public class RegisterMessage extends Message {
 		
 		RegisterMessage other = (RegisterMessage) obj;
 		
-		return (this.dest == other.dest && this.src == other.src && this.type == other.type) ||
-				super.equals(obj);
+		return (this.getDestinationKey() == other.getDestinationKey() && this.getSourceKey() == other.getSourceKey() &&
+				this.type == other.type) || super.equals(obj);
 	}
 	
 	@Override
 	public int hashCode() {
-		return this.dest.hashCode() ^ this.src.hashCode() ^ this.type.hashCode();
+		return this.getDestinationKey() ^ this.getSourceKey() ^ this.type.hashCode();
 	}
 }
@@ -0,0 +1,134 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Zaglavlje rednog broja kod pouzdane isporuke. Server klijentu koji je pri registraciji
+ * zatražio pouzdanu isporuku ispred svake poruke šalje ovakav okvir s rednim brojem
+ * poruke na toj vezi, a klijent primljene poruke potvrđuje (AckMessage). Okvir poruke ide
+ * odmah iza zaglavlja, neraspakiran, pa se zaglavlje i poruka uvijek pišu zajedno i
+ * poruka ne mora stati u tijelo drugog okvira.
+ *
+ * Pročitano zaglavlje sadrži samo redni broj, a poruka je sljedeći okvir na ulazu.
+ */
+public class SequencedMessage extends Message {
+
+	/**
+	 * Duljina tijela zaglavlja: redni broj.
+	 */
+	public static final int sequenceLength = 4;
+
+	/**
+	 * Redni broj poruke na vezi.
+	 */
+	private int sequence;
+
+	/**
+	 * Poruka koja se šalje iza zaglavlja, null kod pročitanog zaglavlja.
+	 */
+	private Message message;
+
+	/**
+	 * Defaultni konstruktor, ne koristiti ga za stvaranje poruka prilikom slanja.
+	 */
+	public SequencedMessage() {
+		this.type = MessageType.SEQUENCE;
+	}
+
+	/**
+	 * Konstruktor zaglavlja za poruku koja se šalje. Zaglavlje ima odredište poruke i
+	 * izvorište 0:0, a hitnost poruke ostaje samo u njenom okviru, pa pouzdane poruke ne
+	 * pretječu jedna drugu.
+	 * @param sequence redni broj poruke na vezi
+	 * @param message poruka
+	 */
+	public SequencedMessage(int sequence, Message message) {
+		this.type = MessageType.SEQUENCE;
+		this.destKey = message.getDestinationKey();
+		this.srcKey = 0;
+		this.sequence = sequence;
+		this.message = message;
+	}
+
+	/**
+	 * @return redni broj poruke na vezi
+	 */
+	public int getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return poruka iza zaglavlja, null kod pročitanog zaglavlja
+	 */
+	public Message getMessage() {
+		return message;
+	}
+
+	/**
+	 * Vraća duljinu zaglavlja zajedno s okvirom poruke iza njega.
+	 */
+	@Override
+	public int frameLength() {
+		return super.frameLength() + (message == null ? 0 : message.frameLength());
+	}
+
+	/**
+	 * Zapisuje zaglavlje i odmah iza njega okvir poruke. Ako oba ne stanu, buffer ostaje
+	 * nepromijenjen.
+	 */
+	@Override
+	public boolean toBuffer(ByteBuffer buffer) {
+		if(buffer.remaining() < frameLength()) {
+			return false;
+		}
+
+		super.toBuffer(buffer);
+
+		if(message != null) {
+			message.toBuffer(buffer);
+		}
+
+		return true;
+	}
+
+	@Override
+	protected int dataLength() {
+		return sequenceLength;
+	}
+
+	@Override
+	protected void dataToBuffer(ByteBuffer buffer) {
+		buffer.putInt(sequence);
+	}
+
+	@Override
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		if(dataLength < sequenceLength) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		this.sequence = buffer.getInt();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof SequencedMessage)) {
+			return false;
+		}
+
+		SequencedMessage other = (SequencedMessage) obj;
+
+		return this.sequence == other.sequence && this.getDestinationKey() == other.getDestinationKey() &&
+				(this.message == null ? other.message == null : this.message.equals(other.message));
+	}
+
+	@Override
+	public int hashCode() {
+		return sequence ^ getDestinationKey() ^ (message == null ? 0 : message.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "Zaglavlje rednog broja " + sequence + " za " + getDestination() + ".";
+	}
+}
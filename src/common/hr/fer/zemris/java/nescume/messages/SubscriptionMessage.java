@@ -0,0 +1,267 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Upravljanje pretplatom s kreditom. Za razliku od QueryMessage, pretplata ima svoj
+ * identifikator na vezi, a server pretplatniku šalje poruke (NotificationMessage) samo
+ * dok pretplata ima kredita. Klijent pretplatu otvara (SUBSCRIBE), daje joj kredit za
+ * još zadani broj poruka (REQUEST) i zatvara je (CANCEL).
+ *
+ * Tijelo počinje vrstom i identifikatorom pretplate. Kod otvaranja iza njih je tip poruka
+ * i uzorak, a kod kredita broj poruka.
+ */
+public class SubscriptionMessage extends Message {
+
+	/**
+	 * Vrsta poruke za upravljanje pretplatom.
+	 */
+	public enum Kind {
+
+		/**
+		 * Otvaranje pretplate na tip poruka i uzorak, bez kredita.
+		 */
+		SUBSCRIBE,
+
+		/**
+		 * Kredit za još zadani broj poruka.
+		 */
+		REQUEST,
+
+		/**
+		 * Zatvaranje pretplate.
+		 */
+		CANCEL
+	}
+
+	/**
+	 * Duljina zajedničkog dijela tijela: vrsta i identifikator pretplate.
+	 */
+	public static final int subscriptionHeaderLength = 1 + 4;
+
+	/**
+	 * Vrsta poruke.
+	 */
+	private Kind kind;
+
+	/**
+	 * Identifikator pretplate, jedinstven među pretplatama iste veze.
+	 */
+	private int subscriptionId;
+
+	/**
+	 * Tip poruka na koji se pretplata odnosi, samo kod otvaranja.
+	 */
+	private MessageType queryType;
+
+	/**
+	 * Uzorak kojem sadržaj poruke mora odgovarati, samo kod otvaranja.
+	 */
+	private byte[] pattern;
+
+	/**
+	 * Broj poruka za koje se daje kredit, samo kod kredita.
+	 */
+	private long count;
+
+	/**
+	 * Defaultni konstruktor, ne koristiti ga za stvaranje poruka prilikom slanja.
+	 */
+	public SubscriptionMessage() {
+		this.type = MessageType.SUBSCRIPTION;
+	}
+
+	/**
+	 * Konstruktor zajedničkog dijela poruke. Poruka ide serveru, dogovorno na adresu 0:0.
+	 * @param kind vrsta poruke
+	 * @param subscriptionId identifikator pretplate
+	 */
+	private SubscriptionMessage(Kind kind, int subscriptionId) {
+		this.type = MessageType.SUBSCRIPTION;
+		this.dest = new Address(0, 0);
+		this.kind = kind;
+		this.subscriptionId = subscriptionId;
+	}
+
+	/**
+	 * Stvara poruku koja otvara pretplatu.
+	 * @param subscriptionId identifikator pretplate
+	 * @param queryType tip poruka
+	 * @param pattern uzorak, null ili {0} za sve poruke tipa
+	 * @return poruka
+	 */
+	public static SubscriptionMessage subscribe(int subscriptionId, MessageType queryType, byte[] pattern) {
+		SubscriptionMessage message = new SubscriptionMessage(Kind.SUBSCRIBE, subscriptionId);
+
+		message.queryType = queryType;
+		message.pattern = pattern == null ? new byte[] { 0 } : pattern;
+
+		return message;
+	}
+
+	/**
+	 * Stvara poruku koja pretplati daje kredit.
+	 * @param subscriptionId identifikator pretplate
+	 * @param count broj poruka, veći od 0
+	 * @return poruka
+	 */
+	public static SubscriptionMessage request(int subscriptionId, long count) {
+		SubscriptionMessage message = new SubscriptionMessage(Kind.REQUEST, subscriptionId);
+
+		message.count = count;
+
+		return message;
+	}
+
+	/**
+	 * Stvara poruku koja zatvara pretplatu.
+	 * @param subscriptionId identifikator pretplate
+	 * @return poruka
+	 */
+	public static SubscriptionMessage cancel(int subscriptionId) {
+		return new SubscriptionMessage(Kind.CANCEL, subscriptionId);
+	}
+
+	/**
+	 * @return vrsta poruke
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return identifikator pretplate
+	 */
+	public int getSubscriptionId() {
+		return subscriptionId;
+	}
+
+	/**
+	 * @return tip poruka na koji se pretplata odnosi, null ako poruka ne otvara pretplatu
+	 */
+	public MessageType getQueryType() {
+		return queryType;
+	}
+
+	/**
+	 * Vraća uzorak pretplate. Vraća se polje same poruke, bez kopiranja, pa ga ne treba
+	 * mijenjati.
+	 * @return uzorak, null ako poruka ne otvara pretplatu
+	 */
+	public byte[] getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return broj poruka za koje se daje kredit, 0 ako poruka ne daje kredit
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	protected int dataLength() {
+		switch(kind) {
+		case SUBSCRIBE:
+			return subscriptionHeaderLength + 1 + pattern.length;
+
+		case REQUEST:
+			return subscriptionHeaderLength + 8;
+
+		default:
+			return subscriptionHeaderLength;
+		}
+	}
+
+	@Override
+	protected void dataToBuffer(ByteBuffer buffer) {
+		buffer.put((byte) kind.ordinal());
+		buffer.putInt(subscriptionId);
+
+		switch(kind) {
+		case SUBSCRIBE:
+			buffer.put(queryType.toByte());
+			buffer.put(pattern);
+			break;
+
+		case REQUEST:
+			buffer.putLong(count);
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	@Override
+	protected void dataFromBuffer(ByteBuffer buffer, int dataLength) {
+		if(dataLength < subscriptionHeaderLength) {
+			throw new IllegalArgumentException("Neispravan okvir poruke!");
+		}
+
+		int ordinal = buffer.get();
+
+		if(ordinal < 0 || ordinal >= Kind.values().length) {
+			throw new IllegalArgumentException("Neispravna vrsta pretplate: " + ordinal);
+		}
+
+		this.kind = Kind.values()[ordinal];
+		this.subscriptionId = buffer.getInt();
+
+		switch(kind) {
+		case SUBSCRIBE:
+			if(dataLength < subscriptionHeaderLength + 1) {
+				throw new IllegalArgumentException("Neispravan okvir poruke!");
+			}
+
+			this.queryType = MessageType.fromByte(buffer.get());
+			this.pattern = new byte[dataLength - subscriptionHeaderLength - 1];
+			buffer.get(this.pattern);
+			break;
+
+		case REQUEST:
+			if(dataLength < subscriptionHeaderLength + 8) {
+				throw new IllegalArgumentException("Neispravan okvir poruke!");
+			}
+
+			this.count = buffer.getLong();
+			break;
+
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof SubscriptionMessage)) {
+			return false;
+		}
+
+		SubscriptionMessage other = (SubscriptionMessage) obj;
+
+		return this.kind == other.kind && this.subscriptionId == other.subscriptionId &&
+				this.queryType == other.queryType && Arrays.equals(this.pattern, other.pattern) &&
+				this.count == other.count;
+	}
+
+	@Override
+	public int hashCode() {
+		return kind.hashCode() ^ subscriptionId ^ Arrays.hashCode(pattern) ^ Long.hashCode(count);
+	}
+
+	@Override
+	public String toString() {
+		switch(kind) {
+		case SUBSCRIBE:
+			return "Pretplata " + subscriptionId + " na " + queryType + " " + Arrays.toString(pattern) + ".";
+
+		case REQUEST:
+			return "Kredit pretplate " + subscriptionId + " za " + count + " poruka.";
+
+		default:
+			return "Zatvaranje pretplate " + subscriptionId + ".";
+		}
+	}
+}
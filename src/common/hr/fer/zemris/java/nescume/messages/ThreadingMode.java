@@ -0,0 +1,120 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.lang.reflect.Method;
+import java.util.Properties;
+
+/**
+ * Način stvaranja dretvi za poslove po konekciji i po poruci, zadaje se propertyjem
+ * threading.mode. PLATFORM stvara obične dretve, a VIRTUAL virtualne dretve koje
+ * postoje od Jave 21. Na starijem JVM-u threading.mode = virtual odbija se pri čitanju
+ * parametara, da server ili klijent ne bi tiho radio s običnim dretvama.
+ */
+public enum ThreadingMode {
+
+	/**
+	 * Obične dretve operacijskog sustava.
+	 */
+	PLATFORM,
+
+	/**
+	 * Virtualne dretve (Thread.ofVirtual()).
+	 */
+	VIRTUAL;
+
+	/**
+	 * Thread.ofVirtual(), null ako JVM nema virtualne dretve.
+	 */
+	private static final Method ofVirtual;
+
+	/**
+	 * Thread.Builder.unstarted(Runnable).
+	 */
+	private static final Method unstarted;
+
+	static {
+		Method builderFactory = null;
+		Method builderUnstarted = null;
+
+		try {
+			builderFactory = Thread.class.getMethod("ofVirtual");
+			builderUnstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (Exception notSupported) {
+			builderFactory = null;
+		}
+
+		ofVirtual = builderFactory;
+		unstarted = builderUnstarted;
+	}
+
+	/**
+	 * Vraća način rada zadan propertyjem threading.mode, ako on nije zadan vraća
+	 * PLATFORM.
+	 * @param properties parametri
+	 * @return način stvaranja dretvi
+	 * @throws IllegalArgumentException ako threading.mode nije platform ili virtual, ili
+	 *             je virtual, a JVM nema virtualne dretve
+	 */
+	public static ThreadingMode fromProperties(Properties properties) {
+		String mode = properties.getProperty("threading.mode", "platform").trim();
+
+		if("platform".equals(mode)) {
+			return PLATFORM;
+		} else if("virtual".equals(mode)) {
+			if(!isVirtualSupported()) {
+				throw new IllegalArgumentException("threading.mode = virtual traži Javu 21 ili noviju, a JVM je "
+						+ System.getProperty("java.version") + "!");
+			}
+
+			return VIRTUAL;
+		}
+
+		throw new IllegalArgumentException("threading.mode mora biti platform ili virtual!");
+	}
+
+	/**
+	 * Ispituje da li JVM podržava virtualne dretve.
+	 * @return true ako podržava, false inače
+	 */
+	public static boolean isVirtualSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Stvara dretvu za zadani posao, ali je ne pokreće.
+	 * @param task posao dretve
+	 * @param name ime dretve
+	 * @return nova dretva
+	 * @throws IllegalStateException ako virtualnu dretvu nije moguće stvoriti
+	 */
+	public Thread newThread(Runnable task, String name) {
+		if(this == PLATFORM) {
+			return new Thread(task, name);
+		}
+
+		if(ofVirtual == null) {
+			throw new IllegalStateException("JVM nema virtualne dretve!");
+		}
+
+		try {
+			Thread thread = (Thread) unstarted.invoke(ofVirtual.invoke(null), task);
+			thread.setName(name);
+
+			return thread;
+		} catch (Exception e) {
+			throw new IllegalStateException("Nije moguće stvoriti virtualnu dretvu " + name + "!", e);
+		}
+	}
+
+	/**
+	 * Stvara i pokreće dretvu za zadani posao.
+	 * @param task posao dretve
+	 * @param name ime dretve
+	 * @return pokrenuta dretva
+	 */
+	public Thread start(Runnable task, String name) {
+		Thread thread = newThread(task, name);
+		thread.start();
+
+		return thread;
+	}
+}
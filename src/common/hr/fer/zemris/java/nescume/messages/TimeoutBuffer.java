@@ -1,48 +1,322 @@
 package hr.fer.zemris.java.nescume.messages;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
 
 /**
  * Buffer za poruke koji se brine da poruke u bufferu sigurno budu odaslane nakon nekog
  * vremena ili nakon popunjenja buffer-a. Iznimke su urgent poruke koje odmah uzrokuju
  * praženjenje buffera.
+ *
+ * Poruke se pakiraju u pakete do packet.size i na izlaz ih piše flusher, izvan lokota.
+ * Buffer stvoren s kotačem rokova (TimerWheel) nema svoju dretvu, nego ga prazni
+ * zadani izvršitelj.
  */
 public class TimeoutBuffer implements Runnable {
-	
+
 	/**
-	 * True ako je timer aktiviran i flusher odbrojava, false inače.
+	 * Slušač zastoja pisanja buffera bez vlastite dretve. Zapelo pisanje drži dretvu
+	 * izvršitelja dok ne završi.
 	 */
-	private boolean timer;
-	
+	public interface StallListener {
+
+		/**
+		 * Pisanje na izlaz dulje vrijeme ne napreduje. Poziva ga dretva kotača, pod
+		 * lokotom buffera, pa mora biti kratko.
+		 */
+		void writeStalled();
+
+		/**
+		 * Zapelo pisanje je završilo, uspješno ili greškom. Poziva ga flusher, pod
+		 * lokotom buffera, pa mora biti kratko.
+		 */
+		void writeResumed();
+
+		/**
+		 * Pisanje nije napredovalo write.timeout, pa buffer zatvara izlaz. Poziva ga
+		 * dretva kotača, izvan lokota buffera, prije zatvaranja izlaza.
+		 */
+		void writeTimedOut();
+	}
+
+	/**
+	 * Prijenos velike poruke po dijelovima.
+	 */
+	private static class Transfer {
+
+		/**
+		 * Dijelovi koji još nisu poslani.
+		 */
+		private final Iterator<? extends Message> chunks;
+
+		/**
+		 * True kad su svi dijelovi zapisani na izlaz.
+		 */
+		private boolean done;
+
+		/**
+		 * Future koji se dovršava kad su svi dijelovi zapisani, null ako pošiljatelj čeka.
+		 */
+		private final CompletableFuture<Void> written;
+
+		/**
+		 * Konstruktor.
+		 * @param chunks dijelovi poruke
+		 * @param written future koji se dovršava kad su svi dijelovi zapisani, može biti null
+		 */
+		public Transfer(Iterator<? extends Message> chunks, CompletableFuture<Void> written) {
+			this.chunks = chunks;
+			this.written = written;
+		}
+	}
+
 	/**
 	 * True ako je flusher aktiva, false inače. Služi za gašenje flushera.
 	 */
-	private boolean active;
-	
+	private volatile boolean active;
+
+	/**
+	 * Lokot buffera. Koristi se umjesto monitora objekta da virtualne dretve ne bi bile
+	 * prikovane za nosioca dok čekaju. Drži se samo dok se mijenja stanje buffera, nikad
+	 * dok se piše na izlaz.
+	 */
+	private final Lock lock = new ReentrantLock();
+
+	/**
+	 * Uvjet na kojem flusher čeka poruke ili istek roka najstarije poruke.
+	 */
+	private final Condition work = lock.newCondition();
+
 	/**
-	 * Buffer timeout nakon kojeg treba prazniti buffer.
+	 * Uvjet na kojem pošiljatelji velikih poruka čekaju kraj prijenosa.
 	 */
-	private int bufferTimeout;
+	private final Condition written = lock.newCondition();
+
+	/**
+	 * Buffer timeout nakon kojeg treba prazniti buffer, u nanosekundama.
+	 */
+	private long bufferTimeout;
 
 	/**
 	 * Veličina buffera. Kada buffer dosegne ovu veličinu, flusha se na izlaz.
 	 */
 	private int bufferSize;
-	
+
+	/**
+	 * Ciljana veličina paketa. Kada serijalizirane poruke u bufferu dosegnu ovu veličinu,
+	 * buffer se flusha na izlaz.
+	 */
+	private int packetSize;
+
 	/**
-	 * Buffer sa porukama. Poruke se šalju kad se buffer napuni.
+	 * Buffer sa porukama koje čekaju pražnjenje.
 	 */
 	private List<Message> sendBuffer;
-	
+
+	/**
+	 * Hitne poruke koje čekaju pražnjenje. Pišu se prije poruka iz sendBuffer, a ako
+	 * stignu za vrijeme pražnjenja, flusher ih piše između dva paketa.
+	 */
+	private List<Message> urgentLane = new ArrayList<Message>();
+
+	/**
+	 * True dok ima hitnih poruka koje čekaju, flusher ga čita bez lokota.
+	 */
+	private volatile boolean urgentWaiting;
+
+	/**
+	 * Futuri poruka iz sendBuffer dodanih metodom submit().
+	 */
+	private List<CompletableFuture<Void>> completions = new ArrayList<CompletableFuture<Void>>();
+
+	/**
+	 * Futuri poruka iz urgentLane dodanih metodom submit().
+	 */
+	private List<CompletableFuture<Void>> urgentCompletions = new ArrayList<CompletableFuture<Void>>();
+
+	/**
+	 * Ukupna veličina serijaliziranih poruka u bufferu.
+	 */
+	private int pendingBytes;
+
+	/**
+	 * Veličina serijaliziranih poruka koje flusher upravo piše na izlaz.
+	 */
+	private int inFlightBytes;
+
+	/**
+	 * Gornja granica zaostatka u bajtovima, iznad nje je buffer zagušen.
+	 */
+	private int highWatermark = Integer.MAX_VALUE;
+
+	/**
+	 * Donja granica zaostatka u bajtovima, ispod nje zagušenje prestaje.
+	 */
+	private int lowWatermark = Integer.MAX_VALUE;
+
+	/**
+	 * True od odbijanja poruke dok zaostatak ne padne do donje granice.
+	 */
+	private boolean congested;
+
+	/**
+	 * Slušač kojeg flusher poziva kad zagušenje prestane, može biti null.
+	 */
+	private Runnable drained;
+
+	/**
+	 * Trenutak (System.nanoTime) kada ističe buffer.timeout najstarije poruke u bufferu.
+	 * Vrijedi samo ako buffer nije prazan.
+	 */
+	private long deadline;
+
+	/**
+	 * True ako buffer treba isprazniti bez čekanja roka.
+	 */
+	private boolean flushRequested;
+
+	/**
+	 * True ako sljedeće pražnjenje treba poslati jednim pisanjem.
+	 */
+	private boolean contiguous;
+
+	/**
+	 * Prijenosi velikih poruka koji su u tijeku, redom kojim dobivaju sljedeći dio.
+	 */
+	private Queue<Transfer> transfers = new ArrayDeque<Transfer>();
+
+	/**
+	 * Greška pri pisanju na izlaz, null ako je nije bilo.
+	 */
+	private IOException failure;
+
 	/**
 	 * Izlazni kanal na kojeg se šalje.
 	 */
 	private OutputStream output;
-	
+
+	/**
+	 * Paket u koji se pakiraju poruke prije slanja. Koristi ga samo flusher.
+	 */
+	private final ByteBuffer packet;
+
+	/**
+	 * Kotač na kojem se zakazuje rok najstarije poruke, null ako buffer ima svoju dretvu.
+	 */
+	private TimerWheel timers;
+
+	/**
+	 * Izvršitelj koji prazni buffer, null ako buffer ima svoju dretvu.
+	 */
+	private Executor flushers;
+
+	/**
+	 * Rok najstarije poruke zakazan na kotaču, null ako nije zakazan.
+	 */
+	private TimerWheel.Timeout deadlineTimer;
+
+	/**
+	 * Kompresor paketa, null dok komprimiranje nije dogovoreno. Koristi ga samo flusher.
+	 */
+	private volatile PacketCompressor compressor;
+
+	/**
+	 * True dok je pražnjenje predano izvršitelju ili u tijeku.
+	 */
+	private boolean flushing;
+
+	/**
+	 * Slušač zastoja pisanja, null ako se pisanje ne nadzire.
+	 */
+	private StallListener stallListener;
+
+	/**
+	 * Vrijeme bez napretka nakon kojeg je pisanje zapelo, u nanosekundama.
+	 */
+	private long stallTimeout;
+
+	/**
+	 * Vrijeme bez napretka nakon kojeg se izlaz zatvara, u nanosekundama, 0 ako se ne
+	 * zatvara.
+	 */
+	private long writeTimeout;
+
+	/**
+	 * Trenutak (System.nanoTime) zadnjeg napretka pisanja na izlaz.
+	 */
+	private volatile long writeProgress;
+
+	/**
+	 * True dok flusher piše na izlaz, a pisanje se nadzire.
+	 */
+	private boolean writing;
+
+	/**
+	 * True ako je pisanje koje je u tijeku prijavljeno kao zapelo.
+	 */
+	private boolean stalled;
+
+	/**
+	 * Provjera napretka pisanja zakazana na kotaču, null ako nije zakazana.
+	 */
+	private TimerWheel.Timeout watchdog;
+
+	/**
+	 * Zadatak kotača koji provjerava napredak pisanja.
+	 */
+	private final Runnable writeCheck = new Runnable() {
+
+		public void run() {
+			checkWrite();
+		}
+
+	};
+
+	/**
+	 * Zadatak kotača kojim ističe rok najstarije poruke.
+	 */
+	private final Runnable expiry = new Runnable() {
+
+		public void run() {
+			deadlineExpired();
+		}
+
+	};
+
+	/**
+	 * Jedno pražnjenje u izvršitelju.
+	 */
+	private final Runnable flushCycle = new Runnable() {
+
+		public void run() {
+			flushCycle();
+		}
+
+	};
+
+	/**
+	 * Veličina paketa ako nije zadana.
+	 */
+	private static final int DEFAULT_PACKET_SIZE = 8192;
+
 	/**
 	 * Stvara novi timeout buffer koja nakon popunjenja buffer.size ili isteka
 	 * buffer.timeout šalje sve poruke koje prije toga drži u sebi na izlazni kanal.
@@ -51,14 +325,9 @@ public class TimeoutBuffer implements Runnable {
 	 * @param output izlazni kanal
 	 */
 	public TimeoutBuffer(int bufferTimeout, int bufferSize, OutputStream output) {
-		this.timer = false;
-		this.bufferTimeout = bufferTimeout;
-		this.bufferSize = bufferSize;
-		this.output = new BufferedOutputStream(output);
-		this.sendBuffer = new ArrayList<Message>(bufferSize);
-		this.active = true;
+		this(bufferTimeout, bufferSize, DEFAULT_PACKET_SIZE, output);
 	}
-	
+
 	/**
 	 * Stvara novi buffer prema specifikaciji klase, dodatno omogućuje postavljanje ciljane
 	 * veličine paketa koji se šalju.
@@ -68,78 +337,889 @@ public class TimeoutBuffer implements Runnable {
 	 * @param output izlazni kanal
 	 */
 	public TimeoutBuffer(int bufferTimeout, int bufferSize, int packetSize, OutputStream output) {
-		this.timer = false;
-		this.bufferTimeout = bufferTimeout;
+		this.bufferTimeout = TimeUnit.MILLISECONDS.toNanos(bufferTimeout);
 		this.bufferSize = bufferSize;
-		this.output = new BufferedOutputStream(output, packetSize);
+		this.packetSize = Math.max(packetSize, Message.headerLength);
+		this.output = output;
+		this.packet = ByteBuffer.allocate(this.packetSize);
 		this.sendBuffer = new ArrayList<Message>(bufferSize);
-		this.active = true;		
+		this.active = true;
+	}
+
+	/**
+	 * Stvara buffer bez vlastite dretve. Rokovi poruka zakazuju se na zadanom kotaču, a
+	 * pražnjenja obavlja izvršitelj, pa metodu run() ne treba pokretati.
+	 * @param bufferTimeout buffer.timeout
+	 * @param bufferSize buffer.size
+	 * @param packetSize packet.size
+	 * @param output izlazni kanal
+	 * @param timers kotač rokova, zajednički mnogim bufferima
+	 * @param flushers izvršitelj pražnjenja, zajednički mnogim bufferima
+	 */
+	public TimeoutBuffer(int bufferTimeout, int bufferSize, int packetSize, OutputStream output,
+			TimerWheel timers, Executor flushers) {
+		this(bufferTimeout, bufferSize, packetSize, output);
+
+		this.timers = timers;
+		this.flushers = flushers;
 	}
-	
+
 	/**
 	 * Dodaje poruku u buffer. Ponašanje buffera je opisano u implementaciji buffera.
+	 * Metoda ne čeka na pisanje.
 	 * @param message poruka
-	 * @throws IOException u slučaju greške pri slanju
+	 * @throws IOException ako pisanje na izlaz nije uspjelo
 	 */
-	public synchronized void addMessage(Message message) throws IOException {
-		this.sendBuffer.add(message);
-		
-		if(message.isUrgent() || this.sendBuffer.size() == this.bufferSize) {
-			this.flush();
-		} else {
-			this.timer = true;
-			this.notifyAll();
+	public void addMessage(Message message) throws IOException {
+		this.lock.lock();
+
+		try {
+			this.checkFailure();
+			this.enqueue(message);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Dodaje poruku u buffer kao addMessage(), bez čekanja i bez bacanja iznimke.
+	 * @param message poruka
+	 * @return future koji se dovršava kad je poruka zapisana na izlaz, a iznimkom
+	 * IOException ako pisanje nije uspjelo ili je buffer zaustavljen
+	 */
+	public CompletableFuture<Void> submit(Message message) {
+		CompletableFuture<Void> written = new CompletableFuture<Void>();
+
+		this.lock.lock();
+
+		try {
+			this.checkFailure();
+
+			if(!this.active) {
+				throw new IOException("Buffer je zaustavljen!");
+			}
+
+			this.enqueue(message);
+
+			if(message.isUrgent()) {
+				this.urgentCompletions.add(written);
+			} else {
+				this.completions.add(written);
+			}
+		} catch(IOException e) {
+			written.completeExceptionally(e);
+		} finally {
+			this.lock.unlock();
+		}
+
+		return written;
+	}
+
+	/**
+	 * Šalje dijelove velike poruke kao addTransfer(), ali se ne čeka kraj prijenosa.
+	 * @param chunks dijelovi poruke redom (FragmentMessage.split)
+	 * @return future koji se dovršava kad su svi dijelovi zapisani na izlaz, a iznimkom
+	 * IOException ako pisanje nije uspjelo ili je buffer zaustavljen
+	 */
+	public CompletableFuture<Void> submitTransfer(Iterator<? extends Message> chunks) {
+		CompletableFuture<Void> written = new CompletableFuture<Void>();
+
+		this.lock.lock();
+
+		try {
+			this.checkFailure();
+
+			if(!this.active) {
+				throw new IOException("Buffer je zaustavljen!");
+			}
+
+			this.transfers.add(new Transfer(chunks, written));
+			this.wake();
+		} catch(IOException e) {
+			written.completeExceptionally(e);
+		} finally {
+			this.lock.unlock();
+		}
+
+		return written;
+	}
+
+	/**
+	 * Postavlja granice zaostatka buffera. Zaostatak su poruke koje čekaju pražnjenje i
+	 * poruke koje flusher upravo piše.
+	 * @param lowWatermark donja granica u bajtovima, ispod nje zagušenje prestaje
+	 * @param highWatermark gornja granica u bajtovima
+	 * @param drained slušač kojeg flusher poziva, izvan lokota, kad zagušenje prestane;
+	 *            može biti null
+	 * @throws IllegalArgumentException ako je donja granica veća od gornje
+	 */
+	public void setWatermarks(int lowWatermark, int highWatermark, Runnable drained) {
+		if(lowWatermark > highWatermark) {
+			throw new IllegalArgumentException("Donja granica ne smije biti veća od gornje!");
+		}
+
+		this.lock.lock();
+
+		try {
+			this.lowWatermark = lowWatermark;
+			this.highWatermark = highWatermark;
+			this.drained = drained;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Uključuje nadzor pisanja kod buffera bez vlastite dretve. Napredak je svaki paket
+	 * zapisan na izlaz.
+	 * @param stallTimeout vrijeme bez napretka u milisekundama nakon kojeg se pisanje
+	 *            prijavljuje kao zapelo
+	 * @param writeTimeout vrijeme bez napretka u milisekundama nakon kojeg se izlaz
+	 *            zatvara, 0 ako se ne zatvara
+	 * @param listener slušač zastoja
+	 * @throws IllegalStateException ako buffer ima vlastitu dretvu
+	 */
+	public void setWriteTimeouts(int stallTimeout, int writeTimeout, StallListener listener) {
+		if(this.timers == null) {
+			throw new IllegalStateException("Nadzor pisanja traži kotač rokova!");
+		}
+
+		this.lock.lock();
+
+		try {
+			this.stallTimeout = TimeUnit.MILLISECONDS.toNanos(stallTimeout);
+			this.writeTimeout = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+			this.stallListener = listener;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Uključuje komprimiranje paketa dogovorenim algoritmom. Vrijedi od sljedećeg paketa
+	 * koji flusher piše.
+	 * @param compression algoritam, NONE isključuje komprimiranje
+	 * @param threshold najmanji paket u bajtovima koji se komprimira
+	 */
+	public void setCompression(Compression compression, int threshold) {
+		this.compressor = compression == Compression.NONE ? null : new PacketCompressor(compression, threshold);
+	}
+
+	/**
+	 * Dodaje poruku u buffer ako on nije zagušen. Buffer bez zaostatka uvijek prima
+	 * poruku, i ako je ona veća od gornje granice. Metoda ne čeka na pisanje.
+	 * @param message poruka
+	 * @return true ako je poruka dodana, false ako je buffer zagušen
+	 * @throws IOException ako pisanje na izlaz nije uspjelo
+	 */
+	public boolean offer(Message message) throws IOException {
+		this.lock.lock();
+
+		try {
+			this.checkFailure();
+
+			long backlog = (long) this.pendingBytes + this.inFlightBytes;
+
+			if(backlog > 0 && (this.congested || backlog + message.frameLength() > this.highWatermark)) {
+				this.congested = true;
+				return false;
+			}
+
+			this.enqueue(message);
+
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Dodaje poruku u buffer i po potrebi izbacuje najstarije poruke koje čekaju, dok
+	 * zaostatak s novom porukom ne stane pod gornju granicu. Poruke koje se upravo pišu
+	 * ne izbacuju se, a ni dijelovi podijeljenih poruka (FRAGMENT), jer bi primatelju bez
+	 * jednog dijela ostala nedovršena poruka. Metoda ne čeka na pisanje.
+	 * @param message poruka
+	 * @return broj izbačenih poruka
+	 * @throws IOException ako pisanje na izlaz nije uspjelo
+	 */
+	public int addEvicting(Message message) throws IOException {
+		this.lock.lock();
+
+		try {
+			this.checkFailure();
+
+			long excess = (long) this.pendingBytes + this.inFlightBytes + message.frameLength() - this.highWatermark;
+			int kept = 0;
+			int checked = 0;
+
+			// Dijelovi se pomiču na početak, a izbačene poruke ostaju između njih i ostatka
+			while(excess > 0 && checked < this.sendBuffer.size()) {
+				Message queued = this.sendBuffer.get(checked++);
+
+				if(queued.getType() == MessageType.FRAGMENT) {
+					this.sendBuffer.set(kept++, queued);
+					continue;
+				}
+
+				excess -= queued.frameLength();
+				this.pendingBytes -= queued.frameLength();
+			}
+
+			this.sendBuffer.subList(kept, checked).clear();
+			this.enqueue(message);
+
+			return checked - kept;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Dodaje skupinu poruka u buffer uz jedno zaključavanje. Buffer se prazni ako je
+	 * pražnjenje zatraženo, ako je neka od poruka hitna ili ako se buffer napunio, i
+	 * tada se sve poruke u bufferu šalju jednim pisanjem na izlaz. Inače poruke čekaju
+	 * buffer.timeout kao i pojedinačno dodane. Metoda ne čeka na pisanje.
+	 * @param messages poruke redom kojim se šalju
+	 * @param flush true ako buffer treba odmah isprazniti
+	 * @throws IOException ako pisanje na izlaz nije uspjelo
+	 */
+	public void addMessages(Collection<? extends Message> messages, boolean flush) throws IOException {
+		if(messages.isEmpty() && !flush) {
+			return;
+		}
+
+		this.lock.lock();
+
+		try {
+			this.checkFailure();
+
+			for(Message message : messages) {
+				this.enqueue(message);
+				flush |= message.isUrgent();
+			}
+
+			if(flush || this.flushRequested) {
+				this.requestFlush(true);
+			}
+		} finally {
+			this.lock.unlock();
 		}
 	}
-	
+
+	/**
+	 * Šalje dijelove velike poruke. U svakom pražnjenju šalje se po jedan dio, zajedno
+	 * s porukama koje u bufferu čekaju, a između dijelova idu poruke i prijenosi drugih
+	 * dretvi. Metoda se vraća kad su svi dijelovi zapisani na izlaz.
+	 * @param chunks dijelovi poruke redom (FragmentMessage.split)
+	 * @throws IOException u slučaju greške pri slanju ili zaustavljanja buffera
+	 */
+	public void addTransfer(Iterator<? extends Message> chunks) throws IOException {
+		Transfer transfer = new Transfer(chunks, null);
+
+		this.lock.lock();
+
+		try {
+			this.checkFailure();
+
+			this.transfers.add(transfer);
+			this.wake();
+
+			while(!transfer.done) {
+				this.checkFailure();
+
+				if(!this.active) {
+					throw new IOException("Buffer je zaustavljen!");
+				}
+
+				this.written.await();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Slanje prekinuto!");
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Flusher buffera s vlastitom dretvom. Čeka da buffer treba isprazniti, preuzima
+	 * njegov sadržaj i zapisuje ga na izlaz izvan lokota.
+	 */
 	public void run() {
-		while(this.active) {
+		while(true) {
+			this.lock.lock();
+
 			try {
-				synchronized(this) {
-					while(!this.timer) {
-						this.wait();
-					
-						if(!this.active) break;
+				while(this.active && !this.isDue()) {
+					if(this.sendBuffer.isEmpty()) {
+						this.work.await();
+					} else {
+						this.work.awaitNanos(this.deadline - System.nanoTime());
 					}
 				}
-				
-				if(!this.active) break;
-				
-				Thread.sleep(this.bufferTimeout);
-
-				this.flush();
-			} catch(InterruptedException ignorable) {
-				
-			} catch(IOException e) {
+			} catch(InterruptedException e) {
+				continue;
+			} finally {
+				this.lock.unlock();
+			}
+
+			if(!this.flush()) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Zaustavlja i gasi timeout buffer nad kojim je pozvano. Futuri poruka koje nisu
+	 * zapisane završavaju iznimkom.
+	 */
+	public void stop() {
+		List<CompletableFuture<Void>> unwritten;
+
+		this.lock.lock();
+
+		try {
+			this.active = false;
+
+			if(this.deadlineTimer != null) {
+				this.deadlineTimer.cancel();
+				this.deadlineTimer = null;
+			}
+
+			unwritten = this.takeCompletions();
+
+			this.work.signalAll();
+			this.written.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+		fail(unwritten, new IOException("Buffer je zaustavljen!"));
+	}
+
+	/**
+	 * Dodaje poruku u buffer i traži pražnjenje ako se buffer napunio porukama ili
+	 * bajtovima. Hitna poruka ide u red hitnih poruka i odmah traži pražnjenje. Poziva
+	 * se pod lokotom buffera.
+	 * @param message poruka
+	 */
+	private void enqueue(Message message) {
+		if(message.isUrgent()) {
+			this.urgentLane.add(message);
+			this.pendingBytes += message.frameLength();
+			this.urgentWaiting = true;
+			this.requestFlush(false);
+
+			return;
+		}
+
+		if(this.sendBuffer.isEmpty()) {
+			this.deadline = System.nanoTime() + this.bufferTimeout;
+
+			if(this.timers == null) {
+				this.work.signal();
+			} else {
+				if(this.deadlineTimer != null) {
+					this.deadlineTimer.cancel();
+				}
+
+				this.deadlineTimer = this.timers.schedule(this.expiry, this.bufferTimeout, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		this.sendBuffer.add(message);
+		this.pendingBytes += message.frameLength();
+
+		if(this.sendBuffer.size() >= this.bufferSize || this.pendingBytes >= this.packetSize) {
+			this.requestFlush(false);
+		}
+	}
+
+	/**
+	 * Traži od flushera da isprazni buffer bez čekanja roka. Poziva se pod lokotom
+	 * buffera.
+	 * @param contiguous true ako pražnjenje treba poslati jednim pisanjem
+	 */
+	private void requestFlush(boolean contiguous) {
+		this.contiguous |= contiguous;
+
+		if(!this.flushRequested) {
+			this.flushRequested = true;
+			this.wake();
+		}
+	}
+
+	/**
+	 * Budi flusher: vlastitu dretvu signalom, a kod zajedničkog izvršitelja mu predaje
+	 * pražnjenje ako ono već nije predano. Poziva se pod lokotom buffera.
+	 */
+	private void wake() {
+		if(this.timers == null) {
+			this.work.signal();
+		} else if(!this.flushing && this.active) {
+			this.flushing = true;
+
+			try {
+				this.flushers.execute(this.flushCycle);
+			} catch(RejectedExecutionException e) {
+				// Izvršitelj je ugašen zajedno sa serverom
+				this.flushing = false;
+			}
+		}
+	}
+
+	/**
+	 * Zadatak kotača: rok najstarije poruke je istekao pa buffer treba isprazniti.
+	 */
+	private void deadlineExpired() {
+		this.lock.lock();
+
+		try {
+			if(this.isDue()) {
+				this.wake();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Jedan ciklus pražnjenja u izvršitelju. Ako buffer i dalje treba prazniti, sljedeći
+	 * ciklus se predaje izvršitelju iza pražnjenja ostalih buffera.
+	 */
+	private void flushCycle() {
+		boolean written = this.flush();
+
+		this.lock.lock();
+
+		try {
+			this.flushing = false;
+
+			if(written && this.isDue()) {
+				this.wake();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Jedno pražnjenje: pod lokotom preuzima poruke iz buffera i po jedan dio svakog
+	 * prijenosa, a zapisuje ih na izlaz izvan lokota.
+	 * @return false ako je buffer zaustavljen ili pisanje nije uspjelo
+	 */
+	private boolean flush() {
+		List<Message> batch;
+		boolean wholeBatch;
+		List<Transfer> finished = new ArrayList<Transfer>();
+		List<CompletableFuture<Void>> batchCompletions;
+
+		this.lock.lock();
+
+		try {
+			if(!this.active) {
+				return false;
+			}
+
+			batch = this.sendBuffer;
+			wholeBatch = this.contiguous;
+
+			if(!this.urgentLane.isEmpty()) {
+				batch.addAll(0, this.urgentLane);
+
+				this.urgentLane = new ArrayList<Message>();
+				this.urgentWaiting = false;
+			}
+
+			if(this.completions.isEmpty() && this.urgentCompletions.isEmpty()) {
+				batchCompletions = Collections.emptyList();
+			} else {
+				batchCompletions = this.urgentCompletions;
+				batchCompletions.addAll(this.completions);
+
+				this.urgentCompletions = new ArrayList<CompletableFuture<Void>>();
+				this.completions = new ArrayList<CompletableFuture<Void>>();
+			}
+
+			this.sendBuffer = new ArrayList<Message>(this.bufferSize);
+			this.inFlightBytes = this.pendingBytes;
+			this.pendingBytes = 0;
+			this.flushRequested = false;
+			this.contiguous = false;
+
+			if(this.deadlineTimer != null) {
+				this.deadlineTimer.cancel();
+				this.deadlineTimer = null;
+			}
+
+			// Po jedan dio iz svakog prijenosa, iza poruka koje su čekale
+			for(int i = this.transfers.size(); i > 0; i--) {
+				Transfer transfer = this.transfers.poll();
+
+				Message chunk = transfer.chunks.next();
+
+				batch.add(chunk);
+				this.inFlightBytes += chunk.frameLength();
+
+				if(transfer.chunks.hasNext()) {
+					this.transfers.add(transfer);
+				} else {
+					finished.add(transfer);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+		try {
+			this.startWatch();
+			this.write(batch, wholeBatch);
+		} catch(IOException e) {
+			List<CompletableFuture<Void>> unwritten;
+
+			this.lock.lock();
+
+			try {
+				this.failure = e;
 				this.active = false;
+				this.written.signalAll();
+
+				unwritten = this.takeCompletions();
+			} finally {
+				this.lock.unlock();
+			}
+
+			for(Transfer transfer : finished) {
+				if(transfer.written != null) {
+					unwritten.add(transfer.written);
+				}
+			}
+
+			fail(batchCompletions, e);
+			fail(unwritten, e);
+
+			return false;
+		} finally {
+			this.stopWatch();
+		}
+
+		Runnable relieved = null;
+
+		this.lock.lock();
+
+		try {
+			this.inFlightBytes = 0;
+
+			if(this.congested && this.pendingBytes <= this.lowWatermark) {
+				this.congested = false;
+				relieved = this.drained;
+			}
+
+			if(!finished.isEmpty()) {
+				for(Transfer transfer : finished) {
+					transfer.done = true;
+				}
+
+				this.written.signalAll();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+		for(CompletableFuture<Void> completion : batchCompletions) {
+			completion.complete(null);
+		}
+
+		for(Transfer transfer : finished) {
+			if(transfer.written != null) {
+				transfer.written.complete(null);
+			}
+		}
+
+		if(relieved != null) {
+			relieved.run();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Počinje nadzor pisanja koje flusher započinje, ako je nadzor uključen. Poziva ga
+	 * flusher izvan lokota.
+	 */
+	private void startWatch() {
+		this.lock.lock();
+
+		try {
+			if(this.stallListener != null) {
+				this.writeProgress = System.nanoTime();
+				this.writing = true;
+				this.watchdog = this.timers.schedule(this.writeCheck, this.stallTimeout, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Završava nadzor pisanja i javlja slušaču kraj zapelog pisanja. Poziva ga flusher
+	 * izvan lokota.
+	 */
+	private void stopWatch() {
+		this.lock.lock();
+
+		try {
+			if(!this.writing) {
+				return;
+			}
+
+			this.writing = false;
+
+			if(this.watchdog != null) {
+				this.watchdog.cancel();
+				this.watchdog = null;
+			}
+
+			if(this.stalled) {
+				this.stalled = false;
+				this.stallListener.writeResumed();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Zadatak kotača: provjerava napreduje li pisanje. Zapelo pisanje prijavljuje
+	 * slušaču, a pisanju koje ne napreduje write.timeout zatvara izlaz. Dok pisanje traje,
+	 * ponovno se zakazuje za trenutak sljedeće provjere.
+	 */
+	private void checkWrite() {
+		StallListener timedOut = null;
+
+		this.lock.lock();
+
+		try {
+			if(!this.writing) {
+				return;
+			}
+
+			this.watchdog = null;
+
+			long idle = System.nanoTime() - this.writeProgress;
+			long next;
+
+			if(this.writeTimeout > 0 && idle >= this.writeTimeout) {
+				timedOut = this.stallListener;
+				next = 0;
+			} else if(this.stalled) {
+				next = this.writeTimeout > 0 ? this.writeTimeout - idle : 0;
+			} else if(idle >= this.stallTimeout) {
+				this.stalled = true;
+				this.stallListener.writeStalled();
+				next = this.writeTimeout > 0 ? this.writeTimeout - idle : 0;
+			} else {
+				next = this.stallTimeout - idle;
+			}
+
+			if(next > 0) {
+				this.watchdog = this.timers.schedule(this.writeCheck, next, TimeUnit.NANOSECONDS);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+		if(timedOut != null) {
+			timedOut.writeTimedOut();
+
+			try {
+				this.output.close();
+			} catch(IOException ignorable) {
 			}
 		}
 	}
-	
+
 	/**
-	 * Zaustavlja i gasi timeout buffer nad kojim je pozvano.
+	 * Preuzima future svih poruka i prijenosa koji nisu zapisani, kad buffer više neće
+	 * pisati. Poziva se pod lokotom buffera.
+	 * @return futuri koje treba završiti iznimkom
 	 */
-	public synchronized void stop() {
-		this.active = false;
-		
-		this.notifyAll();
+	private List<CompletableFuture<Void>> takeCompletions() {
+		List<CompletableFuture<Void>> unwritten = this.urgentCompletions;
+
+		unwritten.addAll(this.completions);
+
+		for(Transfer transfer : this.transfers) {
+			if(transfer.written != null) {
+				unwritten.add(transfer.written);
+			}
+		}
+
+		this.urgentCompletions = new ArrayList<CompletableFuture<Void>>();
+		this.completions = new ArrayList<CompletableFuture<Void>>();
+
+		return unwritten;
 	}
 
 	/**
-	 * Slanje bufferiranih poruka.
-	 * 
-	 * @throws MessageNotSent
-	 *             Ukoliko poruka nije poslana.
+	 * Završava iznimkom future poruka ili prijenosa koji nisu zapisani. Poziva se izvan
+	 * lokota buffera.
+	 * @param unwritten futuri
+	 * @param cause uzrok
 	 */
-	private synchronized void flush() throws IOException {
-		this.timer = false;
-		
-		for (Message msg : this.sendBuffer) {
-			msg.toStream(this.output);
+	private static void fail(List<CompletableFuture<Void>> unwritten, IOException cause) {
+		for(CompletableFuture<Void> written : unwritten) {
+			written.completeExceptionally(cause);
 		}
-		
+	}
+
+	/**
+	 * Ispituje treba li flusher isprazniti buffer. Poziva se pod lokotom buffera.
+	 * @return true ako je pražnjenje zatraženo, ako ima prijenosa u tijeku ili ako je
+	 * najstarijoj poruci istekao rok
+	 */
+	private boolean isDue() {
+		return this.flushRequested || !this.transfers.isEmpty() ||
+				(!this.sendBuffer.isEmpty() && this.deadline - System.nanoTime() <= 0);
+	}
+
+	/**
+	 * Baca grešku pri pisanju ako se dogodila. Poziva se pod lokotom buffera.
+	 * @throws IOException greška pri pisanju
+	 */
+	private void checkFailure() throws IOException {
+		if(this.failure != null) {
+			throw new IOException("Slanje nije uspjelo!", this.failure);
+		}
+	}
+
+	/**
+	 * Slanje poruka preuzetih iz buffera. Poziva ga samo flusher, bez lokota.
+	 *
+	 * @param messages poruke
+	 * @param contiguous true ako sve poruke treba poslati jednim pisanjem, i ako ne
+	 *             stanu u paket
+	 * @throws IOException u slučaju greške pri pisanju
+	 */
+	private void write(List<Message> messages, boolean contiguous) throws IOException {
+		ByteBuffer packet = this.packet;
+
+		if (contiguous) {
+			int total = 0;
+
+			for (Message msg : messages) {
+				total += msg.frameLength();
+			}
+
+			// Paket se ne povećava trajno, veliki bufferi se ne drže između skupina
+			if (total > packet.capacity()) {
+				packet = ByteBuffer.allocate(total);
+			}
+		}
+
+		for (Message msg : messages) {
+			if (!msg.toBuffer(packet)) {
+				this.writePacket(packet);
+
+				// Hitne poruke ne čekaju ostatak skupine
+				if (this.urgentWaiting) {
+					this.writeUrgent(packet);
+				}
+
+				if (!msg.toBuffer(packet)) {
+					this.writeOversized(msg);
+				}
+			}
+		}
+
+		this.writePacket(packet);
 		this.output.flush();
-	
-		this.sendBuffer.clear();
+	}
+
+	/**
+	 * Šalje poruku veću od paketa samu, u privremenom paketu njene veličine, pa paket
+	 * buffera ne raste zbog jedne velike poruke. Poziva ga samo flusher.
+	 *
+	 * @param msg poruka
+	 * @throws IOException u slučaju greške pri slanju
+	 */
+	private void writeOversized(Message msg) throws IOException {
+		ByteBuffer oversized = ByteBuffer.allocate(msg.frameLength());
+
+		msg.toBuffer(oversized);
+		this.writePacket(oversized);
+	}
+
+	/**
+	 * Preuzima hitne poruke koje su stigle za vrijeme pražnjenja i odmah ih piše, prije
+	 * ostatka skupine. Poziva ga samo flusher, između dva paketa.
+	 *
+	 * @param packet prazan paket
+	 * @throws IOException u slučaju greške pri slanju
+	 */
+	private void writeUrgent(ByteBuffer packet) throws IOException {
+		List<Message> urgent;
+		List<CompletableFuture<Void>> urgentWritten;
+
+		this.lock.lock();
+
+		try {
+			urgent = this.urgentLane;
+			urgentWritten = this.urgentCompletions;
+
+			this.urgentLane = new ArrayList<Message>();
+			this.urgentCompletions = new ArrayList<CompletableFuture<Void>>();
+			this.urgentWaiting = false;
+
+			for (Message msg : urgent) {
+				this.pendingBytes -= msg.frameLength();
+				this.inFlightBytes += msg.frameLength();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+		try {
+			for (Message msg : urgent) {
+				if (!msg.toBuffer(packet)) {
+					this.writePacket(packet);
+
+					if (!msg.toBuffer(packet)) {
+						this.writeOversized(msg);
+					}
+				}
+			}
+
+			this.writePacket(packet);
+			this.output.flush();
+		} catch (IOException e) {
+			fail(urgentWritten, e);
+			throw e;
+		}
+
+		for (CompletableFuture<Void> completion : urgentWritten) {
+			completion.complete(null);
+		}
+	}
+
+	/**
+	 * Šalje sadržaj paketa na izlaz i prazni ga. Poziva ga samo flusher.
+	 *
+	 * @param packet paket
+	 * @throws IOException u slučaju greške pri slanju
+	 */
+	private void writePacket(ByteBuffer packet) throws IOException {
+		if (packet.position() > 0) {
+			PacketCompressor compressor = this.compressor;
+
+			if (compressor != null) {
+				compressor.write(packet.array(), packet.arrayOffset(), packet.position(), this.output);
+			} else {
+				this.output.write(packet.array(), packet.arrayOffset(), packet.position());
+			}
+
+			this.writeProgress = System.nanoTime();
+			packet.clear();
+		}
 	}
 }
@@ -0,0 +1,328 @@
+package hr.fer.zemris.java.nescume.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashirani kotač rokova (hashed timer wheel), jedan za mnogo buffera. Vrijeme je
+ * podijeljeno na otkucaje zadane duljine, a zadatak se sprema u pretinac otkucaja u
+ * kojem mu ističe rok, pa su zakazivanje i otkazivanje O(1) bez obzira na broj zadataka.
+ * Rokovi dalji od jednog okreta kotača čekaju u istom pretincu potreban broj okreta.
+ *
+ * Svi rokovi rade u jednoj dretvi kotača koja na kraju svakog otkucaja vadi sve istekle
+ * zadatke pretinca i izvodi ih zajedno. Zadatak se izvodi najkasnije jedan otkucaj nakon
+ * svog roka i nikad prije. Zadaci se izvode u dretvi kotača pa moraju biti kratki, pisanje
+ * na izlaz predaju drugim dretvama. Dok nema zakazanih zadataka dretva kotača spava.
+ */
+public class TimerWheel {
+
+	/**
+	 * Zakazani zadatak. Stanje pretinca mijenja samo dretva kotača, a ostale dretve
+	 * zadatak samo dodaju u red ili ga označe otkazanim.
+	 */
+	public static class Timeout {
+
+		/**
+		 * Kotač na kojem je zadatak zakazan.
+		 */
+		private final TimerWheel wheel;
+
+		/**
+		 * Zadatak koji se izvodi po isteku roka.
+		 */
+		private final Runnable task;
+
+		/**
+		 * Trenutak (System.nanoTime) isteka roka.
+		 */
+		private final long deadline;
+
+		/**
+		 * True kad je zadatak otkazan ili izveden.
+		 */
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		/**
+		 * Broj okreta kotača koje zadatak još čeka u pretincu.
+		 */
+		private long rounds;
+
+		/**
+		 * Indeks pretinca u kojem zadatak čeka, -1 dok nije u pretincu.
+		 */
+		private int bucket = -1;
+
+		/**
+		 * Prethodni zadatak u pretincu.
+		 */
+		private Timeout previous;
+
+		/**
+		 * Sljedeći zadatak u pretincu.
+		 */
+		private Timeout next;
+
+		/**
+		 * Konstruktor.
+		 * @param wheel kotač
+		 * @param task zadatak
+		 * @param deadline trenutak isteka roka
+		 */
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Otkazuje zadatak. Dretva kotača ga uklanja iz pretinca na sljedećem otkucaju.
+		 * @return true ako je zadatak otkazan, false ako je već izveden ili otkazan
+		 */
+		public boolean cancel() {
+			if(!this.finished.compareAndSet(false, true)) {
+				return false;
+			}
+
+			this.wheel.cancelled.add(this);
+
+			return true;
+		}
+	}
+
+	/**
+	 * Pretinci kotača, dvostruko povezane liste zadataka. Koristi ih samo dretva kotača.
+	 */
+	private final Timeout[] buckets;
+
+	/**
+	 * Maska indeksa pretinca, broj pretinaca je potencija broja 2.
+	 */
+	private final int mask;
+
+	/**
+	 * Duljina otkucaja u nanosekundama.
+	 */
+	private final long tickDuration;
+
+	/**
+	 * Trenutak (System.nanoTime) početka prvog otkucaja.
+	 */
+	private final long start = System.nanoTime();
+
+	/**
+	 * Novi zadaci koje dretva kotača još nije rasporedila u pretince.
+	 */
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * Otkazani zadaci koje dretva kotača još nije uklonila iz pretinaca.
+	 */
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	/**
+	 * Broj zadataka u pretincima. Koristi ga samo dretva kotača.
+	 */
+	private int size;
+
+	/**
+	 * True dok dretva kotača spava jer nema zadataka.
+	 */
+	private volatile boolean idle;
+
+	/**
+	 * True dok kotač radi.
+	 */
+	private volatile boolean active = true;
+
+	/**
+	 * Dretva kotača.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Stvara kotač i pokreće njegovu dretvu.
+	 * @param tickDuration duljina otkucaja
+	 * @param unit jedinica duljine otkucaja
+	 * @param wheelSize broj pretinaca, zaokružuje se na potenciju broja 2
+	 * @param name ime dretve kotača
+	 * @throws IllegalArgumentException ako duljina otkucaja ili broj pretinaca nisu pozitivni
+	 */
+	public TimerWheel(long tickDuration, TimeUnit unit, int wheelSize, String name) {
+		if(tickDuration <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Duljina otkucaja i broj pretinaca moraju biti veći od 0!");
+		}
+
+		int buckets = Integer.highestOneBit(Math.min(wheelSize, 1 << 30));
+
+		if(buckets < wheelSize) {
+			buckets <<= 1;
+		}
+
+		this.buckets = new Timeout[buckets];
+		this.mask = buckets - 1;
+		this.tickDuration = Math.max(1, unit.toNanos(tickDuration));
+
+		this.thread = new Thread(new Runnable() {
+
+			public void run() {
+				tick();
+			}
+
+		}, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Zakazuje zadatak koji se izvodi u dretvi kotača nakon isteka roka.
+	 * @param task zadatak
+	 * @param delay rok
+	 * @param unit jedinica roka
+	 * @return zakazani zadatak, služi za otkazivanje
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(this, task, System.nanoTime() + unit.toNanos(delay));
+
+		this.scheduled.add(timeout);
+
+		if(this.idle) {
+			LockSupport.unpark(this.thread);
+		}
+
+		return timeout;
+	}
+
+	/**
+	 * Zaustavlja dretvu kotača. Zadaci koji nisu izvedeni više se neće izvesti.
+	 */
+	public void stop() {
+		this.active = false;
+		LockSupport.unpark(this.thread);
+	}
+
+	/**
+	 * Petlja dretve kotača. Na kraju svakog otkucaja raspoređuje nove zadatke, uklanja
+	 * otkazane i izvodi sve istekle zadatke pretinca tog otkucaja.
+	 */
+	private void tick() {
+		long tick = 0;
+		List<Timeout> expired = new ArrayList<Timeout>();
+
+		while(this.active) {
+			if(this.size == 0 && this.scheduled.isEmpty()) {
+				// Otkazani zadaci više nisu ni u jednom pretincu
+				this.cancelled.clear();
+				this.idle = true;
+
+				// Ponovna provjera, zadatak je mogao stići prije nego je idle postavljen
+				if(this.scheduled.isEmpty()) {
+					LockSupport.park(this);
+				}
+
+				this.idle = false;
+
+				// Pretinci su prazni, preskaču se otkucaji prespavani bez zadataka
+				tick = Math.max(tick, (System.nanoTime() - this.start) / this.tickDuration);
+				continue;
+			}
+
+			long end = this.start + (tick + 1) * this.tickDuration;
+			long remaining;
+
+			while(this.active && (remaining = end - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+
+			Timeout timeout;
+
+			while((timeout = this.scheduled.poll()) != null) {
+				if(!timeout.finished.get()) {
+					this.place(timeout, tick);
+				}
+			}
+
+			while((timeout = this.cancelled.poll()) != null) {
+				this.remove(timeout);
+			}
+
+			for(timeout = this.buckets[(int) (tick & this.mask)]; timeout != null;) {
+				Timeout next = timeout.next;
+
+				if(timeout.rounds <= 0) {
+					this.remove(timeout);
+
+					if(timeout.finished.compareAndSet(false, true)) {
+						expired.add(timeout);
+					}
+				} else {
+					timeout.rounds--;
+				}
+
+				timeout = next;
+			}
+
+			for(Timeout task : expired) {
+				try {
+					task.task.run();
+				} catch(RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+
+			expired.clear();
+			tick++;
+		}
+	}
+
+	/**
+	 * Stavlja zadatak u pretinac otkucaja u kojem mu ističe rok. Zadatak kojem je rok
+	 * već prošao ide u pretinac trenutnog otkucaja.
+	 * @param timeout zadatak
+	 * @param tick trenutni otkucaj
+	 */
+	private void place(Timeout timeout, long tick) {
+		long due = Math.max(tick, (timeout.deadline - this.start) / this.tickDuration);
+		int bucket = (int) (due & this.mask);
+
+		timeout.rounds = (due - tick) / this.buckets.length;
+		timeout.bucket = bucket;
+		timeout.next = this.buckets[bucket];
+
+		if(timeout.next != null) {
+			timeout.next.previous = timeout;
+		}
+
+		this.buckets[bucket] = timeout;
+		this.size++;
+	}
+
+	/**
+	 * Vadi zadatak iz njegovog pretinca ako je u nekom.
+	 * @param timeout zadatak
+	 */
+	private void remove(Timeout timeout) {
+		if(timeout.bucket < 0) {
+			return;
+		}
+
+		if(timeout.previous != null) {
+			timeout.previous.next = timeout.next;
+		} else {
+			this.buckets[timeout.bucket] = timeout.next;
+		}
+
+		if(timeout.next != null) {
+			timeout.next.previous = timeout.previous;
+		}
+
+		timeout.bucket = -1;
+		timeout.previous = null;
+		timeout.next = null;
+		this.size--;
+	}
+}
@@ -0,0 +1,143 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.NotificationMessage;
+
+/**
+ * Pretplata klijenta s kreditom (SubscriptionMessage). Poruka koja pretplati odgovara
+ * šalje se klijentu samo dok pretplata ima kredita, a svaka poslana poruka troši jedan.
+ * Bez kredita poruke čekaju u zaostatku pretplate, najviše subscription.backlog njih, a
+ * kad je zaostatak pun izbacuje se najstarija. Klijent kredit daje kad stigne obraditi
+ * nove poruke, pa spori pretplatnik usporava samo svoju pretplatu, a ostale pretplate i
+ * poruke na istoj vezi idu dalje.
+ *
+ * Kredit, zaostatak i slanje štiti monitor pretplate, pa poruke pretplate na izlaz idu
+ * redom kojim su stigle. Slanje konekcije ne blokira, pa se smije zvati pod monitorom.
+ */
+public abstract class CreditSubscription {
+
+	/**
+	 * Posjetitelj koji poruku predaje svakoj pretplati kojoj odgovara. Svaki primatelj
+	 * ima svog, pa predaja ne alocira memoriju.
+	 */
+	static class Notifier implements SubscriptionIndex.Visitor<CreditSubscription> {
+
+		/**
+		 * Poruka koja se predaje.
+		 */
+		Message message;
+
+		public void matched(CreditSubscription subscription) {
+			subscription.offer(message);
+		}
+	}
+
+	/**
+	 * Identifikator pretplate na vezi klijenta.
+	 */
+	private final int id;
+
+	/**
+	 * Najveći broj poruka koje čekaju kredit.
+	 */
+	private final int capacity;
+
+	/**
+	 * Brojači rada servera.
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Broj poruka koje se još smiju poslati. Kad je veći od 0, zaostatak je prazan.
+	 */
+	private long credit;
+
+	/**
+	 * Poruke koje čekaju kredit, redom kojim su stigle.
+	 */
+	private final Deque<Message> backlog = new ArrayDeque<Message>();
+
+	/**
+	 * True kad je pretplata zatvorena, tada se poruke više ne šalju.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * Konstruktor pretplate bez kredita.
+	 * @param id identifikator pretplate na vezi klijenta
+	 * @param capacity najveći broj poruka koje čekaju kredit
+	 * @param metrics brojači rada servera
+	 */
+	public CreditSubscription(int id, int capacity, ServerMetrics metrics) {
+		this.id = id;
+		this.capacity = capacity;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return identifikator pretplate na vezi klijenta
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Predaje poruku pretplati. Ako pretplata ima kredita poruka odmah ide klijentu, a
+	 * inače čeka u zaostatku.
+	 * @param message poruka koja pretplati odgovara
+	 */
+	public synchronized void offer(Message message) {
+		if(cancelled) {
+			return;
+		}
+
+		if(credit > 0) {
+			credit--;
+			send(new NotificationMessage(id, message));
+			return;
+		}
+
+		if(backlog.size() >= capacity) {
+			backlog.pollFirst();
+			metrics.droppedNotification();
+		}
+
+		backlog.addLast(message);
+	}
+
+	/**
+	 * Daje pretplati kredit za još zadani broj poruka i odmah šalje poruke iz zaostatka
+	 * koliko kredit dopušta.
+	 * @param count broj poruka, veći od 0
+	 */
+	public synchronized void grant(long count) {
+		if(cancelled) {
+			return;
+		}
+
+		credit = credit + count < 0 ? Long.MAX_VALUE : credit + count;
+
+		while(credit > 0 && !backlog.isEmpty()) {
+			credit--;
+			send(new NotificationMessage(id, backlog.pollFirst()));
+		}
+	}
+
+	/**
+	 * Zatvara pretplatu. Ne čeka na monitor pretplate, pa je smije zvati i konekcija koja
+	 * se zatvara usred slanja druge pretplate.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Šalje poruku pretplate klijentu. Poziva se pod monitorom pretplate i ne smije
+	 * blokirati; ako slanje ne uspije, konekcija se zatvara.
+	 * @param notification zaglavlje pretplate s porukom
+	 */
+	protected abstract void send(NotificationMessage notification);
+}
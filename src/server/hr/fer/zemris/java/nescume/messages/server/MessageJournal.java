@@ -0,0 +1,784 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+/**
+ * Žurnal poruka koje čekaju isporuku. Poruka se u žurnal dodaje kad je server stavi u
+ * sandučić odredišta, a potvrđuje kad je predana odredištu ili odbačena, pa nakon ponovnog
+ * pokretanja servera nepotvrđene poruke nisu izgubljene. Poruke predane bufferu spojenog
+ * klijenta ne prolaze kroz žurnal.
+ *
+ * Žurnal je niz segmenata jednake veličine u zadanom direktoriju (journal-N.log) koji se
+ * samo nadopunjuju. Aktivni segment je mapiran u memoriju (MappedByteBuffer), pa je
+ * dodavanje zapisa samo kopiranje okvira poruke u mapirani buffer. Zapis o dodavanju
+ * sadrži oznaku vrste, redni broj i trenutak isteka poruke, a iza njih okvir poruke u
+ * obliku u kojem putuje mrežom. Zapis o potvrdi sadrži samo oznaku i redni broj. Oznaka
+ * vrste piše se zadnja, pa nedovršen zapis izgleda kao kraj segmenta.
+ *
+ * Zapisi se na disk spremaju skupno (group commit): dretva žurnala svakih
+ * journal.sync.interval milisekundi, ili odmah kad netko čeka trajnost svog zapisa, jednim
+ * pozivom force() sprema sve zapise dodane od prethodnog spremanja. Segment se briše kad
+ * su potvrđene sve poruke u njemu i u svim starijim segmentima, jer potvrde tih poruka
+ * mogu biti u novijim segmentima. Tko ne zove awaitSynced, može kod pada računala izgubiti
+ * zapise dodane u zadnjih journal.sync.interval milisekundi; server ga zove samo uz
+ * journal.durable.
+ *
+ * Na heapu se za svaku nepotvrđenu poruku pamti samo gdje joj je zapis, a okvir se po
+ * potrebi čita iz mapiranog segmenta (read). Da jedna dugovječna poruka ne bi zadržala
+ * sve novije segmente, dretva žurnala sažima (compaction) najstariji segment kad u njemu
+ * ostane manje od četvrtine živih bajtova: preostale poruke seli u aktivni segment s istim
+ * rednim brojevima, a najstariji segment briše.
+ */
+public class MessageJournal {
+
+	/**
+	 * Oznaka zapisa o dodavanju poruke.
+	 */
+	private static final byte APPEND = 1;
+
+	/**
+	 * Oznaka zapisa o potvrdi poruke.
+	 */
+	private static final byte CONFIRM = 2;
+
+	/**
+	 * Duljina zapisa o dodavanju bez okvira poruke: oznaka, redni broj i trenutak isteka.
+	 */
+	private static final int APPEND_HEADER_LENGTH = 1 + 8 + 8;
+
+	/**
+	 * Duljina zapisa o potvrdi: oznaka i redni broj.
+	 */
+	private static final int CONFIRM_LENGTH = 1 + 8;
+
+	/**
+	 * Najstariji segment se sažima kad u njemu ostane manje od 1/COMPACTION_RATIO živih
+	 * bajtova.
+	 */
+	private static final int COMPACTION_RATIO = 4;
+
+	/**
+	 * Najmanja veličina segmenta, u segment moraju stati barem dvije najveće poruke.
+	 */
+	public static final int minSegmentSize = 2 * (APPEND_HEADER_LENGTH + Message.headerLength + Message.maxDataLength);
+
+	/**
+	 * Poruka iz žurnala koja nije bila potvrđena prije ponovnog pokretanja. Sama poruka se
+	 * čita metodom read.
+	 */
+	public static class Record {
+
+		/**
+		 * Redni broj zapisa.
+		 */
+		private final long id;
+
+		/**
+		 * Trenutak (u milisekundama) nakon kojeg se poruka odbacuje.
+		 */
+		private final long expires;
+
+		/**
+		 * Duljina okvira poruke u bajtovima.
+		 */
+		private final int length;
+
+		/**
+		 * Ključ adrese odredišta poruke.
+		 */
+		private final int destinationKey;
+
+		/**
+		 * Konstruktor.
+		 * @param id redni broj zapisa
+		 * @param expires trenutak isteka poruke
+		 * @param length duljina okvira poruke
+		 * @param destinationKey ključ adrese odredišta
+		 */
+		private Record(long id, long expires, int length, int destinationKey) {
+			this.id = id;
+			this.expires = expires;
+			this.length = length;
+			this.destinationKey = destinationKey;
+		}
+
+		/**
+		 * @return redni broj zapisa, koristi se za potvrdu
+		 */
+		public long getId() {
+			return id;
+		}
+
+		/**
+		 * @return trenutak (u milisekundama) nakon kojeg se poruka odbacuje
+		 */
+		public long getExpires() {
+			return expires;
+		}
+
+		/**
+		 * @return duljina okvira poruke u bajtovima
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return ključ adrese odredišta poruke
+		 */
+		public int getDestinationKey() {
+			return destinationKey;
+		}
+	}
+
+	/**
+	 * Položaj zapisa nepotvrđene poruke.
+	 */
+	private static class Entry {
+
+		/**
+		 * Segment sa zapisom.
+		 */
+		private Segment segment;
+
+		/**
+		 * Početak zapisa u segmentu.
+		 */
+		private int offset;
+
+		/**
+		 * Duljina okvira poruke.
+		 */
+		private final int length;
+
+		/**
+		 * Konstruktor.
+		 * @param segment segment sa zapisom
+		 * @param offset početak zapisa u segmentu
+		 * @param length duljina okvira poruke
+		 */
+		public Entry(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Jedan segment žurnala.
+	 */
+	private static class Segment {
+
+		/**
+		 * Redni broj segmenta.
+		 */
+		private final long number;
+
+		/**
+		 * Datoteka segmenta.
+		 */
+		private final File file;
+
+		/**
+		 * Mapirani sadržaj segmenta, pozicija je kraj zapisa. Segmenti pročitani pri
+		 * otvaranju mapirani su samo za čitanje.
+		 */
+		private MappedByteBuffer buffer;
+
+		/**
+		 * Broj nepotvrđenih poruka dodanih u ovaj segment.
+		 */
+		private int live;
+
+		/**
+		 * Ukupna duljina zapisa nepotvrđenih poruka u ovom segmentu.
+		 */
+		private long liveBytes;
+
+		/**
+		 * Konstruktor.
+		 * @param number redni broj segmenta
+		 * @param file datoteka segmenta
+		 */
+		public Segment(long number, File file) {
+			this.number = number;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Direktorij segmenata.
+	 */
+	private final File directory;
+
+	/**
+	 * Veličina segmenta u bajtovima.
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Najdulje vrijeme (u milisekundama) koje zapis čeka spremanje na disk.
+	 */
+	private final long syncInterval;
+
+	/**
+	 * Segmenti od najstarijeg, zadnji je aktivni.
+	 */
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+	/**
+	 * Položaj zapisa svake nepotvrđene poruke, po rednom broju zapisa.
+	 */
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+	/**
+	 * Segmenti sa zapisima koji još nisu spremljeni na disk.
+	 */
+	private final List<Segment> unsynced = new ArrayList<Segment>();
+
+	/**
+	 * Nepotvrđene poruke pročitane pri otvaranju, redom kojim su dodane.
+	 */
+	private final List<Record> recovered = new ArrayList<Record>();
+
+	/**
+	 * Redni broj sljedećeg zapisa o dodavanju.
+	 */
+	private long nextId = 1;
+
+	/**
+	 * Najveći redni broj zapisa o dodavanju koji je spremljen na disk.
+	 */
+	private long syncedId;
+
+	/**
+	 * Broj dretvi koje čekaju spremanje svojih zapisa.
+	 */
+	private int waiting;
+
+	/**
+	 * True dok je žurnal otvoren.
+	 */
+	private boolean open = true;
+
+	/**
+	 * Dretva koja sprema zapise na disk.
+	 */
+	private final Thread syncer;
+
+	/**
+	 * Otvara žurnal u zadanom direktoriju, čita nepotvrđene poruke iz postojećih segmenata
+	 * i započinje novi aktivni segment.
+	 * @param directory direktorij segmenata, stvara se ako ne postoji
+	 * @param segmentSize veličina segmenta u bajtovima, barem minSegmentSize
+	 * @param syncInterval najdulje vrijeme (u milisekundama) koje zapis čeka spremanje
+	 * @param name ime dretve žurnala
+	 * @throws IOException ako se segmenti ne mogu pročitati ili stvoriti
+	 * @throws IllegalArgumentException ako je segment premalen
+	 */
+	public MessageJournal(File directory, int segmentSize, long syncInterval, String name) throws IOException {
+		if(segmentSize < minSegmentSize) {
+			throw new IllegalArgumentException("journal.segment.size mora biti barem " + minSegmentSize + "!");
+		}
+
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Nije moguće stvoriti direktorij žurnala " + directory + "!");
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+
+		recover();
+		roll();
+
+		this.syncer = new Thread(new Runnable() {
+
+			public void run() {
+				sync();
+			}
+
+		}, name);
+		this.syncer.setDaemon(true);
+		this.syncer.start();
+	}
+
+	/**
+	 * Vraća nepotvrđene poruke pročitane pri otvaranju žurnala, redom kojim su dodane, i
+	 * zaboravlja ih, pa ih sljedeći poziv više ne vraća. Poruke ostaju u žurnalu dok se ne
+	 * potvrde.
+	 * @return nepotvrđene poruke
+	 */
+	public synchronized List<Record> takeRecovered() {
+		List<Record> records = new ArrayList<Record>(recovered);
+
+		recovered.clear();
+
+		return records;
+	}
+
+	/**
+	 * Dodaje poruku u žurnal. Zapis je na disku najkasnije nakon journal.sync.interval
+	 * milisekundi, a tko to treba ranije zove awaitSynced.
+	 * @param message poruka
+	 * @param expires trenutak (u milisekundama) nakon kojeg se poruka odbacuje
+	 * @return redni broj zapisa, koristi se za potvrdu
+	 * @throws IOException ako se ne može stvoriti novi segment
+	 */
+	public synchronized long append(Message message, long expires) throws IOException {
+		checkOpen();
+
+		int length = message.frameLength();
+		Segment active = reserve(APPEND_HEADER_LENGTH + length);
+
+		long id = nextId++;
+		MappedByteBuffer buffer = active.buffer;
+		int start = buffer.position();
+
+		buffer.position(start + 1);
+		buffer.putLong(id);
+		buffer.putLong(expires);
+		message.toBuffer(buffer);
+		buffer.put(start, APPEND);
+
+		entries.put(id, new Entry(active, start, length));
+		addLive(active, length, 1);
+		markUnsynced(active);
+
+		return id;
+	}
+
+	/**
+	 * Čita nepotvrđenu poruku iz njenog segmenta. Okvir poruke se kopira, pa poruka ostaje
+	 * ispravna i nakon potvrde.
+	 * @param id redni broj zapisa
+	 * @return poruka, null ako je potvrđena ili nepoznata
+	 */
+	public synchronized Message read(long id) {
+		Entry entry = entries.get(id);
+
+		if(entry == null || !open) {
+			return null;
+		}
+
+		ByteBuffer frame = entry.segment.buffer.duplicate();
+
+		frame.limit(entry.offset + APPEND_HEADER_LENGTH + entry.length);
+		frame.position(entry.offset + APPEND_HEADER_LENGTH);
+
+		return Message.relayFromBuffer(frame);
+	}
+
+	/**
+	 * Potvrđuje poruku koja je predana odredištu ili odbačena, pa se više neće vratiti
+	 * pri otvaranju žurnala. Nepoznati redni brojevi se zanemaruju.
+	 * @param id redni broj zapisa poruke
+	 * @throws IOException ako se ne može stvoriti novi segment
+	 */
+	public synchronized void confirm(long id) throws IOException {
+		Entry entry = entries.remove(id);
+
+		if(entry == null || !open) {
+			return;
+		}
+
+		Segment active = reserve(CONFIRM_LENGTH);
+		MappedByteBuffer buffer = active.buffer;
+		int start = buffer.position();
+
+		buffer.position(start + 1);
+		buffer.putLong(id);
+		buffer.put(start, CONFIRM);
+
+		markUnsynced(active);
+
+		addLive(entry.segment, entry.length, -1);
+		purge();
+	}
+
+	/**
+	 * Čeka da zapis o dodavanju zadane poruke bude spremljen na disk. Sve dretve koje čekaju
+	 * istovremeno dijele jedan poziv force().
+	 * @param id redni broj zapisa
+	 * @throws InterruptedException ako je dretva prekinuta dok čeka
+	 * @throws IOException ako je žurnal zatvoren prije spremanja
+	 */
+	public synchronized void awaitSynced(long id) throws InterruptedException, IOException {
+		waiting++;
+
+		try {
+			notifyAll();
+
+			while(syncedId < id) {
+				checkOpen();
+				wait();
+			}
+		} finally {
+			waiting--;
+		}
+	}
+
+	/**
+	 * Sprema na disk sve zapise dodane do sada i zatvara žurnal. Segmenti ostaju na disku.
+	 */
+	public void close() {
+		synchronized(this) {
+			if(!open) {
+				return;
+			}
+
+			open = false;
+			notifyAll();
+		}
+
+		try {
+			syncer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Petlja dretve žurnala: čeka da istekne interval ili da netko čeka spremanje, pa
+	 * sprema sve zapise dodane do tog trenutka. Kod zatvaranja sprema posljednje zapise.
+	 */
+	private void sync() {
+		boolean running = true;
+
+		while(running) {
+			List<Segment> toSync;
+			long id;
+
+			synchronized(this) {
+				long deadline = System.currentTimeMillis() + syncInterval;
+
+				// Bez čekatelja, ili bez ičega za spremanje, čeka se do kraja intervala
+				while(open && (waiting == 0 || unsynced.isEmpty())) {
+					long remaining = deadline - System.currentTimeMillis();
+
+					if(remaining <= 0) {
+						break;
+					}
+
+					try {
+						wait(remaining);
+					} catch (InterruptedException ignorable) {
+					}
+				}
+
+				running = open;
+
+				try {
+					compact();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+
+				if(unsynced.isEmpty()) {
+					syncedId = nextId - 1;
+					notifyAll();
+					continue;
+				}
+
+				toSync = new ArrayList<Segment>(unsynced);
+				id = nextId - 1;
+				unsynced.clear();
+			}
+
+			// force() se radi izvan monitora, da dodavanje ne čeka disk
+			for(Segment segment : toSync) {
+				segment.buffer.force();
+			}
+
+			synchronized(this) {
+				syncedId = id;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Sažima najstarije segmente dok je u najstarijem manje od 1/COMPACTION_RATIO živih
+	 * bajtova: zapise nepotvrđenih poruka kopira u aktivni segment i briše najstariji.
+	 * Kopije se spremaju na disk prije brisanja izvornika. Poziva se pod monitorom.
+	 * @throws IOException ako se ne može stvoriti novi segment
+	 */
+	private void compact() throws IOException {
+		while(segments.size() > 1 && segments.peekFirst().live > 0
+				&& segments.peekFirst().liveBytes * COMPACTION_RATIO < segmentSize) {
+			Segment oldest = segments.peekFirst();
+			ByteBuffer records = oldest.buffer.duplicate();
+			int end = oldest.buffer.position();
+			int start = 0;
+
+			// Zapisi do pozicije segmenta su već provjereni pri pisanju ili čitanju
+			while(start < end) {
+				if(records.get(start) == CONFIRM) {
+					start += CONFIRM_LENGTH;
+					continue;
+				}
+
+				long id = records.getLong(start + 1);
+				int frame = start + APPEND_HEADER_LENGTH;
+				int length = Message.headerLength + (records.getShort(frame + Message.headerLength - 2) & 0xFFFF);
+				Entry entry = entries.get(id);
+
+				if(entry != null && entry.segment == oldest && entry.offset == start) {
+					records.limit(frame + length);
+					records.position(frame);
+					move(entry, id, records.getLong(start + 9), records);
+					records.limit(records.capacity());
+				}
+
+				start = frame + length;
+			}
+
+			if(oldest.live > 0) {
+				return;
+			}
+
+			for(Segment segment : unsynced) {
+				segment.buffer.force();
+			}
+
+			purge();
+		}
+	}
+
+	/**
+	 * Kopira zapis nepotvrđene poruke u aktivni segment s istim rednim brojem.
+	 * @param entry položaj zapisa, mijenja se
+	 * @param id redni broj zapisa
+	 * @param expires trenutak isteka poruke
+	 * @param frame okvir poruke između pozicije i granice
+	 * @throws IOException ako se ne može stvoriti novi segment
+	 */
+	private void move(Entry entry, long id, long expires, ByteBuffer frame) throws IOException {
+		Segment active = reserve(APPEND_HEADER_LENGTH + entry.length);
+		MappedByteBuffer buffer = active.buffer;
+		int start = buffer.position();
+
+		buffer.position(start + 1);
+		buffer.putLong(id);
+		buffer.putLong(expires);
+		buffer.put(frame);
+		buffer.put(start, APPEND);
+
+		addLive(entry.segment, entry.length, -1);
+		entry.segment = active;
+		entry.offset = start;
+		addLive(active, entry.length, 1);
+		markUnsynced(active);
+	}
+
+	/**
+	 * Vraća aktivni segment u koji stane zapis zadane duljine, po potrebi započinje novi.
+	 * Iza zadnjeg zapisa uvijek ostaje barem jedan nulti bajt kao oznaka kraja.
+	 * @param length duljina zapisa
+	 * @return aktivni segment
+	 * @throws IOException ako se ne može stvoriti novi segment
+	 */
+	private Segment reserve(int length) throws IOException {
+		Segment active = segments.peekLast();
+
+		return active.buffer.remaining() <= length ? roll() : active;
+	}
+
+	/**
+	 * Mijenja broj i duljinu živih zapisa segmenta.
+	 * @param segment segment
+	 * @param length duljina okvira poruke
+	 * @param sign 1 kad zapis postaje živ, -1 kad prestaje biti živ
+	 */
+	private void addLive(Segment segment, int length, int sign) {
+		segment.live += sign;
+		segment.liveBytes += sign * (APPEND_HEADER_LENGTH + length);
+	}
+
+	/**
+	 * Označava da segment ima zapise koji nisu spremljeni na disk.
+	 * @param segment segment
+	 */
+	private void markUnsynced(Segment segment) {
+		if(unsynced.isEmpty() || unsynced.get(unsynced.size() - 1) != segment) {
+			unsynced.add(segment);
+		}
+	}
+
+	/**
+	 * Započinje novi aktivni segment.
+	 * @return novi segment
+	 * @throws IOException ako se segment ne može stvoriti
+	 */
+	private Segment roll() throws IOException {
+		long number = segments.isEmpty() ? 1 : segments.peekLast().number + 1;
+		Segment segment = new Segment(number, new File(directory, "journal-" + number + ".log"));
+		RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+
+		try {
+			file.setLength(segmentSize);
+			segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			file.close();
+		}
+
+		segments.addLast(segment);
+		purge();
+
+		return segment;
+	}
+
+	/**
+	 * Briše najstarije segmente čije su sve poruke potvrđene. Aktivni segment se ne briše.
+	 */
+	private void purge() {
+		while(segments.size() > 1 && segments.peekFirst().live == 0) {
+			Segment segment = segments.pollFirst();
+
+			unsynced.remove(segment);
+
+			if(!segment.file.delete()) {
+				System.err.println("Nije moguće obrisati segment žurnala " + segment.file + "!");
+			}
+		}
+	}
+
+	/**
+	 * Čita postojeće segmente redom i pamti poruke koje nisu potvrđene. Čitanje segmenta
+	 * staje na prvom nedovršenom ili neispravnom zapisu.
+	 * @throws IOException ako se segment ne može pročitati
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			public boolean accept(File dir, String name) {
+				return name.matches("journal-[0-9]+\\.log");
+			}
+
+		});
+
+		long[] numbers = new long[files == null ? 0 : files.length];
+
+		for(int i = 0; i < numbers.length; i++) {
+			String name = files[i].getName();
+			numbers[i] = Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+		}
+
+		Arrays.sort(numbers);
+
+		// Sažete poruke su kasnije u žurnalu od novijih, pa se vraćaju po rednom broju
+		Map<Long, Record> unconfirmed = new TreeMap<Long, Record>();
+
+		for(long number : numbers) {
+			Segment segment = new Segment(number, new File(directory, "journal-" + number + ".log"));
+			RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+
+			try {
+				segment.buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			} finally {
+				file.close();
+			}
+
+			read(segment, unconfirmed);
+			segments.addLast(segment);
+		}
+
+		recovered.addAll(unconfirmed.values());
+	}
+
+	/**
+	 * Čita zapise jednog segmenta i postavlja poziciju njegovog buffera na kraj ispravnih
+	 * zapisa.
+	 * @param segment segment
+	 * @param unconfirmed nepotvrđene poruke po rednom broju, nadopunjuje se
+	 */
+	private void read(Segment segment, Map<Long, Record> unconfirmed) {
+		ByteBuffer buffer = segment.buffer;
+		int start = 0;
+
+		while(start < buffer.limit()) {
+			byte kind = buffer.get(start);
+
+			if(kind == APPEND && start + APPEND_HEADER_LENGTH + Message.headerLength <= buffer.limit()) {
+				long id = buffer.getLong(start + 1);
+				long expires = buffer.getLong(start + 9);
+				int frame = start + APPEND_HEADER_LENGTH;
+				int length = Message.headerLength + (buffer.getShort(frame + Message.headerLength - 2) & 0xFFFF);
+
+				if(frame + length > buffer.limit() || !validType(buffer.get(frame + Message.headerLength - 3))) {
+					break;
+				}
+
+				// Poruka koja je već pročitana ovdje je sažeta kopija
+				Entry previous = entries.put(id, new Entry(segment, start, length));
+
+				if(previous != null) {
+					addLive(previous.segment, previous.length, -1);
+				}
+
+				int destination = (buffer.get(frame) & 0xFF) << 16 | (buffer.get(frame + 1) & 0xFF) << 8
+						| (buffer.get(frame + 2) & 0xFF);
+
+				unconfirmed.put(id, new Record(id, expires, length, destination));
+				addLive(segment, length, 1);
+				nextId = Math.max(nextId, id + 1);
+				start = frame + length;
+			} else if(kind == CONFIRM && start + CONFIRM_LENGTH <= buffer.limit()) {
+				long id = buffer.getLong(start + 1);
+				Entry entry = entries.remove(id);
+
+				if(entry != null) {
+					unconfirmed.remove(id);
+					addLive(entry.segment, entry.length, -1);
+				}
+
+				start += CONFIRM_LENGTH;
+			} else {
+				break;
+			}
+		}
+
+		buffer.position(start);
+	}
+
+	/**
+	 * Provjerava bajt tipa iz okvira poruke.
+	 * @param type bajt tipa, s oznakom hitnosti
+	 * @return true ako je tip poruke ispravan
+	 */
+	private static boolean validType(byte type) {
+		try {
+			MessageType.fromByte((byte) (type & 127));
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Provjerava da je žurnal otvoren.
+	 * @throws IOException ako je žurnal zatvoren
+	 */
+	private void checkOpen() throws IOException {
+		if(!open) {
+			throw new IOException("Žurnal je zatvoren!");
+		}
+	}
+}
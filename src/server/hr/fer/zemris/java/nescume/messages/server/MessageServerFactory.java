@@ -0,0 +1,36 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.util.Properties;
+
+/**
+ * Stvara server prema propertyju server.mode iz server.properties. Podržani načini su
+ * "socket" (dretve po klijentu, SocketMessageServer) i "nio" (fiksni broj I/O dretvi sa
+ * selektorima, NioMessageServer).
+ */
+public class MessageServerFactory {
+
+	/**
+	 * Klasa se ne instancira.
+	 */
+	private MessageServerFactory() {
+	}
+
+	/**
+	 * Stvara server odabran propertyjem server.mode, ako on nije zadan stvara se
+	 * SocketMessageServer.
+	 * @param properties parametri servera
+	 * @return novi, nepokrenuti server
+	 * @throws IllegalArgumentException ako server.mode ili neki drugi parametar nije ispravan
+	 */
+	public static IMessageServer createServer(Properties properties) {
+		String mode = properties.getProperty("server.mode", "socket").trim();
+
+		if("socket".equals(mode)) {
+			return new SocketMessageServer(properties);
+		} else if("nio".equals(mode)) {
+			return new NioMessageServer(properties);
+		}
+
+		throw new IllegalArgumentException("server.mode mora biti socket ili nio!");
+	}
+}
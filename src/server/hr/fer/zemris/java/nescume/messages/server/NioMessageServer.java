@@ -0,0 +1,1292 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.BufferPool;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.NotificationMessage;
+import hr.fer.zemris.java.nescume.messages.QueryMessage;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.SubscriptionMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerCannotStart;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerCrashed;
+
+/**
+ * Implementacija servera koja klijente opslužuje preko neblokirajućih kanala. Sve
+ * konekcije dijele mali, fiksni broj I/O dretvi (io.threads) od kojih svaka vrti svoj
+ * selektor, pa broj dretvi ne ovisi o broju spojenih klijenata. Format poruka na žici
+ * jednak je onom kod SocketMessageServer-a, a poruke se kodiraju izravno u buffere kanala
+ * (Message.toBuffer/relayFromBuffer).
+ *
+ * Server ne dogovara komprimiranje (compression): na ponudu iz registracije ne odgovara,
+ * pa klijent i server razmjenjuju nekomprimirane pakete. Ni pouzdanu isporuku (reliable)
+ * server ne podržava: klijentu koji je traži odgovara da nije prihvaćena.
+ *
+ * Zaostatak konekcije ograničen je kao kod SocketMessageServer-a: kad bajtovi koji čekaju
+ * pisanje u kanal prijeđu watermark.high, s novim porukama se postupa prema
+ * slow.consumer.policy dok zaostatak ne padne na watermark.low. Kanali su neblokirajući,
+ * pa klijent koji ne čita ne zauzima I/O dretvu.
+ *
+ * Parkiranje poruke ne smije čekati disk, jer bi čekanje zaustavilo I/O dretvu i sve
+ * njene konekcije, pa journal.durable nije podržan.
+ */
+public class NioMessageServer implements IMessageServer {
+
+	/**
+	 * Veličina zaglavlja poruke na žici: odredište, izvorište, tip i duljina tijela.
+	 */
+	private static final int HEADER_LENGTH = Message.headerLength;
+
+	/**
+	 * Najveći broj slobodnih izlaznih buffera koje server čuva za ponovnu upotrebu.
+	 */
+	private static final int RETAINED_BUFFERS = 256;
+
+	/**
+	 * Mapiranje ključeva adresa u konekcije, služi kod razmjene poruka među klijentima.
+	 * I/O dretve ga pretražuju bez zaključavanja i bez stvaranja adresa.
+	 */
+	private RoutingTable<Connection> clients = new RoutingTable<Connection>();
+
+	/**
+	 * Pretplate konekcija po tipovima poruka, I/O dretve ih čitaju bez zaključavanja.
+	 */
+	private SubscriptionRegistry<Connection> queries = new SubscriptionRegistry<Connection>();
+
+	/**
+	 * Pretplate s kreditom po tipovima poruka, pretplatnik je pojedina pretplata.
+	 */
+	private SubscriptionRegistry<CreditSubscription> flows = new SubscriptionRegistry<CreditSubscription>();
+
+	/**
+	 * Poruke za klijente koji se još nisu registrirali. Ne drže nikakvu dretvu, a
+	 * isporučuju se kad se odredište registrira ili odbacuju kad im istekne vrijeme.
+	 */
+	private final PendingDeliveries pending;
+
+	/**
+	 * Brojači rada servera.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics();
+
+	/**
+	 * Posjetitelj koji poruku šalje svakom pretplatniku kojem odgovara. Svaka konekcija
+	 * ima svog, pa slanje obavijesti ne alocira memoriju.
+	 */
+	private static class Notifier implements SubscriptionIndex.Visitor<Connection> {
+
+		/**
+		 * Poruka koja se prosljeđuje.
+		 */
+		private Message message;
+
+		public void matched(Connection subscriber) {
+			subscriber.sendMessage(message);
+		}
+	}
+
+	/**
+	 * Zakazano pražnjenje buffera konekcije.
+	 */
+	private static class FlushTimer implements Comparable<FlushTimer> {
+
+		/**
+		 * Trenutak kada treba isprazniti buffer.
+		 */
+		private long deadline;
+
+		/**
+		 * Konekcija čiji buffer treba isprazniti.
+		 */
+		private Connection connection;
+
+		/**
+		 * Konstruktor.
+		 * @param deadline trenutak pražnjenja
+		 * @param connection konekcija
+		 */
+		public FlushTimer(long deadline, Connection connection) {
+			this.deadline = deadline;
+			this.connection = connection;
+		}
+
+		public int compareTo(FlushTimer other) {
+			return deadline < other.deadline ? -1 : (deadline == other.deadline ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Stanje jedne konekcije s klijentom. Čitanje i pisanje u kanal obavlja isključivo
+	 * I/O dretva kojoj je konekcija dodijeljena, dok poruke za slanje mogu dodavati sve
+	 * dretve.
+	 */
+	private class Connection {
+
+		/**
+		 * Kanal prema klijentu.
+		 */
+		private SocketChannel channel;
+
+		/**
+		 * I/O dretva koja opslužuje ovu konekciju.
+		 */
+		private IoLoop loop;
+
+		/**
+		 * Ključ kanala u selektoru I/O dretve.
+		 */
+		private SelectionKey key;
+
+		/**
+		 * Buffer u koji se čitaju pristigli bajtovi, može sadržavati više poruka i
+		 * nepotpunu poruku na kraju.
+		 */
+		private ByteBuffer readBuffer;
+
+		/**
+		 * Buffer iz bazena u koji se pakiraju poruke koje čekaju pražnjenje, null ako
+		 * nema takvih poruka.
+		 */
+		private ByteBuffer outbound;
+
+		/**
+		 * Broj poruka u outbound bufferu.
+		 */
+		private int outboundCount;
+
+		/**
+		 * True ako je u outbound bufferu dio podijeljene poruke (FRAGMENT).
+		 */
+		private boolean outboundFragment;
+
+		/**
+		 * Trenutak kada treba isprazniti outbound buffer, 0 ako nije zakazano.
+		 */
+		private long deadline;
+
+		/**
+		 * Paketi predani za slanje koji još nisu do kraja zapisani u kanal.
+		 */
+		private Deque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * Broj poruka u svakom paketu iz writeQueue, istim redom.
+		 */
+		private Deque<Integer> writeCounts = new ArrayDeque<Integer>();
+
+		/**
+		 * True za svaki paket iz writeQueue u kojem je dio podijeljene poruke, istim redom.
+		 */
+		private Deque<Boolean> writeFragments = new ArrayDeque<Boolean>();
+
+		/**
+		 * Hitne poruke, svaka u svom bufferu. Pišu se prije paketa iz writeQueue čim se
+		 * dovrši paket koji je započet.
+		 */
+		private Deque<ByteBuffer> urgentQueue = new ArrayDeque<ByteBuffer>();
+
+		/**
+		 * Broj bajtova poruka koje još nisu zapisane u kanal, u outbound bufferu i u oba
+		 * reda.
+		 */
+		private long queuedBytes;
+
+		/**
+		 * True od kad zaostatak prijeđe watermark.high dok ne padne na watermark.low.
+		 */
+		private boolean congested;
+
+		/**
+		 * Poruke odložene dok je konekcija zagušena (spill), redom kojim su stigle.
+		 */
+		private Deque<Message> spill = new ArrayDeque<Message>();
+
+		/**
+		 * True dok se klijentu šalju poruke iz sandučića, a konekcija još nije objavljena
+		 * u mapi klijenata.
+		 */
+		private volatile boolean draining;
+
+		/**
+		 * Ključ adrese klijenta, -1 do registracije.
+		 */
+		private volatile int address = -1;
+
+		/**
+		 * True dok je konekcija otvorena.
+		 */
+		private volatile boolean open = true;
+
+		/**
+		 * Prosljeđuje poruke primljene na ovoj konekciji pretplatnicima.
+		 */
+		private Notifier notifier = new Notifier();
+
+		/**
+		 * Predaje poruke primljene na ovoj konekciji pretplatama s kreditom.
+		 */
+		private CreditSubscription.Notifier flowNotifier = new CreditSubscription.Notifier();
+
+		/**
+		 * Pretplate s kreditom ove konekcije, po identifikatoru. Mijenja ih samo I/O
+		 * dretva konekcije.
+		 */
+		private Map<Integer, CreditSubscription> subscriptions = new ConcurrentHashMap<Integer, CreditSubscription>();
+
+		/**
+		 * Konstruktor konekcije.
+		 * @param channel kanal prema klijentu
+		 * @param loop I/O dretva koja opslužuje konekciju
+		 */
+		public Connection(SocketChannel channel, IoLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.readBuffer = ByteBuffer.allocate(Math.max(packetSize, HEADER_LENGTH));
+		}
+
+		/**
+		 * Čita sve raspoložive bajtove iz kanala i obrađuje svaku potpunu poruku. Poruke
+		 * za druge klijente se ne dekodiraju nego prosljeđuju u obliku u kojem su stigle.
+		 * @throws IOException u slučaju greške pri čitanju ili zatvaranja veze
+		 */
+		public void read() throws IOException {
+			if(channel.read(readBuffer) < 0) {
+				throw new IOException("Klijent je zatvorio vezu.");
+			}
+
+			readBuffer.flip();
+
+			Message received;
+
+			while((received = Message.relayFromBuffer(readBuffer)) != null) {
+				route(this, received);
+			}
+
+			readBuffer.compact();
+
+			if(!readBuffer.hasRemaining()) {
+				// Poruka ne stane u buffer, treba ga povećati
+				ByteBuffer bigger = ByteBuffer.allocate(2 * readBuffer.capacity());
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+		}
+
+		/**
+		 * Šalje poruku klijentu. Poruka se kodira u buffer konekcije koji se prazni
+		 * kada se napuni, kada je poruka hitna ili nakon isteka buffer.timeout. Hitna
+		 * poruka ide u svoj buffer ispred paketa koji čekaju pisanje. Ako je konekcija
+		 * zagušena, s porukom se postupa prema slow.consumer.policy. Metodu smije pozvati
+		 * bilo koja dretva, a ona nikada ne blokira na mreži.
+		 * @param message poruka
+		 * @return true ako je poruka prihvaćena ili odbačena prema slow.consumer.policy,
+		 *         false ako je konekcija zatvorena
+		 */
+		public boolean sendMessage(Message message) {
+			boolean slow = false;
+			boolean flush = false;
+
+			synchronized(this) {
+				if(!open) {
+					return false;
+				}
+
+				if(congested || !spill.isEmpty()) {
+					switch(slowConsumerPolicy) {
+					case DROP_OLDEST:
+						metrics.droppedOldest(evict(message.frameLength()));
+						break;
+
+					case DROP_NEW:
+						metrics.droppedNew();
+						return true;
+
+					case DISCONNECT:
+						slow = true;
+						break;
+
+					case SPILL:
+						if(spill.size() < spillCapacity) {
+							spill.addLast(message);
+							metrics.spilled();
+							return true;
+						}
+
+						slow = true;
+						break;
+					}
+				}
+
+				if(!slow) {
+					flush = enqueue(message);
+				}
+			}
+
+			if(slow) {
+				disconnectSlow();
+				return false;
+			}
+
+			if(flush) {
+				loop.requestWrite(this);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Šalje poruku klijentu samo ako konekcija nije zagušena, inače je ne dira.
+		 * @param message poruka
+		 * @return true ako je poruka prihvaćena, false ako je konekcija zagušena ili
+		 *         zatvorena
+		 */
+		public boolean offer(Message message) {
+			boolean flush;
+
+			synchronized(this) {
+				if(!open || congested || !spill.isEmpty()) {
+					return false;
+				}
+
+				flush = enqueue(message);
+			}
+
+			if(flush) {
+				loop.requestWrite(this);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Kodira poruku u buffere konekcije. Pražnjenje nakon buffer.timeout zakazuje
+		 * odmah, a pisanje u kanal prepušta pozivatelju, jer se ono smije pokrenuti tek
+		 * izvan lokota. Poziva se pod lokotom konekcije.
+		 * @param message poruka
+		 * @return true ako buffere treba odmah zapisati u kanal
+		 */
+		private boolean enqueue(Message message) {
+			boolean flush = false;
+			int frameLength = message.frameLength();
+
+			if(message.isUrgent()) {
+				ByteBuffer urgent = buffers.acquire(frameLength);
+
+				message.toBuffer(urgent);
+				urgent.flip();
+				urgentQueue.add(urgent);
+
+				// Poruke koje čekaju idu na slanje odmah iza hitne, a hitna poruka ne
+				// čeka buffer.timeout
+				if(outbound != null) {
+					moveOutbound();
+				}
+
+				flush = true;
+			} else {
+				if(outbound != null && outbound.remaining() < frameLength) {
+					// Poruka ne stane uz one koje već čekaju, one idu na slanje same
+					moveOutbound();
+					flush = true;
+				}
+
+				if(outbound == null) {
+					outbound = buffers.acquire(frameLength);
+				}
+
+				message.toBuffer(outbound);
+				outboundCount++;
+				outboundFragment |= message.getType() == MessageType.FRAGMENT;
+
+				if(outboundCount >= bufferSize || outbound.position() >= packetSize) {
+					moveOutbound();
+					flush = true;
+				} else if(deadline == 0) {
+					deadline = System.currentTimeMillis() + bufferTimeout;
+					loop.schedule(new FlushTimer(deadline, this));
+				}
+			}
+
+			queuedBytes += frameLength;
+
+			if(queuedBytes > highWatermark) {
+				congested = true;
+			}
+
+			return flush;
+		}
+
+		/**
+		 * Izbacuje najstarije pakete koji čekaju pisanje dok uz novu poruku zaostatak ne
+		 * stane ispod watermark.high (drop-oldest), a zatim i poruke iz outbound buffera.
+		 * Započeti paket, hitne poruke i paketi s dijelom podijeljene poruke se ne
+		 * izbacuju, jer bi primatelju bez jednog dijela ostala nedovršena poruka. Poziva se
+		 * pod lokotom konekcije.
+		 * @param length duljina nove poruke u bajtovima
+		 * @return broj izbačenih poruka
+		 */
+		private int evict(int length) {
+			long excess = queuedBytes + length - highWatermark;
+			int evicted = 0;
+
+			Iterator<ByteBuffer> packets = writeQueue.iterator();
+			Iterator<Integer> counts = writeCounts.iterator();
+			Iterator<Boolean> fragments = writeFragments.iterator();
+
+			while(excess > 0 && packets.hasNext()) {
+				ByteBuffer packet = packets.next();
+				int count = counts.next();
+
+				if(packet.position() > 0 || fragments.next()) {
+					continue;
+				}
+
+				excess -= packet.remaining();
+				queuedBytes -= packet.remaining();
+				evicted += count;
+
+				packets.remove();
+				counts.remove();
+				fragments.remove();
+				buffers.release(packet);
+			}
+
+			if(excess > 0 && outbound != null && !outboundFragment) {
+				queuedBytes -= outbound.position();
+				evicted += outboundCount;
+
+				buffers.release(outbound);
+				outbound = null;
+				outboundCount = 0;
+				deadline = 0;
+			}
+
+			return evicted;
+		}
+
+		/**
+		 * Prebacuje sadržaj outbound buffera u red za pisanje. Poziva se pod lokotom
+		 * konekcije.
+		 */
+		private void moveOutbound() {
+			outbound.flip();
+			writeQueue.add(outbound);
+			writeCounts.add(outboundCount);
+			writeFragments.add(outboundFragment);
+			outbound = null;
+			outboundCount = 0;
+			outboundFragment = false;
+			deadline = 0;
+		}
+
+		/**
+		 * Prazni outbound buffer ako mu je isteklo vrijeme. Poziva ju I/O dretva.
+		 * @param now trenutno vrijeme
+		 */
+		public void flushIfDue(long now) {
+			synchronized(this) {
+				if(deadline == 0 || deadline > now) {
+					return;
+				}
+
+				moveOutbound();
+			}
+
+			write();
+		}
+
+		/**
+		 * Zapisuje u kanal koliko god se može bez blokiranja. Ako kanal ne primi sve,
+		 * konekcija se prijavljuje za OP_WRITE. Kad zaostatak padne na watermark.low,
+		 * zagušenje prestaje, a odložene poruke i sandučić šalju se u sljedećem krugu I/O
+		 * dretve. Poziva ju I/O dretva.
+		 */
+		public void write() {
+			try {
+				synchronized(this) {
+					if(!open) {
+						return;
+					}
+
+					try {
+						writeQueued();
+					} finally {
+						if(congested && queuedBytes <= lowWatermark) {
+							congested = false;
+							loop.requestDrain(this);
+						}
+					}
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Zapisuje redove u kanal dok kanal prima. Poziva se pod lokotom konekcije.
+		 * @throws IOException ako pisanje u kanal nije uspjelo
+		 */
+		private void writeQueued() throws IOException {
+			while(true) {
+				Deque<ByteBuffer> queue = writeQueue;
+				ByteBuffer head = writeQueue.peek();
+
+				// Započeti paket se dovršava, inače hitne poruke idu prve
+				if(!urgentQueue.isEmpty() && (head == null || head.position() == 0)) {
+					queue = urgentQueue;
+					head = urgentQueue.peek();
+				}
+
+				if(head == null) {
+					break;
+				}
+
+				queuedBytes -= channel.write(head);
+
+				if(head.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+
+				if(queue == writeQueue) {
+					writeCounts.poll();
+					writeFragments.poll();
+				}
+
+				buffers.release(queue.poll());
+			}
+
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Nastavlja slanje nakon zagušenja: prvo odložene poruke, a zatim sandučić, dok
+		 * konekcija ponovno ne postane zagušena. Poziva ju I/O dretva.
+		 */
+		public void drain() {
+			boolean flush = false;
+
+			synchronized(this) {
+				while(open && !congested && !spill.isEmpty()) {
+					flush |= enqueue(spill.pollFirst());
+				}
+			}
+
+			if(flush) {
+				write();
+			}
+
+			if(draining) {
+				drainMailbox();
+			}
+		}
+
+		/**
+		 * Registrira klijenta pod zadanom adresom i počinje mu slati poruke iz sandučića.
+		 * U mapi klijenata objavljuje se tek kad mu se sandučić isprazni, do tada nove
+		 * poruke za njega čekaju u sandučiću iza starih.
+		 * @param key ključ adrese klijenta
+		 */
+		public void register(int key) {
+			address = key;
+			draining = true;
+
+			drainMailbox();
+		}
+
+		/**
+		 * Šalje poruke iz sandučića klijenta, skupinu po skupinu, dok konekcija ne postane
+		 * zagušena. Ostatak šalje kad zagušenje prestane, pa se sandučić ne učitava odjednom
+		 * u memoriju. Skupina se šalje izvan monitora sandučića. Kad je sandučić prazan,
+		 * klijent se objavljuje u mapi klijenata. Poziva ju samo I/O dretva konekcije, pa
+		 * sandučić prazni jedna dretva.
+		 */
+		private void drainMailbox() {
+			try {
+				while(draining) {
+					List<Message> batch = pending.peek(address);
+					int offered = 0;
+
+					while(offered < batch.size() && offer(batch.get(offered))) {
+						offered++;
+					}
+
+					pending.remove(address, offered);
+
+					if(offered < batch.size()) {
+						return;
+					}
+
+					synchronized(pending) {
+						if(pending.isEmpty(address)) {
+							draining = false;
+
+							if(open) {
+								clients.put(address, this);
+							}
+						}
+					}
+				}
+			} finally {
+				pending.writeJournal();
+			}
+		}
+
+		/**
+		 * Prekida vezu sa klijentom koji ne stiže čitati poruke.
+		 */
+		private void disconnectSlow() {
+			if(open) {
+				metrics.slowDisconnect();
+
+				//@DebugStart
+				System.out.println("Klijent " + channel.socket().getRemoteSocketAddress() + " je prespor, veza se prekida.");
+				//@DebugEnd
+
+				close();
+			}
+		}
+
+		/**
+		 * Pretplaćuje konekciju na poruke prema primljenom queryju.
+		 * @param queryMessage query poruka
+		 */
+		public void subscribe(QueryMessage queryMessage) {
+			queries.subscribe(queryMessage.getQueryType(), this, queryMessage.getPattern());
+		}
+
+		/**
+		 * Otvara, kreditira ili zatvara pretplatu s kreditom ove konekcije. Poruke za
+		 * nepostojeću pretplatu se zanemaruju, one su mogle stići nakon zatvaranja.
+		 * @param message poruka za upravljanje pretplatom
+		 */
+		public void control(SubscriptionMessage message) {
+			CreditSubscription subscription;
+
+			switch(message.getKind()) {
+			case SUBSCRIBE:
+				subscription = new CreditSubscription(message.getSubscriptionId(),
+						parameters.getSubscriptionBacklog(), metrics) {
+
+					protected void send(NotificationMessage notification) {
+						// Zatvorena konekcija je već odjavila svoje pretplate
+						sendMessage(notification);
+					}
+
+				};
+
+				CreditSubscription replaced = subscriptions.put(subscription.getId(), subscription);
+
+				if(replaced != null) {
+					replaced.cancel();
+					flows.unsubscribe(replaced);
+				}
+
+				flows.subscribe(message.getQueryType(), subscription, message.getPattern());
+				break;
+
+			case REQUEST:
+				subscription = subscriptions.get(message.getSubscriptionId());
+
+				if(subscription != null && message.getCount() > 0) {
+					subscription.grant(message.getCount());
+				}
+				break;
+
+			case CANCEL:
+				subscription = subscriptions.remove(message.getSubscriptionId());
+
+				if(subscription != null) {
+					subscription.cancel();
+					flows.unsubscribe(subscription);
+				}
+				break;
+			}
+		}
+
+		/**
+		 * Zatvara konekciju i odjavljuje klijenta.
+		 */
+		public void close() {
+			synchronized(this) {
+				if(!open) {
+					return;
+				}
+
+				open = false;
+
+				while(!writeQueue.isEmpty()) {
+					buffers.release(writeQueue.poll());
+				}
+
+				writeCounts.clear();
+				writeFragments.clear();
+				spill.clear();
+				queuedBytes = 0;
+
+				while(!urgentQueue.isEmpty()) {
+					buffers.release(urgentQueue.poll());
+				}
+
+				if(outbound != null) {
+					buffers.release(outbound);
+					outbound = null;
+					deadline = 0;
+				}
+			}
+
+			if(key != null) {
+				key.cancel();
+			}
+
+			try {
+				channel.close();
+			} catch (IOException ignorable) {
+			}
+
+			if(address >= 0) {
+				clients.remove(address, this);
+			}
+
+			queries.unsubscribe(this);
+
+			for(CreditSubscription subscription : subscriptions.values()) {
+				subscription.cancel();
+				flows.unsubscribe(subscription);
+			}
+		}
+	}
+
+	/**
+	 * I/O dretva. Vrti vlastiti selektor nad dodijeljenim konekcijama, čita i piše u
+	 * njihove kanale i prazni im buffere nakon isteka buffer.timeout.
+	 */
+	private class IoLoop implements Runnable {
+
+		/**
+		 * Selektor I/O dretve.
+		 */
+		private Selector selector;
+
+		/**
+		 * Dretva koja vrti ovu petlju.
+		 */
+		private Thread thread;
+
+		/**
+		 * Novoprihvaćeni kanali koje treba registrirati u selektoru.
+		 */
+		private Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+
+		/**
+		 * Konekcije koje su druge dretve zatražile za pisanje.
+		 */
+		private Queue<Connection> writeRequests = new ConcurrentLinkedQueue<Connection>();
+
+		/**
+		 * Konekcije kojima je prestalo zagušenje, dodaje ih samo ova dretva.
+		 */
+		private Queue<Connection> drainRequests = new ArrayDeque<Connection>();
+
+		/**
+		 * Pražnjenja zakazana iz drugih dretvi.
+		 */
+		private Queue<FlushTimer> timerRequests = new ConcurrentLinkedQueue<FlushTimer>();
+
+		/**
+		 * Zakazana pražnjenja, poredana po vremenu.
+		 */
+		private PriorityQueue<FlushTimer> timers = new PriorityQueue<FlushTimer>();
+
+		/**
+		 * Konstruktor I/O dretve.
+		 * @throws IOException ako se selektor ne može otvoriti
+		 */
+		public IoLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Predaje novi kanal ovoj I/O dretvi.
+		 * @param channel kanal
+		 */
+		public void register(SocketChannel channel) {
+			accepted.add(channel);
+			selector.wakeup();
+		}
+
+		/**
+		 * Traži pisanje u kanal konekcije.
+		 * @param connection konekcija
+		 */
+		public void requestWrite(Connection connection) {
+			if(Thread.currentThread() == thread) {
+				connection.write();
+			} else {
+				writeRequests.add(connection);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Traži nastavak slanja konekciji kojoj je prestalo zagušenje. Slanje se
+		 * nastavlja u sljedećem krugu petlje, a ne unutar pisanja koje je zagušenje
+		 * okončalo. Poziva ju samo ova dretva.
+		 * @param connection konekcija
+		 */
+		public void requestDrain(Connection connection) {
+			drainRequests.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * Zakazuje pražnjenje buffera konekcije.
+		 * @param timer zakazano pražnjenje
+		 */
+		public void schedule(FlushTimer timer) {
+			if(Thread.currentThread() == thread) {
+				timers.add(timer);
+			} else {
+				timerRequests.add(timer);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Budi I/O dretvu, služi kod gašenja servera.
+		 */
+		public void wakeup() {
+			selector.wakeup();
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+
+			try {
+				while(running) {
+					FlushTimer next = timers.peek();
+
+					if(next == null) {
+						selector.select();
+					} else {
+						long timeout = next.deadline - System.currentTimeMillis();
+
+						if(timeout > 0) {
+							selector.select(timeout);
+						} else {
+							selector.selectNow();
+						}
+					}
+
+					SocketChannel channel;
+					while((channel = accepted.poll()) != null) {
+						accept(channel);
+					}
+
+					FlushTimer timer;
+					while((timer = timerRequests.poll()) != null) {
+						timers.add(timer);
+					}
+
+					Connection connection;
+					while((connection = writeRequests.poll()) != null) {
+						connection.write();
+					}
+
+					while((connection = drainRequests.poll()) != null) {
+						connection.drain();
+					}
+
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+
+					while(selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+
+						connection = (Connection) key.attachment();
+
+						try {
+							if(key.isValid() && key.isReadable()) {
+								connection.read();
+							}
+
+							if(key.isValid() && key.isWritable()) {
+								connection.write();
+							}
+						} catch (IOException e) {
+							connection.close();
+						} catch (RuntimeException e) {
+							// Neispravna poruka, protokol se više ne može pratiti
+							connection.close();
+						}
+					}
+
+					long now = System.currentTimeMillis();
+
+					while(!timers.isEmpty() && timers.peek().deadline <= now) {
+						timers.poll().connection.flushIfDue(now);
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for(SelectionKey key : selector.keys()) {
+					if(key.attachment() != null) {
+						((Connection) key.attachment()).close();
+					}
+				}
+
+				try {
+					selector.close();
+				} catch (IOException ignorable) {
+				}
+			}
+		}
+
+		/**
+		 * Registrira novoprihvaćeni kanal u selektoru ove dretve.
+		 * @param channel kanal
+		 */
+		private void accept(SocketChannel channel) {
+			Connection connection = new Connection(channel, this);
+
+			try {
+				channel.configureBlocking(false);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+
+				//@DebugStart
+				System.out.println("Klijent " + channel.socket().getRemoteSocketAddress() + " se spojio.");
+				//@DebugEnd
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Adresa i port na kojima sluša server, timeoutovi i veličine buffera.
+	 */
+	private ServerParameters parameters;
+
+	/**
+	 * Vrijeme nakon kojeg se bezuvjetno šalje paket klijentu.
+	 */
+	private int bufferTimeout;
+
+	/**
+	 * Veličina buffera (nakon koliko poruka treba prazniti buffer).
+	 */
+	private int bufferSize;
+
+	/**
+	 * Ciljana veličina paketa (u bajtovima) koje server šalje klijentima.
+	 */
+	private int packetSize;
+
+	/**
+	 * Gornja granica zaostatka konekcije u bajtovima.
+	 */
+	private int highWatermark;
+
+	/**
+	 * Zaostatak konekcije u bajtovima na kojem zagušenje prestaje.
+	 */
+	private int lowWatermark;
+
+	/**
+	 * Što se radi s porukom za zagušenu konekciju.
+	 */
+	private SlowConsumerPolicy slowConsumerPolicy;
+
+	/**
+	 * Najveći broj poruka koje se odlažu za zagušenu konekciju (spill).
+	 */
+	private int spillCapacity;
+
+	/**
+	 * Bazen direktnih buffera u koje konekcije pakiraju poruke za slanje.
+	 */
+	private BufferPool buffers;
+
+	/**
+	 * I/O dretve servera.
+	 */
+	private IoLoop[] loops;
+
+	/**
+	 * Selektor koji čeka nove konekcije.
+	 */
+	private volatile Selector acceptSelector;
+
+	/**
+	 * True ako server ovog objekta radi, false inače. Služi za gašenje servera preko metode stop().
+	 */
+	private volatile boolean running = false;
+
+	/**
+	 * Konstruktor koji stvara novi server i služi za inicijalizaciju parametara preko
+	 * propertiesa.
+	 * @param properties parametri servera
+	 * @throws IllegalArgumentException ako je zadan journal.durable = true
+	 */
+	public NioMessageServer(Properties properties) {
+		parameters = new ServerParameters(properties);
+
+		if(parameters.isJournalDurable()) {
+			throw new IllegalArgumentException("journal.durable nije podržan uz server.mode = nio!");
+		}
+
+		bufferTimeout = parameters.getBufferTimeout();
+		bufferSize = parameters.getBufferSize();
+		packetSize = parameters.getPacketSize();
+		highWatermark = parameters.getHighWatermark();
+		lowWatermark = parameters.getLowWatermark();
+		slowConsumerPolicy = parameters.getSlowConsumerPolicy();
+		spillCapacity = parameters.getSpillCapacity();
+		buffers = new BufferPool(Math.max(packetSize, HEADER_LENGTH), RETAINED_BUFFERS, true);
+
+		pending = new PendingDeliveries(parameters.getPendingTimeout(), parameters.getPendingCapacity(),
+				parameters.getMailboxSize(), metrics);
+		metrics.setPending(pending);
+	}
+
+	/**
+	 * @return brojači rada servera
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void start() throws ServerCannotStart, ServerCrashed {
+		ServerSocketChannel serverChannel = null;
+
+		openJournal();
+
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(parameters.getBindAddress(), parameters.getPort()));
+			serverChannel.configureBlocking(false);
+
+			acceptSelector = Selector.open();
+			serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+			loops = new IoLoop[parameters.getIoThreads()];
+
+			for(int i = 0; i < loops.length; i++) {
+				loops[i] = new IoLoop();
+			}
+
+			//@DebugStart
+			System.out.println("Server pokrenut na: " + serverChannel.socket().getLocalSocketAddress());
+			//@End
+
+			running = true;
+
+			for(int i = 0; i < loops.length; i++) {
+				new Thread(loops[i], "nio-io-" + i).start();
+			}
+		} catch (SocketException e) {
+			close(serverChannel);
+			closeJournal();
+			throw new ServerCannotStart("Greška u TCP protokolu!", e);
+		} catch (SecurityException e) {
+			close(serverChannel);
+			closeJournal();
+			throw new ServerCannotStart("Nije dozvoljeno otvoriti socket!", e);
+		} catch (IOException e) {
+			close(serverChannel);
+			closeJournal();
+			throw new ServerCannotStart("Nije moguće otvoriti socket!", e);
+		}
+
+		try {
+			int next = 0;
+
+			while(running) {
+				acceptSelector.select(parameters.getSocketTimeout());
+				acceptSelector.selectedKeys().clear();
+
+				SocketChannel channel;
+				while((channel = serverChannel.accept()) != null) {
+					loops[next].register(channel);
+					next = (next + 1) % loops.length;
+				}
+
+				pending.expire();
+				pending.writeJournal();
+			}
+		} catch (IOException e) {
+			throw new ServerCrashed("Server ne može primati konekcije!", e);
+		} finally {
+			stop();
+			close(serverChannel);
+			closeJournal();
+		}
+	}
+
+	/**
+	 * Otvara žurnal poruka koje čekaju, ako je zadan journal.dir, i vraća na čekanje
+	 * poruke koje su u njemu ostale nepotvrđene.
+	 * @throws ServerCannotStart ako se žurnal ne može otvoriti
+	 */
+	private void openJournal() throws ServerCannotStart {
+		if(parameters.getJournalDirectory() == null) {
+			return;
+		}
+
+		try {
+			int restored = pending.attach(new MessageJournal(parameters.getJournalDirectory(),
+					parameters.getJournalSegmentSize(), parameters.getJournalSyncInterval(),
+					"journal-" + parameters.getPort()), false);
+			pending.writeJournal();
+
+			//@DebugStart
+			System.out.println("Iz žurnala vraćeno poruka: " + restored);
+			//@End
+		} catch (IOException e) {
+			throw new ServerCannotStart("Nije moguće otvoriti žurnal!", e);
+		}
+	}
+
+	/**
+	 * Zatvara žurnal poruka koje čekaju, ako je otvoren.
+	 */
+	private void closeJournal() {
+		MessageJournal journal = pending.detach();
+
+		if(journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Zatvara kanal i selektor za prihvaćanje konekcija.
+	 * @param serverChannel kanal, može biti null
+	 */
+	private void close(ServerSocketChannel serverChannel) {
+		try {
+			if(acceptSelector != null) {
+				acceptSelector.close();
+			}
+
+			if(serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException ignorable) {
+		}
+	}
+
+	public void stop() {
+		running = false;
+
+		Selector selector = acceptSelector;
+		if(selector != null) {
+			selector.wakeup();
+		}
+
+		if(loops != null) {
+			for(IoLoop loop : loops) {
+				loop.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * Obrađuje poruku primljenu od klijenta: obavještava pretplatnike, registrira
+	 * klijenta, pretplaćuje ga, upravlja njegovim pretplatama s kreditom ili prosljeđuje
+	 * poruku odredištu.
+	 * @param from konekcija s koje je poruka stigla
+	 * @param received primljena poruka
+	 */
+	private void route(Connection from, Message received) {
+		if(queries.hasSubscribers(received.getType())) {
+			from.notifier.message = received;
+			queries.match(received, from.notifier);
+		}
+
+		if(flows.hasSubscribers(received.getType())) {
+			from.flowNotifier.message = received;
+			flows.match(received, from.flowNotifier);
+		}
+
+		switch(received.getType()) {
+		case REGISTER:
+			if(((RegisterMessage) received).isReliable()) {
+				// Pouzdana isporuka nije podržana, klijent to saznaje iz odgovora
+				RegisterMessage reply = new RegisterMessage(new Address(0, 0), false);
+
+				reply.setDestination(received.getSource());
+				reply.setUrgent(true);
+				from.sendMessage(reply);
+			}
+
+			// Poruke iz sandučića isporučuju se prije objave u mapi klijenata, inače bi ih
+			// nova poruka za istog klijenta mogla preteći
+			from.register(received.getSourceKey());
+
+			//@DebugStart
+			System.out.println("Klijent " + received.getSource() + " se registrirao!");
+			//@DebugEnd
+			break;
+
+		case QUERY:
+			from.subscribe((QueryMessage) received);
+			break;
+
+		case SUBSCRIPTION:
+			from.control((SubscriptionMessage) received);
+			break;
+
+		default:
+			Connection destination = clients.get(received.getDestinationKey());
+
+			if(destination == null) {
+				synchronized(pending) {
+					destination = clients.get(received.getDestinationKey());
+
+					if(destination == null) {
+						pending.park(received);
+					}
+				}
+
+				if(destination == null) {
+					pending.writeJournal();
+				}
+			}
+
+			if(destination != null) {
+				if(destination.sendMessage(received)) {
+					metrics.deliveredInline();
+				} else {
+					// Konekcija se zatvorila, poruka čeka u sandučiću
+					synchronized(pending) {
+						pending.park(received);
+					}
+
+					pending.writeJournal();
+				}
+			}
+			break;
+		}
+	}
+}
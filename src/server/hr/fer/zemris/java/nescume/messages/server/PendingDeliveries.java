@@ -0,0 +1,591 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import hr.fer.zemris.java.nescume.messages.Message;
+
+/**
+ * Sandučići poruka za adrese koje trenutno nemaju opsluživača, zajednički cijelom
+ * serveru: klijent se još nije registrirao ili mu je veza prekinuta. Poruka ne drži
+ * nikakvu dretvu nego čeka u sandučiću svog odredišta dok se ono ne registrira ili dok
+ * joj ne istekne vrijeme. Ukupan broj poruka koje čekaju i broj bajtova u jednom
+ * sandučiću su ograničeni.
+ *
+ * Pozivatelj provjeru registracije odredišta i parkiranje poruke radi držeći monitor ovog
+ * objekta, da se registracija ne bi dogodila između provjere i parkiranja. Registrirani
+ * klijent sandučić prazni u skupinama od najviše DRAIN_BATCH poruka (peek i remove),
+ * koliko stigne slati, a poruke skupine šalje izvan monitora. Tek kad je sandučić prazan
+ * klijent se pod monitorom objavljuje u mapi klijenata, pa nove poruke do tada čekaju
+ * iza starih.
+ *
+ * Ako je vezan žurnal (MessageJournal), svaka parkirana poruka se u njega zapisuje, a
+ * potvrđuje kad je predana odredištu ili odbačena, pa poruke koje čekaju preživljavaju
+ * ponovno pokretanje servera. Tada se okvir poruke ne drži na heapu nego se čita iz
+ * mapiranog segmenta žurnala tek kad je poruka na redu za slanje.
+ *
+ * Pod monitorom se ne piše u žurnal. Parkiranje poruku odmah stavlja u sandučić, a zapis
+ * i potvrde žurnala čekaju da ih pozivatelj nakon izlaska iz monitora preda metodom
+ * writeJournal. Zapisi se dodaju redom kojim su poruke parkirane, a dok poruka nije
+ * zapisana, njen okvir je na heapu.
+ *
+ * Bez journal.durable zapis je na disku najkasnije journal.sync.interval nakon dodavanja,
+ * pa pad računala može izgubiti poruke parkirane neposredno prije. Uz journal.durable
+ * writeJournal čeka da svi dodani zapisi budu spremljeni, a dretve koje čekaju istovremeno
+ * dijele jedan force() (group commit). Žurnal pokriva samo poruke u sandučićima: poruke
+ * predane bufferu spojenog klijenta nisu u njemu, a nepotvrđene poruke klijenta s
+ * pouzdanom isporukom u njega ulaze tek kad se vrate u sandučić.
+ */
+class PendingDeliveries {
+
+	/**
+	 * Najveći broj poruka koje se odjednom uzimaju iz sandučića za slanje.
+	 */
+	static final int DRAIN_BATCH = 64;
+
+	/**
+	 * Poruka koja čeka registraciju svog odredišta.
+	 */
+	private static class PendingMessage {
+
+		/**
+		 * Poruka koju treba isporučiti, null dok se ne pročita iz žurnala.
+		 */
+		private Message message;
+
+		/**
+		 * Trenutak (u milisekundama) nakon kojeg se poruka odbacuje.
+		 */
+		private long expires;
+
+		/**
+		 * Redni broj zapisa poruke u žurnalu, 0 ako poruka nije zapisana.
+		 */
+		private long journalId;
+
+		/**
+		 * Duljina okvira poruke u bajtovima.
+		 */
+		private int length;
+
+		/**
+		 * True kad je poruka izvađena iz sandučića, a još nije zapisana u žurnal.
+		 */
+		private boolean removed;
+
+		/**
+		 * Konstruktor.
+		 * @param message poruka, null ako je u žurnalu
+		 * @param expires trenutak isteka poruke
+		 * @param journalId redni broj zapisa u žurnalu, 0 ako poruka nije zapisana
+		 * @param length duljina okvira poruke
+		 */
+		public PendingMessage(Message message, long expires, long journalId, int length) {
+			this.message = message;
+			this.expires = expires;
+			this.journalId = journalId;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Sandučić jednog odredišta.
+	 */
+	private static class Mailbox {
+
+		/**
+		 * Poruke poredane po dolasku, a time i po vremenu isteka.
+		 */
+		private Deque<PendingMessage> messages = new ArrayDeque<PendingMessage>();
+
+		/**
+		 * Ukupna duljina okvira poruka u sandučiću.
+		 */
+		private long bytes;
+
+		/**
+		 * Poruke koje je vratio zadnji peek, redom.
+		 */
+		private List<PendingMessage> peeked = new ArrayList<PendingMessage>();
+	}
+
+	/**
+	 * Sandučići po ključu adrese odredišta.
+	 */
+	private Map<Integer, Mailbox> pending = new HashMap<Integer, Mailbox>();
+
+	/**
+	 * Koliko dugo (u milisekundama) poruka čeka registraciju odredišta.
+	 */
+	private long timeout;
+
+	/**
+	 * Najveći ukupan broj poruka koje čekaju.
+	 */
+	private int capacity;
+
+	/**
+	 * Najveća ukupna duljina okvira poruka u jednom sandučiću.
+	 */
+	private long mailboxSize;
+
+	/**
+	 * Trenutni ukupan broj poruka koje čekaju.
+	 */
+	private int size;
+
+	/**
+	 * Brojači rada servera.
+	 */
+	private ServerMetrics metrics;
+
+	/**
+	 * Žurnal poruka koje čekaju, null ako poruke nisu trajne.
+	 */
+	private MessageJournal journal;
+
+	/**
+	 * Poruke koje još nisu zapisane u žurnal, redom kojim su parkirane.
+	 */
+	private List<PendingMessage> unjournaled = new ArrayList<PendingMessage>();
+
+	/**
+	 * Redni brojevi zapisa poruka koje još nisu potvrđene u žurnalu.
+	 */
+	private List<Long> unconfirmed = new ArrayList<Long>();
+
+	/**
+	 * Lokot pisanja u žurnal (writeJournal). Zapisi se dodaju jedan za drugim, redom
+	 * parkiranja, a monitor ovog objekta za to vrijeme ostaje slobodan.
+	 */
+	private final Object journalLock = new Object();
+
+	/**
+	 * Redni broj zadnjeg zapisa dodanog u žurnal, štiti ga journalLock.
+	 */
+	private long lastAppended;
+
+	/**
+	 * True ako writeJournal čeka da dodani zapisi budu spremljeni na disk (journal.durable).
+	 */
+	private boolean durable;
+
+	/**
+	 * Konstruktor.
+	 * @param timeout pending.timeout
+	 * @param capacity pending.capacity
+	 * @param mailboxSize mailbox.size
+	 * @param metrics brojači rada servera
+	 */
+	public PendingDeliveries(long timeout, int capacity, long mailboxSize, ServerMetrics metrics) {
+		this.timeout = timeout;
+		this.capacity = capacity;
+		this.mailboxSize = mailboxSize;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Parkira poruku dok se njeno odredište ne registrira. Ako je dosegnut kapacitet ili
+	 * bi sandučić odredišta prešao mailbox.size, poruka se odbacuje.
+	 * @param message poruka
+	 * @return true ako je poruka parkirana, false ako je odbačena
+	 */
+	public synchronized boolean park(Message message) {
+		Mailbox mailbox = pending.get(message.getDestinationKey());
+		int length = message.frameLength();
+
+		if(size == capacity || (mailbox != null && mailbox.bytes + length > mailboxSize)) {
+			metrics.rejected();
+			return false;
+		}
+
+		PendingMessage parked = new PendingMessage(message, System.currentTimeMillis() + timeout, 0, length);
+
+		add(message.getDestinationKey(), parked);
+
+		if(journal != null) {
+			unjournaled.add(parked);
+		}
+
+		metrics.parked();
+		return true;
+	}
+
+	/**
+	 * Vraća na početak sandučića poruke koje su bile poslane klijentu s pouzdanom
+	 * isporukom, a on ih nije potvrdio prije prekida veze. Poruke su već bile primljene,
+	 * pa se ne odbijaju zbog kapaciteta, a vrijeme čekanja počinje im iznova. Nakon
+	 * ponovnog pokretanja servera vraćene poruke dolaze iza poruka koje su već čekale.
+	 * @param destination ključ adrese odredišta
+	 * @param messages poruke redom kojim su poslane
+	 */
+	public synchronized void requeue(int destination, List<Message> messages) {
+		if(messages.isEmpty()) {
+			return;
+		}
+
+		Mailbox mailbox = pending.get(destination);
+
+		if(mailbox == null) {
+			mailbox = new Mailbox();
+			pending.put(destination, mailbox);
+		}
+
+		long expires = System.currentTimeMillis() + timeout;
+		List<PendingMessage> returned = new ArrayList<PendingMessage>(messages.size());
+
+		for(Message message : messages) {
+			returned.add(new PendingMessage(message, expires, 0, message.frameLength()));
+		}
+
+		for(int i = returned.size() - 1; i >= 0; i--) {
+			mailbox.messages.addFirst(returned.get(i));
+			mailbox.bytes += returned.get(i).length;
+			size++;
+
+			metrics.redelivered();
+		}
+
+		if(journal != null) {
+			unjournaled.addAll(returned);
+		}
+	}
+
+	/**
+	 * Vezuje žurnal i vraća na čekanje poruke koje su u njemu ostale nepotvrđene. Poruke
+	 * kojima je u međuvremenu isteklo vrijeme, ili za koje nema mjesta, odbacuju se.
+	 * Vraćene poruke ostaju u žurnalu i ne čitaju se dok ne dođu na red za slanje.
+	 * @param journal otvoreni žurnal
+	 * @param durable true ako writeJournal čeka spremanje zapisa na disk
+	 * @return broj poruka vraćenih na čekanje
+	 */
+	public synchronized int attach(MessageJournal journal, boolean durable) {
+		this.journal = journal;
+		this.durable = durable;
+
+		long now = System.currentTimeMillis();
+		int restored = 0;
+
+		for(MessageJournal.Record record : journal.takeRecovered()) {
+			Mailbox mailbox = pending.get(record.getDestinationKey());
+
+			if(record.getExpires() <= now) {
+				metrics.expired();
+			} else if(size == capacity || (mailbox != null && mailbox.bytes + record.getLength() > mailboxSize)) {
+				metrics.rejected();
+			} else {
+				add(record.getDestinationKey(), new PendingMessage(null, record.getExpires(), record.getId(),
+						record.getLength()));
+				restored++;
+				continue;
+			}
+
+			unconfirmed.add(record.getId());
+		}
+
+		return restored;
+	}
+
+	/**
+	 * Odvezuje žurnal, poruke koje čekaju ostaju u njemu nepotvrđene.
+	 * @return žurnal koji je bio vezan, null ako ga nije bilo
+	 */
+	public synchronized MessageJournal detach() {
+		MessageJournal detached = journal;
+
+		journal = null;
+		unjournaled.clear();
+		unconfirmed.clear();
+
+		// Poruke čiji je okvir samo u žurnalu ostaju u njemu za sljedeće pokretanje
+		Iterator<Mailbox> mailboxes = pending.values().iterator();
+
+		while(mailboxes.hasNext()) {
+			Mailbox mailbox = mailboxes.next();
+			Iterator<PendingMessage> messages = mailbox.messages.iterator();
+
+			while(messages.hasNext()) {
+				PendingMessage message = messages.next();
+
+				if(message.journalId != 0) {
+					messages.remove();
+					mailbox.bytes -= message.length;
+					size--;
+				}
+			}
+
+			if(mailbox.messages.isEmpty()) {
+				mailboxes.remove();
+			}
+		}
+
+		return detached;
+	}
+
+	/**
+	 * Vraća najviše DRAIN_BATCH prvih poruka iz sandučića zadanog odredišta, bez vađenja.
+	 * Poruke kojima je isteklo vrijeme, ili koje se ne mogu pročitati iz žurnala, usput
+	 * se odbacuju. Sandučić smije prazniti samo jedna dretva odjednom.
+	 * @param destination ključ adrese odredišta
+	 * @return prve poruke, prazna lista ako je sandučić prazan
+	 */
+	public synchronized List<Message> peek(int destination) {
+		Mailbox mailbox = pending.get(destination);
+		List<Message> batch = new ArrayList<Message>();
+
+		if(mailbox == null) {
+			return batch;
+		}
+
+		long now = System.currentTimeMillis();
+		Iterator<PendingMessage> messages = mailbox.messages.iterator();
+
+		mailbox.peeked.clear();
+
+		while(batch.size() < DRAIN_BATCH && messages.hasNext()) {
+			PendingMessage next = messages.next();
+			Message message = next.message;
+
+			if(next.expires > now && message == null && journal != null) {
+				message = journal.read(next.journalId);
+			}
+
+			if(next.expires <= now || message == null) {
+				messages.remove();
+				mailbox.bytes -= next.length;
+				size--;
+				confirm(next);
+
+				metrics.expired();
+				continue;
+			}
+
+			mailbox.peeked.add(next);
+			batch.add(message);
+		}
+
+		if(mailbox.messages.isEmpty()) {
+			pending.remove(destination);
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Vadi iz sandučića zadanog odredišta prvih nekoliko poruka koje je vratio zadnji
+	 * peek, nakon što su predane odredištu. Poruke se potvrđuju u žurnalu. Poruke koje su
+	 * u međuvremenu istekle već su izvađene.
+	 * @param destination ključ adrese odredišta
+	 * @param count broj predanih poruka
+	 */
+	public synchronized void remove(int destination, int count) {
+		Mailbox mailbox = pending.get(destination);
+
+		if(mailbox == null) {
+			return;
+		}
+
+		for(int i = 0; i < count && i < mailbox.peeked.size(); i++) {
+			PendingMessage delivered = mailbox.peeked.get(i);
+
+			if(mailbox.messages.remove(delivered)) {
+				mailbox.bytes -= delivered.length;
+				size--;
+				confirm(delivered);
+			}
+		}
+
+		mailbox.peeked.clear();
+
+		if(mailbox.messages.isEmpty()) {
+			pending.remove(destination);
+		}
+	}
+
+	/**
+	 * @param destination ključ adrese odredišta
+	 * @return true ako u sandučiću zadanog odredišta nema poruka
+	 */
+	public synchronized boolean isEmpty(int destination) {
+		return !pending.containsKey(destination);
+	}
+
+	/**
+	 * Odbacuje poruke čija odredišta se nisu registrirala na vrijeme. Poruke u sandučiću
+	 * su poredane po vremenu isteka pa se svaki sandučić pregledava samo od početka.
+	 */
+	public synchronized void expire() {
+		long now = System.currentTimeMillis();
+
+		Iterator<Map.Entry<Integer, Mailbox>> mailboxes = pending.entrySet().iterator();
+
+		while(mailboxes.hasNext()) {
+			Mailbox mailbox = mailboxes.next().getValue();
+
+			while(!mailbox.messages.isEmpty() && mailbox.messages.peekFirst().expires <= now) {
+				PendingMessage expired = mailbox.messages.pollFirst();
+
+				mailbox.bytes -= expired.length;
+				size--;
+				confirm(expired);
+
+				metrics.expired();
+			}
+
+			if(mailbox.messages.isEmpty()) {
+				mailboxes.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return ukupan broj poruka koje čekaju registraciju odredišta
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Dodaje poruku na kraj sandučića njenog odredišta.
+	 * @param destination ključ adrese odredišta
+	 * @param message poruka koja čeka
+	 */
+	private void add(int destination, PendingMessage message) {
+		Mailbox mailbox = pending.get(destination);
+
+		if(mailbox == null) {
+			mailbox = new Mailbox();
+			pending.put(destination, mailbox);
+		}
+
+		mailbox.messages.addLast(message);
+		mailbox.bytes += message.length;
+		size++;
+	}
+
+	/**
+	 * Prijavljuje potvrdu izvađene poruke za sljedeći writeJournal. Poruka koja još nije
+	 * zapisana u žurnal se samo označava, pa se potvrđuje tek kad bude zapisana.
+	 * @param message izvađena poruka
+	 */
+	private void confirm(PendingMessage message) {
+		if(message.journalId != 0) {
+			unconfirmed.add(message.journalId);
+		} else {
+			message.removed = true;
+		}
+	}
+
+	/**
+	 * Zapisuje u žurnal poruke parkirane i vraćene od prethodnog poziva i potvrđuje
+	 * izvađene. Pozivatelj je zove nakon park, requeue, remove, expire ili attach, izvan
+	 * monitora ovog objekta. Zapisane poruke ne drže okvir na heapu. Uz journal.durable
+	 * vraća se tek kad su svi do sada dodani zapisi spremljeni na disk.
+	 */
+	public void writeJournal() {
+		MessageJournal synced;
+		long target;
+
+		synchronized(journalLock) {
+			append();
+
+			synchronized(this) {
+				synced = durable ? journal : null;
+			}
+
+			target = lastAppended;
+		}
+
+		if(synced == null || target == 0) {
+			return;
+		}
+
+		// Čeka se izvan lokota, pa dretve koje istovremeno parkiraju dijele jedan force()
+		try {
+			synced.awaitSynced(target);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// Žurnal je zatvoren, poruke i dalje čekaju u sandučićima
+		}
+	}
+
+	/**
+	 * Dodaje u žurnal poruke koje čekaju zapis i zapisuje potvrde. Poziva se pod
+	 * journalLock, izvan monitora ovog objekta.
+	 */
+	private void append() {
+		while(true) {
+			MessageJournal journal;
+			List<PendingMessage> appended = new ArrayList<PendingMessage>();
+			List<Long> confirmed;
+
+			synchronized(this) {
+				journal = this.journal;
+
+				if(journal == null || (unjournaled.isEmpty() && unconfirmed.isEmpty())) {
+					return;
+				}
+
+				// Poruke izvađene prije zapisa ne treba ni zapisivati
+				for(PendingMessage message : unjournaled) {
+					if(!message.removed) {
+						appended.add(message);
+					}
+				}
+
+				confirmed = unconfirmed;
+				unjournaled = new ArrayList<PendingMessage>();
+				unconfirmed = new ArrayList<Long>();
+			}
+
+			long[] ids = new long[appended.size()];
+
+			try {
+				for(long id : confirmed) {
+					journal.confirm(id);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			try {
+				for(int i = 0; i < ids.length; i++) {
+					ids[i] = journal.append(appended.get(i).message, appended.get(i).expires);
+					lastAppended = ids[i];
+				}
+			} catch (IOException e) {
+				// Nezapisane poruke i dalje čekaju, samo ne preživljavaju ponovno pokretanje
+				e.printStackTrace();
+			}
+
+			synchronized(this) {
+				if(this.journal != journal) {
+					return;
+				}
+
+				for(int i = 0; i < ids.length; i++) {
+					PendingMessage message = appended.get(i);
+
+					if(ids[i] == 0) {
+						continue;
+					}
+
+					// Poruka izvađena za vrijeme zapisa potvrđuje se u sljedećem krugu
+					if(message.removed) {
+						unconfirmed.add(ids[i]);
+					} else {
+						message.journalId = ids[i];
+						message.message = null;
+					}
+				}
+			}
+		}
+	}
+}
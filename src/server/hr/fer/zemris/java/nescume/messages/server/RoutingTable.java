@@ -0,0 +1,246 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tablica usmjeravanja servera: preslikava ključeve adresa (Address.toKey) u odredišta.
+ * Ključevi se drže u polju intova s otvorenim adresiranjem, pa pretraživanje ne stvara
+ * objekte i ne zaključava, a dodavanja i uklanjanja se međusobno serijaliziraju.
+ *
+ * Mjesto jednom zauzeto ključem zadržava taj ključ dok se tablica ne preslaže, a uklanjanje
+ * samo briše vrijednost. Zato pretraživanje koje se odvija istovremeno s promjenom nikad ne
+ * vidi ključ na krivom mjestu, a preslagivanje gradi novu tablicu i objavljuje je odjednom.
+ * @param <V> tip odredišta
+ */
+public class RoutingTable<V> {
+
+	/**
+	 * Oznaka slobodnog mjesta, ključevi adresa su uvijek nenegativni.
+	 */
+	private static final int EMPTY = -1;
+
+	/**
+	 * Početni kapacitet tablice.
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Polja jedne generacije tablice. Kapacitet je potencija broja 2.
+	 * @param <V> tip odredišta
+	 */
+	private static final class Table<V> {
+
+		/**
+		 * Ključevi po mjestima, EMPTY ako je mjesto slobodno.
+		 */
+		private final AtomicIntegerArray keys;
+
+		/**
+		 * Odredišta po mjestima, null ako ključ na mjestu nije u tablici.
+		 */
+		private final AtomicReferenceArray<V> values;
+
+		/**
+		 * Maska za svođenje raspršene vrijednosti na mjesto.
+		 */
+		private final int mask;
+
+		/**
+		 * Konstruktor prazne tablice.
+		 * @param capacity kapacitet, potencija broja 2
+		 */
+		public Table(int capacity) {
+			keys = new AtomicIntegerArray(capacity);
+			values = new AtomicReferenceArray<V>(capacity);
+			mask = capacity - 1;
+
+			for(int i = 0; i < capacity; i++) {
+				keys.set(i, EMPTY);
+			}
+		}
+
+		/**
+		 * Traži mjesto ključa.
+		 * @param key ključ
+		 * @return mjesto ključa, ili prvo slobodno mjesto na kojem bi ključ bio
+		 */
+		public int slot(int key) {
+			int slot = hash(key) & mask;
+
+			while(true) {
+				int current = keys.get(slot);
+
+				if(current == key || current == EMPTY) {
+					return slot;
+				}
+
+				slot = (slot + 1) & mask;
+			}
+		}
+	}
+
+	/**
+	 * Trenutna tablica.
+	 */
+	private volatile Table<V> table = new Table<V>(INITIAL_CAPACITY);
+
+	/**
+	 * Broj zauzetih mjesta u trenutnoj tablici, uključujući mjesta uklonjenih ključeva.
+	 */
+	private int used;
+
+	/**
+	 * Broj ključeva u tablici.
+	 */
+	private int size;
+
+	/**
+	 * Vraća odredište ključa. Ne zaključava i ne stvara objekte.
+	 * @param key ključ adrese
+	 * @return odredište, null ako ključ nije u tablici
+	 */
+	public V get(int key) {
+		Table<V> current = table;
+		int slot = current.slot(key);
+
+		return current.keys.get(slot) == key ? current.values.get(slot) : null;
+	}
+
+	/**
+	 * Postavlja odredište ključa.
+	 * @param key ključ adrese, nenegativan
+	 * @param value odredište, ne smije biti null
+	 * @return prijašnje odredište ključa, null ako ga nije bilo
+	 */
+	public synchronized V put(int key, V value) {
+		if(key < 0) {
+			throw new IllegalArgumentException("Neispravan ključ adrese: " + key);
+		}
+
+		if(value == null) {
+			throw new IllegalArgumentException("Odredište ne smije biti null!");
+		}
+
+		Table<V> current = table;
+		int slot = current.slot(key);
+
+		if(current.keys.get(slot) == EMPTY) {
+			if(2 * (used + 1) > current.keys.length()) {
+				current = rehash(2 * (size + 1));
+				slot = current.slot(key);
+			}
+
+			// Ključ se objavljuje prije vrijednosti, pa ga čitatelj nikad ne vidi s tuđom
+			current.keys.set(slot, key);
+			used++;
+		}
+
+		V previous = current.values.getAndSet(slot, value);
+
+		if(previous == null) {
+			size++;
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Uklanja ključ samo ako mu je odredište jednako zadanom, kao Map.remove(key, value).
+	 * @param key ključ adrese
+	 * @param value odredište
+	 * @return true ako je ključ uklonjen, false inače
+	 */
+	public synchronized boolean remove(int key, V value) {
+		Table<V> current = table;
+		int slot = current.slot(key);
+
+		if(current.keys.get(slot) != key) {
+			return false;
+		}
+
+		V existing = current.values.get(slot);
+
+		if(existing == null || !existing.equals(value)) {
+			return false;
+		}
+
+		current.values.set(slot, null);
+		size--;
+
+		return true;
+	}
+
+	/**
+	 * @return broj ključeva u tablici
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return snimka svih odredišta u tablici
+	 */
+	public List<V> values() {
+		Table<V> current = table;
+		List<V> values = new ArrayList<V>();
+
+		for(int i = 0; i < current.values.length(); i++) {
+			V value = current.values.get(i);
+
+			if(value != null) {
+				values.add(value);
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Preslaže sve ključeve u novu tablicu bez mjesta uklonjenih ključeva i objavljuje je.
+	 * Poziva se pod lokotom tablice.
+	 * @param required broj ključeva koje nova tablica mora primiti
+	 * @return nova tablica
+	 */
+	private Table<V> rehash(int required) {
+		int capacity = INITIAL_CAPACITY;
+
+		while(capacity < 2 * required) {
+			capacity <<= 1;
+		}
+
+		Table<V> old = table;
+		Table<V> rehashed = new Table<V>(capacity);
+
+		used = 0;
+
+		for(int i = 0; i < old.keys.length(); i++) {
+			V value = old.values.get(i);
+
+			if(value != null) {
+				int slot = rehashed.slot(old.keys.get(i));
+
+				rehashed.keys.set(slot, old.keys.get(i));
+				rehashed.values.set(slot, value);
+				used++;
+			}
+		}
+
+		table = rehashed;
+
+		return rehashed;
+	}
+
+	/**
+	 * Raspršuje ključ, susjedne adrese bi inače zauzimale susjedna mjesta.
+	 * @param key ključ
+	 * @return raspršena vrijednost
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+
+		return h ^ (h >>> 16);
+	}
+}
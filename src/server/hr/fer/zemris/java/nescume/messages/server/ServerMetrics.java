@@ -0,0 +1,275 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brojači rada servera. Svi brojači su kumulativni od pokretanja servera i mogu se čitati
+ * iz bilo koje dretve.
+ */
+public class ServerMetrics {
+
+	/**
+	 * Broj poruka isporučenih izravno, bez čekanja na registraciju odredišta.
+	 */
+	private final AtomicLong deliveredInline = new AtomicLong();
+
+	/**
+	 * Broj poruka parkiranih dok se njihovo odredište ne registrira.
+	 */
+	private final AtomicLong parked = new AtomicLong();
+
+	/**
+	 * Broj poruka odbačenih jer je bio dosegnut pending.capacity ili mailbox.size.
+	 */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Broj parkiranih poruka odbačenih jer im je isteklo vrijeme.
+	 */
+	private final AtomicLong expired = new AtomicLong();
+
+	/**
+	 * Broj poruka izbačenih iz buffera zagušenih klijenata (drop-oldest).
+	 */
+	private final AtomicLong droppedOldest = new AtomicLong();
+
+	/**
+	 * Broj novih poruka odbačenih jer je buffer klijenta bio zagušen (drop-new).
+	 */
+	private final AtomicLong droppedNew = new AtomicLong();
+
+	/**
+	 * Broj veza prekinutih jer je klijent bio prespor (disconnect, pun spill ili
+	 * write.timeout).
+	 */
+	private final AtomicLong slowDisconnects = new AtomicLong();
+
+	/**
+	 * Broj pisanja prema klijentima koja su zapela, pa je dretva pražnjenja nadomještena.
+	 */
+	private final AtomicLong stalledWrites = new AtomicLong();
+
+	/**
+	 * Broj poruka odloženih dok je buffer klijenta bio zagušen (spill).
+	 */
+	private final AtomicLong spilled = new AtomicLong();
+
+	/**
+	 * Broj poruka koje klijenti s pouzdanom isporukom nisu potvrdili prije prekida veze,
+	 * pa su vraćene u sandučić.
+	 */
+	private final AtomicLong redelivered = new AtomicLong();
+
+	/**
+	 * Broj potvrda primljenih od klijenata s pouzdanom isporukom.
+	 */
+	private final AtomicLong acknowledgements = new AtomicLong();
+
+	/**
+	 * Broj poruka izbačenih iz punog zaostatka pretplata s kreditom
+	 * (subscription.backlog).
+	 */
+	private final AtomicLong droppedNotifications = new AtomicLong();
+
+	/**
+	 * Poruke koje čekaju registraciju odredišta, null dok ih server nije postavio.
+	 */
+	private volatile PendingDeliveries pending;
+
+	/**
+	 * Postavlja poruke koje čekaju registraciju odredišta čiji se broj prati.
+	 * @param pending poruke koje čekaju
+	 */
+	void setPending(PendingDeliveries pending) {
+		this.pending = pending;
+	}
+
+	/**
+	 * Bilježi poruku isporučenu izravno.
+	 */
+	void deliveredInline() {
+		deliveredInline.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi parkiranu poruku.
+	 */
+	void parked() {
+		parked.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi poruku odbačenu zbog kapaciteta.
+	 */
+	void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi parkiranu poruku kojoj je isteklo vrijeme.
+	 */
+	void expired() {
+		expired.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi poruke izbačene iz buffera zagušenog klijenta.
+	 * @param count broj izbačenih poruka
+	 */
+	void droppedOldest(int count) {
+		droppedOldest.addAndGet(count);
+	}
+
+	/**
+	 * Bilježi novu poruku odbačenu zbog zagušenog klijenta.
+	 */
+	void droppedNew() {
+		droppedNew.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi vezu prekinutu zbog sporog klijenta.
+	 */
+	void slowDisconnect() {
+		slowDisconnects.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi zapelo pisanje prema klijentu.
+	 */
+	void stalledWrite() {
+		stalledWrites.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi poruku odloženu zbog zagušenog klijenta.
+	 */
+	void spilled() {
+		spilled.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi nepotvrđenu poruku vraćenu u sandučić.
+	 */
+	void redelivered() {
+		redelivered.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi primljenu potvrdu.
+	 */
+	void acknowledged() {
+		acknowledgements.incrementAndGet();
+	}
+
+	/**
+	 * Bilježi poruku izbačenu iz punog zaostatka pretplate.
+	 */
+	void droppedNotification() {
+		droppedNotifications.incrementAndGet();
+	}
+
+	/**
+	 * @return broj poruka isporučenih izravno
+	 */
+	public long getDeliveredInline() {
+		return deliveredInline.get();
+	}
+
+	/**
+	 * @return broj poruka parkiranih dok se odredište ne registrira
+	 */
+	public long getParked() {
+		return parked.get();
+	}
+
+	/**
+	 * @return broj poruka odbačenih jer je bio dosegnut pending.capacity ili mailbox.size
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return broj parkiranih poruka kojima je isteklo vrijeme
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * @return broj poruka izbačenih iz buffera zagušenih klijenata
+	 */
+	public long getDroppedOldest() {
+		return droppedOldest.get();
+	}
+
+	/**
+	 * @return broj novih poruka odbačenih zbog zagušenih klijenata
+	 */
+	public long getDroppedNew() {
+		return droppedNew.get();
+	}
+
+	/**
+	 * @return broj veza prekinutih zbog sporih klijenata
+	 */
+	public long getSlowDisconnects() {
+		return slowDisconnects.get();
+	}
+
+	/**
+	 * @return broj zapelih pisanja prema klijentima
+	 */
+	public long getStalledWrites() {
+		return stalledWrites.get();
+	}
+
+	/**
+	 * @return broj poruka odloženih zbog zagušenih klijenata
+	 */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	/**
+	 * @return broj nepotvrđenih poruka vraćenih u sandučić
+	 */
+	public long getRedelivered() {
+		return redelivered.get();
+	}
+
+	/**
+	 * @return broj primljenih potvrda
+	 */
+	public long getAcknowledgements() {
+		return acknowledgements.get();
+	}
+
+	/**
+	 * @return broj poruka izbačenih iz punog zaostatka pretplata
+	 */
+	public long getDroppedNotifications() {
+		return droppedNotifications.get();
+	}
+
+	/**
+	 * @return trenutni broj poruka koje čekaju registraciju odredišta
+	 */
+	public int getPendingDepth() {
+		PendingDeliveries deliveries = pending;
+
+		return deliveries == null ? 0 : deliveries.size();
+	}
+
+	@Override
+	public String toString() {
+		return "izravno: " + getDeliveredInline() + ", parkirano: " + getParked() + ", odbijeno: "
+				+ getRejected() + ", isteklo: " + getExpired() + ", čeka: " + getPendingDepth()
+				+ ", izbačeno najstarijih: " + getDroppedOldest() + ", odbačeno novih: " + getDroppedNew()
+				+ ", odloženo: " + getSpilled() + ", prekinuto sporih: " + getSlowDisconnects()
+				+ ", zapelih pisanja: " + getStalledWrites()
+				+ ", vraćeno nepotvrđenih: " + getRedelivered() + ", potvrda: " + getAcknowledgements()
+				+ ", izbačeno iz pretplata: " + getDroppedNotifications();
+	}
+}
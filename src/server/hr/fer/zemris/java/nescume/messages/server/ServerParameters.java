@@ -0,0 +1,441 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+import hr.fer.zemris.java.nescume.messages.Compression;
+import hr.fer.zemris.java.nescume.messages.ThreadingMode;
+
+/**
+ * Klasa-container parametara servera. Parsira i provjerava propertyje zajedničke svim
+ * implementacijama servera.
+ */
+class ServerParameters {
+
+	/**
+	 * Adresa na kojoj sluša server.
+	 */
+	private InetAddress bindAddress;
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private int port;
+
+	/**
+	 * Vrijeme nakon kojeg ističe pokušaj hvatanja klijenta.
+	 */
+	private int socketTimeout;
+
+	/**
+	 * Vrijeme nakon kojeg se bezuvjetno šalje paket klijentu.
+	 */
+	private int bufferTimeout;
+
+	/**
+	 * Veličina buffera (nakon koliko poruka treba prazniti buffer).
+	 */
+	private int bufferSize;
+
+	/**
+	 * Ciljana veličina paketa (u bajtovima) koje server šalje klijentima.
+	 */
+	private int packetSize;
+
+	/**
+	 * Vrijeme nakon kojeg dispečer poruka pokušava ponovno slati poruku klijentu koji još
+	 * nije registriran.
+	 */
+	private int dispatcherTimeout;
+
+	/**
+	 * Broj pokušaja slanja poruke klijentu koji još nije registriran.
+	 */
+	private int dispatcherRetries;
+
+	/**
+	 * Koliko dugo (u milisekundama) poruka čeka registraciju odredišta.
+	 */
+	private int pendingTimeout;
+
+	/**
+	 * Najveći ukupan broj poruka koje čekaju registraciju odredišta.
+	 */
+	private int pendingCapacity;
+
+	/**
+	 * Najveća ukupna duljina poruka u bajtovima koje čekaju jednu adresu.
+	 */
+	private int mailboxSize;
+
+	/**
+	 * Broj I/O dretvi (selektora) kod neblokirajućeg servera.
+	 */
+	private int ioThreads;
+
+	/**
+	 * Broj dretvi koje prazne buffere klijenata kod servera s dretvama po klijentu.
+	 */
+	private int flushThreads;
+
+	/**
+	 * Najdulje vrijeme (u milisekundama) bez napretka pisanja prema klijentu, nakon
+	 * kojeg se veza prekida. 0 ako se ne prekida.
+	 */
+	private int writeTimeout;
+
+	/**
+	 * Gornja granica zaostatka izlaznog buffera klijenta u bajtovima.
+	 */
+	private int highWatermark;
+
+	/**
+	 * Donja granica zaostatka izlaznog buffera klijenta u bajtovima.
+	 */
+	private int lowWatermark;
+
+	/**
+	 * Najveći broj poruka odloženih za jednog zagušenog klijenta.
+	 */
+	private int spillCapacity;
+
+	/**
+	 * Najveći broj poruka poslanih klijentu s pouzdanom isporukom koje on još nije potvrdio.
+	 */
+	private int ackWindow;
+
+	/**
+	 * Najveći broj poruka koje čekaju kredit jedne pretplate s kreditom.
+	 */
+	private int subscriptionBacklog;
+
+	/**
+	 * Što raditi s porukama za klijenta čiji je izlazni buffer zagušen.
+	 */
+	private SlowConsumerPolicy slowConsumerPolicy;
+
+	/**
+	 * Algoritam komprimiranja koji server bira kad ga klijent ponudi.
+	 */
+	private Compression compression;
+
+	/**
+	 * Najmanji paket u bajtovima koji se komprimira.
+	 */
+	private int compressionThreshold;
+
+	/**
+	 * Direktorij žurnala poruka koje čekaju, null ako poruke nisu trajne.
+	 */
+	private File journalDirectory;
+
+	/**
+	 * Veličina segmenta žurnala u bajtovima.
+	 */
+	private int journalSegmentSize;
+
+	/**
+	 * Najdulje vrijeme (u milisekundama) koje zapis žurnala čeka spremanje na disk.
+	 */
+	private int journalSyncInterval;
+
+	/**
+	 * True ako parkiranje poruke čeka da njen zapis u žurnalu bude spremljen na disk.
+	 */
+	private boolean journalDurable;
+
+	/**
+	 * Način stvaranja dretvi kod servera s dretvama po klijentu.
+	 */
+	private ThreadingMode threadingMode;
+
+	/**
+	 * Konstruktor koji parsira i provjerava parametre servera.
+	 * @param properties parametri servera
+	 * @throws IllegalArgumentException ako neki od parametara nije ispravan
+	 */
+	public ServerParameters(Properties properties) {
+		try {
+			bindAddress = InetAddress.getByName(properties.getProperty("listen.address", "0.0.0.0"));
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("listen.address mora biti valjana IP adresa ili postojeća domena!", e);
+		}
+
+		port = Integer.parseInt(properties.getProperty("listen.port", "0"));
+
+		if(port < 0 || port > 65535) {
+			throw new IllegalArgumentException("listen.port mora biti od 0 do 65535, uključivo!");
+		}
+
+		       packetSize = parsePositive(properties, "packet.size"       ,  "512");
+		    bufferTimeout = parsePositive(properties, "buffer.timeout"    , "1000");
+		       bufferSize = parsePositive(properties, "buffer.size"       ,    "3");
+		    socketTimeout = parsePositive(properties, "socket.timeout"    , "2000");
+		dispatcherTimeout = parsePositive(properties, "dispatcher.timeout", "1000");
+		dispatcherRetries = parsePositive(properties, "dispatcher.retries",    "3");
+		  pendingCapacity = parsePositive(properties, "pending.capacity"  , "10000");
+		      mailboxSize = parsePositive(properties, "mailbox.size"      , "1048576");
+		        ioThreads = parsePositive(properties, "io.threads"        ,    "2");
+		     flushThreads = parsePositive(properties, "flush.threads"     ,    "4");
+		    highWatermark = parsePositive(properties, "watermark.high"    , "1048576");
+		     lowWatermark = parsePositive(properties, "watermark.low"     , "262144");
+		    spillCapacity = parsePositive(properties, "spill.capacity"    , "10000");
+		        ackWindow = parsePositive(properties, "ack.window"        , "4096");
+	  subscriptionBacklog = parsePositive(properties, "subscription.backlog", "1024");
+
+		try {
+			writeTimeout = Integer.parseInt(properties.getProperty("write.timeout", "30000"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("write.timeout mora biti cijeli broj!");
+		}
+
+		if(writeTimeout < 0) {
+			throw new IllegalArgumentException("write.timeout ne smije biti manji od 0!");
+		}
+
+		if(lowWatermark > highWatermark) {
+			throw new IllegalArgumentException("watermark.low ne smije biti veći od watermark.high!");
+		}
+
+		slowConsumerPolicy = SlowConsumerPolicy.fromProperties(properties);
+		compression = Compression.fromProperties(properties);
+		compressionThreshold = parsePositive(properties, "compression.threshold", "256");
+
+		pendingTimeout = parsePositive(properties, "pending.timeout",
+				Long.toString((long) dispatcherTimeout * dispatcherRetries));
+
+		String journal = properties.getProperty("journal.dir");
+
+		journalDirectory = journal == null || journal.trim().isEmpty() ? null : new File(journal.trim());
+		journalSegmentSize = parsePositive(properties, "journal.segment.size", "16777216");
+		journalSyncInterval = parsePositive(properties, "journal.sync.interval", "10");
+
+		String durable = properties.getProperty("journal.durable", "false").trim();
+
+		if(!durable.equalsIgnoreCase("true") && !durable.equalsIgnoreCase("false")) {
+			throw new IllegalArgumentException("journal.durable mora biti true ili false!");
+		}
+
+		journalDurable = Boolean.parseBoolean(durable);
+
+		if(journalSegmentSize < MessageJournal.minSegmentSize) {
+			throw new IllegalArgumentException("journal.segment.size mora biti barem " + MessageJournal.minSegmentSize + "!");
+		}
+
+		threadingMode = ThreadingMode.fromProperties(properties);
+	}
+
+	/**
+	 * Parsira zadani property predanih propertyja koji je prirodan broj, moguće je
+	 * prosljediti i defaultnu vrijednost koja se koristi u slučaju da timeout zadanog
+	 * imena ne postoji.
+	 * @param properties propertyji
+	 * @param propertyName ime traženog propertyja
+	 * @param defaultValue defaultna vrijednost
+	 * @return traženi property
+	 */
+	static int parsePositive(Properties properties, String propertyName, String defaultValue) {
+		try {
+			int value = Integer.parseInt(properties.getProperty(propertyName, defaultValue));
+
+			if(value <= 0) {
+				throw new IllegalArgumentException(propertyName + " mora biti veći od 0!");
+			}
+
+			return value;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(propertyName + " mora biti cijeli broj!");
+		}
+	}
+
+	/**
+	 * @return adresa na kojoj sluša server
+	 */
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	/**
+	 * @return port na kojem sluša server
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return socket.timeout
+	 */
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	/**
+	 * @return buffer.timeout
+	 */
+	public int getBufferTimeout() {
+		return bufferTimeout;
+	}
+
+	/**
+	 * @return buffer.size
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return packet.size
+	 */
+	public int getPacketSize() {
+		return packetSize;
+	}
+
+	/**
+	 * @return dispatcher.timeout
+	 */
+	public int getDispatcherTimeout() {
+		return dispatcherTimeout;
+	}
+
+	/**
+	 * @return dispatcher.retries
+	 */
+	public int getDispatcherRetries() {
+		return dispatcherRetries;
+	}
+
+	/**
+	 * @return pending.timeout, ako nije zadan dispatcher.timeout * dispatcher.retries
+	 */
+	public int getPendingTimeout() {
+		return pendingTimeout;
+	}
+
+	/**
+	 * @return pending.capacity
+	 */
+	public int getPendingCapacity() {
+		return pendingCapacity;
+	}
+
+	/**
+	 * @return mailbox.size
+	 */
+	public int getMailboxSize() {
+		return mailboxSize;
+	}
+
+	/**
+	 * @return io.threads
+	 */
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * @return flush.threads
+	 */
+	public int getFlushThreads() {
+		return flushThreads;
+	}
+
+	/**
+	 * @return write.timeout
+	 */
+	public int getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	/**
+	 * @return watermark.high
+	 */
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * @return watermark.low
+	 */
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	/**
+	 * @return spill.capacity
+	 */
+	public int getSpillCapacity() {
+		return spillCapacity;
+	}
+
+	/**
+	 * @return ack.window
+	 */
+	public int getAckWindow() {
+		return ackWindow;
+	}
+
+	/**
+	 * @return subscription.backlog
+	 */
+	public int getSubscriptionBacklog() {
+		return subscriptionBacklog;
+	}
+
+	/**
+	 * @return slow.consumer.policy
+	 */
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+
+	/**
+	 * @return compression
+	 */
+	public Compression getCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return compression.threshold
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @return journal.dir, null ako poruke koje čekaju nisu trajne
+	 */
+	public File getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	/**
+	 * @return journal.segment.size
+	 */
+	public int getJournalSegmentSize() {
+		return journalSegmentSize;
+	}
+
+	/**
+	 * @return journal.sync.interval
+	 */
+	public int getJournalSyncInterval() {
+		return journalSyncInterval;
+	}
+
+	/**
+	 * @return journal.durable
+	 */
+	public boolean isJournalDurable() {
+		return journalDurable;
+	}
+
+	/**
+	 * @return threading.mode
+	 */
+	public ThreadingMode getThreadingMode() {
+		return threadingMode;
+	}
+}
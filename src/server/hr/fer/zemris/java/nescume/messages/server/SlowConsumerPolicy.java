@@ -0,0 +1,53 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.util.Properties;
+
+/**
+ * Što server radi s porukom za klijenta čiji je izlazni buffer zagušen, zadaje se
+ * propertyjem slow.consumer.policy. Buffer je zagušen kad njegov zaostatak prijeđe
+ * watermark.high i ostaje zagušen dok ne padne na watermark.low.
+ */
+enum SlowConsumerPolicy {
+
+	/**
+	 * Izbacuju se najstarije poruke koje čekaju u bufferu (drop-oldest). Klijentu s
+	 * pouzdanom isporukom poruke se ne izbacuju, nego odlažu kao kod SPILL.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Odbacuje se nova poruka (drop-new).
+	 */
+	DROP_NEW,
+
+	/**
+	 * Veza sa sporim klijentom se prekida (disconnect).
+	 */
+	DISCONNECT,
+
+	/**
+	 * Poruke se redom odlažu sa strane i šalju kad zagušenje prestane (spill). Ako se
+	 * odloži spill.capacity poruka, veza se prekida.
+	 */
+	SPILL;
+
+	/**
+	 * Vraća politiku zadanu propertyjem slow.consumer.policy, ako on nije zadan vraća
+	 * SPILL.
+	 * @param properties parametri
+	 * @return politika za spore klijente
+	 * @throws IllegalArgumentException ako slow.consumer.policy nije drop-oldest, drop-new,
+	 * disconnect ili spill
+	 */
+	public static SlowConsumerPolicy fromProperties(Properties properties) {
+		String policy = properties.getProperty("slow.consumer.policy", "spill").trim();
+
+		for(SlowConsumerPolicy value : values()) {
+			if(value.name().replace('_', '-').equalsIgnoreCase(policy)) {
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("slow.consumer.policy mora biti drop-oldest, drop-new, disconnect ili spill!");
+	}
+}
@@ -1,6 +1,7 @@
 package hr.fer.zemris.java.nescume.messages.server;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -8,21 +9,33 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import hr.fer.zemris.java.nescume.messages.AckMessage;
 import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Compression;
+import hr.fer.zemris.java.nescume.messages.FrameReader;
 import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.NotificationMessage;
 import hr.fer.zemris.java.nescume.messages.QueryMessage;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.SequencedMessage;
+import hr.fer.zemris.java.nescume.messages.SubscriptionMessage;
+import hr.fer.zemris.java.nescume.messages.ThreadingMode;
 import hr.fer.zemris.java.nescume.messages.TimeoutBuffer;
+import hr.fer.zemris.java.nescume.messages.TimerWheel;
 import hr.fer.zemris.java.nescume.messages.Message.MessageType;
 import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerCannotStart;
 import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerCrashed;
@@ -33,27 +46,54 @@ import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerCrashed;
 public class SocketMessageServer implements IMessageServer {
 
 	/**
-	 * Mapiranje adresa u opsluživače klijenata, služi kod razmjene poruka među klijentima.
+	 * Mapiranje ključeva adresa u opsluživače klijenata, služi kod razmjene poruka među
+	 * klijentima. Primatelji ga pretražuju bez zaključavanja i bez stvaranja adresa.
 	 */
-	private Map<Address, ClientHandler> clients = Collections.synchronizedMap(new HashMap<Address, ClientHandler>());
+	private RoutingTable<ClientHandler> clients = new RoutingTable<ClientHandler>();
 	
 	/**
-	 * Mapiranje tipova poruka u opsluživače klijenata, služi za registriranje querya.
-	 * Namjena ovog je ubrzavanje, bez ove kolekcije, svaki klijent bi se trebao pitati da
-	 * li prihvaća poruke određenog tipa.
+	 * Pretplate opsluživača klijenata po tipovima poruka, služi za registriranje querya.
+	 * Indeks tipa u jednom prolazu kroz sadržaj poruke pronalazi sve pretplatnike kojima
+	 * poruka odgovara, a primatelji ga čitaju bez zaključavanja.
 	 */
-	private Map<MessageType, Set<ClientHandler>> queries = Collections.synchronizedMap(new HashMap<MessageType, Set<ClientHandler>>());
+	private SubscriptionRegistry<ClientHandler> queries = new SubscriptionRegistry<ClientHandler>();
 	
 	/**
-	 * Klasa iz koje se stvaraju objekti koji opslužuju klijente. Svi opsluživači se trebaju
-	 * vrtiti u svojim dretvama.
+	 * Pretplate s kreditom po tipovima poruka. Pretplatnik je pojedina pretplata, pa
+	 * klijent s više pretplata poruku dobiva za svaku pretplatu kojoj odgovara.
 	 */
-	private class ClientHandler extends Thread {
+	private SubscriptionRegistry<CreditSubscription> flows = new SubscriptionRegistry<CreditSubscription>();
+	
+	/**
+	 * Klasa iz koje se stvaraju objekti koji opslužuju klijente. Primatelj svakog
+	 * opsluživača vrti se u svojoj dretvi, stvorenoj prema threading.mode, a buffere svih
+	 * opsluživača prazne zajednički kotač rokova i izvršitelj pražnjenja.
+	 *
+	 * Poruke za klijenta dodaju se u buffer bez čekanja. Kad klijent ne čita i zaostatak
+	 * buffera prijeđe watermark.high, s novim porukama se postupa prema
+	 * slow.consumer.policy, pa spori klijent ne zaustavlja primatelje drugih klijenata.
+	 * Pisanje prema klijentu koji ne čita blokira dretvu izvršitelja pražnjenja, pa se
+	 * ona nadomješta novom dok pisanje ne završi, a veza se prekida ako pisanje ne
+	 * napreduje write.timeout.
+	 *
+	 * Klijentu koji je pri registraciji zatražio pouzdanu isporuku svaka poruka ide s
+	 * rednim brojem (SequencedMessage) i čuva se dok je klijent ne potvrdi (AckMessage).
+	 * Nepotvrđenih poruka smije biti najviše ack.window, a kad je prozor pun klijent se
+	 * smatra zagušenim. Poruke pouzdanog klijenta se ne izbacuju, pa se uz drop-oldest
+	 * zagušenje takvog klijenta rješava kao spill. Kad se veza prekine, nepotvrđene i
+	 * odložene poruke vraćaju se na početak sandučića, pa ih klijent dobiva ponovno kad se
+	 * ponovno registrira.
+	 *
+	 * Pretplate s kreditom (SubscriptionMessage) žive koliko i veza. Poruke pretplata idu
+	 * kroz isti buffer kao i ostale poruke, a kad se veza prekine ne vraćaju se u sandučić.
+	 */
+	private class ClientHandler {
 		
 		/**
 		 * Primatelj. Dio opsluživača namijenjen primanju poruka od klijenta i obrađivanju
 		 * istih. Svaki primatelj zakačen je na svoj ulazni kanal i svaki radi u svojoj
-		 * dretvi.
+		 * dretvi. Primatelj blokira na čitanju dok ne stignu podaci, pa neaktivna veza ne
+		 * troši procesor.
 		 */
 		private class Receiver implements Runnable {
 			
@@ -62,87 +102,133 @@ public class SocketMessageServer implements IMessageServer {
 			 */
 			private InputStream input;
 			
+			/**
+			 * Čitač poruka s ulaznog kanala, jedno čitanje iz socketa može donijeti više
+			 * poruka.
+			 */
+			private FrameReader reader;
+			
 			/**
 			 * Objekt koji je stvorio ovog primatelja.
 			 */
 			private ClientHandler clientHandler;
 			
+			/**
+			 * Prosljeđuje primljene poruke pretplatnicima.
+			 */
+			private Notifier notifier = new Notifier();
+			
+			/**
+			 * Predaje primljene poruke pretplatama s kreditom.
+			 */
+			private CreditSubscription.Notifier flowNotifier = new CreditSubscription.Notifier();
+			
 			/**
 			 * Konstruktor koji stvara novog primatelja i spaja ga na ulazni kanal.
 			 * @param input ulazni kanal
 			 * @param clientHandler objekt koji je stvorio ovog primatelja
 			 */
 			public Receiver(InputStream input, ClientHandler clientHandler) {
-				this.input = new BufferedInputStream(input);
+				this.input = input;
+				this.reader = new FrameReader(input, packetSize);
 				this.clientHandler = clientHandler;
 			}
 			
 			/**
 			 * Metoda obavlja posao primatelja. Hvata sve poruke koje klijent šalje na
-			 * server i obrađuje ih.
+			 * server i obrađuje ih. Poruke za druge klijente se ne dekodiraju nego
+			 * prosljeđuju u obliku u kojem su stigle. Sve potpune poruke koje su već u bufferu dekodiraju se
+			 * bez ponovnog čitanja iz socketa, a kad klijent zatvori vezu opsluživač se gasi.
 			 */
 			public void run() {
 				try {
 					while(active) {
-						if(input.available() > 0) {
-							Message received = Message.fromStream(input);
-	
-							if(queries.containsKey(received.getType())) {
-								for(ClientHandler toNotify : queries.get(received.getType())) {
-									if(toNotify.matchesQueryType(received)) {
-										toNotify.sendMessage(received);
+						Message received = reader.readRelay();
+
+						if(queries.hasSubscribers(received.getType())) {
+							notifier.message = received;
+							queries.match(received, notifier);
+						}
+						
+						if(flows.hasSubscribers(received.getType())) {
+							flowNotifier.message = received;
+							flows.match(received, flowNotifier);
+						}
+						
+						switch(received.getType()) {
+						case REGISTER:
+							clientHandler.negotiate((RegisterMessage) received);
+							clientHandler.register(received.getSourceKey());
+							
+							//@DebugStart
+							System.out.println("Klijent " + received.getSource() + " se registrirao!");
+							//@DebugEnd
+							break;
+							
+						case ACK:
+							clientHandler.acknowledge(((AckMessage) received).getSequence());
+							break;
+							
+						case SUBSCRIPTION:
+							clientHandler.control((SubscriptionMessage) received);
+							break;
+							
+						case QUERY:
+							QueryMessage queryMessage = (QueryMessage) received;
+							
+							queries.subscribe(queryMessage.getQueryType(), clientHandler, queryMessage.getPattern());
+							
+							// DebugStart
+							System.out.println("Klijent se registirirao na " + queryMessage.getQueryType() + " " + Arrays.toString(queryMessage.getPattern()));
+							// DebugEnd
+							
+							break;
+							
+						default:
+							ClientHandler destination = clients.get(received.getDestinationKey());
+							
+							if(destination == null) {
+								synchronized(pending) {
+									destination = clients.get(received.getDestinationKey());
+									
+									if(destination == null) {
+										//@DebugStart
+										System.out.println("Drugi još nije registriran, poruka od " + received.getSourceKey()
+												+ " za " + received.getDestinationKey() + " čeka.");
+										//@DebugEnd
 										
-										System.out.println("Poruka poslana " + toNotify + " jer se pretplatio na nju.");
+										pending.park(received);
 									}
 								}
+								
+								if(destination == null) {
+									pending.writeJournal();
+								}
 							}
 							
-							switch(received.getType()) {
-							case REGISTER:
-								synchronized(dispatchers) {
-									clients.put(received.getSource(), (ClientHandler) clientHandler);
+							if(destination != null) {
+								try {
+									destination.sendMessage(received);
+									metrics.deliveredInline();
+								} catch (IOException e) {
+									// Greška odredišta ne prekida vezu pošiljatelja, a poruka
+									// čeka u sandučiću dok se odredište ponovno ne registrira
+									destination.close();
 									
-									//@DebugStart
-									System.out.println("Klijent " + received.getSource() + " se registrirao!");
-									//@DebugEnd
-	
-									dispatchers.notifyAll();
-								}
-								break;
-								
-							case QUERY:
-								QueryMessage queryMessage = (QueryMessage) received;
-								
-								if(!queries.containsKey(queryMessage.getQueryType())) {
-									queries.put(queryMessage.getQueryType(), new HashSet<ClientHandler>());
-								}
-								
-								queries.get(queryMessage.getQueryType()).add(clientHandler);
-								
-								synchronized(queryPatterns) {
-									queryPatterns.put(queryMessage.getQueryType(), queryMessage.getPattern());
+									synchronized(pending) {
+										pending.park(received);
+									}
+									
+									pending.writeJournal();
 								}
-								
-								// DebugStart
-								System.out.println("Klijent se registirirao na " + queryMessage.getQueryType() + " " + queryMessage.getPattern());
-								// DebugEnd
-								
-								break;
-								
-							default:
-								//@DebugStart
-								System.out.println(received);
-								System.out.println("Stvaram novog dispečera poruke!");
-								//@DebugEnd
-																
-								new Thread(new Dispatcher(received)).start();
-															
-								break;
 							}
+							break;
 						}
-						
-						Thread.yield();
 					}					
+				} catch (EOFException e) {
+					//@DebugStart
+					System.out.println("Klijent " + client.getRemoteSocketAddress() + " je zatvorio vezu.");
+					//@DebugEnd
 				} catch (IOException e) {
 					return;
 				} finally {
@@ -151,70 +237,33 @@ public class SocketMessageServer implements IMessageServer {
 					} catch (IOException ignorable) {
 						
 					}
+					
+					clientHandler.close();
 				}
 			}
 		}
 		
 		/**
-		 * Dispečer poruka klijenta klijentu. Dispečer šalje klijentu poruke namijenjene
-		 * za njega.
+		 * Posjetitelj koji poruku šalje svakom pretplatniku kojem odgovara. Svaki primatelj
+		 * ima svog, pa slanje obavijesti ne alocira memoriju. Pretplatnik kojem slanje ne
+		 * uspije se gasi, a primatelj nastavlja s radom.
 		 */
-		private class Dispatcher implements Runnable {
-
-			/**
-			 * Poruka koju treba poslati.
-			 */
-			private Message toSend;
+		private class Notifier implements SubscriptionIndex.Visitor<ClientHandler> {
 			
 			/**
-			 * Preostali broj pokušaja slanja poruke klijentu ako on nije dostupan.
+			 * Poruka koja se prosljeđuje.
 			 */
-			private int retries;
+			private Message message;
 			
-			/**
-			 * Konstruktor novog dispečera, prima poruku koju treba dispečirati.
-			 * @param toSend poruka
-			 */
-			public Dispatcher(Message toSend) {
-				this.toSend = toSend;
-				
-				this.retries = dispatcherRetries;
-			}
-			
-			/**
-			 * Metoda obavlja posao dispečera, ako klijent kojemu treba isporučiti poruku
-			 * još nije registriran, dispečer čeka.
-			 */
-			public void run() {
-				while(!clients.containsKey(toSend.getDestination())) {
+			public void matched(ClientHandler subscriber) {
+				try {
+					subscriber.sendMessage(message);
+					
 					//@DebugStart
-					System.out.println("Drugi još nije registriran, dretva ide na čekanje!");
+					System.out.println("Poruka poslana " + subscriber + " jer se pretplatio na nju.");
 					//@DebugEnd
-					
-					try {
-						synchronized(dispatchers) {
-							dispatchers.wait(dispatcherTimeout);
-							
-							if(!active) break;
-							
-							retries--;
-							if(retries == 0) {
-								return;
-							}
-						}
-						
-						if(!active) break;
-					} catch (InterruptedException ignorable) {
-						
-					}
-				}
-				
-				if(!active) return;
-				
-				try {
-					clients.get(toSend.getDestination()).sendMessage(toSend);
 				} catch (IOException e) {
-					e.printStackTrace();
+					subscriber.close();
 				}
 			}
 		}
@@ -230,14 +279,20 @@ public class SocketMessageServer implements IMessageServer {
 		private Receiver receiver;
 		
 		/**
-		 * Objekt preko kojeg se vrši sinhronizacija dispečera.
+		 * Klijent kojeg ovaj obrađivač obrađuje.
 		 */
-		private Object dispatchers = new Object();
+		private Socket client;
 		
 		/**
-		 * Klijent kojeg ovaj obrađivač obrađuje.
+		 * Poruke odložene dok je buffer zagušen (spill), redom kojim su stigle. Služi i
+		 * kao monitor za odlaganje i vraćanje poruka.
 		 */
-		private Socket client;
+		private final Deque<Message> spill = new ArrayDeque<Message>();
+		
+		/**
+		 * True dok ima odloženih poruka, tada i nove poruke idu iza njih.
+		 */
+		private volatile boolean spilling;
 		
 		/**
 		 * True ako je opsluživač aktivan, false inače. Služi za gašenje opsluživača
@@ -246,17 +301,47 @@ public class SocketMessageServer implements IMessageServer {
 		private volatile boolean active = false;
 		
 		/**
-		 * Mapa tipova poruka na patterne koje moraju zadovoljiti poruke toga tipa da bi
-		 * bile prosljeđene klijentu.
+		 * Ključ adrese pod kojom se klijent registrirao, -1 prije registracije.
+		 */
+		private volatile int address = -1;
+		
+		/**
+		 * True dok se klijentu šalju poruke iz njegovog sandučića.
+		 */
+		private volatile boolean draining;
+		
+		/**
+		 * Monitor pražnjenja sandučića. Sandučić prazne primatelj i flusher, ali ne
+		 * istovremeno.
+		 */
+		private final Object mailboxLock = new Object();
+		
+		/**
+		 * True ako je klijent pri registraciji zatražio pouzdanu isporuku.
+		 */
+		private volatile boolean reliable;
+		
+		/**
+		 * Poruke poslane klijentu koje on još nije potvrdio, redom rednih brojeva. Služi i
+		 * kao monitor za dodjelu rednih brojeva, da poruke na izlaz idu redom brojeva.
 		 */
-		private Map<MessageType, Byte[]> queryPatterns = new HashMap<MessageType, Byte[]>();
+		private final Deque<SequencedMessage> unacked = new ArrayDeque<SequencedMessage>();
+		
+		/**
+		 * Redni broj sljedeće poruke poslane klijentu.
+		 */
+		private int nextSequence = 1;
+		
+		/**
+		 * Pretplate s kreditom ove veze, po identifikatoru. Mijenja ih samo primatelj.
+		 */
+		private final Map<Integer, CreditSubscription> subscriptions = new ConcurrentHashMap<Integer, CreditSubscription>();
 		
 		/**
 		 * Konstruktor obrađivača, prima klijenta kojeg će obrađivati.
 		 * @param client klijent
 		 */
 		public ClientHandler(Socket client) {
-			super();
 			this.client = client;
 			this.active = true;
 			
@@ -265,62 +350,370 @@ public class SocketMessageServer implements IMessageServer {
 			//@DebugEnd
 			
 			try {
-				sender = new TimeoutBuffer(bufferTimeout, bufferSize, packetSize, client.getOutputStream());
+				sender = new TimeoutBuffer(bufferTimeout, bufferSize, packetSize, client.getOutputStream(),
+						timers, flushers);
+				sender.setWatermarks(lowWatermark, highWatermark, new Runnable() {
+					
+					public void run() {
+						if(draining) {
+							try {
+								drainMailbox();
+							} catch (IOException e) {
+								close();
+								return;
+							}
+						}
+						
+						drainSpill();
+					}
+					
+				});
+				sender.setWriteTimeouts(WRITE_STALL, writeTimeout, new TimeoutBuffer.StallListener() {
+					
+					public void writeStalled() {
+						metrics.stalledWrite();
+						compensate(1);
+					}
+					
+					public void writeResumed() {
+						compensate(-1);
+					}
+					
+					public void writeTimedOut() {
+						metrics.slowDisconnect();
+						
+						//@DebugStart
+						System.out.println("Klijent " + client.getRemoteSocketAddress() + " ne čita, veza se prekida.");
+						//@DebugEnd
+					}
+					
+				});
 				receiver = new Receiver(client.getInputStream(), this);
 				
-				new Thread(sender).start();
-				new Thread(receiver).start();
+				threading.start(receiver, "receiver-" + client.getRemoteSocketAddress());
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 		
 		/**
-		 * Provjerava da li klijenta treba obavijestiti o primanju ove poruke.
-		 * @param received primljena poruka
-		 * @return true ako da, false inače
+		 * Šalje poruku klijentu kojeg ovaj obrađivač obrađuje. Poruka će zapravo biti
+		 * poslana klijentu najkasnije nakon bufferTimeout vremena. Nakon toga, potrebno je
+		 * još neko vrijeme (latencija mreže) da poruke stigne do klijenta.
+		 * @param message poruka
 		 */
-		public synchronized boolean matchesQueryType(Message received) {
+		public void sendMessage(Message message) throws IOException {
+			if(!active) {
+				throw new IOException("Veza s klijentom je zatvorena!");
+			}
 			
-			synchronized(queryPatterns) {
-				if(queryPatterns.containsKey(received.getType())) {
-					return patternMatch(received.getData(), queryPatterns.get(received.getType()));
-				} else {
-					return false;
+			if(!spilling && offer(message)) {
+				return;
+			}
+			
+			// Izbačena poruka pokrila bi se potvrdom kasnije poruke, a da nije ni stigla
+			SlowConsumerPolicy policy = reliable && slowConsumerPolicy == SlowConsumerPolicy.DROP_OLDEST
+					? SlowConsumerPolicy.SPILL : slowConsumerPolicy;
+			
+			switch(policy) {
+			case DROP_OLDEST:
+				metrics.droppedOldest(sender.addEvicting(message));
+				break;
+				
+			case DROP_NEW:
+				metrics.droppedNew();
+				break;
+				
+			case DISCONNECT:
+				disconnectSlow();
+				break;
+				
+			case SPILL:
+				synchronized(spill) {
+					if(spill.isEmpty() && offer(message)) {
+						return;
+					}
+					
+					if(spill.size() < spillCapacity) {
+						spill.addLast(message);
+						spilling = true;
+						metrics.spilled();
+						return;
+					}
 				}
+				
+				disconnectSlow();
+				break;
 			}
 		}
 		
 		/**
-		 * Pattern-match za message.data, provjera matches.
-		 * @param data message.data
-		 * @param pattern patterna
-		 * @return true ako da, false inače
+		 * Dodaje poruku u buffer ako on nije zagušen. Poruci za klijenta s pouzdanom
+		 * isporukom dodjeljuje redni broj i čuva je do potvrde, a ako je prozor
+		 * nepotvrđenih poruka pun, poruku odbija kao da je buffer zagušen.
+		 * @param message poruka
+		 * @return true ako je poruka dodana, false ako je buffer zagušen ili prozor pun
+		 * @throws IOException ako je veza zatvorena ili pisanje nije uspjelo
 		 */
-		private boolean patternMatch(byte[] data, Byte[] pattern) {
-			if(pattern[0] == '0') {
+		private boolean offer(Message message) throws IOException {
+			if(!reliable) {
+				return sender.offer(message);
+			}
+			
+			synchronized(unacked) {
+				if(!active) {
+					throw new IOException("Veza s klijentom je zatvorena!");
+				}
+				
+				if(unacked.size() >= ackWindow) {
+					return false;
+				}
+				
+				SequencedMessage sequenced = new SequencedMessage(nextSequence, message);
+				
+				if(!sender.offer(sequenced)) {
+					return false;
+				}
+				
+				nextSequence++;
+				unacked.addLast(sequenced);
+				
 				return true;
 			}
+		}
+		
+		/**
+		 * Prima potvrdu klijenta: poruke do zadanog rednog broja više se ne čuvaju. Poruke
+		 * na izlaz idu redom brojeva i ne izbacuju se, pa su sve ranije poruke primljene.
+		 * Poruke koje su čekale na mjesto u prozoru šalju se dalje.
+		 * @param sequence najveći potvrđeni redni broj
+		 * @throws IOException ako slanje nije uspjelo
+		 */
+		private void acknowledge(int sequence) throws IOException {
+			metrics.acknowledged();
+			
+			synchronized(unacked) {
+				while(!unacked.isEmpty() && unacked.peekFirst().getSequence() - sequence <= 0) {
+					unacked.pollFirst();
+				}
+			}
+			
+			if(draining) {
+				drainMailbox();
+			}
+			
+			if(spilling) {
+				drainSpill();
+			}
+		}
+		
+		/**
+		 * Vraća odložene poruke u buffer kad zagušenje prestane, redom i dok buffer
+		 * ponovno ne bude zagušen. Poziva ga flusher buffera, a kod pouzdane isporuke i
+		 * primatelj kad stigne potvrda.
+		 */
+		private void drainSpill() {
+			synchronized(spill) {
+				try {
+					while(!spill.isEmpty() && offer(spill.peekFirst())) {
+						spill.pollFirst();
+					}
+				} catch (IOException e) {
+					// Odložene poruke pouzdanog klijenta close() vraća u sandučić
+					if(!reliable) {
+						spill.clear();
+					}
+				}
+				
+				spilling = !spill.isEmpty();
+			}
+		}
+		
+		/**
+		 * Otvara, kreditira ili zatvara pretplatu s kreditom ove veze. Poruke za
+		 * nepostojeću pretplatu se zanemaruju, one su mogle stići nakon zatvaranja.
+		 * @param message poruka za upravljanje pretplatom
+		 */
+		private void control(SubscriptionMessage message) {
+			CreditSubscription subscription;
+			
+			switch(message.getKind()) {
+			case SUBSCRIBE:
+				subscription = new CreditSubscription(message.getSubscriptionId(), subscriptionBacklog, metrics) {
+					
+					protected void send(NotificationMessage notification) {
+						try {
+							sendMessage(notification);
+						} catch (IOException e) {
+							close();
+						}
+					}
+					
+				};
+				
+				CreditSubscription replaced = subscriptions.put(subscription.getId(), subscription);
+				
+				if(replaced != null) {
+					replaced.cancel();
+					flows.unsubscribe(replaced);
+				}
+				
+				if(active) {
+					flows.subscribe(message.getQueryType(), subscription, message.getPattern());
+				}
+				break;
+				
+			case REQUEST:
+				subscription = subscriptions.get(message.getSubscriptionId());
+				
+				if(subscription != null && message.getCount() > 0) {
+					subscription.grant(message.getCount());
+				}
+				break;
+				
+			case CANCEL:
+				subscription = subscriptions.remove(message.getSubscriptionId());
+				
+				if(subscription != null) {
+					subscription.cancel();
+					flows.unsubscribe(subscription);
+				}
+				break;
+			}
+		}
+		
+		/**
+		 * Registrira klijenta pod zadanom adresom i počinje mu slati poruke iz sandučića.
+		 * U mapi klijenata objavljuje se tek kad mu se sandučić isprazni, do tada nove
+		 * poruke za njega čekaju u sandučiću iza starih.
+		 * @param key ključ adrese klijenta
+		 * @throws IOException ako slanje nije uspjelo
+		 */
+		private void register(int key) throws IOException {
+			address = key;
+			draining = true;
 			
-			List<Byte> toCheck = new ArrayList<Byte>();
+			drainMailbox();
+		}
+		
+		/**
+		 * Šalje poruke iz sandučića klijenta, skupinu po skupinu, dok buffer ne postane
+		 * zagušen. Ostatak šalje flusher kad zagušenje prestane, pa se sandučić ne učitava
+		 * odjednom u memoriju. Skupina se šalje izvan monitora sandučića. Kad je sandučić
+		 * prazan, klijent se objavljuje u mapi klijenata.
+		 * @throws IOException ako slanje nije uspjelo
+		 */
+		private void drainMailbox() throws IOException {
+			synchronized(mailboxLock) {
+				try {
+					while(draining) {
+						List<Message> batch = pending.peek(address);
+						int offered = 0;
+						
+						try {
+							while(offered < batch.size() && offer(batch.get(offered))) {
+								offered++;
+							}
+						} finally {
+							pending.remove(address, offered);
+						}
+						
+						if(offered < batch.size()) {
+							return;
+						}
+						
+						synchronized(pending) {
+							if(pending.isEmpty(address)) {
+								draining = false;
+								
+								if(active) {
+									clients.put(address, this);
+								}
+							}
+						}
+					}
+				} finally {
+					pending.writeJournal();
+				}
+			}
+		}
+		
+		/**
+		 * Odgovara na ponudu algoritama komprimiranja i zahtjev za pouzdanom isporukom iz
+		 * registracijske poruke. Ako je dogovoren algoritam ili klijent traži pouzdanu
+		 * isporuku, klijent dobiva odgovor s onim što je prihvaćeno i od tada se paketi
+		 * prema njemu komprimiraju, odnosno poruke šalju s rednim brojevima. Inače server
+		 * ne odgovara i paketi ostaju nekomprimirani.
+		 * @param register registracijska poruka klijenta
+		 * @throws IOException ako slanje odgovora nije uspjelo
+		 */
+		private void negotiate(RegisterMessage register) throws IOException {
+			Compression agreed = compression.negotiate(register.getCompressions());
 			
-			for(byte bajt : data) {
-				toCheck.add(bajt);
+			if(agreed == Compression.NONE && !register.isReliable()) {
+				return;
 			}
 			
-			List<Byte> toUse = Arrays.asList(pattern);
+			RegisterMessage reply = agreed == Compression.NONE
+					? new RegisterMessage(new Address(0, 0), register.isReliable())
+					: new RegisterMessage(new Address(0, 0), register.isReliable(), agreed);
+			reply.setDestination(register.getSource());
+			// Klijent koji traži pouzdanu isporuku čeka odgovor prije nego što nastavi
+			reply.setUrgent(register.isReliable());
+			
+			sender.addMessage(reply);
+			sender.setCompression(agreed, compressionThreshold);
 			
-			return Collections.indexOfSubList(toCheck, toUse) != -1;
+			reliable = register.isReliable();
 		}
-
+		
 		/**
-		 * Šalje poruku klijentu kojeg ovaj obrađivač obrađuje. Poruka će zapravo biti
-		 * poslana klijentu najkasnije nakon bufferTimeout vremena. Nakon toga, potrebno je
-		 * još neko vrijeme (latencija mreže) da poruke stigne do klijenta.
-		 * @param message poruka
+		 * Vraća na početak sandučića klijenta poruke koje nije potvrdio, a iza njih poruke
+		 * odložene za njega, pa ih dobiva kad se ponovno registrira. Poruke pretplata se
+		 * ne vraćaju, pretplate su prestale s vezom.
 		 */
-		public void sendMessage(Message message) throws IOException {
-			sender.addMessage(message);
+		private void requeue() {
+			synchronized(pending) {
+				synchronized(spill) {
+					synchronized(unacked) {
+						List<Message> returned = new ArrayList<Message>(unacked.size() + spill.size());
+						
+						for(SequencedMessage message : unacked) {
+							if(!(message.getMessage() instanceof NotificationMessage)) {
+								returned.add(message.getMessage());
+							}
+						}
+						
+						for(Message message : spill) {
+							if(!(message instanceof NotificationMessage)) {
+								returned.add(message);
+							}
+						}
+						
+						unacked.clear();
+						spill.clear();
+						
+						pending.requeue(address, returned);
+					}
+				}
+			}
+			
+			pending.writeJournal();
+		}
+		
+		/**
+		 * Prekida vezu sa klijentom koji ne stiže čitati poruke.
+		 */
+		private void disconnectSlow() {
+			if(active) {
+				metrics.slowDisconnect();
+				
+				//@DebugStart
+				System.out.println("Klijent " + client.getRemoteSocketAddress() + " je prespor, veza se prekida.");
+				//@DebugEnd
+				
+				close();
+			}
 		}
 		
 		/**
@@ -328,9 +721,27 @@ public class SocketMessageServer implements IMessageServer {
 		 */
 		public void close() {
 			active = false;
+			
+			// Poruke za ovu adresu od sada čekaju u sandučiću
+			if(address >= 0) {
+				clients.remove(address, this);
+			}
 						
-			synchronized(sender) {
-				sender.notifyAll();
+			sender.stop();
+			
+			if(reliable && address >= 0) {
+				requeue();
+			}
+			
+			synchronized(spill) {
+				spill.clear();
+			}
+			
+			queries.unsubscribe(this);
+			
+			for(CreditSubscription subscription : subscriptions.values()) {
+				subscription.cancel();
+				flows.unsubscribe(subscription);
 			}
 			
 			try {
@@ -372,15 +783,123 @@ public class SocketMessageServer implements IMessageServer {
 	private int packetSize;
 	
 	/**
-	 * Vrijeme nakon kojeg dispečer poruka pokušava ponovno slati poruku klijentu koji još
-	 * nije registriran.
+	 * Način stvaranja dretvi primatelja i flushera.
+	 */
+	private ThreadingMode threading;
+	
+	/**
+	 * Najdulje vrijeme (u milisekundama) bez napretka pisanja prema klijentu, 0 ako se
+	 * veza zbog toga ne prekida.
+	 */
+	private int writeTimeout;
+	
+	/**
+	 * Gornja granica zaostatka izlaznog buffera klijenta u bajtovima.
+	 */
+	private int highWatermark;
+	
+	/**
+	 * Donja granica zaostatka izlaznog buffera klijenta u bajtovima.
+	 */
+	private int lowWatermark;
+	
+	/**
+	 * Najveći broj poruka odloženih za jednog zagušenog klijenta.
+	 */
+	private int spillCapacity;
+	
+	/**
+	 * Najveći broj nepotvrđenih poruka klijenta s pouzdanom isporukom.
+	 */
+	private int ackWindow;
+	
+	/**
+	 * Najveći broj poruka koje čekaju kredit jedne pretplate s kreditom.
+	 */
+	private int subscriptionBacklog;
+	
+	/**
+	 * Što raditi s porukama za klijenta čiji je izlazni buffer zagušen.
+	 */
+	private SlowConsumerPolicy slowConsumerPolicy;
+	
+	/**
+	 * Algoritam komprimiranja koji server bira kad ga klijent ponudi.
+	 */
+	private Compression compression;
+	
+	/**
+	 * Najmanji paket u bajtovima koji se komprimira.
+	 */
+	private int compressionThreshold;
+	
+	/**
+	 * Direktorij žurnala poruka koje čekaju, null ako poruke nisu trajne.
+	 */
+	private File journalDirectory;
+	
+	/**
+	 * Veličina segmenta žurnala u bajtovima.
+	 */
+	private int journalSegmentSize;
+	
+	/**
+	 * Najdulje vrijeme (u milisekundama) koje zapis žurnala čeka spremanje na disk.
+	 */
+	private int journalSyncInterval;
+	
+	/**
+	 * True ako parkiranje poruke čeka spremanje njenog zapisa na disk (journal.durable).
+	 */
+	private boolean journalDurable;
+	
+	/**
+	 * Duljina otkucaja kotača rokova (u milisekundama).
+	 */
+	private static final int TIMER_TICK = 5;
+	
+	/**
+	 * Broj pretinaca kotača rokova.
+	 */
+	private static final int TIMER_WHEEL_SIZE = 512;
+	
+	/**
+	 * Vrijeme (u milisekundama) bez napretka pisanja nakon kojeg se dretva pražnjenja
+	 * nadomješta.
+	 */
+	private static final int WRITE_STALL = 50;
+	
+	/**
+	 * Kotač na kojem se zakazuju rokovi buffera svih klijenata.
+	 */
+	private TimerWheel timers;
+	
+	/**
+	 * Izvršitelj koji prazni buffere svih klijenata, s flush.threads dretvi i po jednom
+	 * dodatnom za svako zapelo pisanje.
+	 */
+	private ThreadPoolExecutor flushers;
+	
+	/**
+	 * Broj dretvi izvršitelja pražnjenja.
+	 */
+	private int flushThreads;
+	
+	/**
+	 * Broj dretvi izvršitelja koje su zapele pišući klijentima koji ne čitaju. Štiti ga
+	 * monitor izvršitelja.
 	 */
-	private int dispatcherTimeout;
+	private int stalledFlushers;
 	
 	/**
-	 * Broj pokušaja slanja poruke klijentu koji još nije registriran.
+	 * Poruke za klijente koji se još nisu registrirali.
 	 */
-	private int dispatcherRetries;
+	private final PendingDeliveries pending;
+	
+	/**
+	 * Brojači rada servera.
+	 */
+	private final ServerMetrics metrics = new ServerMetrics();
 	
 	/**
 	 * True ako server ovog objekta radi, false inače. Služi za gašenje servera preko metode stop().
@@ -393,52 +912,47 @@ public class SocketMessageServer implements IMessageServer {
 	 * @param properties parametri servera
 	 */
 	public SocketMessageServer(Properties properties) {
-		try {
-			bindAddress = InetAddress.getByName(properties.getProperty("listen.address", "0.0.0.0"));
-		} catch (UnknownHostException e) {
-			throw new IllegalArgumentException("listen.address mora biti valjana IP adresa ili postojeća domena!", e);
-		}
+		ServerParameters parameters = new ServerParameters(properties);
 		
-		port = Integer.parseInt(properties.getProperty("listen.port", "0"));
+		       bindAddress = parameters.getBindAddress();
+		              port = parameters.getPort();
+		        packetSize = parameters.getPacketSize();
+		     bufferTimeout = parameters.getBufferTimeout();
+		        bufferSize = parameters.getBufferSize();
+		     socketTimeout = parameters.getSocketTimeout();
+		         threading = parameters.getThreadingMode();
+		      flushThreads = parameters.getFlushThreads();
+		      writeTimeout = parameters.getWriteTimeout();
+		     highWatermark = parameters.getHighWatermark();
+		      lowWatermark = parameters.getLowWatermark();
+		     spillCapacity = parameters.getSpillCapacity();
+		         ackWindow = parameters.getAckWindow();
+	   subscriptionBacklog = parameters.getSubscriptionBacklog();
+		slowConsumerPolicy = parameters.getSlowConsumerPolicy();
+		       compression = parameters.getCompression();
+	  compressionThreshold = parameters.getCompressionThreshold();
+		  journalDirectory = parameters.getJournalDirectory();
+		journalSegmentSize = parameters.getJournalSegmentSize();
+	   journalSyncInterval = parameters.getJournalSyncInterval();
+	        journalDurable = parameters.isJournalDurable();
 		
-		if(port < 0 || port > 65535) {
-			throw new IllegalArgumentException("listen.port mora biti od 0 do 65535, uključivo!");
-		}
-		
-		       packetSize = parsePositive(properties, "packet.size"       ,  "512");
-		    bufferTimeout = parsePositive(properties, "buffer.timeout"    , "1000");
-		       bufferSize = parsePositive(properties, "buffer.size"       ,    "3");
-		    socketTimeout = parsePositive(properties, "socket.timeout"    , "2000");
-		dispatcherTimeout = parsePositive(properties, "dispatcher.timeout", "1000");
-		dispatcherRetries = parsePositive(properties, "dispatcher.retries",    "3");
+		pending = new PendingDeliveries(parameters.getPendingTimeout(), parameters.getPendingCapacity(),
+				parameters.getMailboxSize(), metrics);
+		metrics.setPending(pending);
 	}
 	
 	/**
-	 * Parsira zadani property predanih propertyja koji je prirodan broj, moguće je
-	 * prosljediti i defaultnu vrijednost koja se koristi u slučaju da timeout zadanog 
-	 * imena ne postoji.
-	 * @param properties propertyji
-	 * @param propertyName ime traženog propertyja
-	 * @param defaultValue defaultna vrijednost
-	 * @return traženi property
+	 * @return brojači rada servera
 	 */
-	private int parsePositive(Properties properties, String propertyName, String defaultValue) {
-		try {
-			int value = Integer.parseInt(properties.getProperty(propertyName, defaultValue));
-			
-			if(value <= 0) {
-				throw new IllegalArgumentException(propertyName + " mora biti veći od 0!");
-			}
-			
-			return value;
-		} catch (NumberFormatException e) {
-			throw new IllegalArgumentException(propertyName + " mora biti cijeli broj!");
-		}
+	public ServerMetrics getMetrics() {
+		return metrics;
 	}
 	
 	public void start() throws ServerCannotStart, ServerCrashed {			
 		ServerSocket serverSocket = null;
 		
+		openJournal();
+		
 		try {
 			serverSocket = new ServerSocket(port, 0, bindAddress);
 		
@@ -449,11 +963,29 @@ public class SocketMessageServer implements IMessageServer {
 			running = true;
 
 			serverSocket.setSoTimeout(socketTimeout);
+			
+			timers = new TimerWheel(TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE, "timers-" + port);
+			flushers = new ThreadPoolExecutor(flushThreads, Integer.MAX_VALUE, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				
+				private AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread(Runnable task) {
+					return threading.newThread(task, "flusher-" + port + "-" + count.incrementAndGet());
+				}
+				
+			});
+			
+			// Broj dretvi servera ne mijenja se s prvim pražnjenjima
+			flushers.prestartAllCoreThreads();
 		} catch (SocketException e) {
+			closeJournal();
 			throw new ServerCannotStart("Greška u TCP protokolu!", e);
 		} catch (SecurityException e) {
+			closeJournal();
 			throw new ServerCannotStart("Nije dozvoljeno otvoriti socket!", e);
 		} catch (IOException e) {
+			closeJournal();
 			throw new ServerCannotStart("Nije moguće otvoriti socket!", e);
 		}
 		
@@ -462,10 +994,13 @@ public class SocketMessageServer implements IMessageServer {
 				try {
 					Socket clientSocket = serverSocket.accept();
 					
-					new ClientHandler(clientSocket).start();
+					new ClientHandler(clientSocket);
 				} catch(SocketTimeoutException ignorable) {
 					
 				}
+				
+				pending.expire();
+				pending.writeJournal();
 			}
 		} catch (IOException e) {
 			throw new ServerCrashed("Server ne može primati konekcije, postojeći klijenti se i dalje opslužuju!", e);
@@ -476,14 +1011,65 @@ public class SocketMessageServer implements IMessageServer {
 			} catch(IOException ignorable) {
 				
 			}
+			
+			timers.stop();
+			flushers.shutdown();
+			closeJournal();
+		}
+	}
+	
+	/**
+	 * Mijenja broj dretvi izvršitelja pražnjenja za broj zapelih pisanja, pa izvršitelj
+	 * uvijek ima flush.threads dretvi koje ne čekaju na spore klijente. Dretve iznad tog
+	 * broja gase se čim ostanu bez posla.
+	 * @param delta 1 kad pisanje zapne, -1 kad zapelo pisanje završi
+	 */
+	private void compensate(int delta) {
+		synchronized(flushers) {
+			stalledFlushers += delta;
+			flushers.setCorePoolSize(flushThreads + stalledFlushers);
+		}
+	}
+	
+	/**
+	 * Otvara žurnal poruka koje čekaju, ako je zadan journal.dir, i vraća na čekanje
+	 * poruke koje su u njemu ostale nepotvrđene.
+	 * @throws ServerCannotStart ako se žurnal ne može otvoriti
+	 */
+	private void openJournal() throws ServerCannotStart {
+		if(journalDirectory == null) {
+			return;
+		}
+		
+		try {
+			int restored = pending.attach(new MessageJournal(journalDirectory, journalSegmentSize,
+					journalSyncInterval, "journal-" + port), journalDurable);
+			pending.writeJournal();
+			
+			//@DebugStart
+			System.out.println("Iz žurnala vraćeno poruka: " + restored);
+			//@End
+		} catch (IOException e) {
+			throw new ServerCannotStart("Nije moguće otvoriti žurnal!", e);
+		}
+	}
+	
+	/**
+	 * Zatvara žurnal poruka koje čekaju, ako je otvoren.
+	 */
+	private void closeJournal() {
+		MessageJournal journal = pending.detach();
+		
+		if(journal != null) {
+			journal.close();
 		}
 	}
 	
 	public void stop() {
 		running = false;
 		
-		for(Address client : clients.keySet()) {
-			clients.get(client).close();
+		for(ClientHandler client : clients.values()) {
+			client.close();
 		}
 	}
 }
@@ -0,0 +1,537 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indeks pretplata na jedan tip poruka. Uzorci svih pretplatnika prevode se u jedan
+ * Aho-Corasick automat, pa se svi pretplatnici kojima sadržaj poruke odgovara pronalaze u
+ * jednom prolazu kroz sadržaj, neovisno o broju pretplatnika.
+ *
+ * Indeks je nepromjenjiv: promjena pretplata gradi novi indeks (with, without), pa ga
+ * proizvoljno mnogo dretvi može pretraživati bez zaključavanja dok se gradi idući.
+ *
+ * Pretplatnik može imati više uzoraka, poruka mu odgovara ako sadrži bilo koji od njih.
+ * Uzorak duljine 0 ili uzorak {0} je wildcard i odgovara svakoj poruci. Pronalaženje
+ * pretplatnika ne alocira memoriju.
+ * @param <S> tip pretplatnika
+ */
+public class SubscriptionIndex<S> {
+
+	/**
+	 * Posjetitelj pretplatnika kojima poruka odgovara.
+	 * @param <S> tip pretplatnika
+	 */
+	public interface Visitor<S> {
+
+		/**
+		 * Poziva se jednom za svakog pretplatnika kojem poruka odgovara.
+		 * @param subscriber pretplatnik
+		 */
+		void matched(S subscriber);
+	}
+
+	/**
+	 * Stanje pretraživanja jedne dretve: za svaki slot generacija pretraživanja u kojoj je
+	 * pretplatnik zadnji put posjećen. Sprječava da pretplatnik s više pogođenih uzoraka
+	 * bude posjećen više puta, a dijele ga svi indeksi jer svako pretraživanje ima novu
+	 * generaciju.
+	 */
+	private static class MatchState {
+
+		/**
+		 * Generacija posljednjeg posjeta po slotu.
+		 */
+		private int[] visited = new int[0];
+
+		/**
+		 * Generacija trenutnog pretraživanja.
+		 */
+		private int generation;
+	}
+
+	/**
+	 * Stanje pretraživanja svake dretve.
+	 */
+	private static final ThreadLocal<MatchState> matchState = new ThreadLocal<MatchState>() {
+		@Override
+		protected MatchState initialValue() {
+			return new MatchState();
+		}
+	};
+
+	/**
+	 * Uzorci pretplatnika, redom pretplate. Ne mijenjaju se nakon izgradnje indeksa.
+	 */
+	private Map<S, List<byte[]>> patterns;
+
+	/**
+	 * Pretplatnici po rednom broju (slotu) u automatu.
+	 */
+	private Object[] subscribers;
+
+	/**
+	 * Slotovi pretplatnika.
+	 */
+	private Map<S, Integer> slots;
+
+	/**
+	 * Slotovi pretplatnika s wildcard uzorkom.
+	 */
+	private int[] wildcards;
+
+	/**
+	 * Prijelazi iz korijena, po bajtu (0 ako prijelaza nema).
+	 */
+	private int[] rootNext;
+
+	/**
+	 * Indeks prvog djeteta stanja u labels i targets, za stanje s i s + 1.
+	 */
+	private int[] childStart;
+
+	/**
+	 * Bajtovi prijelaza, za svako stanje sortirani uzlazno.
+	 */
+	private byte[] labels;
+
+	/**
+	 * Odredišna stanja prijelaza.
+	 */
+	private int[] targets;
+
+	/**
+	 * Failure linkovi stanja.
+	 */
+	private int[] fail;
+
+	/**
+	 * Indeks prvog izlaza stanja u outputs, za stanje s i s + 1.
+	 */
+	private int[] outputStart;
+
+	/**
+	 * Slotovi pretplatnika čiji uzorak završava u stanju (uključujući one preko failure
+	 * linkova).
+	 */
+	private int[] outputs;
+
+	/**
+	 * Stvara prazan indeks.
+	 */
+	public SubscriptionIndex() {
+		this(new LinkedHashMap<S, List<byte[]>>());
+	}
+
+	/**
+	 * Gradi indeks iz uzoraka pretplatnika. Indeks preuzima mapu i njene liste.
+	 * @param patterns uzorci pretplatnika, redom pretplate
+	 */
+	SubscriptionIndex(Map<S, List<byte[]>> patterns) {
+		this.patterns = patterns;
+
+		build();
+	}
+
+	/**
+	 * Vraća indeks u kojem pretplatnik ima i zadani uzorak. Prijašnji uzorci istog
+	 * pretplatnika ostaju, poruka mu odgovara ako sadrži bilo koji od njih.
+	 * @param subscriber pretplatnik
+	 * @param pattern uzorak
+	 * @return novi indeks, ili ovaj ako pretplatnik već ima taj uzorak
+	 */
+	public SubscriptionIndex<S> with(S subscriber, byte[] pattern) {
+		Map<S, List<byte[]>> copy = copyPatterns();
+
+		if(!addPattern(copy, subscriber, pattern)) {
+			return this;
+		}
+
+		return new SubscriptionIndex<S>(copy);
+	}
+
+	/**
+	 * Vraća indeks bez zadanog pretplatnika.
+	 * @param subscriber pretplatnik
+	 * @return novi indeks, ili ovaj ako pretplatnik nije u indeksu
+	 */
+	public SubscriptionIndex<S> without(S subscriber) {
+		if(!patterns.containsKey(subscriber)) {
+			return this;
+		}
+
+		Map<S, List<byte[]>> copy = copyPatterns();
+		copy.remove(subscriber);
+
+		return new SubscriptionIndex<S>(copy);
+	}
+
+	/**
+	 * Dodaje uzorak pretplatniku u mapi uzoraka.
+	 * @param patterns uzorci pretplatnika
+	 * @param subscriber pretplatnik
+	 * @param pattern uzorak
+	 * @return true ako je uzorak dodan, false ako ga pretplatnik već ima
+	 */
+	static <S> boolean addPattern(Map<S, List<byte[]>> patterns, S subscriber, byte[] pattern) {
+		List<byte[]> subscribed = patterns.get(subscriber);
+
+		if(subscribed == null) {
+			subscribed = new ArrayList<byte[]>(1);
+			patterns.put(subscriber, subscribed);
+		}
+
+		for(byte[] existing : subscribed) {
+			if(Arrays.equals(existing, pattern)) {
+				return false;
+			}
+		}
+
+		subscribed.add(pattern.clone());
+
+		return true;
+	}
+
+	/**
+	 * Kopira uzorke pretplatnika, liste se kopiraju a sami uzorci dijele.
+	 * @return kopija uzoraka
+	 */
+	Map<S, List<byte[]>> copyPatterns() {
+		Map<S, List<byte[]>> copy = new LinkedHashMap<S, List<byte[]>>();
+
+		for(Map.Entry<S, List<byte[]>> entry : patterns.entrySet()) {
+			copy.put(entry.getKey(), new ArrayList<byte[]>(entry.getValue()));
+		}
+
+		return copy;
+	}
+
+	/**
+	 * Vraća slot pretplatnika u automatu.
+	 * @param subscriber pretplatnik
+	 * @return slot, -1 ako pretplatnik nije u indeksu
+	 */
+	int slotOf(S subscriber) {
+		Integer slot = slots.get(subscriber);
+
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Vraća uzorke pretplatnika.
+	 * @param subscriber pretplatnik
+	 * @return uzorci, null ako pretplatnik nije u indeksu
+	 */
+	List<byte[]> patternsOf(S subscriber) {
+		return patterns.get(subscriber);
+	}
+
+	/**
+	 * @param slot slot
+	 * @return pretplatnik u slotu
+	 */
+	@SuppressWarnings("unchecked")
+	S subscriberAt(int slot) {
+		return (S) subscribers[slot];
+	}
+
+	/**
+	 * Ispituje da li je pretplatnik u indeksu.
+	 * @param subscriber pretplatnik
+	 * @return true ako je, false inače
+	 */
+	public boolean contains(S subscriber) {
+		return patterns.containsKey(subscriber);
+	}
+
+	/**
+	 * Pronalazi sve pretplatnike kojima sadržaj poruke odgovara, svakog jednom.
+	 * @param data sadržaj poruke, može biti null
+	 * @return pretplatnici
+	 */
+	public List<S> match(byte[] data) {
+		final List<S> matched = new ArrayList<S>();
+
+		match(data, 0, data == null ? 0 : data.length, new Visitor<S>() {
+			public void matched(S subscriber) {
+				matched.add(subscriber);
+			}
+		});
+
+		return matched;
+	}
+
+	/**
+	 * Posjećuje sve pretplatnike kojima dio polja odgovara, svakog jednom: prvo wildcard
+	 * pretplatnike, a zatim ostale redom kojim su im uzorci pronađeni. Ne alocira memoriju.
+	 * @param data polje sa sadržajem poruke, može biti null
+	 * @param offset početak sadržaja u polju
+	 * @param length duljina sadržaja
+	 * @param visitor posjetitelj
+	 */
+	public void match(byte[] data, int offset, int length, Visitor<? super S> visitor) {
+		match(data, offset, length, null, visitor);
+	}
+
+	/**
+	 * Kao match(data, offset, length, visitor), ali preskače isključene pretplatnike.
+	 * @param data polje sa sadržajem poruke, može biti null
+	 * @param offset početak sadržaja u polju
+	 * @param length duljina sadržaja
+	 * @param excluded bitmapa isključenih slotova, može biti null
+	 * @param visitor posjetitelj
+	 */
+	@SuppressWarnings("unchecked")
+	void match(byte[] data, int offset, int length, long[] excluded, Visitor<? super S> visitor) {
+		if(subscribers.length == 0) {
+			return;
+		}
+
+		for(int slot : wildcards) {
+			if(excluded == null || (excluded[slot >>> 6] & (1L << slot)) == 0) {
+				visitor.matched((S) subscribers[slot]);
+			}
+		}
+
+		if(data == null || outputs.length == 0) {
+			return;
+		}
+
+		MatchState match = matchState.get();
+
+		if(match.visited.length < subscribers.length) {
+			match.visited = new int[subscribers.length];
+		}
+
+		if(++match.generation == 0) {
+			Arrays.fill(match.visited, 0);
+			match.generation = 1;
+		}
+
+		int[] visited = match.visited;
+		int generation = match.generation;
+
+		int state = 0;
+		int end = offset + length;
+
+		for(int i = offset; i < end; i++) {
+			state = next(state, data[i]);
+
+			for(int o = outputStart[state]; o < outputStart[state + 1]; o++) {
+				int slot = outputs[o];
+
+				if(visited[slot] != generation) {
+					visited[slot] = generation;
+
+					if(excluded == null || (excluded[slot >>> 6] & (1L << slot)) == 0) {
+						visitor.matched((S) subscribers[slot]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return broj pretplatnika u indeksu
+	 */
+	public int size() {
+		return patterns.size();
+	}
+
+	/**
+	 * Prijelaz automata, slijedi failure linkove dok ne nađe prijelaz ili dođe u korijen.
+	 * @param state trenutno stanje
+	 * @param input bajt sadržaja
+	 * @return iduće stanje
+	 */
+	private int next(int state, byte input) {
+		while(state != 0) {
+			int child = child(state, input);
+
+			if(child != 0) {
+				return child;
+			}
+
+			state = fail[state];
+		}
+
+		return rootNext[input & 0xff];
+	}
+
+	/**
+	 * Traži dijete stanja binarnim pretraživanjem prijelaza.
+	 * @param state stanje
+	 * @param input bajt prijelaza
+	 * @return dijete, 0 ako ga nema
+	 */
+	private int child(int state, byte input) {
+		int low = childStart[state];
+		int high = childStart[state + 1] - 1;
+
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+
+			if(labels[middle] < input) {
+				low = middle + 1;
+			} else if(labels[middle] > input) {
+				high = middle - 1;
+			} else {
+				return targets[middle];
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Ispituje da li uzorak odgovara svakoj poruci.
+	 * @param pattern uzorak
+	 * @return true ako je wildcard, false inače
+	 */
+	static boolean isWildcard(byte[] pattern) {
+		return pattern.length == 0 || (pattern.length == 1 && pattern[0] == 0);
+	}
+
+	/**
+	 * Gradi automat iz trenutnih uzoraka: trie, failure linkove u širinu i spojene
+	 * izlaze, a zatim sve sabija u polja.
+	 */
+	private void build() {
+		subscribers = patterns.keySet().toArray();
+		slots = new HashMap<S, Integer>();
+
+		for(S subscriber : patterns.keySet()) {
+			slots.put(subscriber, slots.size());
+		}
+
+		List<Map<Byte, Integer>> trie = new ArrayList<Map<Byte, Integer>>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		List<Integer> wildcardSlots = new ArrayList<Integer>();
+
+		trie.add(new HashMap<Byte, Integer>());
+		ends.add(new ArrayList<Integer>());
+
+		int slot = 0;
+		for(List<byte[]> subscribed : patterns.values()) {
+			boolean wildcard = false;
+
+			for(byte[] pattern : subscribed) {
+				wildcard |= isWildcard(pattern);
+			}
+
+			if(wildcard) {
+				wildcardSlots.add(slot++);
+				continue;
+			}
+
+			for(byte[] pattern : subscribed) {
+				int state = 0;
+
+				for(byte input : pattern) {
+					Integer child = trie.get(state).get(input);
+
+					if(child == null) {
+						child = trie.size();
+						trie.get(state).put(input, child);
+						trie.add(new HashMap<Byte, Integer>());
+						ends.add(new ArrayList<Integer>());
+					}
+
+					state = child;
+				}
+
+				if(!ends.get(state).contains(slot)) {
+					ends.get(state).add(slot);
+				}
+			}
+
+			slot++;
+		}
+
+		int states = trie.size();
+
+		// Failure linkovi i izlazi u širinu, roditelj je uvijek obrađen prije djeteta
+		int[] failure = new int[states];
+		int[] queue = new int[states];
+		int head = 0;
+		int tail = 0;
+
+		for(int child : trie.get(0).values()) {
+			queue[tail++] = child;
+		}
+
+		while(head < tail) {
+			int state = queue[head++];
+
+			for(Map.Entry<Byte, Integer> edge : trie.get(state).entrySet()) {
+				int child = edge.getValue();
+				int link = failure[state];
+
+				while(link != 0 && !trie.get(link).containsKey(edge.getKey())) {
+					link = failure[link];
+				}
+
+				Integer target = trie.get(link).get(edge.getKey());
+				failure[child] = target != null && target != child ? target : 0;
+
+				for(int inherited : ends.get(failure[child])) {
+					if(!ends.get(child).contains(inherited)) {
+						ends.get(child).add(inherited);
+					}
+				}
+
+				queue[tail++] = child;
+			}
+		}
+
+		int[] rootTable = new int[256];
+		for(Map.Entry<Byte, Integer> edge : trie.get(0).entrySet()) {
+			rootTable[edge.getKey() & 0xff] = edge.getValue();
+		}
+
+		int[] childIndex = new int[states + 1];
+		int[] outputIndex = new int[states + 1];
+
+		for(int state = 0; state < states; state++) {
+			childIndex[state + 1] = childIndex[state] + trie.get(state).size();
+			outputIndex[state + 1] = outputIndex[state] + ends.get(state).size();
+		}
+
+		byte[] edgeLabels = new byte[childIndex[states]];
+		int[] edgeTargets = new int[childIndex[states]];
+		int[] stateOutputs = new int[outputIndex[states]];
+
+		for(int state = 0; state < states; state++) {
+			Byte[] sorted = trie.get(state).keySet().toArray(new Byte[0]);
+			Arrays.sort(sorted);
+
+			for(int i = 0; i < sorted.length; i++) {
+				edgeLabels[childIndex[state] + i] = sorted[i];
+				edgeTargets[childIndex[state] + i] = trie.get(state).get(sorted[i]);
+			}
+
+			List<Integer> stateEnds = ends.get(state);
+			for(int i = 0; i < stateEnds.size(); i++) {
+				stateOutputs[outputIndex[state] + i] = stateEnds.get(i);
+			}
+		}
+
+		int[] wildcardTable = new int[wildcardSlots.size()];
+		for(int i = 0; i < wildcardTable.length; i++) {
+			wildcardTable[i] = wildcardSlots.get(i);
+		}
+
+		wildcards = wildcardTable;
+		rootNext = rootTable;
+		childStart = childIndex;
+		labels = edgeLabels;
+		targets = edgeTargets;
+		fail = failure;
+		outputStart = outputIndex;
+		outputs = stateOutputs;
+	}
+}
@@ -0,0 +1,320 @@
+package hr.fer.zemris.java.nescume.messages.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RawMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+/**
+ * Registar pretplata servera. Za svaki tip poruke drži nepromjenjivu snimku pretplata u
+ * tablici indeksiranoj bajtom tipa, pa slanje obavijesti samo pročita trenutnu snimku i
+ * nikad ne čeka na promjene pretplata. Promjene se međusobno serijaliziraju, grade novu
+ * snimku i objavljuju je.
+ *
+ * Da promjena ne bi gradila automat svih pretplata, snimka se sastoji od velikog osnovnog
+ * indeksa i malog indeksa nedavnih promjena. Nova pretplata gradi samo mali indeks, a
+ * odjava u osnovnom indeksu samo označava pretplatnika kao uklonjenog. Kad mali indeks ili
+ * broj uklonjenih naraste do osmine osnovnog, sve se spaja u novi osnovni indeks.
+ * @param <S> tip pretplatnika
+ */
+public class SubscriptionRegistry<S> {
+
+	/**
+	 * Broj mogućih tipova poruka (tip zauzima donjih 7 bitova bajta tipa).
+	 */
+	private static final int TYPES = 128;
+
+	/**
+	 * Veličina indeksa promjena ispod koje se on nikad ne spaja u osnovni indeks.
+	 */
+	private static final int MIN_DELTA = 64;
+
+	/**
+	 * Nepromjenjiva snimka pretplata na jedan tip poruka. Svaki pretplatnik je ili u
+	 * osnovnom indeksu ili u indeksu promjena, nikad u oba.
+	 * @param <S> tip pretplatnika
+	 */
+	private static final class Snapshot<S> {
+
+		/**
+		 * Osnovni indeks.
+		 */
+		private final SubscriptionIndex<S> base;
+
+		/**
+		 * Bitmapa slotova osnovnog indeksa čiji pretplatnici su uklonjeni ili premješteni
+		 * u indeks promjena.
+		 */
+		private final long[] removed;
+
+		/**
+		 * Broj postavljenih bitova u removed.
+		 */
+		private final int removedCount;
+
+		/**
+		 * Indeks nedavnih promjena.
+		 */
+		private final SubscriptionIndex<S> delta;
+
+		/**
+		 * Konstruktor.
+		 * @param base osnovni indeks
+		 * @param removed bitmapa uklonjenih slotova osnovnog indeksa
+		 * @param removedCount broj uklonjenih slotova
+		 * @param delta indeks promjena
+		 */
+		public Snapshot(SubscriptionIndex<S> base, long[] removed, int removedCount, SubscriptionIndex<S> delta) {
+			this.base = base;
+			this.removed = removed;
+			this.removedCount = removedCount;
+			this.delta = delta;
+		}
+
+		/**
+		 * Stvara praznu snimku.
+		 */
+		public Snapshot() {
+			this(new SubscriptionIndex<S>(), new long[0], 0, new SubscriptionIndex<S>());
+		}
+
+		/**
+		 * Posjećuje pretplatnike kojima dio polja odgovara.
+		 * @param data polje sa sadržajem poruke
+		 * @param offset početak sadržaja u polju
+		 * @param length duljina sadržaja
+		 * @param visitor posjetitelj
+		 */
+		public void match(byte[] data, int offset, int length, SubscriptionIndex.Visitor<? super S> visitor) {
+			base.match(data, offset, length, removedCount == 0 ? null : removed, visitor);
+			delta.match(data, offset, length, visitor);
+		}
+
+		/**
+		 * @return broj pretplatnika u snimci
+		 */
+		public int size() {
+			return base.size() - removedCount + delta.size();
+		}
+
+		/**
+		 * Vraća snimku u kojoj pretplatnik ima i zadani uzorak.
+		 * @param subscriber pretplatnik
+		 * @param pattern uzorak
+		 * @return nova snimka, ili ova ako pretplatnik već ima taj uzorak
+		 */
+		public Snapshot<S> with(S subscriber, byte[] pattern) {
+			if(!delta.contains(subscriber)) {
+				int slot = base.slotOf(subscriber);
+
+				if(slot >= 0 && !isRemoved(slot)) {
+					for(byte[] existing : base.patternsOf(subscriber)) {
+						if(Arrays.equals(existing, pattern)) {
+							return this;
+						}
+					}
+
+					// Pretplatnik sa svim uzorcima prelazi u indeks promjena
+					Map<S, List<byte[]>> patterns = delta.copyPatterns();
+					patterns.put(subscriber, new ArrayList<byte[]>(base.patternsOf(subscriber)));
+					SubscriptionIndex.addPattern(patterns, subscriber, pattern);
+
+					return new Snapshot<S>(base, remove(slot), removedCount + 1, new SubscriptionIndex<S>(patterns));
+				}
+			}
+
+			SubscriptionIndex<S> changed = delta.with(subscriber, pattern);
+
+			return changed == delta ? this : new Snapshot<S>(base, removed, removedCount, changed);
+		}
+
+		/**
+		 * Vraća snimku bez zadanog pretplatnika.
+		 * @param subscriber pretplatnik
+		 * @return nova snimka, ili ova ako pretplatnik nije u snimci
+		 */
+		public Snapshot<S> without(S subscriber) {
+			if(delta.contains(subscriber)) {
+				return new Snapshot<S>(base, removed, removedCount, delta.without(subscriber));
+			}
+
+			int slot = base.slotOf(subscriber);
+
+			if(slot >= 0 && !isRemoved(slot)) {
+				return new Snapshot<S>(base, remove(slot), removedCount + 1, delta);
+			}
+
+			return this;
+		}
+
+		/**
+		 * Spaja indeks promjena u osnovni indeks ako je narastao ili ako je uklonjeno
+		 * previše pretplatnika osnovnog indeksa.
+		 * @return spojena snimka, ili ova ako spajanje nije potrebno
+		 */
+		public Snapshot<S> compact() {
+			int limit = MIN_DELTA + (base.size() - removedCount) / 8;
+
+			if(delta.size() <= limit && removedCount <= limit) {
+				return this;
+			}
+
+			Map<S, List<byte[]>> patterns = new LinkedHashMap<S, List<byte[]>>();
+
+			for(int slot = 0; slot < base.size(); slot++) {
+				if(!isRemoved(slot)) {
+					S subscriber = base.subscriberAt(slot);
+					patterns.put(subscriber, new ArrayList<byte[]>(base.patternsOf(subscriber)));
+				}
+			}
+
+			patterns.putAll(delta.copyPatterns());
+
+			return new Snapshot<S>(new SubscriptionIndex<S>(patterns), new long[0], 0, new SubscriptionIndex<S>());
+		}
+
+		/**
+		 * @param slot slot osnovnog indeksa
+		 * @return true ako je pretplatnik u slotu uklonjen
+		 */
+		private boolean isRemoved(int slot) {
+			return removedCount != 0 && (removed[slot >>> 6] & (1L << slot)) != 0;
+		}
+
+		/**
+		 * @param slot slot osnovnog indeksa
+		 * @return kopija bitmape uklonjenih slotova s postavljenim zadanim slotom
+		 */
+		private long[] remove(int slot) {
+			long[] copy = Arrays.copyOf(removed, (base.size() + 63) >>> 6);
+			copy[slot >>> 6] |= 1L << slot;
+
+			return copy;
+		}
+	}
+
+	/**
+	 * Trenutne snimke po bajtu tipa, null ako na tip nema pretplata.
+	 */
+	private final AtomicReferenceArray<Snapshot<S>> snapshots = new AtomicReferenceArray<Snapshot<S>>(TYPES);
+
+	/**
+	 * Lokot promjena pretplata, drže ga samo dretve koje mijenjaju pretplate.
+	 */
+	private final Lock writing = new ReentrantLock();
+
+	/**
+	 * Dodaje uzorak pretplatniku na zadani tip poruka. Prijašnji uzorci pretplatnika
+	 * ostaju, poruka mu odgovara ako sadrži bilo koji od njih.
+	 * @param type tip poruka
+	 * @param subscriber pretplatnik
+	 * @param pattern uzorak
+	 */
+	public void subscribe(MessageType type, S subscriber, byte[] pattern) {
+		int slot = slot(type);
+
+		writing.lock();
+
+		try {
+			Snapshot<S> current = snapshots.get(slot);
+
+			if(current == null) {
+				current = new Snapshot<S>();
+			}
+
+			Snapshot<S> changed = current.with(subscriber, pattern);
+
+			if(changed != current) {
+				snapshots.set(slot, changed.compact());
+			}
+		} finally {
+			writing.unlock();
+		}
+	}
+
+	/**
+	 * Uklanja pretplatnika sa svih tipova poruka.
+	 * @param subscriber pretplatnik
+	 */
+	public void unsubscribe(S subscriber) {
+		writing.lock();
+
+		try {
+			for(int slot = 0; slot < TYPES; slot++) {
+				Snapshot<S> current = snapshots.get(slot);
+
+				if(current == null) {
+					continue;
+				}
+
+				Snapshot<S> changed = current.without(subscriber);
+
+				if(changed != current) {
+					snapshots.set(slot, changed.size() == 0 ? null : changed.compact());
+				}
+			}
+		} finally {
+			writing.unlock();
+		}
+	}
+
+	/**
+	 * Posjećuje sve pretplatnike na tip poruka kojima dio polja odgovara, svakog jednom.
+	 * Ne čeka na promjene pretplata i ne alocira memoriju.
+	 * @param type tip poruke
+	 * @param data polje sa sadržajem poruke, može biti null
+	 * @param offset početak sadržaja u polju
+	 * @param length duljina sadržaja
+	 * @param visitor posjetitelj
+	 */
+	public void match(MessageType type, byte[] data, int offset, int length, SubscriptionIndex.Visitor<? super S> visitor) {
+		Snapshot<S> snapshot = snapshots.get(slot(type));
+
+		if(snapshot != null) {
+			snapshot.match(data, offset, length, visitor);
+		}
+	}
+
+	/**
+	 * Posjećuje sve pretplatnike na tip poruke kojima sadržaj poruke odgovara. Sadržaj
+	 * poruke koju server samo prosljeđuje pretražuje se izravno u njenom okviru.
+	 * @param message poruka
+	 * @param visitor posjetitelj
+	 */
+	public void match(Message message, SubscriptionIndex.Visitor<? super S> visitor) {
+		if(message instanceof RawMessage) {
+			RawMessage raw = (RawMessage) message;
+
+			match(raw.getType(), raw.getFrame(), Message.headerLength, raw.getDataLength(), visitor);
+		} else {
+			byte[] data = message.getData();
+
+			match(message.getType(), data, 0, data == null ? 0 : data.length, visitor);
+		}
+	}
+
+	/**
+	 * Ispituje da li na tip poruka postoji ijedna pretplata.
+	 * @param type tip poruka
+	 * @return true ako postoji, false inače
+	 */
+	public boolean hasSubscribers(MessageType type) {
+		return snapshots.get(slot(type)) != null;
+	}
+
+	/**
+	 * @param type tip poruke
+	 * @return mjesto tipa u tablici snimki
+	 */
+	private static int slot(MessageType type) {
+		return type.toByte() & (TYPES - 1);
+	}
+}
@@ -0,0 +1,249 @@
+package hr.fer.zemris.java.nescume.messages.client.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.client.exceptions.MessageNotSent;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava asinkrono sučelje klijenta: poruke poslane sa sendAsync() i primljene s
+ * receiveAsync() stižu redom, i veće od paketa, pozivatelj ne čeka na izlaz, a kad se
+ * veza prekine, pozivi koji čekaju završavaju.
+ */
+public class AsyncClientTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4110;
+
+	/**
+	 * Server.
+	 */
+	private SocketMessageServer server;
+
+	/**
+	 * Klijent koji šalje poruke.
+	 */
+	private ClientMsgService sender;
+
+	/**
+	 * Klijent koji prima poruke.
+	 */
+	private ClientMsgService receiver;
+
+	/**
+	 * Adresa klijenta koji prima poruke.
+	 */
+	private Address receiverAddress;
+
+	/**
+	 * Pokreće server i oba klijenta, s malim paketima da se velike poruke dijele.
+	 */
+	@Before
+	public void startServerAndClients() throws Exception {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("buffer.timeout", "5");
+
+		server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+
+		waitForServer();
+
+		sender = client();
+		receiver = client();
+
+		sender.start();
+		receiver.start();
+
+		Assert.assertEquals(sender.register(), sender.registerAsync().toCompletableFuture().get(5, TimeUnit.SECONDS));
+		receiverAddress = receiver.registerAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+		Thread.sleep(300);
+	}
+
+	/**
+	 * Poruke poslane sa sendAsync(), i veće od paketa, stižu pozivima receiveAsync()
+	 * napravljenim prije nego što su poruke stigle. Male poruke stižu redom, a velike
+	 * redom među sobom jer ih male poruke mogu preteći.
+	 */
+	@Test(timeout = 30000)
+	public void sendReceiveTest() throws Exception {
+		List<CompletableFuture<Message>> received = new ArrayList<CompletableFuture<Message>>();
+		List<CompletableFuture<Void>> sent = new ArrayList<CompletableFuture<Void>>();
+
+		for (int i = 0; i < 1000; i++) {
+			received.add(receiver.receiveAsync().toCompletableFuture());
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			sent.add(sender.sendAsync(letter(i, i % 100 == 0 ? 20000 : 100)).toCompletableFuture());
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			sent.get(i).get(10, TimeUnit.SECONDS);
+		}
+
+		int small = 0;
+		int large = 0;
+
+		for (int i = 0; i < 1000; i++) {
+			byte[] data = received.get(i).get(10, TimeUnit.SECONDS).getData();
+
+			if (data.length == 100) {
+				if (small % 100 == 0) {
+					small++;
+				}
+
+				Assert.assertArrayEquals(letter(small++, 100).getData(), data);
+			} else {
+				Assert.assertArrayEquals(letter(100 * large++, 20000).getData(), data);
+			}
+		}
+
+		Assert.assertEquals(10, large);
+
+		Assert.assertNull(receiver.receive(100, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Poruke koje su stigle prije poziva receiveAsync() preuzimaju se odmah, a pretplata
+	 * se šalje bez čekanja.
+	 */
+	@Test(timeout = 30000)
+	public void inboxTest() throws Exception {
+		sender.sendAsync(letter(1, 100));
+		sender.sendAsync(letter(2, 100)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+		Thread.sleep(300);
+
+		CompletableFuture<Message> first = receiver.receiveAsync().toCompletableFuture();
+
+		Assert.assertTrue("Primljena poruka mora se preuzeti odmah!", first.isDone());
+		Assert.assertArrayEquals(letter(1, 100).getData(), first.get().getData());
+		Assert.assertArrayEquals(letter(2, 100).getData(),
+				receiver.receiveAsync().toCompletableFuture().get(5, TimeUnit.SECONDS).getData());
+
+		receiver.queryAsync(MessageType.LETTER, null).toCompletableFuture().get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Kad se veza prekine, poziv receiveAsync() koji čeka dovršava se s null, a slanje
+	 * završava iznimkom MessageNotSent.
+	 */
+	@Test(timeout = 30000)
+	public void closeTest() throws Exception {
+		CompletableFuture<Message> waiting = receiver.receiveAsync().toCompletableFuture();
+
+		receiver.stop();
+
+		Assert.assertNull(waiting.get(5, TimeUnit.SECONDS));
+		Assert.assertNull(receiver.receiveAsync().toCompletableFuture().get(5, TimeUnit.SECONDS));
+
+		try {
+			receiver.sendAsync(letter(1, 100)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+			Assert.fail("Slanje zaustavljenog klijenta mora završiti iznimkom!");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof MessageNotSent);
+		}
+	}
+
+	/**
+	 * Stvara klijenta s malim paketima.
+	 * @return klijent
+	 */
+	private static ClientMsgService client() throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/client.properties"));
+		properties.setProperty("server.port", Integer.toString(PORT));
+		properties.setProperty("buffer.timeout", "5");
+		properties.setProperty("packet.size", "4096");
+
+		return new ClientMsgService(properties);
+	}
+
+	/**
+	 * Stvara poruku za primatelja s prepoznatljivim sadržajem.
+	 * @param index redni broj poruke
+	 * @param length duljina sadržaja
+	 * @return poruka
+	 */
+	private Message letter(int index, int length) {
+		byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (index * 31 + i);
+		}
+
+		return new Message(receiverAddress, MessageType.LETTER, data);
+	}
+
+	/**
+	 * Čeka dok server ne počne primati konekcije.
+	 */
+	private static void waitForServer() throws InterruptedException {
+		for (int i = 0; i < 50; i++) {
+			try {
+				new Socket("127.0.0.1", PORT).close();
+				return;
+			} catch (IOException notYet) {
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Zaustavlja klijente i server.
+	 */
+	@After
+	public void stopServerAndClients() throws InterruptedException {
+		sender.stop();
+		receiver.stop();
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(AsyncClientTest.class);
+	}
+}
@@ -8,6 +8,10 @@ import java.util.List;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import junit.framework.JUnit4TestAdapter;
 import hr.fer.zemris.java.nescume.messages.Address;
@@ -146,6 +150,50 @@ public class ClientTests {
 				greeting, received);
 	}
 
+	/**
+	 * Metoda provjerava da receive s timeoutom vraća null kada poruka ne stigne, i to
+	 * nakon otprilike zadanog vremena.
+	 */
+	@Test(timeout = 5000)
+	public void receiveTimeoutTest() throws ClientException {
+		clients.get(0).register();
+
+		long start = System.currentTimeMillis();
+		Message received = clients.get(0).receive(300, TimeUnit.MILLISECONDS);
+		long waited = System.currentTimeMillis() - start;
+
+		Assert.assertNull("Poruka nije poslana, a primljena je!", received);
+		Assert.assertTrue("Receive se vratio prije isteka timeouta!", waited >= 300);
+	}
+
+	/**
+	 * Metoda šalje hitnu poruku klijentu koji ima postavljenog slušača i provjerava da je
+	 * slušač dobio poruku.
+	 */
+	@Test(timeout = 5000)
+	public void messageListenerTest() throws ClientException, InterruptedException {
+		Address sender = clients.get(0).register();
+		Address receiver = clients.get(1).register();
+
+		final BlockingQueue<Message> heard = new LinkedBlockingQueue<Message>();
+
+		clients.get(1).setMessageListener(new Consumer<Message>() {
+			public void accept(Message message) {
+				heard.add(message);
+			}
+		});
+
+		Message greeting = new Message(receiver, MessageType.LETTER, "Slušaš?"
+				.getBytes());
+		greeting.setUrgent(true);
+
+		clients.get(0).send(greeting);
+		greeting.setSource(sender);
+
+		Assert.assertEquals("Slušač nije dobio poslanu poruku!", greeting,
+				heard.poll(4, TimeUnit.SECONDS));
+	}
+
 	/**
 	 * Testiranje stvaranja klijenta.<br />
 	 * Test kontrole parametara 1. Zadana je neispravna adresa servera.
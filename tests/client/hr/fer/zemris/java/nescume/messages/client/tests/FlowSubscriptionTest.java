@@ -0,0 +1,495 @@
+package hr.fer.zemris.java.nescume.messages.client.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.server.IMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.MessageServerFactory;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava pretplate s kreditom: pretplata dobiva samo onoliko poruka koliko je
+ * zatražila, spora pretplata ne zadržava ostale pretplate ni receive() na istoj vezi i
+ * na serveru čuva najviše subscription.backlog poruka, a pretplata završava otkazivanjem
+ * ili zaustavljanjem klijenta.
+ */
+public class FlowSubscriptionTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4111;
+
+	/**
+	 * Port na kojem sluša nio server.
+	 */
+	private static final int NIO_PORT = 4112;
+
+	/**
+	 * Najveći broj poruka koje na serveru čekaju kredit jedne pretplate.
+	 */
+	private static final int BACKLOG = 100;
+
+	/**
+	 * Pretplatnik koji bilježi što je dobio. Predaju poruke može zadržati dok se ne
+	 * otvori zapor, kao spori pretplatnik.
+	 */
+	private static class Recorder implements Flow.Subscriber<Message> {
+
+		/**
+		 * Pretplata, postavljena u onSubscribe.
+		 */
+		private volatile Flow.Subscription subscription;
+
+		/**
+		 * Dobivene poruke.
+		 */
+		private final BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+
+		/**
+		 * Zapor kroz koji mora proći svaka predaja poruke, null ako pretplatnik nije spor.
+		 */
+		private final CountDownLatch gate;
+
+		/**
+		 * Otvara se kad pretplata završi.
+		 */
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		/**
+		 * Iznimka kojom je pretplata završila, null ako je završila normalno.
+		 */
+		private volatile Throwable failure;
+
+		/**
+		 * Otvara se kad stigne pretplata.
+		 */
+		private final CountDownLatch subscribed = new CountDownLatch(1);
+
+		/**
+		 * Konstruktor pretplatnika koji poruke prima odmah.
+		 */
+		public Recorder() {
+			this(null);
+		}
+
+		/**
+		 * Konstruktor pretplatnika koji svaku poruku prima tek kad se zapor otvori.
+		 * @param gate zapor
+		 */
+		public Recorder(CountDownLatch gate) {
+			this.gate = gate;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscribed.countDown();
+		}
+
+		public void onNext(Message item) {
+			received.add(item);
+
+			if (gate != null) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		public void onError(Throwable throwable) {
+			failure = throwable;
+			done.countDown();
+		}
+
+		public void onComplete() {
+			done.countDown();
+		}
+
+		/**
+		 * Traži još poruka, nakon što stigne pretplata.
+		 * @param n broj poruka
+		 */
+		public void request(long n) throws InterruptedException {
+			Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+			subscription.request(n);
+		}
+
+		/**
+		 * Vraća redne brojeve sljedećih count dobivenih poruka.
+		 * @param count broj poruka
+		 * @return redni brojevi
+		 */
+		public int[] take(int count) throws InterruptedException {
+			int[] indices = new int[count];
+
+			for (int i = 0; i < count; i++) {
+				Message message = received.poll(10, TimeUnit.SECONDS);
+
+				Assert.assertNotNull("Stiglo je samo " + i + " od " + count + " poruka!", message);
+				indices[i] = index(message);
+			}
+
+			return indices;
+		}
+	}
+
+	/**
+	 * Server.
+	 */
+	private SocketMessageServer server;
+
+	/**
+	 * Klijent koji šalje poruke.
+	 */
+	private ClientMsgService sender;
+
+	/**
+	 * Klijent koji se pretplaćuje i kojem su poruke upućene.
+	 */
+	private ClientMsgService receiver;
+
+	/**
+	 * Adresa klijenta koji se pretplaćuje.
+	 */
+	private Address receiverAddress;
+
+	/**
+	 * Pokreće server i oba klijenta.
+	 */
+	@Before
+	public void startServerAndClients() throws Exception {
+		server = new SocketMessageServer(serverProperties(PORT));
+
+		start(server, PORT);
+
+		sender = client(PORT);
+		receiver = client(PORT);
+
+		sender.start();
+		receiver.start();
+
+		sender.register();
+		receiverAddress = receiver.register();
+
+		Thread.sleep(300);
+	}
+
+	/**
+	 * Pretplata dobiva samo onoliko poruka koliko je zatražila, a ostale kad zatraži
+	 * još, redom. Poruke upućene klijentu i dalje stižu na receive().
+	 */
+	@Test(timeout = 30000)
+	public void creditTest() throws Exception {
+		checkCredit(sender, receiver, receiverAddress);
+
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals(i, index(receiver.receive(5, TimeUnit.SECONDS)));
+		}
+	}
+
+	/**
+	 * Pretplata koja ne traži nove poruke ne zadržava drugu pretplatu ni receive() na
+	 * istoj vezi. Server za nju čuva samo najnovijih BACKLOG poruka, a izbačene broji.
+	 */
+	@Test(timeout = 30000)
+	public void isolationTest() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		Recorder slow = new Recorder(gate);
+		Recorder fast = new Recorder();
+
+		receiver.subscribe(MessageType.LETTER, null).subscribe(slow);
+		receiver.subscribe(MessageType.LETTER, null).subscribe(fast);
+
+		slow.request(1);
+		fast.request(Long.MAX_VALUE);
+
+		Thread.sleep(300);
+
+		for (int i = 0; i < 1000; i++) {
+			sender.send(letter(i));
+		}
+
+		int[] all = fast.take(1000);
+
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(i, all[i]);
+			Assert.assertEquals(i, index(receiver.receive(5, TimeUnit.SECONDS)));
+		}
+
+		Assert.assertEquals(Arrays.toString(new int[] { 0 }), Arrays.toString(slow.take(1)));
+
+		Thread.sleep(300);
+
+		Assert.assertEquals(1000 - 1 - BACKLOG, server.getMetrics().getDroppedNotifications());
+
+		gate.countDown();
+		slow.request(1000);
+
+		int[] kept = slow.take(BACKLOG);
+
+		for (int i = 0; i < BACKLOG; i++) {
+			Assert.assertEquals(1000 - BACKLOG + i, kept[i]);
+		}
+
+		Assert.assertNull(slow.received.poll(300, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Pretplata s uzorkom dobiva samo poruke koje ga sadrže, a otkazana pretplata više ne
+	 * dobiva poruke.
+	 */
+	@Test(timeout = 30000)
+	public void patternCancelTest() throws Exception {
+		Recorder matching = new Recorder();
+		Recorder cancelled = new Recorder();
+
+		receiver.subscribe(MessageType.LETTER, letter(7).getData()).subscribe(matching);
+		receiver.subscribe(MessageType.LETTER, null).subscribe(cancelled);
+
+		matching.request(Long.MAX_VALUE);
+		cancelled.request(Long.MAX_VALUE);
+
+		Thread.sleep(300);
+
+		for (int i = 0; i < 10; i++) {
+			sender.send(letter(i));
+		}
+
+		Assert.assertEquals(Arrays.toString(new int[] { 7 }), Arrays.toString(matching.take(1)));
+		Assert.assertEquals(Arrays.toString(new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }), Arrays.toString(cancelled.take(10)));
+
+		cancelled.subscription.cancel();
+
+		Thread.sleep(300);
+
+		for (int i = 10; i < 20; i++) {
+			sender.send(letter(i));
+		}
+
+		Thread.sleep(300);
+
+		Assert.assertNull(cancelled.received.poll());
+		Assert.assertNull(matching.received.poll());
+		Assert.assertEquals(1, cancelled.done.getCount());
+	}
+
+	/**
+	 * Zahtjev za 0 poruka završava pretplatu iznimkom, a zaustavljanje klijenta
+	 * normalno završava ostale pretplate.
+	 */
+	@Test(timeout = 30000)
+	public void finishTest() throws Exception {
+		Recorder illegal = new Recorder();
+		Recorder open = new Recorder();
+
+		receiver.subscribe(MessageType.LETTER, null).subscribe(illegal);
+		receiver.subscribe(MessageType.LETTER, null).subscribe(open);
+
+		illegal.request(0);
+
+		Assert.assertTrue(illegal.done.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(illegal.failure instanceof IllegalArgumentException);
+
+		open.request(1);
+		receiver.stop();
+
+		Assert.assertTrue(open.done.await(5, TimeUnit.SECONDS));
+		Assert.assertNull(open.failure);
+	}
+
+	/**
+	 * I nio server šalje pretplati samo onoliko poruka koliko je zatražila.
+	 */
+	@Test(timeout = 30000)
+	public void nioTest() throws Exception {
+		Properties properties = serverProperties(NIO_PORT);
+		properties.setProperty("server.mode", "nio");
+
+		IMessageServer nio = MessageServerFactory.createServer(properties);
+
+		start(nio, NIO_PORT);
+
+		ClientMsgService nioSender = client(NIO_PORT);
+		ClientMsgService nioReceiver = client(NIO_PORT);
+
+		try {
+			nioSender.start();
+			nioReceiver.start();
+
+			nioSender.register();
+
+			checkCredit(nioSender, nioReceiver, nioReceiver.register());
+		} finally {
+			nioSender.stop();
+			nioReceiver.stop();
+			nio.stop();
+		}
+	}
+
+	/**
+	 * Pretplatnik traži 5 poruka od 20 poslanih, a ostale tek nakon što se uvjeri da
+	 * više od 5 nije stiglo.
+	 * @param from klijent koji šalje poruke
+	 * @param to klijent koji se pretplaćuje
+	 * @param address adresa klijenta koji se pretplaćuje
+	 */
+	private static void checkCredit(ClientMsgService from, ClientMsgService to, Address address) throws Exception {
+		Recorder recorder = new Recorder();
+
+		to.subscribe(MessageType.LETTER, null).subscribe(recorder);
+		recorder.request(5);
+
+		Thread.sleep(300);
+
+		for (int i = 0; i < 20; i++) {
+			Message letter = letterOf(i);
+
+			letter.setDestination(address);
+			from.send(letter);
+		}
+
+		Assert.assertEquals(Arrays.toString(new int[] { 0, 1, 2, 3, 4 }), Arrays.toString(recorder.take(5)));
+		Assert.assertNull("Pretplata je dobila više poruka nego što je zatražila!",
+				recorder.received.poll(300, TimeUnit.MILLISECONDS));
+
+		recorder.request(15);
+
+		int[] rest = recorder.take(15);
+
+		for (int i = 0; i < 15; i++) {
+			Assert.assertEquals(5 + i, rest[i]);
+		}
+	}
+
+	/**
+	 * Stvara poruku čiji je sadržaj redni broj.
+	 * @param index redni broj
+	 * @return poruka, upućena klijentu koji se pretplaćuje ako je poznat
+	 */
+	private Message letter(int index) {
+		Message letter = letterOf(index);
+
+		letter.setDestination(receiverAddress);
+
+		return letter;
+	}
+
+	/**
+	 * Stvara poruku čiji je sadržaj redni broj, bez odredišta.
+	 * @param index redni broj
+	 * @return poruka
+	 */
+	private static Message letterOf(int index) {
+		return new Message(null, MessageType.LETTER, ByteBuffer.allocate(4).putInt(index).array());
+	}
+
+	/**
+	 * @param message poruka
+	 * @return redni broj iz sadržaja poruke
+	 */
+	private static int index(Message message) {
+		return ByteBuffer.wrap(message.getData()).getInt();
+	}
+
+	/**
+	 * Parametri servera s malim zaostatkom pretplata.
+	 * @param port port servera
+	 * @return parametri
+	 */
+	private static Properties serverProperties(int port) throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(port));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("buffer.timeout", "5");
+		properties.setProperty("subscription.backlog", Integer.toString(BACKLOG));
+
+		return properties;
+	}
+
+	/**
+	 * Stvara klijenta.
+	 * @param port port servera
+	 * @return klijent
+	 */
+	private static ClientMsgService client(int port) throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/client.properties"));
+		properties.setProperty("server.port", Integer.toString(port));
+		properties.setProperty("buffer.timeout", "5");
+
+		return new ClientMsgService(properties);
+	}
+
+	/**
+	 * Pokreće server u zasebnoj dretvi i čeka dok ne počne primati konekcije.
+	 * @param server server
+	 * @param port port servera
+	 */
+	private static void start(final IMessageServer server, int port) throws InterruptedException {
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+
+		for (int i = 0; i < 50; i++) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return;
+			} catch (IOException notYet) {
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Zaustavlja klijente i server.
+	 */
+	@After
+	public void stopServerAndClients() throws InterruptedException {
+		sender.stop();
+		receiver.stop();
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(FlowSubscriptionTest.class);
+	}
+}
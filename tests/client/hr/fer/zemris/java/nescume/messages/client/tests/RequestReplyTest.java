@@ -0,0 +1,261 @@
+package hr.fer.zemris.java.nescume.messages.client.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.CorrelatedMessage;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.client.exceptions.MessageNotSent;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava zahtjeve s odgovorom: mnogo zahtjeva istovremeno čeka odgovor na jednoj
+ * vezi, svaki dobiva svoj odgovor, zahtjev bez odgovora završava nakon roka, veliki
+ * zahtjevi i odgovori putuju podijeljeni, a prekid veze završava zahtjeve koji čekaju.
+ */
+public class RequestReplyTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4109;
+
+	/**
+	 * Server.
+	 */
+	private SocketMessageServer server;
+
+	/**
+	 * Klijent koji šalje zahtjeve.
+	 */
+	private ClientMsgService requester;
+
+	/**
+	 * Klijent koji odgovara na zahtjeve.
+	 */
+	private ClientMsgService worker;
+
+	/**
+	 * Adresa klijenta koji odgovara na zahtjeve.
+	 */
+	private Address workerAddress;
+
+	/**
+	 * Pokreće server i oba klijenta, s malim paketima da se veliki zahtjevi dijele.
+	 */
+	@Before
+	public void startServerAndClients() throws Exception {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+
+		server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+
+		waitForServer();
+
+		requester = client();
+		worker = client();
+
+		requester.start();
+		worker.start();
+
+		requester.register();
+		workerAddress = worker.register();
+
+		Thread.sleep(300);
+	}
+
+	/**
+	 * Tisuću zahtjeva poslanih bez čekanja dobiva svaki svoj odgovor.
+	 */
+	@Test(timeout = 30000)
+	public void requestTest() throws Exception {
+		worker.setMessageListener(new Consumer<Message>() {
+
+			public void accept(Message request) {
+				byte[] data = ((CorrelatedMessage) request).getMessage().getData();
+
+				try {
+					worker.reply(request, new Message(null, MessageType.LETTER, new byte[] { (byte) (data[0] + 1) }));
+				} catch (MessageNotSent e) {
+					e.printStackTrace();
+				}
+			}
+
+		});
+
+		List<CompletableFuture<Message>> replies = new ArrayList<CompletableFuture<Message>>();
+
+		for (int i = 0; i < 1000; i++) {
+			replies.add(requester.request(letter(new byte[] { (byte) i }), Duration.ofSeconds(10)));
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			Message reply = replies.get(i).get(10, TimeUnit.SECONDS);
+
+			Assert.assertArrayEquals(new byte[] { (byte) (i + 1) }, reply.getData());
+			Assert.assertEquals(workerAddress, reply.getSource());
+		}
+
+		Assert.assertNull("Odgovor se ne smije predati receive()!", requester.receive(100, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Zahtjev na koji nitko ne odgovori završava iznimkom TimeoutException nakon roka, a
+	 * primatelj ga dobiva kao zahtjev.
+	 */
+	@Test(timeout = 30000)
+	public void timeoutTest() throws Exception {
+		long start = System.nanoTime();
+		CompletableFuture<Message> reply = requester.request(letter(new byte[] { 1 }), Duration.ofMillis(300));
+
+		try {
+			reply.get(5, TimeUnit.SECONDS);
+			Assert.fail("Zahtjev bez odgovora mora završiti iznimkom!");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		Assert.assertTrue("Zahtjev je završio prije roka: " + elapsed + " ms", elapsed >= 300);
+		Assert.assertTrue("Zahtjev je završio prekasno: " + elapsed + " ms", elapsed < 2000);
+
+		Message request = worker.receive(1, TimeUnit.SECONDS);
+
+		Assert.assertTrue(request instanceof CorrelatedMessage);
+		Assert.assertArrayEquals(new byte[] { 1 }, ((CorrelatedMessage) request).getMessage().getData());
+	}
+
+	/**
+	 * Zahtjev i odgovor veći od paketa putuju podijeljeni na dijelove.
+	 */
+	@Test(timeout = 30000)
+	public void largeTest() throws Exception {
+		byte[] data = new byte[20000];
+
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+
+		CompletableFuture<Message> reply = requester.request(letter(data), Duration.ofSeconds(10));
+		Message request = worker.receive(5, TimeUnit.SECONDS);
+
+		Assert.assertArrayEquals(data, ((CorrelatedMessage) request).getMessage().getData());
+
+		worker.reply(request, new Message(null, MessageType.LETTER, data));
+
+		Assert.assertArrayEquals(data, reply.get(10, TimeUnit.SECONDS).getData());
+	}
+
+	/**
+	 * Zahtjevi koji čekaju odgovor završavaju iznimkom kad se veza prekine.
+	 */
+	@Test(timeout = 30000)
+	public void closeTest() throws Exception {
+		CompletableFuture<Message> reply = requester.request(letter(new byte[] { 1 }), Duration.ofSeconds(20));
+
+		Assert.assertNotNull(worker.receive(5, TimeUnit.SECONDS));
+
+		requester.stop();
+
+		try {
+			reply.get(5, TimeUnit.SECONDS);
+			Assert.fail("Zahtjev mora završiti iznimkom kad se veza prekine!");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof MessageNotSent);
+		}
+	}
+
+	/**
+	 * Stvara klijenta s malim paketima.
+	 * @return klijent
+	 */
+	private static ClientMsgService client() throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/client.properties"));
+		properties.setProperty("server.port", Integer.toString(PORT));
+		properties.setProperty("buffer.timeout", "5");
+		properties.setProperty("packet.size", "4096");
+
+		return new ClientMsgService(properties);
+	}
+
+	/**
+	 * Stvara poruku za klijenta koji odgovara na zahtjeve.
+	 * @param data sadržaj
+	 * @return poruka
+	 */
+	private Message letter(byte[] data) {
+		return new Message(workerAddress, MessageType.LETTER, data);
+	}
+
+	/**
+	 * Čeka dok server ne počne primati konekcije.
+	 */
+	private static void waitForServer() throws InterruptedException {
+		for (int i = 0; i < 50; i++) {
+			try {
+				new Socket("127.0.0.1", PORT).close();
+				return;
+			} catch (IOException notYet) {
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Zaustavlja klijente i server.
+	 */
+	@After
+	public void stopServerAndClients() throws InterruptedException {
+		requester.stop();
+		worker.stop();
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(RequestReplyTest.class);
+	}
+}
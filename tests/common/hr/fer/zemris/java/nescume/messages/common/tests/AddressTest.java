@@ -58,6 +58,24 @@ public class AddressTest {
 		}
 	}
 	
+	/**
+	 * Test provjerava da ključ adrese vraća istu adresu i da su ključevi različitih
+	 * adresa različiti. Metoda testira toKey() i fromKey() metode.
+	 */
+	@Test
+	public void keyRoundTrip() {
+		Random random = new Random();
+		
+		for(int i = 0; i < NUMBER_OF_TESTS; i++) {
+			Address adresa = new Address(random.nextInt(CLIENT_ID_LIMIT), random.nextInt(NODE_ID_LIMIT));
+			Address druga = new Address(random.nextInt(CLIENT_ID_LIMIT), random.nextInt(NODE_ID_LIMIT));
+			
+			Assert.assertTrue("Ključ je negativan!", adresa.toKey() >= 0);
+			Assert.assertEquals("Adrese nisu iste!", adresa, Address.fromKey(adresa.toKey()));
+			Assert.assertEquals(adresa.equals(druga), adresa.toKey() == druga.toKey());
+		}
+	}
+	
 	/**
 	 * Metoda potrebna za pozivanje testa iz ANTa.
 	 */
@@ -0,0 +1,309 @@
+package hr.fer.zemris.java.nescume.messages.common.tests;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Compression;
+import hr.fer.zemris.java.nescume.messages.FrameReader;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.PacketCodec;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.TimeoutBuffer;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Služi za testiranje komprimiranja paketa: kodeci moraju vratiti točno izvorne bajtove,
+ * neispravan komprimirani oblik mora završiti s IOException, a poruke komprimirane u
+ * TimeoutBufferu FrameReader mora vratiti redom i nepromijenjene.
+ */
+public class CompressionTest {
+
+	/**
+	 * Buffer koji se testira.
+	 */
+	private TimeoutBuffer buffer;
+
+	/**
+	 * Svaki kodek vraća izvorne bajtove za dobro komprimirljive, slučajne i ponavljajuće
+	 * podatke svih duljina paketa. Dobro komprimirljivi podaci moraju se skratiti.
+	 */
+	@Test
+	public void roundTripTest() throws IOException {
+		Random random = new Random(42);
+
+		for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ }) {
+			PacketCodec codec = compression.newCodec();
+
+			for (int length : new int[] { 0, 1, 12, 13, 100, 512, 4096, 0xFFFF }) {
+				byte[] text = text(length);
+				byte[] noise = new byte[length];
+				byte[] run = new byte[length];
+
+				random.nextBytes(noise);
+				Arrays.fill(run, (byte) 'a');
+
+				if (length >= 512) {
+					Assert.assertTrue(compression + " nije skratio " + length + " bajtova teksta",
+							roundTrip(codec, text) < length / 2);
+					Assert.assertTrue(roundTrip(codec, run) < length / 10);
+				} else {
+					roundTrip(codec, text);
+					roundTrip(codec, run);
+				}
+
+				Assert.assertEquals("Slučajni podaci se ne smiju komprimirati", -1, roundTrip(codec, noise));
+			}
+		}
+	}
+
+	/**
+	 * Neispravan ili skraćen komprimirani oblik završava s IOException, a ne s drugom
+	 * iznimkom, pisanjem izvan odredišta ili pogrešnim sadržajem.
+	 */
+	@Test
+	public void corruptTest() {
+		Random random = new Random(7);
+
+		for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ }) {
+			PacketCodec codec = compression.newCodec();
+			byte[] text = text(4096);
+			byte[] compressed = new byte[4096];
+			int length = codec.compress(text, 0, text.length, compressed, 0, compressed.length);
+
+			for (int i = 0; i < 1000; i++) {
+				byte[] corrupt = Arrays.copyOf(compressed, 1 + random.nextInt(length));
+				boolean truncated = corrupt.length < length;
+				boolean flipped = i % 2 == 0;
+
+				if (flipped) {
+					corrupt[random.nextInt(corrupt.length)] ^= 1 << random.nextInt(8);
+				}
+
+				byte[] target = new byte[4096 + 16];
+
+				try {
+					codec.decompress(corrupt, 0, corrupt.length, target, 8, 4096);
+
+					// Skraćen paket smije proći samo ako su odrezani bajtovi bili samo oznaka kraja
+					if (truncated && !flipped) {
+						Assert.assertArrayEquals(text, Arrays.copyOfRange(target, 8, 8 + 4096));
+					}
+				} catch (IOException expected) {
+				}
+
+				for (int j = 0; j < 8; j++) {
+					Assert.assertEquals(0, target[j]);
+					Assert.assertEquals(0, target[target.length - 1 - j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Poruke iz buffera s uključenim komprimiranjem, i skupina veća od jednog komprimiranog
+	 * paketa, stižu redom i nepromijenjene, a na izlaz ide manje bajtova nego bez
+	 * komprimiranja. Poruke kraće od praga idu nekomprimirane.
+	 */
+	@Test(timeout = 30000)
+	public void bufferTest() throws Exception {
+		for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ }) {
+			PipedInputStream input = new PipedInputStream(1 << 20);
+			final AtomicInteger wire = new AtomicInteger();
+			OutputStream output = new FilterOutputStream(new PipedOutputStream(input)) {
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					wire.addAndGet(len);
+					out.write(b, off, len);
+				}
+
+			};
+			FrameReader reader = new FrameReader(input, 512);
+			List<Message> messages = new ArrayList<Message>();
+			int raw = 0;
+
+			for (int i = 0; i < 300; i++) {
+				Message message = new Message(new Address(1, 1 + i % 3), MessageType.LETTER, text(1000 + i));
+				message.setSource(new Address(2, 1));
+
+				messages.add(message);
+				raw += message.frameLength();
+			}
+
+			Message small = new Message(new Address(1, 1), MessageType.LETTER, new byte[] { 1, 2, 3 });
+			small.setSource(new Address(2, 1));
+
+			start(new TimeoutBuffer(60000, 1000, 8192, output));
+			buffer.setCompression(compression, 64);
+
+			buffer.addMessages(messages, true);
+
+			for (Message message : messages) {
+				Assert.assertEquals(message, reader.read());
+			}
+
+			Assert.assertTrue(compression + ": " + wire.get() + " od " + raw + " bajtova", wire.get() < raw / 2);
+
+			wire.set(0);
+			buffer.addMessages(Arrays.asList(small), true);
+
+			Assert.assertEquals(small, reader.read());
+			Assert.assertEquals(small.frameLength(), wire.get());
+
+			buffer.stop();
+		}
+	}
+
+	/**
+	 * Hitna poruka veća od paketa koja stigne usred pražnjenja skupine ide na izlaz
+	 * komprimirana kao i paketi skupine, između poruka skupine.
+	 */
+	@Test(timeout = 30000)
+	public void urgentOversizedTest() throws Exception {
+		PipedInputStream input = new PipedInputStream(1 << 20);
+		final AtomicInteger wire = new AtomicInteger();
+		final Message urgent = new Message(new Address(1, 1), MessageType.LETTER, text(30000));
+		urgent.setSource(new Address(2, 1));
+		urgent.setUrgent(true);
+
+		OutputStream output = new FilterOutputStream(new PipedOutputStream(input)) {
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				// Hitna poruka stiže dok se piše prvi paket skupine
+				if (wire.getAndAdd(len) == 0) {
+					buffer.addMessage(urgent);
+				}
+
+				out.write(b, off, len);
+			}
+
+		};
+		FrameReader reader = new FrameReader(input, 512);
+		List<Message> messages = new ArrayList<Message>();
+
+		for (int i = 0; i < 2; i++) {
+			Message message = new Message(new Address(1, 1), MessageType.LETTER, text(6000 + i));
+			message.setSource(new Address(2, 1));
+
+			messages.add(message);
+		}
+
+		// Puna skupina od dvije poruke prazni se paket po paket, a ne jednim pisanjem
+		start(new TimeoutBuffer(60000, 2, 8192, output));
+		buffer.setCompression(Compression.DEFLATE, 64);
+
+		for (Message message : messages) {
+			buffer.addMessage(message);
+		}
+
+		Assert.assertEquals(messages.get(0), reader.read());
+		Assert.assertEquals(urgent, reader.read());
+		Assert.assertEquals(messages.get(1), reader.read());
+
+		int raw = urgent.frameLength() + messages.get(0).frameLength() + messages.get(1).frameLength();
+
+		Assert.assertTrue(wire.get() + " od " + raw + " bajtova", wire.get() < raw / 2);
+	}
+
+	/**
+	 * Ponuda i odabir algoritma: server bira svoj algoritam ako je ponuđen, a inače prvi
+	 * ponuđeni. Bez ponude ili sa serverom koji ne komprimira komprimiranja nema.
+	 */
+	@Test
+	public void negotiateTest() {
+		Assert.assertEquals(0, Compression.NONE.offer().length);
+		Assert.assertEquals(Compression.LZ, Compression.LZ.offer()[0]);
+
+		Assert.assertEquals(Compression.DEFLATE, Compression.DEFLATE.negotiate(Compression.LZ.offer()));
+		Assert.assertEquals(Compression.LZ, Compression.DEFLATE.negotiate(new Compression[] { Compression.LZ }));
+		Assert.assertEquals(Compression.NONE, Compression.DEFLATE.negotiate(Compression.NONE.offer()));
+		Assert.assertEquals(Compression.NONE, Compression.NONE.negotiate(Compression.LZ.offer()));
+
+		RegisterMessage offer = (RegisterMessage) Message.fromByteArray(
+				new RegisterMessage(new Address(3, 1), Compression.LZ.offer()).toByteArray());
+
+		Assert.assertArrayEquals(Compression.LZ.offer(), offer.getCompressions());
+	}
+
+	/**
+	 * Komprimira i raspakirava podatke te provjerava da su jednaki izvornima.
+	 * @param codec kodek
+	 * @param data podaci
+	 * @return duljina komprimiranog oblika, -1 ako se podaci ne komprimiraju
+	 */
+	private static int roundTrip(PacketCodec codec, byte[] data) throws IOException {
+		byte[] compressed = new byte[Message.maxDataLength];
+		int length = codec.compress(data, 0, data.length, compressed, 0, compressed.length);
+
+		if (length >= 0) {
+			byte[] restored = new byte[data.length];
+
+			codec.decompress(compressed, 0, length, restored, 0, data.length);
+			Assert.assertArrayEquals(data, restored);
+		}
+
+		return length;
+	}
+
+	/**
+	 * Stvara tekst nalik ispisu izvornog koda zadane duljine.
+	 * @param length duljina u bajtovima
+	 * @return tekst
+	 */
+	private static byte[] text(int length) {
+		StringBuilder text = new StringBuilder();
+
+		for (int line = 0; text.length() < length; line++) {
+			text.append("    assertEquals(expected[").append(line).append("], actual.get(").append(line * 7 % 13)
+					.append(")); // redak ").append(line).append('\n');
+		}
+
+		return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+	}
+
+	/**
+	 * Pokreće flusher buffera.
+	 * @param buffer buffer
+	 */
+	private void start(TimeoutBuffer buffer) {
+		this.buffer = buffer;
+
+		Thread flusher = new Thread(buffer);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Zaustavlja buffer nakon testa.
+	 */
+	@After
+	public void stopBuffer() {
+		if (buffer != null) {
+			buffer.stop();
+		}
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testa iz ANTa.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CompressionTest.class);
+	}
+}
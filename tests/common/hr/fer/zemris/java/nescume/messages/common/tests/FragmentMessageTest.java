@@ -0,0 +1,203 @@
+package hr.fer.zemris.java.nescume.messages.common.tests;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.FragmentMessage;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.Reassembler;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Služi za testiranje dijeljenja velikih poruka na dijelove i njihovog sastavljanja.
+ */
+public class FragmentMessageTest {
+
+	/**
+	 * Veličina dijela sadržaja u testovima.
+	 */
+	private static final int CHUNK_SIZE = 1000;
+
+	/**
+	 * Dijelovi dviju velikih poruka šalju se kroz isti buffer izmiješani i pomiješani
+	 * s malom porukom. Primatelj mora sastaviti obje poruke jednake poslanima.
+	 */
+	@Test
+	public void interleavedTest() {
+		Message first = largeMessage(new Address(1, 1), 100000, true);
+		Message second = largeMessage(new Address(2, 2), 70001, false);
+		Message small = new Message(new Address(9, 9), MessageType.LETTER, new byte[] { 1, 2, 3 });
+		small.setSource(new Address(3, 3));
+
+		Iterator<FragmentMessage> firstChunks = FragmentMessage.split(first, 0, CHUNK_SIZE);
+		Iterator<FragmentMessage> secondChunks = FragmentMessage.split(second, 0, CHUNK_SIZE);
+
+		ByteBuffer buffer = ByteBuffer.allocate(300000);
+		int frames = 0;
+
+		while (firstChunks.hasNext() || secondChunks.hasNext()) {
+			if (firstChunks.hasNext()) {
+				Assert.assertTrue(firstChunks.next().toBuffer(buffer));
+				frames++;
+			}
+
+			if (secondChunks.hasNext()) {
+				Assert.assertTrue(secondChunks.next().toBuffer(buffer));
+				frames++;
+			}
+
+			if (frames == 10) {
+				small.toBuffer(buffer);
+			}
+		}
+
+		Assert.assertEquals(100 + 71, frames);
+
+		buffer.flip();
+
+		Reassembler reassembler = new Reassembler();
+		List<Message> received = new ArrayList<Message>();
+		Message message;
+
+		while ((message = Message.fromBuffer(buffer)) != null) {
+			if (message instanceof FragmentMessage) {
+				message = reassembler.accept((FragmentMessage) message);
+			}
+
+			if (message != null) {
+				received.add(message);
+			}
+		}
+
+		Assert.assertEquals(3, received.size());
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", small, received.get(0));
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", second, received.get(1));
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", first, received.get(2));
+		Assert.assertTrue(received.get(2).isUrgent());
+		Assert.assertFalse(received.get(1).isUrgent());
+		Assert.assertEquals(0, reassembler.getPending());
+	}
+
+	/**
+	 * Dijelovi koji stižu bilo kojim redom moraju dati istu poruku, a dio koji ne
+	 * odgovara ostalim dijelovima prijenosa odbacuje prijenos.
+	 */
+	@Test
+	public void outOfOrderTest() {
+		Message sent = largeMessage(new Address(1, 1), 12345, false);
+		List<FragmentMessage> chunks = new ArrayList<FragmentMessage>();
+
+		for (Iterator<FragmentMessage> i = FragmentMessage.split(sent, 7, CHUNK_SIZE); i.hasNext();) {
+			chunks.add((FragmentMessage) Message.fromByteArray(i.next().toByteArray()));
+		}
+
+		Collections.shuffle(chunks, new Random(42));
+
+		Reassembler reassembler = new Reassembler();
+
+		for (int i = 0; i < chunks.size() - 1; i++) {
+			Assert.assertNull(reassembler.accept(chunks.get(i)));
+		}
+
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", sent, reassembler.accept(chunks.get(chunks.size() - 1)));
+
+		Message other = largeMessage(new Address(1, 1), 20000, false);
+
+		Assert.assertNull(reassembler.accept(chunks.get(0)));
+		Assert.assertEquals(1, reassembler.getPending());
+		Assert.assertNull(reassembler.accept(FragmentMessage.split(other, 7, CHUNK_SIZE).next()));
+		Assert.assertEquals(0, reassembler.getPending());
+	}
+
+	/**
+	 * Prijenos dulji od najveće duljine i prijenos pošiljatelja koji već ima najviše
+	 * prijenosa se odbacuju, a dio koji se preklapa s primljenim odbacuje cijeli prijenos,
+	 * pa ponovljeni dio ne može poruku proglasiti sastavljenom.
+	 */
+	@Test
+	public void limitsTest() {
+		Reassembler reassembler = new Reassembler(10000, 2, Reassembler.DEFAULT_TIMEOUT);
+
+		Assert.assertNull(reassembler.accept(FragmentMessage.split(largeMessage(new Address(1, 1), 10001, false), 1, CHUNK_SIZE).next()));
+		Assert.assertEquals(0, reassembler.getPending());
+
+		for (int id = 2; id <= 4; id++) {
+			Assert.assertNull(reassembler.accept(FragmentMessage.split(largeMessage(new Address(1, 1), 5000, false), id, CHUNK_SIZE).next()));
+		}
+
+		Assert.assertEquals(2, reassembler.getPending());
+
+		Assert.assertNull(reassembler.accept(FragmentMessage.split(largeMessage(new Address(2, 2), 5000, false), 1, CHUNK_SIZE).next()));
+		Assert.assertEquals(3, reassembler.getPending());
+
+		Message sent = largeMessage(new Address(3, 3), 2 * CHUNK_SIZE, false);
+		Iterator<FragmentMessage> chunks = FragmentMessage.split(sent, 1, CHUNK_SIZE);
+		FragmentMessage first = chunks.next();
+
+		Assert.assertNull(reassembler.accept(first));
+		Assert.assertNull(reassembler.accept(first));
+		Assert.assertFalse(reassembler.isPending(first));
+		Assert.assertNull(reassembler.accept(chunks.next()));
+	}
+
+	/**
+	 * Prijenos kojem u roku ne stigne novi dio se odbacuje.
+	 */
+	@Test
+	public void expireTest() throws InterruptedException {
+		Reassembler reassembler = new Reassembler(Reassembler.DEFAULT_MAX_LENGTH, Reassembler.DEFAULT_MAX_TRANSFERS, 100);
+		FragmentMessage first = FragmentMessage.split(largeMessage(new Address(1, 1), 5000, false), 1, CHUNK_SIZE).next();
+
+		Assert.assertNull(reassembler.accept(first));
+		Assert.assertTrue(reassembler.expire().isEmpty());
+
+		Thread.sleep(200);
+
+		Assert.assertEquals(Collections.singletonList(Reassembler.transferKey(first)), reassembler.expire());
+		Assert.assertFalse(reassembler.isPending(first));
+		Assert.assertEquals(0, reassembler.getPending());
+	}
+
+	/**
+	 * Poruka s tijelom većim od jednog okvira ne smije se zapisati neispravno.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void tooLargeTest() {
+		largeMessage(new Address(1, 1), Message.maxDataLength + 1, false).toByteArray();
+	}
+
+	/**
+	 * Stvara veliku poruku nasumičnog sadržaja.
+	 * @param source izvorište poruke
+	 * @param length duljina sadržaja
+	 * @param urgent hitnost
+	 * @return poruka
+	 */
+	private static Message largeMessage(Address source, int length, boolean urgent) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+
+		Message message = new Message(new Address(5, 5), MessageType.LETTER, data);
+		message.setSource(source);
+		message.setUrgent(urgent);
+
+		return message;
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testa iz ANTa.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(FragmentMessageTest.class);
+	}
+}
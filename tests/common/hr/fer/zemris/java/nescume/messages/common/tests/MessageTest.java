@@ -1,13 +1,30 @@
 package hr.fer.zemris.java.nescume.messages.common.tests;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.Random;
 
 import junit.framework.JUnit4TestAdapter;
 
+import hr.fer.zemris.java.nescume.messages.AckMessage;
 import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Compression;
+import hr.fer.zemris.java.nescume.messages.CorrelatedMessage;
+import hr.fer.zemris.java.nescume.messages.FragmentMessage;
+import hr.fer.zemris.java.nescume.messages.FrameReader;
 import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.NotificationMessage;
 import hr.fer.zemris.java.nescume.messages.QueryMessage;
+import hr.fer.zemris.java.nescume.messages.RawMessage;
+import hr.fer.zemris.java.nescume.messages.Reassembler;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.SequencedMessage;
+import hr.fer.zemris.java.nescume.messages.SubscriptionMessage;
 import hr.fer.zemris.java.nescume.messages.Message.MessageType;
 
 import org.junit.Assert;
@@ -75,6 +92,261 @@ public class MessageTest {
 		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", sent, received);
 	}
 	
+	/**
+	 * Poruka za drugog klijenta mora ostati neraspakirana i ponovno se serijalizirati u
+	 * iste bajtove, a query poruka se mora dekodirati. Testira metode relayFromStream i
+	 * relayFromArray.
+	 */
+	@Test
+	public void relayTest() throws IOException {
+		Message sent = new Message(new Address(1234, 5), MessageType.LETTER, new byte[] { 1, 2, 3 });
+		sent.setSource(new Address(4321, 6));
+		sent.setUrgent(true);
+		
+		byte[] frame = sent.toByteArray();
+		
+		Message relayed = Message.relayFromStream(new ByteArrayInputStream(frame));
+		
+		Assert.assertTrue(relayed instanceof RawMessage);
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", sent, relayed);
+		Assert.assertTrue(relayed.isUrgent());
+		Assert.assertArrayEquals(frame, relayed.toByteArray());
+		
+		byte[] padded = new byte[frame.length + 2];
+		System.arraycopy(frame, 0, padded, 1, frame.length);
+		
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", sent, Message.relayFromArray(padded, 1, frame.length));
+		
+		Message query = new QueryMessage(MessageType.LETTER, new byte[] { 7 });
+		query.setSource(new Address(100, 1));
+		
+		Message received = Message.relayFromStream(new ByteArrayInputStream(query.toByteArray()));
+		
+		Assert.assertTrue(received instanceof QueryMessage);
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", query, received);
+	}
+	
+	/**
+	 * Više poruka pakira se u isti (direktni) buffer i čita natrag redom. Poruka koja ne
+	 * stane ne mijenja buffer, a nepotpun okvir se ne čita dok ne stigne do kraja.
+	 */
+	@Test
+	public void bufferTest() {
+		Message letter = new Message(new Address(1234, 5), MessageType.LETTER, new byte[] { 1, 2, 3 });
+		letter.setSource(new Address(4321, 6));
+		letter.setUrgent(true);
+		
+		Message query = new QueryMessage(MessageType.LETTER, new byte[] { 7, 8 });
+		query.setSource(new Address(100, 1));
+		
+		ByteBuffer buffer = ByteBuffer.allocateDirect(letter.frameLength() + query.frameLength() + 4);
+		
+		Assert.assertTrue(letter.toBuffer(buffer));
+		Assert.assertTrue(query.toBuffer(buffer));
+		
+		int position = buffer.position();
+		
+		Assert.assertFalse(letter.toBuffer(buffer));
+		Assert.assertEquals(position, buffer.position());
+		
+		buffer.flip();
+		
+		Message first = Message.fromBuffer(buffer);
+		
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", letter, first);
+		Assert.assertTrue(first.isUrgent());
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", query, Message.fromBuffer(buffer));
+		Assert.assertNull(Message.fromBuffer(buffer));
+		
+		byte[] frame = letter.toByteArray();
+		ByteBuffer partial = ByteBuffer.wrap(frame, 0, frame.length - 1);
+		
+		Assert.assertNull(Message.fromBuffer(partial));
+		Assert.assertNull(Message.relayFromBuffer(partial));
+		Assert.assertEquals(0, partial.position());
+		
+		partial.limit(frame.length);
+		
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", letter, Message.relayFromBuffer(partial));
+		Assert.assertFalse(partial.hasRemaining());
+	}
+	
+	/**
+	 * FrameReader mora sastaviti poruke koje stižu bajt po bajt, i poruku veću od
+	 * svog buffera.
+	 */
+	@Test
+	public void frameReaderTest() throws IOException {
+		Message small = new Message(new Address(1, 1), MessageType.LETTER, new byte[] { 1, 2, 3 });
+		Message large = new Message(new Address(2, 2), MessageType.LETTER, new byte[1000]);
+		new Random(42).nextBytes(large.getData());
+		small.setSource(new Address(3, 3));
+		large.setSource(new Address(4, 4));
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		small.toStream(baos);
+		large.toStream(baos);
+		small.toStream(baos);
+		
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(baos.toByteArray()) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		}, 16);
+		
+		Assert.assertEquals(small, reader.read());
+		Assert.assertEquals(large, reader.readRelay());
+		Assert.assertEquals(small, reader.read());
+		
+		try {
+			reader.read();
+			Assert.fail("Očekivan je kraj ulaza!");
+		} catch (EOFException expected) {
+		}
+	}
+	
+	/**
+	 * Zaglavlje rednog broja piše se zajedno s okvirom poruke iza sebe, potvrda se
+	 * pomiče samo dok nije zapisana, a zahtjev za pouzdanom isporukom preživljava
+	 * registracijsku poruku uz algoritme komprimiranja.
+	 */
+	@Test
+	public void reliableTest() throws IOException {
+		Message letter = new Message(new Address(5, 5), MessageType.LETTER, new byte[] { 1, 2, 3 });
+		letter.setSource(new Address(6, 6));
+		letter.setUrgent(true);
+		
+		SequencedMessage sequenced = new SequencedMessage(42, new RawMessage(letter.toByteArray()));
+		
+		Assert.assertFalse(sequenced.isUrgent());
+		Assert.assertEquals(Message.headerLength + SequencedMessage.sequenceLength + letter.frameLength(),
+				sequenced.toByteArray().length);
+		
+		AckMessage ack = new AckMessage(new Address(6, 6), 1);
+		
+		Assert.assertTrue(ack.advance(7));
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		sequenced.toStream(baos);
+		ack.toStream(baos);
+		
+		Assert.assertFalse("Zapisana potvrda se ne smije pomaknuti!", ack.advance(8));
+		
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(baos.toByteArray()), 16);
+		SequencedMessage header = (SequencedMessage) reader.read();
+		
+		Assert.assertEquals(42, header.getSequence());
+		Assert.assertEquals(letter.getDestinationKey(), header.getDestinationKey());
+		Assert.assertNull(header.getMessage());
+		
+		Message received = reader.read();
+		
+		Assert.assertEquals(letter, received);
+		Assert.assertTrue(received.isUrgent());
+		Assert.assertEquals(7, ((AckMessage) reader.readRelay()).getSequence());
+		
+		RegisterMessage register = (RegisterMessage) Message.fromByteArray(
+				new RegisterMessage(new Address(6, 6), true, Compression.LZ).toByteArray());
+		
+		Assert.assertTrue(register.isReliable());
+		Assert.assertArrayEquals(new Compression[] { Compression.LZ }, register.getCompressions());
+		Assert.assertFalse(((RegisterMessage) Message.fromByteArray(
+				new RegisterMessage(new Address(6, 6), Compression.LZ).toByteArray())).isReliable());
+	}
+	
+	/**
+	 * Metoda provjerava da zahtjev s identifikatorom korelacije prolazi kroz server
+	 * neraspakiran i da se raspakira i iz dijelova, s tipom i hitnošću omotane poruke.
+	 */
+	@Test
+	public void correlatedTest() throws IOException {
+		Message letter = new Message(new Address(5, 5), MessageType.LETTER, new byte[] { 1, 2, 3 });
+		letter.setUrgent(true);
+		
+		CorrelatedMessage request = new CorrelatedMessage(42, false, letter);
+		request.setSource(new Address(6, 6));
+		
+		Assert.assertTrue(request.isUrgent());
+		Assert.assertEquals(Message.headerLength + CorrelatedMessage.correlationHeaderLength + 3,
+				request.frameLength());
+		
+		Message relayed = Message.relayFromArray(request.toByteArray(), 0, request.frameLength());
+		
+		Assert.assertTrue(relayed instanceof RawMessage);
+		Assert.assertEquals(MessageType.CORRELATED, relayed.getType());
+		
+		CorrelatedMessage received = (CorrelatedMessage) Message.fromByteArray(relayed.toByteArray());
+		
+		Assert.assertEquals(request, received);
+		Assert.assertEquals(42, received.getCorrelationId());
+		Assert.assertFalse(received.isReply());
+		Assert.assertEquals(MessageType.LETTER, received.getMessage().getType());
+		Assert.assertTrue(received.getMessage().isUrgent());
+		Assert.assertEquals(new Address(6, 6), received.getMessage().getSource());
+		
+		byte[] data = new byte[1000];
+		new Random(5).nextBytes(data);
+		
+		CorrelatedMessage reply = new CorrelatedMessage(7, true, new Message(new Address(6, 6), MessageType.LETTER, data));
+		reply.setSource(new Address(5, 5));
+		
+		Reassembler reassembler = new Reassembler();
+		Iterator<FragmentMessage> fragments = FragmentMessage.split(reply, 1, 300);
+		Message assembled = null;
+		
+		while (fragments.hasNext()) {
+			assembled = reassembler.accept((FragmentMessage) Message.fromByteArray(fragments.next().toByteArray()));
+		}
+		
+		Assert.assertEquals(reply, CorrelatedMessage.unwrap(assembled));
+		Assert.assertTrue(CorrelatedMessage.unwrap(assembled).isReply());
+	}
+	
+	/**
+	 * Metoda provjerava da server poruke za upravljanje pretplatom dekodira, a da se
+	 * zaglavlje pretplate piše zajedno s okvirom poruke iza sebe, i uz redni broj.
+	 */
+	@Test
+	public void subscriptionTest() throws IOException {
+		SubscriptionMessage subscribe = SubscriptionMessage.subscribe(3, MessageType.LETTER, new byte[] { 4, 5 });
+		subscribe.setSource(new Address(6, 6));
+		
+		Message relayed = Message.relayFromArray(subscribe.toByteArray(), 0, subscribe.frameLength());
+		
+		Assert.assertEquals(subscribe, relayed);
+		Assert.assertEquals(SubscriptionMessage.Kind.SUBSCRIBE, ((SubscriptionMessage) relayed).getKind());
+		Assert.assertEquals(MessageType.LETTER, ((SubscriptionMessage) relayed).getQueryType());
+		Assert.assertArrayEquals(new byte[] { 4, 5 }, ((SubscriptionMessage) relayed).getPattern());
+		Assert.assertArrayEquals(new byte[] { 0 },
+				SubscriptionMessage.subscribe(3, MessageType.LETTER, null).getPattern());
+		
+		SubscriptionMessage request = (SubscriptionMessage) Message.fromByteArray(
+				SubscriptionMessage.request(3, Long.MAX_VALUE).toByteArray());
+		
+		Assert.assertEquals(SubscriptionMessage.Kind.REQUEST, request.getKind());
+		Assert.assertEquals(3, request.getSubscriptionId());
+		Assert.assertEquals(Long.MAX_VALUE, request.getCount());
+		Assert.assertEquals(SubscriptionMessage.cancel(3), Message.fromByteArray(SubscriptionMessage.cancel(3).toByteArray()));
+		
+		Message letter = new Message(new Address(5, 5), MessageType.LETTER, new byte[] { 1, 2, 3 });
+		letter.setSource(new Address(6, 6));
+		
+		NotificationMessage notification = new NotificationMessage(3, new RawMessage(letter.toByteArray()));
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new SequencedMessage(42, notification).toStream(baos);
+		
+		Assert.assertEquals(2 * Message.headerLength + SequencedMessage.sequenceLength +
+				NotificationMessage.notificationLength + letter.frameLength(), baos.size());
+		
+		FrameReader reader = new FrameReader(new ByteArrayInputStream(baos.toByteArray()), 16);
+		
+		Assert.assertEquals(42, ((SequencedMessage) reader.read()).getSequence());
+		Assert.assertEquals(3, ((NotificationMessage) reader.read()).getSubscriptionId());
+		Assert.assertEquals(letter, reader.read());
+	}
+	
 	/**
 	 * Metoda potrebna za pozivanje testa iz ANTa.
 	 */
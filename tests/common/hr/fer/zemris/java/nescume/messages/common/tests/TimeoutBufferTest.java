@@ -0,0 +1,619 @@
+package hr.fer.zemris.java.nescume.messages.common.tests;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import junit.framework.JUnit4TestAdapter;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.FragmentMessage;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.TimeoutBuffer;
+import hr.fer.zemris.java.nescume.messages.TimerWheel;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Služi za testiranje pražnjenja TimeoutBuffera: poruke moraju otići najkasnije kad
+ * najstarijoj istekne buffer.timeout, ranije ako se skupi buffer.size poruka ili
+ * packet.size bajtova, a dodavanje poruka ne smije čekati na pisanje.
+ */
+public class TimeoutBufferTest {
+
+	/**
+	 * Buffer.timeout u testovima kašnjenja, u milisekundama.
+	 */
+	private static final int TIMEOUT = 100;
+
+	/**
+	 * Dopušteno kašnjenje iznad roka zbog raspoređivanja dretvi, u milisekundama.
+	 */
+	private static final int SLACK = 50;
+
+	/**
+	 * Buffer koji se testira.
+	 */
+	private TimeoutBuffer buffer;
+
+	/**
+	 * Izlaz koji pamti kada je koja poruka zapisana.
+	 */
+	private static class RecordingOutput extends OutputStream {
+
+		/**
+		 * Zapisani bajtovi koji još nisu dekodirani.
+		 */
+		private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+		/**
+		 * Dekodirane poruke, redom.
+		 */
+		private List<Message> messages = new ArrayList<Message>();
+
+		/**
+		 * Trenutak (System.nanoTime) zapisivanja svake poruke.
+		 */
+		private List<Long> times = new ArrayList<Long>();
+
+		/**
+		 * Broj pisanja.
+		 */
+		private int writes;
+
+		/**
+		 * Najveće pisanje u bajtovima.
+		 */
+		private int largestWrite;
+
+		/**
+		 * Zapisi zaustavljeni dok se ovaj latch ne otpusti, null ako nisu.
+		 */
+		private CountDownLatch blocked;
+
+		/**
+		 * Propusnost izlaza, 0 ako nije ograničena.
+		 */
+		private int bytesPerMillisecond;
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (blocked != null) {
+				try {
+					blocked.await();
+				} catch (InterruptedException ignorable) {
+				}
+			}
+
+			if (bytesPerMillisecond > 0) {
+				LockSupport.parkNanos(len * 1000000L / bytesPerMillisecond);
+			}
+
+			long now = System.nanoTime();
+
+			synchronized (this) {
+				writes++;
+				largestWrite = Math.max(largestWrite, len);
+				pending.put(b, off, len);
+				pending.flip();
+
+				Message message;
+
+				while ((message = Message.fromBuffer(pending)) != null) {
+					messages.add(message);
+					times.add(now);
+				}
+
+				pending.compact();
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Čeka dok ne bude zapisano barem zadano broj poruka.
+		 * @param count broj poruka
+		 * @param timeout najdulje čekanje u milisekundama
+		 */
+		public synchronized void await(int count, long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+
+			while (messages.size() < count && System.currentTimeMillis() < end) {
+				wait(Math.max(1, end - System.currentTimeMillis()));
+			}
+
+			Assert.assertTrue("Zapisano " + messages.size() + " od " + count + " poruka", messages.size() >= count);
+		}
+	}
+
+	/**
+	 * Poruke stižu u nepravilnim razmacima. Nijedna ne smije čekati dulje od roka
+	 * najstarije poruke, a usamljena poruka ne smije otići prije svog roka.
+	 */
+	@Test(timeout = 30000)
+	public void deadlineLatencyTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+		start(new TimeoutBuffer(TIMEOUT, 1000, 1 << 16, output));
+
+		Random random = new Random(42);
+		int count = 60;
+		long[] sent = new long[count];
+
+		for (int i = 0; i < count; i++) {
+			sent[i] = System.nanoTime();
+			buffer.addMessage(message(i, 16));
+
+			Thread.sleep(random.nextInt(3 * TIMEOUT / 2));
+		}
+
+		output.await(count, 10 * TIMEOUT);
+
+		long[] latencies = latencies(output, sent);
+
+		Assert.assertTrue("p99 kašnjenja " + latencies[count * 99 / 100] + " ms",
+				latencies[count * 99 / 100] <= TIMEOUT + SLACK);
+		Assert.assertTrue("Najveće kašnjenje " + latencies[count - 1] + " ms",
+				latencies[count - 1] <= TIMEOUT + SLACK);
+
+		// Poruka poslana odmah nakon pražnjenja čeka svoj rok, ne tuđi
+		long single = System.nanoTime();
+		buffer.addMessage(message(count, 16));
+		output.await(count + 1, 10 * TIMEOUT);
+
+		long latency = TimeUnit.NANOSECONDS.toMillis(output.times.get(count) - single);
+
+		Assert.assertTrue("Kašnjenje usamljene poruke " + latency + " ms",
+				latency >= TIMEOUT - 5 && latency <= TIMEOUT + SLACK);
+	}
+
+	/**
+	 * Velike poruke moraju isprazniti buffer čim skupe packet.size bajtova, bez čekanja
+	 * roka i broja poruka, a nijedno pisanje ne smije biti veće od packet.size.
+	 */
+	@Test(timeout = 30000)
+	public void byteTriggerTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+		int packetSize = 1024;
+		int count = 50;
+		long[] sent = new long[count];
+
+		start(new TimeoutBuffer(60000, 1000, packetSize, output));
+
+		for (int i = 0; i < count; i++) {
+			sent[i] = System.nanoTime();
+			buffer.addMessage(message(i, 200));
+		}
+
+		// Zaostale poruke koje ne pune paket čekaju rok
+		int flushed = count - packetSize / message(0, 200).frameLength();
+
+		output.await(flushed, 5000);
+
+		long[] latencies = latencies(output, sent);
+
+		Assert.assertTrue("Najveće kašnjenje " + latencies[latencies.length - 1] + " ms",
+				latencies[latencies.length - 1] <= SLACK);
+		Assert.assertTrue("Najveće pisanje " + output.largestWrite + " B", output.largestWrite <= packetSize);
+	}
+
+	/**
+	 * Poruka veća od paketa ide jednim pisanjem, ali paket zbog nje ne raste: sljedeće
+	 * poruke opet se pišu u paketima od najviše packet.size bajtova.
+	 */
+	@Test(timeout = 30000)
+	public void oversizedTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+		int packetSize = 1024;
+
+		start(new TimeoutBuffer(TIMEOUT, 1000, packetSize, output));
+
+		buffer.addMessage(message(0, 4000));
+		output.await(1, 5000);
+
+		synchronized (output) {
+			Assert.assertEquals(message(0, 4000).frameLength(), output.largestWrite);
+			output.largestWrite = 0;
+		}
+
+		for (int i = 1; i <= 20; i++) {
+			buffer.addMessage(message(i, 200));
+		}
+
+		output.await(21, 5000);
+
+		synchronized (output) {
+			Assert.assertEquals(21, output.messages.size());
+			Assert.assertTrue("Najveće pisanje " + output.largestWrite + " B", output.largestWrite <= packetSize);
+		}
+	}
+
+	/**
+	 * Dok flusher čeka na izlaz, dodavanje poruka, i hitnih, mora se odmah vratiti.
+	 * Kad se izlaz oslobodi, hitne i obične poruke stižu svaka svojim redom.
+	 */
+	@Test(timeout = 30000)
+	public void nonBlockingTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+		output.blocked = new CountDownLatch(1);
+
+		start(new TimeoutBuffer(TIMEOUT, 3, 512, output));
+
+		long start = System.nanoTime();
+
+		for (int i = 0; i < 100; i++) {
+			Message message = message(i, 16);
+			message.setUrgent(i % 10 == 0);
+
+			buffer.addMessage(message);
+		}
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		Assert.assertTrue("Dodavanje je trajalo " + elapsed + " ms", elapsed < SLACK);
+
+		output.blocked.countDown();
+		output.await(100, 5000);
+
+		int urgent = 0;
+		int normal = 0;
+
+		for (Message message : output.messages) {
+			if (message.isUrgent()) {
+				Assert.assertEquals(message(10 * urgent++, 16), message);
+			} else {
+				Assert.assertEquals(message(normal + normal / 9 + 1, 16), message);
+				normal++;
+			}
+		}
+
+		Assert.assertEquals(10, urgent);
+	}
+
+	/**
+	 * Izlaz je zasićen skupnim porukama, a hitne poruke stižu svakih nekoliko
+	 * milisekundi. Hitne poruke ne smiju čekati iza skupnih: p99 njihovog kašnjenja mora
+	 * biti daleko ispod vremena potrebnog za pisanje zaostatka.
+	 */
+	@Test(timeout = 60000)
+	public void urgentLatencyTest() throws Exception {
+		final RecordingOutput output = new RecordingOutput();
+		output.bytesPerMillisecond = 8192;
+
+		start(new TimeoutBuffer(TIMEOUT, 100000, 8192, output));
+
+		// Zaostatak od 8 MB treba oko sekundu pisanja
+		for (int i = 0; i < 8000; i++) {
+			buffer.addMessage(message(1000 + i, 1000));
+		}
+
+		int count = 50;
+		long[] sent = new long[count];
+
+		for (int i = 0; i < count; i++) {
+			Message urgent = message(i, 16);
+			urgent.setUrgent(true);
+
+			sent[i] = System.nanoTime();
+			buffer.addMessage(urgent);
+
+			Thread.sleep(10);
+		}
+
+		output.await(8000 + count, 30000);
+
+		long[] latencies = new long[count];
+		int lastUrgent = 0;
+
+		synchronized (output) {
+			for (int i = 0; i < output.messages.size(); i++) {
+				Message message = output.messages.get(i);
+
+				if (message.isUrgent()) {
+					int index = ByteBuffer.wrap(message.getData()).getInt();
+
+					latencies[index] = TimeUnit.NANOSECONDS.toMillis(output.times.get(i) - sent[index]);
+					lastUrgent = i;
+				}
+			}
+		}
+
+		Arrays.sort(latencies);
+
+		Assert.assertTrue("Hitne poruke su čekale zaostatak", lastUrgent < 8000);
+		Assert.assertTrue("p99 kašnjenja hitnih poruka " + latencies[count * 99 / 100] + " ms",
+				latencies[count * 99 / 100] <= SLACK / 2);
+	}
+
+	/**
+	 * Skupina poruka veća od paketa uz zatraženo pražnjenje mora otići jednim pisanjem,
+	 * a poruke moraju stići redom.
+	 */
+	@Test(timeout = 30000)
+	public void batchTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+		List<Message> messages = new ArrayList<Message>();
+
+		for (int i = 0; i < 200; i++) {
+			messages.add(message(i, 16));
+		}
+
+		start(new TimeoutBuffer(60000, 1000, 512, output));
+
+		buffer.addMessages(messages, true);
+		output.await(200, 5000);
+
+		Assert.assertEquals(1, output.writes);
+		Assert.assertEquals(messages, output.messages);
+	}
+
+	/**
+	 * Skupina bez zatraženog pražnjenja čeka dok se buffer ne napuni, a tada sve poruke
+	 * u bufferu odlaze zajedno.
+	 */
+	@Test(timeout = 30000)
+	public void fillTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+		List<Message> first = new ArrayList<Message>();
+		List<Message> second = new ArrayList<Message>();
+
+		for (int i = 0; i < 20; i++) {
+			first.add(message(i, 4));
+			second.add(message(20 + i, 4));
+		}
+
+		start(new TimeoutBuffer(60000, 30, 1 << 16, output));
+
+		buffer.addMessages(first, false);
+		Thread.sleep(200);
+
+		Assert.assertEquals(0, output.writes);
+
+		buffer.addMessages(second, false);
+		output.await(40, 5000);
+
+		Assert.assertEquals(1, output.writes);
+	}
+
+	/**
+	 * Mnogo buffera dijeli jedan kotač rokova i mali izvršitelj. Nijedna poruka ne smije
+	 * otići prije roka, p99 kašnjenja mora biti u roku, a broj dretvi ne smije rasti s
+	 * brojem buffera.
+	 */
+	@Test(timeout = 30000)
+	public void sharedTimerTest() throws Exception {
+		int count = 1000;
+		int threads = Thread.activeCount();
+		TimerWheel timers = new TimerWheel(5, TimeUnit.MILLISECONDS, 512, "test-timers");
+		ExecutorService flushers = Executors.newFixedThreadPool(4);
+
+		try {
+			List<TimeoutBuffer> buffers = new ArrayList<TimeoutBuffer>();
+			List<RecordingOutput> outputs = new ArrayList<RecordingOutput>();
+			long[] sent = new long[count];
+
+			for (int i = 0; i < count; i++) {
+				RecordingOutput output = new RecordingOutput();
+
+				outputs.add(output);
+				buffers.add(new TimeoutBuffer(TIMEOUT, 1000, 1 << 16, output, timers, flushers));
+			}
+
+			for (int i = 0; i < count; i++) {
+				sent[i] = System.nanoTime();
+				buffers.get(i).addMessage(message(i, 16));
+			}
+
+			Assert.assertTrue("Dretve: " + Thread.activeCount(), Thread.activeCount() - threads <= 1 + 4);
+
+			long[] latencies = new long[count];
+
+			for (int i = 0; i < count; i++) {
+				outputs.get(i).await(1, 10 * TIMEOUT);
+
+				latencies[i] = TimeUnit.NANOSECONDS.toMillis(outputs.get(i).times.get(0) - sent[i]);
+			}
+
+			Arrays.sort(latencies);
+
+			Assert.assertTrue("Najmanje kašnjenje " + latencies[0] + " ms", latencies[0] >= TIMEOUT - 5);
+			Assert.assertTrue("p99 kašnjenja " + latencies[count * 99 / 100] + " ms",
+					latencies[count * 99 / 100] <= TIMEOUT + SLACK);
+
+			// Hitna poruka ne čeka kotač
+			long urgentSent = System.nanoTime();
+			Message urgent = message(count, 16);
+			urgent.setUrgent(true);
+			buffers.get(0).addMessage(urgent);
+			outputs.get(0).await(2, 10 * TIMEOUT);
+
+			Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(outputs.get(0).times.get(1) - urgentSent) < SLACK);
+
+			for (TimeoutBuffer buffer : buffers) {
+				buffer.stop();
+			}
+		} finally {
+			timers.stop();
+			flushers.shutdown();
+		}
+	}
+
+	/**
+	 * Futuri poruka dodanih metodama submit() i submitTransfer() dovršavaju se tek kad su
+	 * poruke zapisane, a dodavanje ne čeka izlaz. Kad se buffer zaustavi, futuri poruka
+	 * koje nisu zapisane završavaju iznimkom.
+	 */
+	@Test(timeout = 30000)
+	public void submitTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+		output.blocked = new CountDownLatch(1);
+
+		start(new TimeoutBuffer(TIMEOUT, 3, 512, output));
+
+		List<CompletableFuture<Void>> written = new ArrayList<CompletableFuture<Void>>();
+		long start = System.nanoTime();
+
+		for (int i = 0; i < 20; i++) {
+			Message message = message(i, 16);
+			message.setUrgent(i % 10 == 5);
+
+			written.add(buffer.submit(message));
+		}
+
+		written.add(buffer.submitTransfer(FragmentMessage.split(message(20, 5000), 1, 1000)));
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		Assert.assertTrue("Dodavanje je trajalo " + elapsed + " ms", elapsed < SLACK);
+
+		for (CompletableFuture<Void> future : written) {
+			Assert.assertFalse("Poruka nije zapisana!", future.isDone());
+		}
+
+		output.blocked.countDown();
+
+		for (CompletableFuture<Void> future : written) {
+			future.get(5, TimeUnit.SECONDS);
+		}
+
+		output.await(25, 1000);
+
+		output.blocked = new CountDownLatch(1);
+
+		CompletableFuture<Void> blocked = buffer.submit(message(21, 16));
+		CompletableFuture<Void> waiting;
+
+		Thread.sleep(2 * TIMEOUT);
+
+		waiting = buffer.submit(message(22, 16));
+		buffer.stop();
+
+		try {
+			waiting.get(5, TimeUnit.SECONDS);
+			Assert.fail("Poruka zaustavljenog buffera ne smije biti zapisana!");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		}
+
+		Assert.assertTrue(buffer.submit(message(23, 16)).isCompletedExceptionally());
+
+		output.blocked.countDown();
+		blocked.get(5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Kod izbacivanja najstarijih poruka (addEvicting) dijelovi podijeljene poruke ostaju
+	 * u bufferu, a izbacuju se samo ostale poruke.
+	 */
+	@Test(timeout = 30000)
+	public void evictFragmentsTest() throws Exception {
+		RecordingOutput output = new RecordingOutput();
+
+		start(new TimeoutBuffer(10000, 1000, 8192, output));
+		buffer.setWatermarks(0, 100, null);
+
+		Iterator<FragmentMessage> chunks = FragmentMessage.split(message(10, 100), 1, 50);
+		FragmentMessage first = chunks.next();
+		FragmentMessage second = chunks.next();
+
+		buffer.addMessage(first);
+		buffer.addMessage(message(1, 16));
+		buffer.addMessage(second);
+		buffer.addMessage(message(2, 16));
+
+		Assert.assertEquals(2, buffer.addEvicting(message(3, 16)));
+
+		buffer.addMessages(new ArrayList<Message>(), true);
+		output.await(3, 5000);
+
+		synchronized (output) {
+			Assert.assertEquals(3, output.messages.size());
+			Assert.assertEquals(MessageType.FRAGMENT, output.messages.get(0).getType());
+			Assert.assertEquals(MessageType.FRAGMENT, output.messages.get(1).getType());
+			Assert.assertEquals(message(3, 16), output.messages.get(2));
+		}
+	}
+
+	/**
+	 * Zaustavlja buffer nakon testa.
+	 */
+	@After
+	public void stopBuffer() {
+		if (buffer != null) {
+			buffer.stop();
+		}
+	}
+
+	/**
+	 * Pokreće flusher buffera.
+	 * @param buffer buffer
+	 */
+	private void start(TimeoutBuffer buffer) {
+		this.buffer = buffer;
+
+		Thread flusher = new Thread(buffer);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Računa sortirana kašnjenja zapisanih poruka.
+	 * @param output izlaz
+	 * @param sent trenuci slanja poruka po rednom broju
+	 * @return kašnjenja u milisekundama, sortirana
+	 */
+	private static long[] latencies(RecordingOutput output, long[] sent) {
+		long[] latencies = new long[output.messages.size()];
+
+		synchronized (output) {
+			for (int i = 0; i < latencies.length; i++) {
+				int index = ByteBuffer.wrap(output.messages.get(i).getData()).getInt();
+
+				latencies[i] = TimeUnit.NANOSECONDS.toMillis(output.times.get(i) - sent[index]);
+			}
+		}
+
+		Arrays.sort(latencies);
+
+		return latencies;
+	}
+
+	/**
+	 * Stvara poruku čiji sadržaj počinje rednim brojem.
+	 * @param index redni broj
+	 * @param length duljina sadržaja, barem 4
+	 * @return poruka
+	 */
+	private static Message message(int index, int length) {
+		Message message = new Message(new Address(index, 1), MessageType.LETTER,
+				ByteBuffer.allocate(length).putInt(index).array());
+		message.setSource(new Address(1, 1));
+
+		return message;
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testa iz ANTa.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(TimeoutBufferTest.class);
+	}
+}
@@ -0,0 +1,156 @@
+package hr.fer.zemris.java.nescume.messages.common.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import hr.fer.zemris.java.nescume.messages.TimerWheel;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Služi za testiranje kotača rokova: zadaci se ne smiju izvesti prije roka ni više od
+ * otkucaja nakon njega, a otkazani zadaci se ne smiju izvesti.
+ */
+public class TimerWheelTest {
+
+	/**
+	 * Duljina otkucaja u testovima, u milisekundama.
+	 */
+	private static final int TICK = 5;
+
+	/**
+	 * Dopušteno kašnjenje iznad otkucaja zbog raspoređivanja dretvi, u milisekundama.
+	 */
+	private static final int SLACK = 50;
+
+	/**
+	 * Kotač koji se testira.
+	 */
+	private TimerWheel wheel = new TimerWheel(TICK, TimeUnit.MILLISECONDS, 64, "test-timers");
+
+	/**
+	 * Mnogo zadataka s rokovima i do nekoliko okreta kotača. Svaki se mora izvesti
+	 * jednom, ne prije roka i ne kasnije od otkucaja i dopuštenog kašnjenja.
+	 */
+	@Test(timeout = 30000)
+	public void deadlineTest() throws Exception {
+		int count = 10000;
+		final CountDownLatch done = new CountDownLatch(count);
+		final AtomicInteger early = new AtomicInteger();
+		final AtomicInteger late = new AtomicInteger();
+		Random random = new Random(42);
+
+		for (int i = 0; i < count; i++) {
+			final long delay = random.nextInt(3 * 64 * TICK);
+			final long scheduled = System.nanoTime();
+
+			wheel.schedule(new Runnable() {
+
+				public void run() {
+					long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+
+					if (elapsed < delay) {
+						early.incrementAndGet();
+					} else if (elapsed > delay + TICK + SLACK) {
+						late.incrementAndGet();
+					}
+
+					done.countDown();
+				}
+
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		Assert.assertEquals("Zadaci izvedeni prije roka", 0, early.get());
+		Assert.assertEquals("Zadaci izvedeni prekasno", 0, late.get());
+	}
+
+	/**
+	 * Otkazani zadaci se ne izvode, a ostali se izvode normalno.
+	 */
+	@Test(timeout = 30000)
+	public void cancelTest() throws Exception {
+		final AtomicInteger cancelledRuns = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(500);
+		List<TimerWheel.Timeout> cancelled = new ArrayList<TimerWheel.Timeout>();
+
+		for (int i = 0; i < 1000; i++) {
+			if (i % 2 == 0) {
+				cancelled.add(wheel.schedule(new Runnable() {
+
+					public void run() {
+						cancelledRuns.incrementAndGet();
+					}
+
+				}, 20 + i % 100, TimeUnit.MILLISECONDS));
+			} else {
+				wheel.schedule(new Runnable() {
+
+					public void run() {
+						done.countDown();
+					}
+
+				}, 20 + i % 100, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		for (TimerWheel.Timeout timeout : cancelled) {
+			Assert.assertTrue(timeout.cancel());
+			Assert.assertFalse(timeout.cancel());
+		}
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Thread.sleep(200);
+
+		Assert.assertEquals(0, cancelledRuns.get());
+	}
+
+	/**
+	 * Zadatak zakazan nakon što je kotač dugo bio bez zadataka izvodi se na vrijeme.
+	 */
+	@Test(timeout = 30000)
+	public void idleTest() throws Exception {
+		Thread.sleep(300);
+
+		final CountDownLatch done = new CountDownLatch(1);
+		long scheduled = System.nanoTime();
+
+		wheel.schedule(new Runnable() {
+
+			public void run() {
+				done.countDown();
+			}
+
+		}, 50, TimeUnit.MILLISECONDS);
+
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduled);
+
+		Assert.assertTrue("Zadatak izveden nakon " + elapsed + " ms", elapsed >= 50 && elapsed <= 50 + TICK + SLACK);
+	}
+
+	/**
+	 * Zaustavlja kotač nakon testa.
+	 */
+	@After
+	public void stopWheel() {
+		wheel.stop();
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testa iz ANTa.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(TimerWheelTest.class);
+	}
+}
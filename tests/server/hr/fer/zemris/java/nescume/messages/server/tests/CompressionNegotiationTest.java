@@ -0,0 +1,295 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Compression;
+import hr.fer.zemris.java.nescume.messages.FrameReader;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedInputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava dogovor o komprimiranju između klijenta i servera: server odgovara na ponudu
+ * algoritama i od tada komprimira pakete prema klijentu, a klijent koji ništa ne nudi
+ * dobiva nekomprimirane poruke kao i prije.
+ */
+public class CompressionNegotiationTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4105;
+
+	/**
+	 * Broj poslanih poruka.
+	 */
+	private static final int NUMBER_OF_MESSAGES = 200;
+
+	/**
+	 * Server.
+	 */
+	private SocketMessageServer server;
+
+	/**
+	 * Parametri klijenata.
+	 */
+	private Properties clientProperties = new Properties();
+
+	/**
+	 * Socketi i klijenti koje treba zatvoriti nakon testa.
+	 */
+	private List<Object> connections = new ArrayList<Object>();
+
+	/**
+	 * Pokreće server koji komprimira s lz.
+	 */
+	@Before
+	public void startServer() throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("buffer.timeout", "50");
+		properties.setProperty("packet.size", "8192");
+		properties.setProperty("compression", "lz");
+		properties.setProperty("compression.threshold", "64");
+
+		clientProperties.load(new FileReader("configuration/client.properties"));
+		clientProperties.setProperty("server.port", Integer.toString(PORT));
+		clientProperties.setProperty("buffer.timeout", "50");
+
+		server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+	}
+
+	/**
+	 * Klijent koji nudi deflate i lz dobiva odgovor s lz, algoritmom servera, i prima
+	 * komprimirane pakete. Pošiljatelj također komprimira, a poruke stižu nepromijenjene
+	 * i do klijenta preko ClientMsgService.
+	 */
+	@Test(timeout = 60000)
+	public void compressedTest() throws Exception {
+		Address rawAddress = new Address(600, 1);
+		Socket raw = connect(rawAddress, Compression.DEFLATE.offer());
+		CountingInputStream counter = new CountingInputStream(raw.getInputStream());
+		FrameReader reader = new FrameReader(counter, 8192);
+
+		RegisterMessage reply = (RegisterMessage) reader.read();
+
+		Assert.assertEquals(0, reply.getSourceKey());
+		Assert.assertArrayEquals(new Compression[] { Compression.LZ }, reply.getCompressions());
+
+		clientProperties.setProperty("compression", "deflate");
+
+		ClientMsgService receiver = client();
+		ClientMsgService sender = client();
+		Address receiverAddress = receiver.register();
+
+		// Odgovor servera na registraciju stiže asinkrono
+		Thread.sleep(200);
+
+		List<byte[]> sent = new ArrayList<byte[]>();
+		int frames = 0;
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			byte[] data = text(i);
+			Message toRaw = new Message(rawAddress, MessageType.LETTER, data);
+
+			sent.add(data);
+			sender.send(toRaw);
+			sender.send(new Message(receiverAddress, MessageType.LETTER, data));
+			frames += toRaw.frameLength();
+		}
+
+		long read = counter.count;
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			Assert.assertArrayEquals(sent.get(i), reader.read().getData());
+		}
+
+		Assert.assertTrue("Pročitano " + (counter.count - read) + " od " + frames + " bajtova",
+				counter.count - read < frames / 2);
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			Message message = receiver.receive(10, TimeUnit.SECONDS);
+
+			Assert.assertNotNull(message);
+			Assert.assertArrayEquals(sent.get(i), message.getData());
+		}
+	}
+
+	/**
+	 * Klijent koji ne nudi algoritme ne dobiva odgovor na registraciju, a poruke dobiva
+	 * nekomprimirane.
+	 */
+	@Test(timeout = 60000)
+	public void plainTest() throws Exception {
+		Address rawAddress = new Address(600, 2);
+		Socket raw = connect(rawAddress);
+		InputStream input = new BufferedInputStream(raw.getInputStream());
+
+		ClientMsgService sender = client();
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			sender.send(new Message(rawAddress, MessageType.LETTER, text(i)));
+		}
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			Message message = Message.fromStream(input);
+
+			Assert.assertEquals(MessageType.LETTER, message.getType());
+			Assert.assertArrayEquals(text(i), message.getData());
+		}
+	}
+
+	/**
+	 * Spaja klijenta preko socketa i registrira ga s ponuđenim algoritmima, čekajući ako
+	 * se server još nije pokrenuo.
+	 * @param address adresa klijenta
+	 * @param offer ponuđeni algoritmi
+	 * @return spojeni socket
+	 */
+	private Socket connect(Address address, Compression... offer) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			Socket socket = new Socket();
+
+			try {
+				socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+
+				new RegisterMessage(address, offer).toStream(socket.getOutputStream());
+				connections.add(socket);
+
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+
+				if (i == 50) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Stvara i pokreće klijenta s trenutnim parametrima.
+	 * @return pokrenuti klijent
+	 */
+	private ClientMsgService client() throws Exception {
+		ClientMsgService client = new ClientMsgService(clientProperties);
+
+		client.start();
+		connections.add(client);
+
+		return client;
+	}
+
+	/**
+	 * Stvara sadržaj poruke nalik ispisu testa.
+	 * @param index redni broj poruke
+	 * @return sadržaj
+	 */
+	private static byte[] text(int index) {
+		StringBuilder text = new StringBuilder();
+
+		for (int line = 0; line < 20; line++) {
+			text.append("[junit] Testcase: test").append(index).append('_').append(line)
+					.append(" took 0.00").append(line % 10).append(" sec\n");
+		}
+
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Ulaz koji broji pročitane bajtove.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		/**
+		 * Broj pročitanih bajtova.
+		 */
+		private volatile long count;
+
+		/**
+		 * Konstruktor.
+		 * @param input ulaz
+		 */
+		public CountingInputStream(InputStream input) {
+			super(input);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+
+			if (read > 0) {
+				count += read;
+			}
+
+			return read;
+		}
+	}
+
+	/**
+	 * Zatvara klijente i zaustavlja server.
+	 */
+	@After
+	public void stopServer() throws InterruptedException {
+		for (Object connection : connections) {
+			try {
+				if (connection instanceof Socket) {
+					((Socket) connection).close();
+				} else {
+					((ClientMsgService) connection).stop();
+				}
+			} catch (IOException ignorable) {
+			}
+		}
+
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(CompressionNegotiationTest.class);
+	}
+}
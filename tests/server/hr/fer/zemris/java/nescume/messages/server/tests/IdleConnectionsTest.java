@@ -0,0 +1,176 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.server.IMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava da neaktivne veze ne troše procesor: potrošnja mora rasti s prometom, a ne
+ * s brojem spojenih klijenata.
+ */
+public class IdleConnectionsTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4102;
+
+	/**
+	 * Broj neaktivnih klijenata.
+	 */
+	private static final int NUMBER_OF_CLIENTS = 500;
+
+	/**
+	 * Trajanje mjerenja u milisekundama.
+	 */
+	private static final int MEASUREMENT = 2000;
+
+	/**
+	 * Najveći dopušteni udio procesorskog vremena servera tijekom mjerenja.
+	 */
+	private static final double MAX_CPU_SHARE = 0.1;
+
+	/**
+	 * Server.
+	 */
+	private static IMessageServer server;
+
+	/**
+	 * Socketi neaktivnih klijenata.
+	 */
+	private static List<Socket> sockets = new ArrayList<Socket>();
+
+	/**
+	 * Pokreće server i spaja neaktivne klijente.
+	 */
+	@BeforeClass
+	public static void startServerAndClients() throws IOException, InterruptedException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+
+		server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+
+		for (int i = 0; i < NUMBER_OF_CLIENTS; i++) {
+			Socket socket = connect();
+
+			new RegisterMessage(new Address(300 + i / 256, i % 256)).toStream(socket.getOutputStream());
+
+			sockets.add(socket);
+		}
+
+		// Neka se sve registracije obrade prije mjerenja
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Spaja se na server, čekajući ako se on još nije pokrenuo.
+	 * @return spojeni socket
+	 */
+	private static Socket connect() throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				return new Socket("127.0.0.1", PORT);
+			} catch (IOException e) {
+				if (i == 50) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Mjeri procesorsko vrijeme svih dretvi dok su klijenti neaktivni.
+	 */
+	@Test
+	public void idleCpuTest() throws InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		long before = totalCpuTime(threads);
+		Thread.sleep(MEASUREMENT);
+		long used = totalCpuTime(threads) - before;
+
+		double share = used / (MEASUREMENT * 1000000.0);
+
+		Assert.assertTrue("Neaktivne veze troše " + Math.round(share * 100) + "% procesora!",
+				share < MAX_CPU_SHARE);
+	}
+
+	/**
+	 * Zbraja procesorsko vrijeme svih živih dretvi.
+	 * @param threads MXBean dretvi
+	 * @return ukupno vrijeme u nanosekundama
+	 */
+	private static long totalCpuTime(ThreadMXBean threads) {
+		long total = 0;
+
+		for (long id : threads.getAllThreadIds()) {
+			long time = threads.getThreadCpuTime(id);
+
+			if (time > 0) {
+				total += time;
+			}
+		}
+
+		return total;
+	}
+
+	/**
+	 * Zatvara klijente i zaustavlja server.
+	 */
+	@AfterClass
+	public static void stopServerAndClients() throws InterruptedException {
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException ignorable) {
+			}
+		}
+
+		sockets.clear();
+
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IdleConnectionsTest.class);
+	}
+}
@@ -0,0 +1,369 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.MessageJournal;
+import hr.fer.zemris.java.nescume.messages.server.NioMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava žurnal poruka koje čekaju: nepotvrđene poruke se nakon ponovnog otvaranja
+ * vraćaju redom i nepromijenjene, potvrđene ne, potpuno potvrđeni segmenti se brišu, a
+ * server nakon ponovnog pokretanja isporučuje poruke koje su čekale registraciju.
+ */
+public class JournalTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4106;
+
+	/**
+	 * Trenutak isteka poruka koje ne smiju isteći za vrijeme testa.
+	 */
+	private static final long NEVER = Long.MAX_VALUE;
+
+	/**
+	 * Direktorij žurnala.
+	 */
+	private File directory;
+
+	/**
+	 * Stvara prazan direktorij žurnala.
+	 */
+	@Before
+	public void createDirectory() throws IOException {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	/**
+	 * Dodaje poruke kroz više segmenata, potvrđuje svaku treću i provjerava da se nakon
+	 * ponovnog otvaranja vraćaju točno nepotvrđene poruke, redom. Kad se potvrde i one,
+	 * ostaje samo aktivni segment.
+	 */
+	@Test
+	public void recoverTest() throws IOException {
+		MessageJournal journal = new MessageJournal(directory, MessageJournal.minSegmentSize, 10, "journal-test");
+		List<Message> unconfirmed = new ArrayList<Message>();
+
+		for (int i = 0; i < 100; i++) {
+			Message message = message(i, 5000);
+			long id = journal.append(message, NEVER - i);
+
+			if (i % 3 == 0) {
+				journal.confirm(id);
+			} else {
+				unconfirmed.add(message);
+			}
+		}
+
+		journal.close();
+
+		Assert.assertTrue("Poruke nisu zauzele više segmenata", directory.list().length > 2);
+
+		journal = new MessageJournal(directory, MessageJournal.minSegmentSize, 10, "journal-test");
+
+		List<MessageJournal.Record> records = journal.takeRecovered();
+
+		Assert.assertEquals(unconfirmed.size(), records.size());
+		Assert.assertTrue(journal.takeRecovered().isEmpty());
+
+		for (int i = 0; i < records.size(); i++) {
+			Message recovered = journal.read(records.get(i).getId());
+
+			Assert.assertEquals(unconfirmed.get(i), recovered);
+			Assert.assertArrayEquals(unconfirmed.get(i).getData(), recovered.getData());
+			Assert.assertEquals(recovered.frameLength(), records.get(i).getLength());
+			Assert.assertEquals(recovered.getDestinationKey(), records.get(i).getDestinationKey());
+		}
+
+		for (MessageJournal.Record record : records) {
+			journal.confirm(record.getId());
+		}
+
+		Assert.assertEquals(1, directory.list().length);
+
+		journal.close();
+
+		journal = new MessageJournal(directory, MessageJournal.minSegmentSize, 10, "journal-test");
+
+		Assert.assertTrue(journal.takeRecovered().isEmpty());
+
+		journal.close();
+	}
+
+	/**
+	 * Poruka koja dugo čeka ne zadržava segmente: kad su ostale poruke potvrđene, dretva
+	 * žurnala je seli u aktivni segment i briše stare, a nakon ponovnog otvaranja vraća se
+	 * samo ona.
+	 */
+	@Test
+	public void compactTest() throws IOException, InterruptedException {
+		MessageJournal journal = new MessageJournal(directory, MessageJournal.minSegmentSize, 10, "journal-test");
+
+		Message lasting = message(7, 1000);
+		long lastingId = journal.append(lasting, NEVER);
+
+		for (int i = 0; i < 200; i++) {
+			journal.confirm(journal.append(message(i, 5000), NEVER));
+		}
+
+		Thread.sleep(200);
+
+		Assert.assertEquals(1, directory.list().length);
+		Assert.assertEquals(lasting, journal.read(lastingId));
+
+		journal.append(message(8, 1000), NEVER);
+		journal.close();
+
+		journal = new MessageJournal(directory, MessageJournal.minSegmentSize, 10, "journal-test");
+
+		List<MessageJournal.Record> records = journal.takeRecovered();
+
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals(lastingId, records.get(0).getId());
+		Assert.assertArrayEquals(lasting.getData(), journal.read(lastingId).getData());
+		Assert.assertEquals(message(8, 1000), journal.read(records.get(1).getId()));
+
+		journal.close();
+	}
+
+	/**
+	 * Zapis čija oznaka nije upisana smatra se nedovršenim, pa se on i sve iza njega
+	 * zanemaruje.
+	 */
+	@Test
+	public void tornRecordTest() throws IOException, InterruptedException {
+		MessageJournal journal = new MessageJournal(directory, MessageJournal.minSegmentSize, 10, "journal-test");
+
+		Message first = message(1, 100);
+		long id = journal.append(first, NEVER);
+
+		journal.append(message(2, 100), NEVER);
+		journal.append(message(3, 100), NEVER);
+		journal.awaitSynced(id + 2);
+		journal.close();
+
+		// Oznaka druge poruke je obrisana, kao da je pisanje prekinuto prije nje
+		File segment = new File(directory, directory.list()[0]);
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+
+		try {
+			file.seek(1 + 8 + 8 + first.frameLength());
+			file.write(0);
+		} finally {
+			file.close();
+		}
+
+		journal = new MessageJournal(directory, MessageJournal.minSegmentSize, 10, "journal-test");
+
+		List<MessageJournal.Record> records = journal.takeRecovered();
+
+		Assert.assertEquals(1, records.size());
+		Assert.assertEquals(first, journal.read(records.get(0).getId()));
+
+		journal.close();
+	}
+
+	/**
+	 * Poruke koje čekaju registraciju odredišta preživljavaju ponovno pokretanje servera i
+	 * isporučuju se kad se odredište registrira.
+	 */
+	@Test(timeout = 60000)
+	public void restartTest() throws Exception {
+		restart(false);
+	}
+
+	/**
+	 * Uz journal.durable parkiranje čeka spremanje zapisa, a poruke jednako preživljavaju
+	 * ponovno pokretanje servera.
+	 */
+	@Test(timeout = 60000)
+	public void durableRestartTest() throws Exception {
+		restart(true);
+	}
+
+	/**
+	 * NioMessageServer ne prihvaća journal.durable, jer bi čekanje diska zaustavilo I/O
+	 * dretvu.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void nioDurableTest() throws Exception {
+		new NioMessageServer(properties(true));
+	}
+
+	/**
+	 * Šalje 50 poruka neregistriranom odredištu, ponovno pokreće server i provjerava da
+	 * odredište nakon registracije primi sve poruke.
+	 * @param durable journal.durable
+	 */
+	private void restart(boolean durable) throws Exception {
+		SocketMessageServer server = start(durable);
+		Socket sender = connect(new Address(700, 1));
+
+		OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+		for (int i = 0; i < 50; i++) {
+			message(i, 100).toStream(output);
+		}
+
+		output.flush();
+
+		Thread.sleep(500);
+
+		Assert.assertEquals(50, server.getMetrics().getPendingDepth());
+
+		sender.close();
+		server.stop();
+
+		Thread.sleep(1000);
+
+		server = start(durable);
+
+		Socket receiver = connect(new Address(700, 2));
+
+		try {
+			InputStream input = new BufferedInputStream(receiver.getInputStream());
+
+			for (int i = 0; i < 50; i++) {
+				Message received = Message.fromStream(input);
+
+				Assert.assertEquals(message(i, 100), received);
+				Assert.assertArrayEquals(message(i, 100).getData(), received.getData());
+			}
+
+			Assert.assertEquals(0, server.getMetrics().getPendingDepth());
+		} finally {
+			receiver.close();
+			server.stop();
+
+			Thread.sleep(1000);
+		}
+	}
+
+	/**
+	 * Vraća parametre servera sa žurnalom u direktoriju testa.
+	 * @param durable journal.durable
+	 * @return parametri servera
+	 */
+	private Properties properties(boolean durable) throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("journal.dir", directory.getPath());
+		properties.setProperty("journal.durable", Boolean.toString(durable));
+
+		return properties;
+	}
+
+	/**
+	 * Pokreće server sa žurnalom u direktoriju testa.
+	 * @param durable journal.durable
+	 * @return pokrenuti server
+	 */
+	private SocketMessageServer start(boolean durable) throws IOException {
+		final SocketMessageServer server = new SocketMessageServer(properties(durable));
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+
+		return server;
+	}
+
+	/**
+	 * Spaja se na server, čekajući ako se on još nije pokrenuo, i registrira adresu.
+	 * @param address adresa klijenta
+	 * @return spojeni socket
+	 */
+	private static Socket connect(Address address) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				Socket connected = new Socket("127.0.0.1", PORT);
+
+				new RegisterMessage(address).toStream(connected.getOutputStream());
+
+				return connected;
+			} catch (IOException e) {
+				if (i == 50) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Stvara poruku od 700:1 za 700:2 s prepoznatljivim sadržajem.
+	 * @param index redni broj poruke
+	 * @param length duljina sadržaja
+	 * @return poruka
+	 */
+	private static Message message(int index, int length) {
+		byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (index + i);
+		}
+
+		Message message = new Message(new Address(700, 2), MessageType.LETTER, data);
+		message.setSource(new Address(700, 1));
+
+		return message;
+	}
+
+	/**
+	 * Briše direktorij žurnala.
+	 */
+	@After
+	public void deleteDirectory() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(JournalTest.class);
+	}
+}
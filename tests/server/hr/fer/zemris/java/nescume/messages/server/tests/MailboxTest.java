@@ -0,0 +1,262 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava sandučiće poruka: poruke za klijenta kojem je veza prekinuta čekaju dok se
+ * ponovno ne registrira, sandučić je ograničen s mailbox.size, a veliki sandučić se
+ * isporučuje redom, i s porukama koje stignu dok se prazni.
+ */
+public class MailboxTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4107;
+
+	/**
+	 * Najveća duljina poruka u jednom sandučiću.
+	 */
+	private static final int MAILBOX_SIZE = 100000;
+
+	/**
+	 * Server.
+	 */
+	private SocketMessageServer server;
+
+	/**
+	 * Direktorij žurnala.
+	 */
+	private File directory;
+
+	/**
+	 * Pokreće server sa žurnalom, malim sandučićima i niskim granicama zaostatka, da se
+	 * sandučić prazni u više navrata.
+	 */
+	@Before
+	public void startServer() throws IOException {
+		directory = File.createTempFile("mailbox", "");
+		directory.delete();
+		directory.mkdir();
+
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("buffer.timeout", "20");
+		properties.setProperty("watermark.high", "8192");
+		properties.setProperty("watermark.low", "2048");
+		properties.setProperty("mailbox.size", Integer.toString(MAILBOX_SIZE));
+		properties.setProperty("journal.dir", directory.getPath());
+
+		server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+	}
+
+	/**
+	 * Poruke poslane klijentu nakon što mu je veza prekinuta isporučuju se kad se ponovno
+	 * registrira.
+	 */
+	@Test(timeout = 30000)
+	public void reconnectTest() throws Exception {
+		Socket sender = connect(new Address(800, 1));
+		Socket receiver = connect(new Address(800, 2));
+
+		Thread.sleep(300);
+		receiver.close();
+		Thread.sleep(300);
+
+		OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+		for (int i = 0; i < 20; i++) {
+			message(i, 100).toStream(output);
+		}
+
+		output.flush();
+
+		Thread.sleep(500);
+
+		receiver = connect(new Address(800, 2));
+
+		try {
+			InputStream input = new BufferedInputStream(receiver.getInputStream());
+
+			for (int i = 0; i < 20; i++) {
+				Assert.assertArrayEquals(message(i, 100).getData(), Message.fromStream(input).getData());
+			}
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	/**
+	 * Sandučić ne prima više od mailbox.size bajtova, višak se odbija.
+	 */
+	@Test(timeout = 30000)
+	public void capacityTest() throws Exception {
+		Socket sender = connect(new Address(800, 1));
+		long rejected = server.getMetrics().getRejected();
+		int length = 1000;
+		int count = MAILBOX_SIZE / message(0, length).frameLength();
+
+		try {
+			OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+			for (int i = 0; i < count + 10; i++) {
+				message(i, length).toStream(output);
+			}
+
+			output.flush();
+
+			Thread.sleep(500);
+
+			Assert.assertEquals(count, server.getMetrics().getPendingDepth());
+			Assert.assertEquals(rejected + 10, server.getMetrics().getRejected());
+		} finally {
+			sender.close();
+		}
+	}
+
+	/**
+	 * Sandučić veći od granice zaostatka isporučuje se u više navrata, redom, a poruke
+	 * koje stignu dok se prazni dolaze iza njega.
+	 */
+	@Test(timeout = 30000)
+	public void drainTest() throws Exception {
+		Socket sender = connect(new Address(800, 1));
+		OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+		int length = 1000;
+		int count = MAILBOX_SIZE / 2 / message(0, length).frameLength();
+
+		for (int i = 0; i < count; i++) {
+			message(i, length).toStream(output);
+		}
+
+		output.flush();
+
+		Thread.sleep(500);
+
+		Assert.assertEquals(count, server.getMetrics().getPendingDepth());
+
+		Socket receiver = connect(new Address(800, 2));
+
+		try {
+			for (int i = count; i < count + 20; i++) {
+				message(i, length).toStream(output);
+			}
+
+			output.flush();
+
+			InputStream input = new BufferedInputStream(receiver.getInputStream());
+
+			for (int i = 0; i < count + 20; i++) {
+				Assert.assertArrayEquals(message(i, length).getData(), Message.fromStream(input).getData());
+			}
+
+			Assert.assertEquals(0, server.getMetrics().getPendingDepth());
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	/**
+	 * Spaja se na server, čekajući ako se on još nije pokrenuo, i registrira adresu.
+	 * @param address adresa klijenta
+	 * @return spojeni socket
+	 */
+	private static Socket connect(Address address) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				Socket connected = new Socket("127.0.0.1", PORT);
+
+				new RegisterMessage(address).toStream(connected.getOutputStream());
+
+				return connected;
+			} catch (IOException e) {
+				if (i == 50) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Stvara poruku od 800:1 za 800:2 s prepoznatljivim sadržajem.
+	 * @param index redni broj poruke
+	 * @param length duljina sadržaja
+	 * @return poruka
+	 */
+	private static Message message(int index, int length) {
+		byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (index * 31 + i);
+		}
+
+		Message message = new Message(new Address(800, 2), MessageType.LETTER, data);
+		message.setSource(new Address(800, 1));
+
+		return message;
+	}
+
+	/**
+	 * Zaustavlja server i briše žurnal.
+	 */
+	@After
+	public void stopServer() throws InterruptedException {
+		server.stop();
+
+		Thread.sleep(1000);
+
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(MailboxTest.class);
+	}
+}
@@ -0,0 +1,305 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.client.IClientMsgService;
+import hr.fer.zemris.java.nescume.messages.client.MessageBatch;
+import hr.fer.zemris.java.nescume.messages.client.exceptions.ClientCannotStart;
+import hr.fer.zemris.java.nescume.messages.client.exceptions.ClientException;
+import hr.fer.zemris.java.nescume.messages.server.IMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.MessageServerFactory;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Unit testovi servera koji radi nad selektorima (server.mode = nio).
+ */
+public class NioServerTests {
+
+	/**
+	 * Port na kojem sluša server, različit od onog iz konfiguracije da se testovi ne
+	 * sudaraju s ostalim serverima.
+	 */
+	private static final String PORT = "4101";
+
+	/**
+	 * Broj klijenata kojima se testira server.
+	 */
+	private static final int NUMBER_OF_CLIENTS = 20;
+
+	/**
+	 * Broj nasumičnih poruka.
+	 */
+	private static final int NUMBER_OF_MESSAGES = 20;
+
+	/**
+	 * Server.
+	 */
+	private static IMessageServer server;
+
+	/**
+	 * Parametri klijenata.
+	 */
+	private static Properties clientProperties = new Properties();
+
+	/**
+	 * Lista klijenata.
+	 */
+	private static List<IClientMsgService> clients = new ArrayList<IClientMsgService>();
+
+	/**
+	 * Mapiranje klijenata na njihove adrese.
+	 */
+	private static Map<IClientMsgService, Address> addresses = new HashMap<IClientMsgService, Address>();
+
+	/**
+	 * Pokreće server u nio načinu rada i spaja klijente na njega.
+	 */
+	@BeforeClass
+	public static void startServerAndClients() throws IOException, ClientException, InterruptedException {
+		Properties serverProperties = new Properties();
+
+		serverProperties.load(new FileReader("configuration/server.properties"));
+		clientProperties.load(new FileReader("configuration/client.properties"));
+
+		serverProperties.setProperty("server.mode", "nio");
+		serverProperties.setProperty("listen.port", PORT);
+		clientProperties.setProperty("server.port", PORT);
+
+		server = MessageServerFactory.createServer(serverProperties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+
+		waitForServer();
+
+		for (int i = 0; i < NUMBER_OF_CLIENTS; i++) {
+			IClientMsgService client = new ClientMsgService(clientProperties);
+
+			client.start();
+
+			addresses.put(client, client.register());
+
+			clients.add(client);
+		}
+	}
+
+	/**
+	 * Čeka dok server ne počne primati konekcije.
+	 */
+	private static void waitForServer() throws InterruptedException {
+		for (int i = 0; i < 50; i++) {
+			try {
+				new Socket("127.0.0.1", Integer.parseInt(PORT)).close();
+				return;
+			} catch (IOException notYet) {
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Metoda slučajnim odabirom šalje poruke od jednog klijenta do drugog i provjerava
+	 * ispravno dostavljanje.
+	 */
+	@Test(timeout = 60000)
+	public void randomSendTest() throws ClientException {
+		Random random = new Random();
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			IClientMsgService sender = clients.get(random.nextInt(NUMBER_OF_CLIENTS));
+			IClientMsgService receiver = clients.get(random.nextInt(NUMBER_OF_CLIENTS));
+
+			Message sent = new Message(addresses.get(receiver), MessageType.LETTER, "Pozdrav!".getBytes());
+
+			sent.setUrgent(random.nextBoolean());
+
+			sender.send(sent);
+
+			Message received = receiver.receive();
+
+			Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", sent, received);
+		}
+	}
+
+	/**
+	 * Svi klijenti istovremeno šalju poruku jednom klijentu.
+	 */
+	@Test(timeout = 60000)
+	public void manyToOneTest() throws ClientException {
+		for (int i = 1; i < NUMBER_OF_CLIENTS; i++) {
+			Message message = new Message(addresses.get(clients.get(0)), MessageType.LETTER,
+					addresses.get(clients.get(i)).getGID());
+			message.setUrgent(true);
+
+			clients.get(i).send(message);
+		}
+
+		for (int i = 1; i < NUMBER_OF_CLIENTS; i++) {
+			Message received = clients.get(0).receive();
+
+			Assert.assertArrayEquals("Podaci poruke nisu isti!", received.getSource().getGID(), received.getData());
+		}
+	}
+
+	/**
+	 * Skupina poruka poslana preko batch() mora stići cijela i redom.
+	 */
+	@Test(timeout = 60000)
+	public void batchTest() throws ClientException {
+		IClientMsgService receiver = clients.get(4);
+		List<Message> sent = new ArrayList<Message>();
+
+		MessageBatch batch = clients.get(5).batch().flushImmediately();
+
+		for (int i = 0; i < 100; i++) {
+			Message message = new Message(addresses.get(receiver), MessageType.LETTER, ("Skupina " + i).getBytes());
+
+			sent.add(message);
+			batch.add(message);
+		}
+
+		batch.close();
+
+		for (Message message : sent) {
+			Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", message, receiver.receive());
+		}
+	}
+
+	/**
+	 * Poruka od nekoliko megabajta šalje se podijeljena na dijelove i mora stići cijela,
+	 * a mala poruka drugog klijenta poslana istovremeno mora stići neoštećena.
+	 */
+	@Test(timeout = 60000)
+	public void largeMessageTest() throws Exception {
+		byte[] data = new byte[3 * 1024 * 1024 + 17];
+		new Random(42).nextBytes(data);
+
+		final IClientMsgService receiver = clients.get(1);
+		final Message large = new Message(addresses.get(receiver), MessageType.LETTER, data);
+		Message small = new Message(addresses.get(receiver), MessageType.LETTER, "Mala!".getBytes());
+		small.setUrgent(true);
+
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					clients.get(2).send(large);
+				} catch (ClientException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+
+		sender.start();
+		clients.get(3).send(small);
+		sender.join();
+
+		Message first = receiver.receive();
+		Message second = receiver.receive();
+		Message received = first.getData().length == data.length ? first : second;
+
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", large, received);
+		Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", small, received == first ? second : first);
+	}
+
+	/**
+	 * Poruka poslana klijentu prije njegove registracije mora mu biti isporučena nakon
+	 * što se registrira.
+	 */
+	@Test(timeout = 60000)
+	public void sendBeforeRegisterTest() throws ClientException, IOException {
+		Address late = new Address(200, 1);
+
+		Message sent = new Message(late, MessageType.LETTER, "Rano!".getBytes());
+		sent.setUrgent(true);
+
+		clients.get(0).send(sent);
+
+		Socket socket = new Socket("127.0.0.1", Integer.parseInt(PORT));
+
+		try {
+			new RegisterMessage(late).toStream(socket.getOutputStream());
+			socket.getOutputStream().flush();
+
+			InputStream input = socket.getInputStream();
+
+			Assert.assertEquals("Primljena poruka nije jednaka poslanoj!", sent, Message.fromStream(input));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Server ne podržava pouzdanu isporuku, pa klijent koji je traži ne smije se
+	 * pokrenuti kao da ju je dobio.
+	 */
+	@Test(timeout = 60000, expected = ClientCannotStart.class)
+	public void reliableTest() throws Exception {
+		Properties properties = new Properties();
+
+		properties.putAll(clientProperties);
+		properties.setProperty("reliable", "true");
+
+		IClientMsgService client = new ClientMsgService(properties);
+
+		try {
+			client.start();
+		} finally {
+			client.stop();
+		}
+	}
+
+	/**
+	 * Zaustavlja servera i klijente.
+	 */
+	@AfterClass
+	public static void stopServerAndClients() throws InterruptedException {
+		for (IClientMsgService client : clients) {
+			client.stop();
+		}
+
+		clients.clear();
+
+		addresses.clear();
+
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(NioServerTests.class);
+	}
+}
@@ -0,0 +1,212 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava poruke za klijente koji se još nisu registrirali: ne stvaraju nove dretve,
+ * višak preko kapaciteta se odbija, a registracija ih isporučuje redom kojim su stigle.
+ */
+public class PendingDeliveryTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4103;
+
+	/**
+	 * Najveći broj poruka koje čekaju registraciju.
+	 */
+	private static final int PENDING_CAPACITY = 100;
+
+	/**
+	 * Vrijeme nakon kojeg se poruka koja čeka odbacuje.
+	 */
+	private static final int PENDING_TIMEOUT = 3000;
+
+	/**
+	 * Broj poruka poslanih neregistriranom klijentu.
+	 */
+	private static final int NUMBER_OF_MESSAGES = 150;
+
+	/**
+	 * Server.
+	 */
+	private static SocketMessageServer server;
+
+	/**
+	 * Socket registriranog klijenta.
+	 */
+	private static Socket socket;
+
+	/**
+	 * Pokreće server s malim kapacitetom i spaja jednog klijenta.
+	 */
+	@BeforeClass
+	public static void startServer() throws IOException, InterruptedException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("pending.capacity", Integer.toString(PENDING_CAPACITY));
+		properties.setProperty("pending.timeout", Integer.toString(PENDING_TIMEOUT));
+
+		server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+
+		socket = connect(new Address(400, 1));
+
+		Thread.sleep(500);
+	}
+
+	/**
+	 * Spaja se na server, čekajući ako se on još nije pokrenuo, i registrira adresu.
+	 * @param address adresa klijenta
+	 * @return spojeni socket
+	 */
+	private static Socket connect(Address address) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				Socket connected = new Socket("127.0.0.1", PORT);
+
+				new RegisterMessage(address).toStream(connected.getOutputStream());
+
+				return connected;
+			} catch (IOException e) {
+				if (i == 50) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Šalje nalet poruka neregistriranom klijentu, provjerava da broj dretvi ne raste i da
+	 * je višak odbijen, a zatim da registracija isporučuje parkirane poruke redom.
+	 */
+	@Test
+	public void burstTest() throws IOException, InterruptedException {
+		int threadsBefore = Thread.activeCount();
+		long parked = server.getMetrics().getParked();
+		long rejected = server.getMetrics().getRejected();
+
+		OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			Message message = new Message(new Address(400, 2), MessageType.LETTER, new byte[] { (byte) i });
+			message.setSource(new Address(400, 1));
+			message.toStream(output);
+		}
+
+		output.flush();
+
+		Thread.sleep(500);
+
+		Assert.assertTrue("Poruke koje čekaju stvaraju dretve!", Thread.activeCount() <= threadsBefore);
+		Assert.assertEquals(PENDING_CAPACITY, server.getMetrics().getParked() - parked);
+		Assert.assertEquals(NUMBER_OF_MESSAGES - PENDING_CAPACITY, server.getMetrics().getRejected() - rejected);
+		Assert.assertEquals(PENDING_CAPACITY, server.getMetrics().getPendingDepth());
+
+		Socket late = connect(new Address(400, 2));
+
+		try {
+			InputStream input = new BufferedInputStream(late.getInputStream());
+
+			for (int i = 0; i < PENDING_CAPACITY; i++) {
+				Assert.assertEquals((byte) i, Message.fromStream(input).getData()[0]);
+			}
+
+			Assert.assertEquals(0, server.getMetrics().getPendingDepth());
+		} finally {
+			late.close();
+		}
+	}
+
+	/**
+	 * Poruka čije se odredište ne registrira na vrijeme mora biti odbačena.
+	 */
+	@Test
+	public void expireTest() throws IOException, InterruptedException {
+		long expired = server.getMetrics().getExpired();
+
+		Message message = new Message(new Address(400, 3), MessageType.LETTER, new byte[] { 1 });
+		message.setSource(new Address(400, 1));
+		message.toStream(socket.getOutputStream());
+
+		Thread.sleep(PENDING_TIMEOUT + 1000);
+
+		Assert.assertEquals(expired + 1, server.getMetrics().getExpired());
+	}
+
+	/**
+	 * Poruka registriranom klijentu mora biti isporučena izravno.
+	 */
+	@Test
+	public void inlineTest() throws IOException, InterruptedException {
+		long inline = server.getMetrics().getDeliveredInline();
+
+		Message message = new Message(new Address(400, 1), MessageType.LETTER, new byte[] { 1 });
+		message.setSource(new Address(400, 1));
+		message.toStream(socket.getOutputStream());
+
+		Thread.sleep(500);
+
+		Assert.assertEquals(inline + 1, server.getMetrics().getDeliveredInline());
+	}
+
+	/**
+	 * Zatvara klijenta i zaustavlja server.
+	 */
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		try {
+			socket.close();
+		} catch (IOException ignorable) {
+		}
+
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(PendingDeliveryTest.class);
+	}
+}
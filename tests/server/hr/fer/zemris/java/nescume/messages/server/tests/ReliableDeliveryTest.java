@@ -0,0 +1,504 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.AckMessage;
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.FragmentMessage;
+import hr.fer.zemris.java.nescume.messages.FrameReader;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.SequencedMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.client.ClientMsgService;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava pouzdanu isporuku: poruke stižu s rednim brojevima, nepotvrđene poruke se
+ * nakon prekida veze isporučuju ponovno, klijent ne dobiva više od ack.window
+ * nepotvrđenih poruka, a ClientMsgService potvrđuje primljene poruke skupno.
+ */
+public class ReliableDeliveryTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4108;
+
+	/**
+	 * Adresa pošiljatelja.
+	 */
+	private static final Address SENDER = new Address(900, 1);
+
+	/**
+	 * Adresa primatelja s pouzdanom isporukom.
+	 */
+	private static final Address RECEIVER = new Address(900, 2);
+
+	/**
+	 * Server, null dok ga test ne pokrene.
+	 */
+	private SocketMessageServer server;
+
+	/**
+	 * Primatelj koji ne potvrdi sve poruke prije prekida veze dobiva nepotvrđene poruke
+	 * ponovno kad se ponovno registrira, s novim rednim brojevima.
+	 */
+	@Test(timeout = 30000)
+	public void redeliveryTest() throws Exception {
+		startServer(4096);
+
+		Socket receiver = connect(RECEIVER, true);
+		FrameReader input = replied(receiver);
+		Socket sender = connect(SENDER, false);
+
+		try {
+			send(sender, 0, 20);
+
+			for (int i = 0; i < 20; i++) {
+				assertSequenced(input, i + 1, i);
+			}
+
+			acknowledge(receiver, 10);
+
+			Thread.sleep(300);
+
+			receiver.close();
+
+			Thread.sleep(300);
+
+			Assert.assertEquals(10, server.getMetrics().getRedelivered());
+			Assert.assertEquals(10, server.getMetrics().getPendingDepth());
+
+			receiver = connect(RECEIVER, true);
+			input = replied(receiver);
+
+			for (int i = 0; i < 10; i++) {
+				assertSequenced(input, i + 1, 10 + i);
+			}
+
+			acknowledge(receiver, 10);
+
+			Thread.sleep(300);
+
+			receiver.close();
+
+			Thread.sleep(300);
+
+			Assert.assertEquals(10, server.getMetrics().getRedelivered());
+			Assert.assertEquals(0, server.getMetrics().getPendingDepth());
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	/**
+	 * Kad je prozor nepotvrđenih poruka pun, ostale poruke čekaju (spill) i šalju se tek
+	 * kad stigne potvrda.
+	 */
+	@Test(timeout = 30000)
+	public void windowTest() throws Exception {
+		window("spill");
+	}
+
+	/**
+	 * Uz drop-oldest poruke klijenta s pouzdanom isporukom se ne izbacuju, nego čekaju kao
+	 * kod spill, pa potvrda ne pokriva poruke koje klijent nije primio.
+	 */
+	@Test(timeout = 30000)
+	public void dropOldestTest() throws Exception {
+		window("drop-oldest");
+
+		Assert.assertEquals(0, server.getMetrics().getDroppedOldest());
+	}
+
+	/**
+	 * Šalje 20 poruka primatelju s prozorom od 5 nepotvrđenih poruka i provjerava da
+	 * ostale čekaju i redom stižu nakon potvrda.
+	 * @param policy slow.consumer.policy
+	 */
+	private void window(String policy) throws Exception {
+		startServer(5, policy);
+
+		Socket receiver = connect(RECEIVER, true);
+		FrameReader input = replied(receiver);
+		Socket sender = connect(SENDER, false);
+
+		try {
+			send(sender, 0, 20);
+
+			for (int i = 0; i < 5; i++) {
+				assertSequenced(input, i + 1, i);
+			}
+
+			Thread.sleep(500);
+
+			Assert.assertEquals(15, server.getMetrics().getSpilled());
+
+			for (int window = 5; window < 20; window += 5) {
+				acknowledge(receiver, window);
+
+				for (int i = window; i < window + 5; i++) {
+					assertSequenced(input, i + 1, i);
+				}
+			}
+		} finally {
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	/**
+	 * ClientMsgService s pouzdanom isporukom potvrđuje primljene poruke, jednom potvrdom
+	 * za više poruka, pa nakon zatvaranja ništa ne ostaje za ponovnu isporuku.
+	 */
+	@Test(timeout = 30000)
+	public void clientTest() throws Exception {
+		startServer(4096);
+
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/client.properties"));
+		properties.setProperty("server.port", Integer.toString(PORT));
+		properties.setProperty("buffer.size", "100");
+		properties.setProperty("buffer.timeout", "50");
+		properties.setProperty("reliable", "true");
+
+		ClientMsgService client = new ClientMsgService(properties);
+		Socket sender = connect(SENDER, false);
+
+		try {
+			client.start();
+
+			Address address = client.register();
+
+			Thread.sleep(300);
+
+			OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+			for (int i = 0; i < 50; i++) {
+				message(address, i).toStream(output);
+			}
+
+			output.flush();
+
+			for (int i = 0; i < 50; i++) {
+				Message received = client.receive(5, TimeUnit.SECONDS);
+
+				Assert.assertNotNull("Poruka nije stigla!", received);
+				Assert.assertArrayEquals(message(address, i).getData(), received.getData());
+			}
+
+			Thread.sleep(300);
+
+			long acknowledgements = server.getMetrics().getAcknowledgements();
+
+			Assert.assertTrue("Klijent nije potvrdio poruke!", acknowledgements > 0);
+			Assert.assertTrue("Klijent je potvrdio svaku poruku zasebno!", acknowledgements < 50);
+
+			client.stop();
+
+			Thread.sleep(300);
+
+			Assert.assertEquals(0, server.getMetrics().getRedelivered());
+			Assert.assertEquals(0, server.getMetrics().getPendingDepth());
+		} finally {
+			client.stop();
+			sender.close();
+		}
+	}
+
+	/**
+	 * ClientMsgService potvrđuje samo poruke preuzete s receive(), pa poruke koje su
+	 * stigle u inbox, a korisnik ih nije preuzeo, server nakon zatvaranja vraća u
+	 * sandučić.
+	 */
+	@Test(timeout = 30000)
+	public void untakenTest() throws Exception {
+		startServer(4096);
+
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/client.properties"));
+		properties.setProperty("server.port", Integer.toString(PORT));
+		properties.setProperty("buffer.size", "100");
+		properties.setProperty("buffer.timeout", "50");
+		properties.setProperty("reliable", "true");
+
+		ClientMsgService client = new ClientMsgService(properties);
+		Socket sender = connect(SENDER, false);
+
+		try {
+			client.start();
+
+			Address address = client.register();
+
+			Thread.sleep(300);
+
+			OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+			for (int i = 0; i < 50; i++) {
+				message(address, i).toStream(output);
+			}
+
+			output.flush();
+
+			Thread.sleep(500);
+
+			Assert.assertTrue("Klijent je potvrdio poruke koje nisu preuzete!",
+					server.getMetrics().getAcknowledgements() == 0);
+
+			for (int i = 0; i < 20; i++) {
+				Message received = client.receive(5, TimeUnit.SECONDS);
+
+				Assert.assertNotNull("Poruka nije stigla!", received);
+				Assert.assertArrayEquals(message(address, i).getData(), received.getData());
+			}
+
+			Thread.sleep(300);
+
+			client.stop();
+
+			Thread.sleep(300);
+
+			Assert.assertEquals(30, server.getMetrics().getRedelivered());
+			Assert.assertEquals(30, server.getMetrics().getPendingDepth());
+		} finally {
+			client.stop();
+			sender.close();
+		}
+	}
+
+	/**
+	 * Pošiljatelj koji prekine vezu usred prijenosa podijeljene poruke ne smije trajno
+	 * zaustaviti potvrde: nakon fragment.timeout nedovršena poruka se odbacuje, a potvrda
+	 * prelazi i njen prvi dio.
+	 */
+	@Test(timeout = 30000)
+	public void abandonedTransferTest() throws Exception {
+		startServer(4096);
+
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/client.properties"));
+		properties.setProperty("server.port", Integer.toString(PORT));
+		properties.setProperty("buffer.size", "100");
+		properties.setProperty("buffer.timeout", "50");
+		properties.setProperty("reliable", "true");
+		properties.setProperty("fragment.timeout", "300");
+
+		ClientMsgService client = new ClientMsgService(properties);
+		Socket sender = connect(SENDER, false);
+
+		try {
+			client.start();
+
+			Address address = client.register();
+
+			Thread.sleep(300);
+
+			OutputStream output = sender.getOutputStream();
+
+			FragmentMessage.split(message(address, 0), 1, 50).next().toStream(output);
+			output.flush();
+			sender.close();
+
+			Thread.sleep(600);
+
+			sender = connect(SENDER, false);
+			output = new BufferedOutputStream(sender.getOutputStream());
+
+			for (int i = 1; i <= 10; i++) {
+				message(address, i).toStream(output);
+			}
+
+			output.flush();
+
+			for (int i = 1; i <= 10; i++) {
+				Message received = client.receive(5, TimeUnit.SECONDS);
+
+				Assert.assertNotNull("Poruka nije stigla!", received);
+				Assert.assertArrayEquals(message(address, i).getData(), received.getData());
+			}
+
+			Thread.sleep(300);
+
+			client.stop();
+
+			Thread.sleep(300);
+
+			Assert.assertEquals(0, server.getMetrics().getRedelivered());
+			Assert.assertEquals(0, server.getMetrics().getPendingDepth());
+		} finally {
+			client.stop();
+			sender.close();
+		}
+	}
+
+	/**
+	 * Pokreće server sa zadanim prozorom nepotvrđenih poruka.
+	 * @param window ack.window
+	 */
+	private void startServer(int window) throws IOException {
+		startServer(window, "spill");
+	}
+
+	/**
+	 * Pokreće server sa zadanim prozorom nepotvrđenih poruka i politikom zagušenja.
+	 * @param window ack.window
+	 * @param policy slow.consumer.policy
+	 */
+	private void startServer(int window, String policy) throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("buffer.timeout", "20");
+		properties.setProperty("slow.consumer.policy", policy);
+		properties.setProperty("ack.window", Integer.toString(window));
+
+		server = new SocketMessageServer(properties);
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+	}
+
+	/**
+	 * Spaja se na server, čekajući ako se on još nije pokrenuo, i registrira adresu.
+	 * @param address adresa klijenta
+	 * @param reliable true ako klijent traži pouzdanu isporuku
+	 * @return spojeni socket
+	 */
+	private static Socket connect(Address address, boolean reliable) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			try {
+				Socket connected = new Socket("127.0.0.1", PORT);
+
+				new RegisterMessage(address, reliable).toStream(connected.getOutputStream());
+
+				return connected;
+			} catch (IOException e) {
+				if (i == 50) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Čita odgovor servera na registraciju, koji mora prihvatiti pouzdanu isporuku.
+	 * @param socket socket primatelja
+	 * @return čitač s ulaza primatelja
+	 */
+	private static FrameReader replied(Socket socket) throws IOException {
+		FrameReader reader = new FrameReader(socket.getInputStream(), 8192);
+		RegisterMessage reply = (RegisterMessage) reader.read();
+
+		Assert.assertEquals(0, reply.getSourceKey());
+		Assert.assertTrue("Server nije prihvatio pouzdanu isporuku!", reply.isReliable());
+
+		return reader;
+	}
+
+	/**
+	 * Šalje primatelju poruke sa zadanim rednim brojevima.
+	 * @param sender socket pošiljatelja
+	 * @param from prvi redni broj poruke
+	 * @param to redni broj iza zadnje poruke
+	 */
+	private static void send(Socket sender, int from, int to) throws IOException {
+		OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+		for (int i = from; i < to; i++) {
+			message(RECEIVER, i).toStream(output);
+		}
+
+		output.flush();
+	}
+
+	/**
+	 * Čita zaglavlje rednog broja i poruku iza njega.
+	 * @param input čitač primatelja
+	 * @param sequence očekivani redni broj na vezi
+	 * @param index očekivani redni broj poruke
+	 */
+	private static void assertSequenced(FrameReader input, int sequence, int index) throws IOException {
+		SequencedMessage header = (SequencedMessage) input.read();
+
+		Assert.assertEquals(sequence, header.getSequence());
+		Assert.assertArrayEquals(message(RECEIVER, index).getData(), input.read().getData());
+	}
+
+	/**
+	 * Potvrđuje poruke do zadanog rednog broja.
+	 * @param receiver socket primatelja
+	 * @param sequence najveći potvrđeni redni broj
+	 */
+	private static void acknowledge(Socket receiver, int sequence) throws IOException {
+		new AckMessage(RECEIVER, sequence).toStream(receiver.getOutputStream());
+	}
+
+	/**
+	 * Stvara poruku od pošiljatelja s prepoznatljivim sadržajem.
+	 * @param destination odredište
+	 * @param index redni broj poruke
+	 * @return poruka
+	 */
+	private static Message message(Address destination, int index) {
+		byte[] data = new byte[100];
+
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (index * 31 + i);
+		}
+
+		Message message = new Message(destination, MessageType.LETTER, data);
+		message.setSource(SENDER);
+
+		return message;
+	}
+
+	/**
+	 * Zaustavlja server.
+	 */
+	@After
+	public void stopServer() throws InterruptedException {
+		if (server != null) {
+			server.stop();
+		}
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(ReliableDeliveryTest.class);
+	}
+}
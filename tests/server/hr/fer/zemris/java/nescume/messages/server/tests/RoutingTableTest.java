@@ -0,0 +1,122 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.server.RoutingTable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Služi za testiranje tablice usmjeravanja: tablica se mora ponašati kao mapa ključeva
+ * adresa i kad ju druge dretve istovremeno pretražuju.
+ */
+public class RoutingTableTest {
+
+	/**
+	 * Broj nasumičnih operacija.
+	 */
+	private static final int NUMBER_OF_OPERATIONS = 100000;
+
+	/**
+	 * Broj različitih adresa u nasumičnom testu.
+	 */
+	private static final int NUMBER_OF_ADDRESSES = 1000;
+
+	/**
+	 * Uspoređuje tablicu s HashMapom na nasumičnim dodavanjima i uklanjanjima, uz mnogo
+	 * preslagivanja tablice.
+	 */
+	@Test
+	public void randomOperationsTest() {
+		Random random = new Random(42);
+		RoutingTable<String> table = new RoutingTable<String>();
+		Map<Integer, String> expected = new HashMap<Integer, String>();
+
+		for (int i = 0; i < NUMBER_OF_OPERATIONS; i++) {
+			int key = new Address(random.nextInt(NUMBER_OF_ADDRESSES), random.nextInt(4)).toKey();
+			String value = Integer.toString(random.nextInt(3));
+
+			if (random.nextBoolean()) {
+				Assert.assertEquals(expected.put(key, value), table.put(key, value));
+			} else {
+				Assert.assertEquals(expected.remove(key, value), table.remove(key, value));
+			}
+
+			Assert.assertEquals(expected.get(key), table.get(key));
+		}
+
+		Assert.assertEquals(expected.size(), table.size());
+		Assert.assertEquals(expected.size(), table.values().size());
+
+		for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+			Assert.assertEquals(entry.getValue(), table.get(entry.getKey()));
+		}
+	}
+
+	/**
+	 * Dok jedna dretva stalno dodaje i uklanja ključeve, druga pretražuje ključeve koji su
+	 * cijelo vrijeme u tablici i uvijek ih mora pronaći.
+	 */
+	@Test(timeout = 60000)
+	public void concurrentLookupTest() throws InterruptedException {
+		final RoutingTable<Integer> table = new RoutingTable<Integer>();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		for (int key = 0; key < NUMBER_OF_ADDRESSES; key += 2) {
+			table.put(key, key);
+		}
+
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				while (running.get()) {
+					for (int key = 0; key < NUMBER_OF_ADDRESSES; key += 2) {
+						Integer value = table.get(key);
+
+						if (value == null || value != key) {
+							failure.compareAndSet(null, "Ključ " + key + " nije pronađen!");
+						}
+					}
+				}
+			}
+		};
+
+		reader.start();
+
+		for (int round = 0; round < 200; round++) {
+			for (int key = 1; key < 100 * NUMBER_OF_ADDRESSES; key += 2) {
+				table.put(key, key);
+			}
+
+			for (int key = 1; key < 100 * NUMBER_OF_ADDRESSES; key += 2) {
+				table.remove(key, key);
+			}
+
+			if (failure.get() != null) {
+				break;
+			}
+		}
+
+		running.set(false);
+		reader.join();
+
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(NUMBER_OF_ADDRESSES / 2, table.size());
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(RoutingTableTest.class);
+	}
+}
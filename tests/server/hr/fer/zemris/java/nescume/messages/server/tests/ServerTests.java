@@ -16,6 +16,7 @@ import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerCrashed;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -84,7 +85,7 @@ public class ServerTests {
 	 * @throws IOException u slučaju greške pri čitanju
 	 */
 	@BeforeClass
-	public static void startServerAndClients() throws IOException, ClientException {
+	public static void startServerAndClients() throws IOException, ClientException, InterruptedException {
 		Properties serverProperties = new Properties();
 		Properties clientProperties = new Properties();
 		
@@ -124,6 +125,8 @@ public class ServerTests {
 			}
 		}
 		
+		waitForServer(Integer.parseInt(clientProperties.getProperty("server.port").trim()));
+		
 		// 1 extra klijent, ako zatreba
 		for (int i = 0; i <= NUMBER_OF_CLIENTS; i++) {
 			IClientMsgService client = new ClientMsgService(clientProperties);
@@ -135,6 +138,22 @@ public class ServerTests {
 			clients.add(client);
 		}
 	}
+	
+	/**
+	 * Čeka dok server ne počne primati konekcije, dretva servera javlja da je pokrenuta
+	 * prije nego što otvori socket.
+	 * @param port port servera
+	 */
+	private static void waitForServer(int port) throws InterruptedException {
+		for (int i = 0; i < 50; i++) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				return;
+			} catch (IOException notYet) {
+				Thread.sleep(100);
+			}
+		}
+	}
 
 	/**
 	 * Metoda slučajnim odabirom šalje poruke od jednog klijenta do drugog. Samo jedan klijent
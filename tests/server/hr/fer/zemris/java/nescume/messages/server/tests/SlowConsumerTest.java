@@ -0,0 +1,573 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Address;
+import hr.fer.zemris.java.nescume.messages.Message;
+import hr.fer.zemris.java.nescume.messages.RegisterMessage;
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.IMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.NioMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.ServerMetrics;
+import hr.fer.zemris.java.nescume.messages.server.SocketMessageServer;
+import hr.fer.zemris.java.nescume.messages.server.exceptions.ServerException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Provjerava ponašanje servera prema klijentu koji ne čita poruke: pošiljatelj i ostali
+ * primatelji ne smiju stati, a s porukama za sporog klijenta postupa se prema
+ * slow.consumer.policy. Politike se provjeravaju kod oba servera.
+ */
+public class SlowConsumerTest {
+
+	/**
+	 * Port na kojem sluša server.
+	 */
+	private static final int PORT = 4104;
+
+	/**
+	 * Broj poruka poslanih sporom i brzom klijentu.
+	 */
+	private static final int NUMBER_OF_MESSAGES = 4000;
+
+	/**
+	 * Duljina sadržaja poruka.
+	 */
+	private static final int MESSAGE_LENGTH = 1000;
+
+	/**
+	 * Adresa sporog klijenta.
+	 */
+	private static final Address SLOW = new Address(500, 1);
+
+	/**
+	 * Adresa brzog klijenta.
+	 */
+	private static final Address FAST = new Address(500, 2);
+
+	/**
+	 * Adresa pošiljatelja.
+	 */
+	private static final Address SENDER = new Address(500, 3);
+
+	/**
+	 * Broj dretvi pražnjenja u testovima zapelog pisanja.
+	 */
+	private static final int FLUSH_THREADS = 2;
+
+	/**
+	 * Server.
+	 */
+	private IMessageServer server;
+
+	/**
+	 * Brojači rada servera.
+	 */
+	private ServerMetrics metrics;
+
+	/**
+	 * Socketi spojenih klijenata.
+	 */
+	private List<Socket> sockets = new ArrayList<Socket>();
+
+	/**
+	 * Spori klijent dobiva sve poruke redom kad počne čitati.
+	 */
+	@Test(timeout = 60000)
+	public void spillTest() throws Exception {
+		checkSpill(flood(properties("spill")));
+	}
+
+	/**
+	 * Spori klijent NIO servera dobiva sve poruke redom kad počne čitati.
+	 */
+	@Test(timeout = 60000)
+	public void nioSpillTest() throws Exception {
+		checkSpill(flood(nio("spill")));
+	}
+
+	/**
+	 * Nove poruke za sporog klijenta se odbacuju, a one koje stignu dolaze redom.
+	 */
+	@Test(timeout = 60000)
+	public void dropNewTest() throws Exception {
+		checkDropNew(flood(properties("drop-new")));
+	}
+
+	/**
+	 * Nove poruke za sporog klijenta NIO servera se odbacuju, a one koje stignu dolaze
+	 * redom.
+	 */
+	@Test(timeout = 60000)
+	public void nioDropNewTest() throws Exception {
+		checkDropNew(flood(nio("drop-new")));
+	}
+
+	/**
+	 * Najstarije poruke za sporog klijenta se izbacuju, a zadnja poruka uvijek stiže.
+	 */
+	@Test(timeout = 60000)
+	public void dropOldestTest() throws Exception {
+		checkDropOldest(flood(properties("drop-oldest")));
+	}
+
+	/**
+	 * Najstarije poruke za sporog klijenta NIO servera se izbacuju, a zadnja poruka uvijek
+	 * stiže.
+	 */
+	@Test(timeout = 60000)
+	public void nioDropOldestTest() throws Exception {
+		checkDropOldest(flood(nio("drop-oldest")));
+	}
+
+	/**
+	 * Veza sa sporim klijentom se prekida.
+	 */
+	@Test(timeout = 60000)
+	public void disconnectTest() throws Exception {
+		checkDisconnect(flood(properties("disconnect")));
+	}
+
+	/**
+	 * Veza sa sporim klijentom NIO servera se prekida.
+	 */
+	@Test(timeout = 60000)
+	public void nioDisconnectTest() throws Exception {
+		checkDisconnect(flood(nio("disconnect")));
+	}
+
+	/**
+	 * Provjerava da je spori klijent dobio sve poruke redom (spill).
+	 * @param metrics brojači rada servera
+	 */
+	private void checkSpill(ServerMetrics metrics) throws IOException {
+		Assert.assertTrue("Ništa nije odloženo", metrics.getSpilled() > 0);
+
+		List<Integer> received = readAll(sockets.get(0), NUMBER_OF_MESSAGES);
+
+		for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+			Assert.assertEquals(i, received.get(i).intValue());
+		}
+
+		Assert.assertEquals(0, metrics.getSlowDisconnects());
+	}
+
+	/**
+	 * Provjerava da su odbačene nove poruke, a ostale stigle redom (drop-new).
+	 * @param metrics brojači rada servera
+	 */
+	private void checkDropNew(ServerMetrics metrics) throws IOException {
+		Assert.assertTrue("Ništa nije odbačeno", metrics.getDroppedNew() > 0);
+
+		List<Integer> received = readAll(sockets.get(0), (int) (NUMBER_OF_MESSAGES - metrics.getDroppedNew()));
+
+		Assert.assertEquals(0, received.get(0).intValue());
+		assertIncreasing(received);
+	}
+
+	/**
+	 * Provjerava da su izbačene najstarije poruke, a zadnja stigla (drop-oldest).
+	 * @param metrics brojači rada servera
+	 */
+	private void checkDropOldest(ServerMetrics metrics) throws IOException {
+		Assert.assertTrue("Ništa nije izbačeno", metrics.getDroppedOldest() > 0);
+
+		List<Integer> received = readAll(sockets.get(0), (int) (NUMBER_OF_MESSAGES - metrics.getDroppedOldest()));
+
+		Assert.assertEquals(NUMBER_OF_MESSAGES - 1, received.get(received.size() - 1).intValue());
+		assertIncreasing(received);
+	}
+
+	/**
+	 * Provjerava da je veza sa sporim klijentom prekinuta (disconnect).
+	 * @param metrics brojači rada servera
+	 */
+	private void checkDisconnect(ServerMetrics metrics) throws IOException {
+		Assert.assertEquals(1, metrics.getSlowDisconnects());
+
+		InputStream input = new BufferedInputStream(sockets.get(0).getInputStream());
+
+		try {
+			while (true) {
+				Message.fromStream(input);
+			}
+		} catch (EOFException expected) {
+		} catch (IOException expected) {
+		}
+	}
+
+	/**
+	 * Klijenata koji ne čitaju ima više nego dretvi pražnjenja, pa pisanje prema svakom od
+	 * njih zapne. Brzi klijent i dalje dobiva poruke odmah, jer se zapele dretve
+	 * nadomještaju, a ne čekaju write.timeout.
+	 */
+	@Test(timeout = 60000)
+	public void stalledWritesTest() throws Exception {
+		Properties properties = properties("drop-new");
+		properties.setProperty("flush.threads", Integer.toString(FLUSH_THREADS));
+		properties.setProperty("write.timeout", "0");
+
+		start(properties);
+
+		Address[] slow = new Address[2 * FLUSH_THREADS];
+
+		for (int i = 0; i < slow.length; i++) {
+			slow[i] = new Address(500, 10 + i);
+			connect(slow[i], 4096);
+		}
+
+		Socket fast = connect(FAST, 1 << 20);
+		Socket sender = connect(SENDER, 4096);
+
+		Thread.sleep(500);
+
+		OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+		stall(output, slow, slow.length);
+
+		long start = System.currentTimeMillis();
+
+		for (int i = 0; i < 50; i++) {
+			message(FAST, i).toStream(output);
+		}
+
+		output.flush();
+		List<Integer> received = readAll(fast, 50);
+		long latency = System.currentTimeMillis() - start;
+
+		Assert.assertEquals(49, received.get(49).intValue());
+		Assert.assertTrue("Brzi klijent je čekao " + latency + " ms", latency < 5000);
+		Assert.assertEquals(0, metrics.getSlowDisconnects());
+	}
+
+	/**
+	 * Veza s klijentom prema kojem pisanje ne napreduje write.timeout se prekida, a brzi
+	 * klijent i dalje dobiva poruke.
+	 */
+	@Test(timeout = 60000)
+	public void writeTimeoutTest() throws Exception {
+		Properties properties = properties("drop-new");
+		properties.setProperty("flush.threads", Integer.toString(FLUSH_THREADS));
+		properties.setProperty("write.timeout", "500");
+
+		start(properties);
+
+		Address[] slow = new Address[] { SLOW };
+
+		Socket slowSocket = connect(SLOW, 4096);
+		Socket fast = connect(FAST, 1 << 20);
+		Socket sender = connect(SENDER, 4096);
+
+		Thread.sleep(500);
+
+		OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+		stall(output, slow, 1);
+
+		long end = System.currentTimeMillis() + 10000;
+
+		while (metrics.getSlowDisconnects() < 1) {
+			Assert.assertTrue("Veza nije prekinuta", System.currentTimeMillis() < end);
+			Thread.sleep(10);
+		}
+
+		for (int i = 0; i < 50; i++) {
+			message(FAST, i).toStream(output);
+		}
+
+		output.flush();
+
+		Assert.assertEquals(49, readAll(fast, 50).get(49).intValue());
+
+		InputStream input = new BufferedInputStream(slowSocket.getInputStream());
+
+		try {
+			while (true) {
+				Message.fromStream(input);
+			}
+		} catch (EOFException expected) {
+		} catch (IOException expected) {
+		}
+	}
+
+	/**
+	 * Šalje poruke klijentima koji ne čitaju dok pisanje prema zadanom broju njih ne
+	 * zapne.
+	 * @param output izlaz pošiljatelja
+	 * @param slow adrese klijenata koji ne čitaju
+	 * @param stalled broj zapelih pisanja koji se čeka
+	 */
+	private void stall(OutputStream output, Address[] slow, int stalled) throws Exception {
+		long end = System.currentTimeMillis() + 20000;
+
+		for (int i = 0; metrics.getStalledWrites() < stalled; i++) {
+			Assert.assertTrue("Zapelo je samo " + metrics.getStalledWrites() + " pisanja",
+					System.currentTimeMillis() < end);
+
+			for (Address address : slow) {
+				message(address, i).toStream(output);
+			}
+
+			if (i % 16 == 0) {
+				output.flush();
+				Thread.sleep(1);
+			}
+		}
+
+		output.flush();
+	}
+
+	/**
+	 * Pokreće server sa zadanim parametrima, spaja sporog klijenta koji ne čita i brzog
+	 * koji čita, te šalje obojici po NUMBER_OF_MESSAGES poruka. Slanje prati brzog
+	 * klijenta da on nikad ne bude zagušen, pa on mora dobiti sve svoje poruke iako spori
+	 * ne čita.
+	 * @param properties parametri servera
+	 * @return brojači rada servera
+	 */
+	private ServerMetrics flood(Properties properties) throws Exception {
+		start(properties);
+
+		connect(SLOW, 4096);
+		final Socket fast = connect(FAST, 1 << 20);
+		Socket sender = connect(SENDER, 4096);
+
+		Thread.sleep(500);
+
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		final AtomicInteger progress = new AtomicInteger();
+
+		try {
+			Future<List<Integer>> fastReceived = reader.submit(new Callable<List<Integer>>() {
+
+				public List<Integer> call() throws IOException {
+					return readAll(fast, NUMBER_OF_MESSAGES, progress);
+				}
+
+			});
+
+			OutputStream output = new BufferedOutputStream(sender.getOutputStream());
+
+			for (int i = 0; i < NUMBER_OF_MESSAGES; i++) {
+				if (i % 16 == 0) {
+					output.flush();
+
+					long end = System.currentTimeMillis() + 10000;
+
+					while (progress.get() < i - 32) {
+						Assert.assertTrue("Brzi klijent je stao na " + progress.get(), System.currentTimeMillis() < end);
+						Thread.sleep(1);
+					}
+				}
+
+				message(SLOW, i).toStream(output);
+				message(FAST, i).toStream(output);
+			}
+
+			output.flush();
+
+			List<Integer> received = fastReceived.get(20, TimeUnit.SECONDS);
+
+			Assert.assertEquals(NUMBER_OF_MESSAGES - 1, received.get(NUMBER_OF_MESSAGES - 1).intValue());
+		} finally {
+			reader.shutdownNow();
+		}
+
+		return metrics;
+	}
+
+	/**
+	 * Vraća parametre servera za testove sa zadanom politikom.
+	 * @param policy slow.consumer.policy
+	 * @return parametri servera
+	 */
+	private static Properties properties(String policy) throws IOException {
+		Properties properties = new Properties();
+
+		properties.load(new FileReader("configuration/server.properties"));
+		properties.setProperty("listen.port", Integer.toString(PORT));
+		properties.setProperty("socket.timeout", "200");
+		properties.setProperty("buffer.timeout", "10");
+		properties.setProperty("buffer.size", "100");
+		properties.setProperty("packet.size", "8192");
+		properties.setProperty("watermark.high", "65536");
+		properties.setProperty("watermark.low", "16384");
+		properties.setProperty("spill.capacity", Integer.toString(NUMBER_OF_MESSAGES));
+		properties.setProperty("slow.consumer.policy", policy);
+
+		return properties;
+	}
+
+	/**
+	 * Vraća parametre NIO servera za testove sa zadanom politikom.
+	 * @param policy slow.consumer.policy
+	 * @return parametri servera
+	 */
+	private static Properties nio(String policy) throws IOException {
+		Properties properties = properties(policy);
+
+		properties.setProperty("server.mode", "nio");
+
+		return properties;
+	}
+
+	/**
+	 * Pokreće server zadan propertyjem server.mode u zasebnoj dretvi.
+	 * @param properties parametri servera
+	 */
+	private void start(Properties properties) {
+		if ("nio".equals(properties.getProperty("server.mode"))) {
+			NioMessageServer nio = new NioMessageServer(properties);
+
+			metrics = nio.getMetrics();
+			server = nio;
+		} else {
+			SocketMessageServer socket = new SocketMessageServer(properties);
+
+			metrics = socket.getMetrics();
+			server = socket;
+		}
+
+		new Thread(new Runnable() {
+
+			public void run() {
+				try {
+					server.start();
+				} catch (ServerException e) {
+					e.printStackTrace();
+				}
+			}
+
+		}).start();
+	}
+
+	/**
+	 * Spaja klijenta i registrira ga, čekajući ako se server još nije pokrenuo.
+	 * @param address adresa klijenta
+	 * @param receiveBuffer veličina ulaznog buffera socketa
+	 * @return spojeni socket
+	 */
+	private Socket connect(Address address, int receiveBuffer) throws IOException, InterruptedException {
+		for (int i = 0; ; i++) {
+			Socket socket = new Socket();
+
+			try {
+				socket.setReceiveBufferSize(receiveBuffer);
+				socket.connect(new InetSocketAddress("127.0.0.1", PORT));
+
+				new RegisterMessage(address).toStream(socket.getOutputStream());
+				sockets.add(socket);
+
+				return socket;
+			} catch (IOException e) {
+				socket.close();
+
+				if (i == 50) {
+					throw e;
+				}
+
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Čita zadani broj poruka i vraća njihove redne brojeve.
+	 * @param socket socket klijenta
+	 * @param count broj poruka
+	 * @return redni brojevi poruka, redom kojim su stigle
+	 */
+	private static List<Integer> readAll(Socket socket, int count) throws IOException {
+		return readAll(socket, count, new AtomicInteger());
+	}
+
+	/**
+	 * Čita zadani broj poruka i vraća njihove redne brojeve, uz praćenje broja pročitanih.
+	 * @param socket socket klijenta
+	 * @param count broj poruka
+	 * @param progress broj do sada pročitanih poruka
+	 * @return redni brojevi poruka, redom kojim su stigle
+	 */
+	private static List<Integer> readAll(Socket socket, int count, AtomicInteger progress) throws IOException {
+		InputStream input = new BufferedInputStream(socket.getInputStream());
+		List<Integer> received = new ArrayList<Integer>();
+
+		for (int i = 0; i < count; i++) {
+			received.add(ByteBuffer.wrap(Message.fromStream(input).getData()).getInt());
+			progress.incrementAndGet();
+		}
+
+		return received;
+	}
+
+	/**
+	 * Provjerava da redni brojevi strogo rastu.
+	 * @param received redni brojevi
+	 */
+	private static void assertIncreasing(List<Integer> received) {
+		for (int i = 1; i < received.size(); i++) {
+			Assert.assertTrue("Poruke nisu stigle redom", received.get(i - 1) < received.get(i));
+		}
+	}
+
+	/**
+	 * Stvara poruku s rednim brojem na početku sadržaja.
+	 * @param destination odredište
+	 * @param index redni broj
+	 * @return poruka
+	 */
+	private static Message message(Address destination, int index) {
+		Message message = new Message(destination, MessageType.LETTER,
+				ByteBuffer.allocate(MESSAGE_LENGTH).putInt(index).array());
+		message.setSource(SENDER);
+
+		return message;
+	}
+
+	/**
+	 * Zatvara klijente i zaustavlja server.
+	 */
+	@After
+	public void stopServer() throws InterruptedException {
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException ignorable) {
+			}
+		}
+
+		server.stop();
+
+		Thread.sleep(1000);
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SlowConsumerTest.class);
+	}
+}
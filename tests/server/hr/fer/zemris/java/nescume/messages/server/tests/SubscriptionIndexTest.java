@@ -0,0 +1,231 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.server.SubscriptionIndex;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Služi za testiranje indeksa pretplata: indeks mora pronaći točno one pretplatnike čiji
+ * uzorak se nalazi u sadržaju poruke.
+ */
+public class SubscriptionIndexTest {
+
+	/**
+	 * Broj pojedinih testova.
+	 */
+	private static final int NUMBER_OF_TESTS = 100;
+
+	/**
+	 * Broj pretplatnika u nasumičnom testu.
+	 */
+	private static final int NUMBER_OF_SUBSCRIBERS = 200;
+
+	/**
+	 * Broj pretraživanja za zagrijavanje i za mjerenje alokacija.
+	 */
+	private static final int ALLOCATION_ROUNDS = 100000;
+
+	/**
+	 * Uzorci koji se preklapaju moraju se pronaći i preko failure linkova.
+	 */
+	@Test
+	public void overlappingPatternsTest() {
+		SubscriptionIndex<String> index = new SubscriptionIndex<String>();
+
+		index = index.with("he", "he".getBytes());
+		index = index.with("she", "she".getBytes());
+		index = index.with("his", "his".getBytes());
+		index = index.with("hers", "hers".getBytes());
+
+		Assert.assertEquals(set("he", "she", "hers"), new HashSet<String>(index.match("ushers".getBytes())));
+		Assert.assertEquals(Arrays.asList("his"), index.match("this".getBytes()));
+		Assert.assertTrue(index.match("hhhh".getBytes()).isEmpty());
+	}
+
+	/**
+	 * Wildcard pretplatnik prima sve poruke, pa i one bez sadržaja.
+	 */
+	@Test
+	public void wildcardTest() {
+		SubscriptionIndex<String> index = new SubscriptionIndex<String>();
+
+		index = index.with("all", new byte[] { 0 });
+		index = index.with("abc", "abc".getBytes());
+
+		Assert.assertEquals(Arrays.asList("all"), index.match("xyz".getBytes()));
+		Assert.assertEquals(Arrays.asList("all"), index.match(null));
+		Assert.assertEquals(set("all", "abc"), new HashSet<String>(index.match("abc".getBytes())));
+	}
+
+	/**
+	 * Pretplatnik s više uzoraka prima poruku ako sadrži bilo koji od njih, ali samo
+	 * jednom, a odjavljeni pretplatnik više ne prima poruke.
+	 */
+	@Test
+	public void multiplePatternsTest() {
+		SubscriptionIndex<String> index = new SubscriptionIndex<String>();
+
+		index = index.with("client", "abc".getBytes());
+		index = index.with("client", "xyz".getBytes());
+		index = index.with("client", "xyz".getBytes());
+
+		Assert.assertEquals(Arrays.asList("client"), index.match("abc".getBytes()));
+		Assert.assertEquals(Arrays.asList("client"), index.match("xyz".getBytes()));
+		Assert.assertEquals(Arrays.asList("client"), index.match("abcxyzabc".getBytes()));
+		Assert.assertTrue(index.match("ab".getBytes()).isEmpty());
+
+		index = index.without("client");
+
+		Assert.assertTrue(index.match("xyz".getBytes()).isEmpty());
+		Assert.assertEquals(0, index.size());
+	}
+
+	/**
+	 * Nakon zagrijavanja pronalaženje pretplatnika ne smije alocirati memoriju.
+	 */
+	@Test
+	public void allocationTest() {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+			return;
+		}
+
+		Random random = new Random(42);
+		SubscriptionIndex<Integer> index = new SubscriptionIndex<Integer>();
+
+		for (int i = 0; i < NUMBER_OF_SUBSCRIBERS; i++) {
+			index = index.with(i, randomBytes(random, 2 + random.nextInt(3)));
+			index = index.with(i, randomBytes(random, 2 + random.nextInt(3)));
+		}
+
+		byte[] data = randomBytes(random, 256);
+		Counter counter = new Counter();
+
+		for (int i = 0; i < ALLOCATION_ROUNDS; i++) {
+			index.match(data, 0, data.length, counter);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+
+		for (int i = 0; i < ALLOCATION_ROUNDS; i++) {
+			index.match(data, 0, data.length, counter);
+		}
+
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+		Assert.assertTrue(counter.count > 0);
+		// Samo mjerenje smije alocirati malo, a i jedan objekt po pozivu bio bi megabajt
+		Assert.assertTrue("Pronalaženje pretplatnika alocira memoriju: " + allocated, allocated < 1024);
+	}
+
+	/**
+	 * Posjetitelj koji samo broji pretplatnike.
+	 */
+	private static class Counter implements SubscriptionIndex.Visitor<Integer> {
+
+		/**
+		 * Broj posjećenih pretplatnika.
+		 */
+		private long count;
+
+		public void matched(Integer subscriber) {
+			count++;
+		}
+	}
+
+	/**
+	 * Uspoređuje indeks s naivnim pretraživanjem na nasumičnim uzorcima i porukama nad
+	 * malom abecedom, da bi bilo puno preklapanja.
+	 */
+	@Test
+	public void randomPatternsTest() {
+		Random random = new Random(42);
+
+		SubscriptionIndex<Integer> index = new SubscriptionIndex<Integer>();
+		byte[][] patterns = new byte[NUMBER_OF_SUBSCRIBERS][];
+
+		for (int i = 0; i < NUMBER_OF_SUBSCRIBERS; i++) {
+			patterns[i] = randomBytes(random, 1 + random.nextInt(4));
+			index = index.with(i, patterns[i]);
+		}
+
+		for (int test = 0; test < NUMBER_OF_TESTS; test++) {
+			byte[] data = randomBytes(random, random.nextInt(64));
+
+			Set<Integer> expected = new HashSet<Integer>();
+
+			for (int i = 0; i < NUMBER_OF_SUBSCRIBERS; i++) {
+				if (patterns[i].length == 1 && patterns[i][0] == 0 || contains(data, patterns[i])) {
+					expected.add(i);
+				}
+			}
+
+			List<Integer> matched = index.match(data);
+
+			Assert.assertEquals(matched.size(), new HashSet<Integer>(matched).size());
+			Assert.assertEquals(expected, new HashSet<Integer>(matched));
+		}
+	}
+
+	/**
+	 * Stvara skup od zadanih elemenata.
+	 * @param elements elementi
+	 * @return skup
+	 */
+	private static Set<String> set(String... elements) {
+		return new HashSet<String>(Arrays.asList(elements));
+	}
+
+	/**
+	 * Stvara nasumični niz bajtova iz abecede od četiri znaka.
+	 * @param random generator
+	 * @param length duljina niza
+	 * @return niz
+	 */
+	private static byte[] randomBytes(Random random, int length) {
+		byte[] bytes = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) random.nextInt(4);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Naivno traži uzorak u sadržaju.
+	 * @param data sadržaj
+	 * @param pattern uzorak
+	 * @return true ako se uzorak nalazi u sadržaju
+	 */
+	private static boolean contains(byte[] data, byte[] pattern) {
+		for (int i = 0; i + pattern.length <= data.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(data, i, i + pattern.length), pattern)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SubscriptionIndexTest.class);
+	}
+}
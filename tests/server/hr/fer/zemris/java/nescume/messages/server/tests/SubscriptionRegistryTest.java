@@ -0,0 +1,269 @@
+package hr.fer.zemris.java.nescume.messages.server.tests;
+
+import hr.fer.zemris.java.nescume.messages.Message.MessageType;
+import hr.fer.zemris.java.nescume.messages.server.SubscriptionIndex;
+import hr.fer.zemris.java.nescume.messages.server.SubscriptionRegistry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Služi za testiranje registra pretplata: pretraživanje mora vidjeti dosljedno stanje
+ * pretplata i kad se pretplate istovremeno mijenjaju.
+ */
+public class SubscriptionRegistryTest {
+
+	/**
+	 * Broj dretvi koje se pretplaćuju i odjavljuju.
+	 */
+	private static final int NUMBER_OF_WRITERS = 4;
+
+	/**
+	 * Broj dretvi koje pretražuju registar.
+	 */
+	private static final int NUMBER_OF_READERS = 4;
+
+	/**
+	 * Broj pretplatnika svake dretve koja mijenja pretplate.
+	 */
+	private static final int NUMBER_OF_SUBSCRIBERS = 500;
+
+	/**
+	 * Broj pretplatnika koji su pretplaćeni cijelo vrijeme testa.
+	 */
+	private static final int NUMBER_OF_STABLE = 100;
+
+	/**
+	 * Pretplate na jedan tip ne smiju biti vidljive na drugom, a odjava uklanja
+	 * pretplatnika sa svih tipova.
+	 */
+	@Test
+	public void typesTest() {
+		SubscriptionRegistry<String> registry = new SubscriptionRegistry<String>();
+
+		registry.subscribe(MessageType.LETTER, "letter", "abc".getBytes());
+		registry.subscribe(MessageType.QUERY, "query", "abc".getBytes());
+		registry.subscribe(MessageType.QUERY, "letter", "xyz".getBytes());
+
+		Assert.assertEquals(set("letter"), match(registry, MessageType.LETTER, "abc"));
+		Assert.assertEquals(set("query"), match(registry, MessageType.QUERY, "abc"));
+		Assert.assertEquals(set("letter"), match(registry, MessageType.QUERY, "xyz"));
+		Assert.assertTrue(match(registry, MessageType.REGISTER, "abc").isEmpty());
+		Assert.assertTrue(!registry.hasSubscribers(MessageType.REGISTER));
+
+		registry.unsubscribe("letter");
+
+		Assert.assertTrue(!registry.hasSubscribers(MessageType.LETTER));
+		Assert.assertEquals(set("query"), match(registry, MessageType.QUERY, "abcxyz"));
+	}
+
+	/**
+	 * Nakon mnogo pretplata i odjava (uz spajanja indeksa promjena) registar mora
+	 * pronalaziti točno preostale pretplatnike, sa svim njihovim uzorcima.
+	 */
+	@Test
+	public void churnTest() {
+		SubscriptionRegistry<Integer> registry = new SubscriptionRegistry<Integer>();
+
+		for (int i = 0; i < 2000; i++) {
+			registry.subscribe(MessageType.LETTER, i, pattern(i));
+		}
+
+		for (int i = 0; i < 2000; i += 2) {
+			registry.unsubscribe(i);
+		}
+
+		for (int i = 1; i < 2000; i += 4) {
+			registry.subscribe(MessageType.LETTER, i, "shared".getBytes());
+		}
+
+		Set<Integer> expected = new HashSet<Integer>();
+
+		for (int i = 1; i < 2000; i += 4) {
+			expected.add(i);
+		}
+
+		Assert.assertEquals(expected, match(registry, MessageType.LETTER, "shared"));
+		Assert.assertEquals(set(1999), match(registry, MessageType.LETTER, new String(pattern(1999))));
+		Assert.assertTrue(match(registry, MessageType.LETTER, new String(pattern(1998))).isEmpty());
+	}
+
+	/**
+	 * Više dretvi se pretplaćuje i odjavljuje dok druge pretražuju registar. Pretraživanje
+	 * ne smije baciti iznimku, ne smije posjetiti pretplatnika dvaput, uvijek mora
+	 * pronaći sve stalne pretplatnike i ne smije pronaći pretplatnika koji je odjavljen
+	 * prije početka pretraživanja.
+	 */
+	@Test(timeout = 60000)
+	public void concurrentStressTest() throws Exception {
+		final SubscriptionRegistry<Integer> registry = new SubscriptionRegistry<Integer>();
+		final byte[] data = "stress".getBytes();
+
+		for (int i = 0; i < NUMBER_OF_STABLE; i++) {
+			registry.subscribe(MessageType.LETTER, -1 - i, "ess".getBytes());
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicLong searches = new AtomicLong();
+		final CountDownLatch writersDone = new CountDownLatch(NUMBER_OF_WRITERS);
+		final boolean[] unsubscribed = new boolean[NUMBER_OF_WRITERS * NUMBER_OF_SUBSCRIBERS];
+
+		List<Thread> threads = new ArrayList<Thread>();
+
+		for (int w = 0; w < NUMBER_OF_WRITERS; w++) {
+			final int first = w * NUMBER_OF_SUBSCRIBERS;
+
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int round = 0; round < 5; round++) {
+							for (int i = first; i < first + NUMBER_OF_SUBSCRIBERS; i++) {
+								registry.subscribe(MessageType.LETTER, i, "str".getBytes());
+								registry.subscribe(MessageType.LETTER, i, "tre".getBytes());
+							}
+
+							for (int i = first; i < first + NUMBER_OF_SUBSCRIBERS; i++) {
+								registry.unsubscribe(i);
+							}
+						}
+
+						synchronized (unsubscribed) {
+							for (int i = first; i < first + NUMBER_OF_SUBSCRIBERS; i++) {
+								unsubscribed[i] = true;
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						writersDone.countDown();
+					}
+				}
+			});
+		}
+
+		for (int r = 0; r < NUMBER_OF_READERS; r++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (running.get()) {
+							boolean[] gone;
+
+							synchronized (unsubscribed) {
+								gone = unsubscribed.clone();
+							}
+
+							final Set<Integer> seen = new HashSet<Integer>();
+
+							registry.match(MessageType.LETTER, data, 0, data.length, new SubscriptionIndex.Visitor<Integer>() {
+								public void matched(Integer subscriber) {
+									if (!seen.add(subscriber)) {
+										throw new AssertionError("Pretplatnik " + subscriber + " posjećen dvaput!");
+									}
+								}
+							});
+
+							int stable = 0;
+
+							for (int subscriber : seen) {
+								if (subscriber < 0) {
+									stable++;
+								} else if (gone[subscriber]) {
+									throw new AssertionError("Pronađen odjavljeni pretplatnik " + subscriber + "!");
+								}
+							}
+
+							Assert.assertEquals(NUMBER_OF_STABLE, stable);
+
+							searches.incrementAndGet();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads) {
+			thread.start();
+		}
+
+		writersDone.await();
+		running.set(false);
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		Assert.assertTrue(searches.get() > 0);
+		Assert.assertEquals(NUMBER_OF_STABLE, match(registry, MessageType.LETTER, "stress").size());
+	}
+
+	/**
+	 * Vraća skup pretplatnika na tip kojima sadržaj odgovara.
+	 * @param registry registar
+	 * @param type tip poruke
+	 * @param data sadržaj
+	 * @return pronađeni pretplatnici
+	 */
+	private static <S> Set<S> match(SubscriptionRegistry<S> registry, MessageType type, String data) {
+		final Set<S> matched = new HashSet<S>();
+		byte[] bytes = data.getBytes();
+
+		registry.match(type, bytes, 0, bytes.length, new SubscriptionIndex.Visitor<S>() {
+			public void matched(S subscriber) {
+				matched.add(subscriber);
+			}
+		});
+
+		return matched;
+	}
+
+	/**
+	 * Stvara jedinstveni uzorak pretplatnika.
+	 * @param i redni broj pretplatnika
+	 * @return uzorak
+	 */
+	private static byte[] pattern(int i) {
+		return ("#" + i + "#").getBytes();
+	}
+
+	/**
+	 * Stvara skup od zadanih elemenata.
+	 * @param elements elementi
+	 * @return skup
+	 */
+	private static <T> Set<T> set(T... elements) {
+		Set<T> set = new HashSet<T>();
+
+		for (T element : elements) {
+			set.add(element);
+		}
+
+		return set;
+	}
+
+	/**
+	 * Metoda potrebna za pozivanje testova iz ANT-a.
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SubscriptionRegistryTest.class);
+	}
+}